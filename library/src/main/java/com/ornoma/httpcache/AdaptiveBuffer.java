@@ -0,0 +1,137 @@
+package com.ornoma.httpcache;
+
+import static com.ornoma.httpcache.Preconditions.checkArgument;
+
+/**
+ * Buffer source is read with before data is appended to cache, its size follows measured throughput of source.
+ * <p>
+ * Every append wakes up waiting clients and reports cache's progress, so appending every small read of fast source costs
+ * thousands of syscalls and wakeups per second. Buffer is filled by several reads until it is full or fill interval is over,
+ * and its size is chosen to be filled in about fill interval, so data is appended about once per interval whatever
+ * throughput is, but slow source still gets its data to clients not later than in one interval.
+ * Size is power of two multiple of min size within bounds, so buffer isn't reallocated on every small change of throughput.
+ */
+final class AdaptiveBuffer {
+
+    private static final long NANOS_IN_MS = 1000000;
+
+    private final int minSize;
+    private final int maxSize;
+    private final long fillIntervalNanos;
+    private byte[] buffer;
+    private byte[] chunk;
+    private int nextSize;
+    private double throughput = -1;
+    private ProxyCacheException pendingError;
+    private boolean sourceOver;
+
+    /**
+     * @param minSize      min size of buffer in bytes, initial size too.
+     * @param maxSize      max size of buffer in bytes.
+     * @param fillInterval max time to fill buffer in milliseconds, {@code 0} means every read of source is returned at once.
+     */
+    AdaptiveBuffer(int minSize, int maxSize, long fillInterval) {
+        checkArgument(minSize > 0 && maxSize >= minSize, "Buffer size must be positive, max size can't be less than min");
+        checkArgument(fillInterval >= 0, "Fill interval can't be negative");
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.fillIntervalNanos = fillInterval * NANOS_IN_MS;
+        this.buffer = new byte[minSize];
+        this.nextSize = minSize;
+    }
+
+    /**
+     * Reads source into buffer until buffer is full, fill interval is over or source is over.
+     * <p>
+     * If source fails after some data is read, that data is returned and error is thrown by next call.
+     *
+     * @param source an opened source.
+     * @param limit  max count of bytes to read.
+     * @return count of bytes read into {@link #array()}, {@code -1} if source is over.
+     * @throws ProxyCacheException if source can't be read.
+     */
+    int fill(Source source, long limit) throws ProxyCacheException {
+        if (pendingError != null) {
+            ProxyCacheException error = pendingError;
+            pendingError = null;
+            throw error;
+        }
+        if (sourceOver) {
+            return -1;
+        }
+        if (nextSize != buffer.length) {
+            buffer = new byte[nextSize];
+        }
+        int capacity = (int) Math.min(buffer.length, limit);
+        long startTime = System.nanoTime();
+        long elapsed = 0;
+        int filled = 0;
+        while (filled < capacity && (filled == 0 || elapsed < fillIntervalNanos)) {
+            // the first read goes straight to buffer, the rest are copied: source can't read into array's middle
+            byte[] target = filled == 0 && capacity == buffer.length ? buffer : chunk(capacity - filled);
+            int read;
+            try {
+                read = source.read(target);
+            } catch (ProxyCacheException e) {
+                if (filled == 0) {
+                    throw e;
+                }
+                pendingError = e;
+                break;
+            }
+            if (read == -1) {
+                sourceOver = true;
+                break;
+            }
+            if (target != buffer) {
+                System.arraycopy(target, 0, buffer, filled, read);
+            }
+            filled += read;
+            elapsed = System.nanoTime() - startTime;
+        }
+        if (filled > 0) {
+            resize(filled, elapsed);
+        }
+        return filled == 0 && sourceOver ? -1 : filled;
+    }
+
+    /**
+     * Returns array filled by last {@link #fill(Source, long)}. Array is changed when buffer is resized, so it must be taken after every fill.
+     *
+     * @return an array with data at its beginning.
+     */
+    byte[] array() {
+        return buffer;
+    }
+
+    /**
+     * Returns size of buffer to be used by next fill.
+     *
+     * @return size in bytes.
+     */
+    int size() {
+        return nextSize;
+    }
+
+    private byte[] chunk(int maxLength) {
+        int length = Math.min(minSize, maxLength);
+        if (chunk == null || chunk.length != length) {
+            chunk = new byte[length];
+        }
+        return chunk;
+    }
+
+    private void resize(int filled, long elapsed) {
+        if (filled < buffer.length && elapsed < fillIntervalNanos) {
+            return; // source is over or limit is reached, it says nothing about throughput
+        }
+        double fillThroughput = (double) filled / Math.max(elapsed, 1);
+        throughput = throughput < 0 ? fillThroughput : throughput * .7 + fillThroughput * .3;
+        long targetSize = (long) (throughput * fillIntervalNanos);
+        int size = minSize;
+        while (size < targetSize && size <= maxSize / 2) {
+            size *= 2;
+        }
+        nextSize = size; // buffer is reallocated by next fill: data of this one is still to be taken by caller
+    }
+}
@@ -0,0 +1,227 @@
+package com.ornoma.httpcache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.ornoma.httpcache.Preconditions.checkArgument;
+import static com.ornoma.httpcache.Preconditions.checkNotNull;
+
+/**
+ * Limits bandwidth used by proxy to download data from origin servers, see {@link HttpProxyCacheServer#getBandwidthGovernor()}.
+ * <p>
+ * Every read of source is charged to {@link TrafficClass} of source. Each class has its own budget (token bucket) that is
+ * guaranteed to it, and all classes share total limit: class that has spent its budget borrows capacity of total limit
+ * unused by other classes. Class borrows only while no class of higher priority waits for capacity, so background traffic
+ * never takes bandwidth needed by playback. Without total limit there is nothing to borrow, so budgets are hard limits then.
+ * Limits may be changed at any time, {@code 0} means no limit. By default bandwidth is not limited at all.
+ */
+public final class BandwidthGovernor {
+
+    private static final double BURST_SECONDS = .5;
+    private static final long MAX_WAIT_MS = 100;
+    private static final TrafficClass[] CLASSES = TrafficClass.values();
+
+    private final Bucket total = new Bucket();
+    private final Bucket[] budgets = new Bucket[CLASSES.length];
+    private final int[] waiting = new int[CLASSES.length];
+    private final AtomicLongArray transferredBytes = new AtomicLongArray(CLASSES.length);
+    private final AtomicLongArray throttledTime = new AtomicLongArray(CLASSES.length);
+    private volatile boolean limited;
+
+    BandwidthGovernor() {
+        for (int i = 0; i < budgets.length; i++) {
+            budgets[i] = new Bucket();
+        }
+    }
+
+    /**
+     * Kind of traffic to origin servers. Classes are declared in order of priority.
+     */
+    public enum TrafficClass {
+        /**
+         * Content requested by clients, i.e. video being played.
+         */
+        PLAYBACK,
+        /**
+         * Requests for content's info (length, mime) without content itself.
+         */
+        METADATA,
+        /**
+         * Content downloaded in advance, before any client requests it.
+         */
+        PREFETCH
+    }
+
+    /**
+     * Sets total bandwidth shared by all traffic classes.
+     *
+     * @param bytesPerSecond total limit in bytes per second, {@code 0} means no limit.
+     */
+    public synchronized void setTotalLimit(long bytesPerSecond) {
+        checkArgument(bytesPerSecond >= 0, "Bandwidth limit can't be negative");
+        total.setRate(bytesPerSecond, System.nanoTime());
+        onLimitsChanged();
+    }
+
+    /**
+     * Sets bandwidth guaranteed to traffic class.
+     *
+     * @param trafficClass   a traffic class.
+     * @param bytesPerSecond class's budget in bytes per second, {@code 0} means class uses only capacity unused by others
+     *                       (or is not limited if there is no total limit).
+     */
+    public synchronized void setBudget(TrafficClass trafficClass, long bytesPerSecond) {
+        checkArgument(bytesPerSecond >= 0, "Bandwidth budget can't be negative");
+        budgets[checkNotNull(trafficClass).ordinal()].setRate(bytesPerSecond, System.nanoTime());
+        onLimitsChanged();
+    }
+
+    public synchronized long getTotalLimit() {
+        return total.rate;
+    }
+
+    public synchronized long getBudget(TrafficClass trafficClass) {
+        return budgets[trafficClass.ordinal()].rate;
+    }
+
+    /**
+     * Returns count of bytes downloaded by traffic class.
+     *
+     * @param trafficClass a traffic class.
+     * @return count of bytes.
+     */
+    public long getTransferredBytes(TrafficClass trafficClass) {
+        return transferredBytes.get(trafficClass.ordinal());
+    }
+
+    /**
+     * Returns how long reads of traffic class waited for bandwidth.
+     *
+     * @param trafficClass a traffic class.
+     * @return total wait time in milliseconds.
+     */
+    public long getThrottledTime(TrafficClass trafficClass) {
+        return throttledTime.get(trafficClass.ordinal()) / 1000000;
+    }
+
+    /**
+     * Blocks until traffic class may transfer data, i.e. it has budget or may borrow unused capacity.
+     *
+     * @param trafficClass a traffic class of data to be transferred.
+     * @throws InterruptedProxyCacheException if waiting thread is interrupted.
+     */
+    void acquire(TrafficClass trafficClass) throws InterruptedProxyCacheException {
+        if (!limited) {
+            return;
+        }
+        int index = trafficClass.ordinal();
+        long startTime = System.nanoTime();
+        synchronized (this) {
+            waiting[index]++;
+            try {
+                long waitTime;
+                while ((waitTime = getWaitTime(index, System.nanoTime())) > 0) {
+                    wait(waitTime);
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedProxyCacheException("Waiting for bandwidth is interrupted", e);
+            } finally {
+                waiting[index]--;
+            }
+        }
+        throttledTime.addAndGet(index, System.nanoTime() - startTime);
+    }
+
+    /**
+     * Charges transferred data to traffic class. Class's budget is spent first, the rest is borrowed from total limit.
+     *
+     * @param trafficClass a traffic class of transferred data.
+     * @param bytes        count of transferred bytes.
+     */
+    void charge(TrafficClass trafficClass, long bytes) {
+        int index = trafficClass.ordinal();
+        transferredBytes.addAndGet(index, bytes);
+        if (!limited) {
+            return;
+        }
+        synchronized (this) {
+            long now = System.nanoTime();
+            Bucket budget = budgets[index];
+            budget.refill(now);
+            total.refill(now);
+            if (budget.rate > 0 && budget.tokens > 0) {
+                budget.tokens -= bytes; // borrowed capacity isn't charged to budget, so it doesn't delay guaranteed one
+            }
+            if (total.rate > 0) {
+                total.tokens -= bytes;
+            }
+        }
+    }
+
+    /**
+     * Returns how long class should wait before transferring data.
+     *
+     * @return wait time in milliseconds, {@code 0} if data may be transferred right now.
+     */
+    private long getWaitTime(int index, long now) {
+        Bucket budget = budgets[index];
+        budget.refill(now);
+        total.refill(now);
+        if (budget.rate > 0 && budget.tokens > 0) {
+            return 0; // guaranteed budget doesn't depend on others
+        }
+        if (total.rate == 0) {
+            return budget.rate == 0 ? 0 : millisToRefill(budget);
+        }
+        if (total.tokens > 0 && !isHigherPriorityWaiting(index)) {
+            return 0;
+        }
+        long waitTime = total.tokens > 0 ? MAX_WAIT_MS : millisToRefill(total);
+        return budget.rate > 0 ? Math.min(waitTime, millisToRefill(budget)) : waitTime;
+    }
+
+    private boolean isHigherPriorityWaiting(int index) {
+        for (int i = 0; i < index; i++) {
+            if (waiting[i] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long millisToRefill(Bucket bucket) {
+        long waitTime = (long) Math.ceil(-bucket.tokens * 1000 / bucket.rate);
+        return Math.max(1, Math.min(waitTime, MAX_WAIT_MS));
+    }
+
+    private void onLimitsChanged() {
+        boolean limited = total.rate > 0;
+        for (Bucket budget : budgets) {
+            limited |= budget.rate > 0;
+        }
+        this.limited = limited;
+        notifyAll();
+    }
+
+    private static final class Bucket {
+
+        private long rate;
+        private double tokens;
+        private long refillTime;
+
+        void setRate(long rate, long now) {
+            refill(now);
+            this.rate = rate;
+            this.tokens = Math.min(tokens, capacity());
+        }
+
+        void refill(long now) {
+            double elapsed = (now - refillTime) / 1e9;
+            refillTime = now;
+            tokens = rate == 0 ? 0 : Math.min(capacity(), tokens + elapsed * rate);
+        }
+
+        private double capacity() {
+            return rate * BURST_SECONDS;
+        }
+    }
+}
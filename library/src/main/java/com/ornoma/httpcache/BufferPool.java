@@ -0,0 +1,66 @@
+package com.ornoma.httpcache;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.ornoma.httpcache.Preconditions.checkArgument;
+
+/**
+ * Pool of heap {@link ByteBuffer}s of the same size, lets every response reuse buffers instead of allocating new ones.
+ * Buffers may be acquired and released on any thread.
+ */
+final class BufferPool {
+
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final int bufferSize;
+    private final int maxPooled;
+
+    /**
+     * @param bufferSize a capacity of every buffer.
+     * @param maxPooled  max count of idle buffers kept by pool, excess ones are left for garbage collector.
+     */
+    BufferPool(int bufferSize, int maxPooled) {
+        checkArgument(bufferSize > 0, "Buffer size must be positive");
+        checkArgument(maxPooled >= 0, "Max pooled buffers count can't be negative");
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns cleared buffer from pool or new one if pool is empty.
+     *
+     * @return a buffer with capacity {@link #bufferSize()}.
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns buffer to pool. Buffer must not be used after releasing.
+     *
+     * @param buffer a buffer acquired from this pool, buffers of other size are ignored.
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.offer(buffer);
+    }
+}
@@ -0,0 +1,95 @@
+package com.ornoma.httpcache;
+
+/**
+ * Single range of bytes requested by client with {@code Range} header: {@code first-last}, {@code first-} or suffix {@code -length}.
+ */
+final class ByteRange {
+
+    private static final long UNKNOWN = -1;
+
+    /**
+     * First byte of range or {@code -1} for suffix range.
+     */
+    final long first;
+    /**
+     * Last byte of range (inclusive) or {@code -1} if range is open (up to end of content).
+     */
+    final long last;
+    /**
+     * Count of last bytes of content requested by suffix range or {@code -1} for ordinary range.
+     */
+    final long suffixLength;
+
+    private ByteRange(long first, long last, long suffixLength) {
+        this.first = first;
+        this.last = last;
+        this.suffixLength = suffixLength;
+    }
+
+    static ByteRange from(long first) {
+        return new ByteRange(first, UNKNOWN, UNKNOWN);
+    }
+
+    static ByteRange closed(long first, long last) {
+        return new ByteRange(first, last, UNKNOWN);
+    }
+
+    static ByteRange suffix(long length) {
+        return new ByteRange(UNKNOWN, UNKNOWN, length);
+    }
+
+    boolean isSuffix() {
+        return suffixLength >= 0;
+    }
+
+    /**
+     * Returns count of bytes in range.
+     *
+     * @return count of bytes or {@code -1} if it is unknown because range is not resolved.
+     */
+    long length() {
+        return first >= 0 && last >= 0 ? last - first + 1 : UNKNOWN;
+    }
+
+    /**
+     * Converts range to range with exact bounds for content with known length.
+     *
+     * @param contentLength a length of content, must be known.
+     * @return range with exact bounds or {@code null} if range can't be satisfied.
+     */
+    ByteRange resolve(long contentLength) {
+        if (isSuffix()) {
+            long length = Math.min(suffixLength, contentLength);
+            return length > 0 ? closed(contentLength - length, contentLength - 1) : null;
+        }
+        if (first >= contentLength) {
+            return null;
+        }
+        long resolvedLast = last < 0 ? contentLength - 1 : Math.min(last, contentLength - 1);
+        return closed(first, resolvedLast);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        ByteRange that = (ByteRange) o;
+        return first == that.first && last == that.last && suffixLength == that.suffixLength;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (first ^ (first >>> 32));
+        result = 31 * result + (int) (last ^ (last >>> 32));
+        return 31 * result + (int) (suffixLength ^ (suffixLength >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return isSuffix() ? "-" + suffixLength : first + "-" + (last < 0 ? "" : last);
+    }
+}
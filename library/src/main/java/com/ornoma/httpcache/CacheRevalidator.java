@@ -0,0 +1,188 @@
+package com.ornoma.httpcache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.ornoma.httpcache.Preconditions.checkNotNull;
+
+/**
+ * Keeps completely cached content up to date, see {@link HttpProxyCacheServer.Builder#revalidation(long, long)}.
+ * <p>
+ * Cache validated within max age is fresh and is used without requesting server. Stale cache is still used within
+ * stale-while-revalidate window, but server is asked in background whether content has changed. Older cache is
+ * revalidated before it is used. Revalidation is conditional request without content ({@link UrlSource#revalidate()}),
+ * cached file is deleted only if content has really changed, so it is downloaded again on next request. Cache isn't deleted
+ * by revalidator itself but by {@link ChangeListener}, so cache read by clients is deleted after they are served.
+ * Cache is used as is if server can't be requested, e.g. device is offline.
+ * <p>
+ * Times of validation are kept in memory, so checking freshness on caller's thread doesn't touch {@link SourceInfo}'s
+ * storage. Time that isn't known yet is loaded in background.
+ */
+final class CacheRevalidator {
+
+    private static final Logger LOG = LoggerFactory.getLogger("CacheRevalidator");
+
+    private final Set<String> revalidatingUrls = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Map<String, Long> validationTimes = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Config config;
+    private final ChangeListener changeListener;
+
+    enum Freshness {
+        /**
+         * Cache may be used without revalidation.
+         */
+        FRESH,
+        /**
+         * Cache may be used, but it should be revalidated in background.
+         */
+        STALE,
+        /**
+         * Cache must be revalidated before it is used.
+         */
+        EXPIRED
+    }
+
+    /**
+     * Listener of content changed on server.
+     */
+    interface ChangeListener {
+
+        /**
+         * Called when revalidation finds out that content has changed on server, so its cache must be deleted.
+         * Called from revalidator's background thread or from thread requested revalidation.
+         *
+         * @param url an url of changed content.
+         */
+        void onContentChanged(String url);
+    }
+
+    CacheRevalidator(Config config, ChangeListener changeListener) {
+        this.config = checkNotNull(config);
+        this.changeListener = checkNotNull(changeListener);
+    }
+
+    /**
+     * Returns freshness of cached content by time of its last validation stored in {@link SourceInfo}.
+     * Method may block while reading storage if time of validation isn't known yet.
+     *
+     * @param url an url of content.
+     * @return freshness of cache, always {@link Freshness#FRESH} if revalidation is disabled.
+     */
+    Freshness getFreshness(String url) {
+        if (config.revalidationMaxAge < 0) {
+            return Freshness.FRESH;
+        }
+        Long validated = validationTimes.get(url);
+        if (validated == null) {
+            SourceInfo sourceInfo = config.sourceInfoStorage.get(url);
+            validated = sourceInfo != null ? sourceInfo.validated : 0;
+            validationTimes.put(url, validated);
+        }
+        return getFreshness(validated);
+    }
+
+    /**
+     * Returns freshness of cached content if time of its last validation is known already. Method never blocks:
+     * unknown freshness is checked in background, cache is revalidated then if needed.
+     *
+     * @param url an url of content.
+     * @return freshness of cache or {@code null} if it isn't known yet.
+     */
+    Freshness getKnownFreshness(String url) {
+        if (config.revalidationMaxAge < 0) {
+            return Freshness.FRESH;
+        }
+        Long validated = validationTimes.get(url);
+        if (validated == null) {
+            revalidateInBackground(url);
+            return null;
+        }
+        return getFreshness(validated);
+    }
+
+    private Freshness getFreshness(long validated) {
+        long age = System.currentTimeMillis() - validated;
+        if (age < config.revalidationMaxAge) {
+            return Freshness.FRESH;
+        }
+        return age - config.revalidationMaxAge < config.staleWhileRevalidate ? Freshness.STALE : Freshness.EXPIRED;
+    }
+
+    /**
+     * Revalidates cache before it is used if it is expired, stale cache is revalidated in background.
+     * Method may block while requesting server.
+     *
+     * @param url an url of content.
+     */
+    void revalidateIfNeeded(String url) {
+        if (!isCompleted(url)) {
+            return;
+        }
+        Freshness freshness = getFreshness(url);
+        if (freshness == Freshness.EXPIRED) {
+            revalidate(url);
+        } else if (freshness == Freshness.STALE) {
+            revalidateInBackground(url);
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void revalidateInBackground(final String url) {
+        if (!revalidatingUrls.add(url)) {
+            return;
+        }
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (getFreshness(url) != Freshness.FRESH) {
+                            revalidate(url);
+                        }
+                    } finally {
+                        revalidatingUrls.remove(url);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            revalidatingUrls.remove(url); // revalidator is shut down
+        }
+    }
+
+    /**
+     * Asks server whether content has changed and reports it to {@link ChangeListener} if it has.
+     */
+    private void revalidate(String url) {
+        UrlSource source = config.sourceFactory.newSource(url, config.sourceInfoStorage, config.headerInjector);
+        source = new GovernedSource(source, config.bandwidthGovernor, BandwidthGovernor.TrafficClass.METADATA);
+        try {
+            boolean modified = source.revalidate();
+            config.metrics.onRevalidated(modified);
+            if (!modified) {
+                validationTimes.put(url, System.currentTimeMillis());
+                return;
+            }
+            validationTimes.remove(url);
+            LOG.info("Content of " + url + " has changed");
+            changeListener.onContentChanged(url);
+        } catch (ProxyCacheException e) {
+            LOG.warn("Error revalidating " + url + ", cache is used as is: " + e);
+        }
+    }
+
+    private boolean isCompleted(String url) {
+        return config.revalidationMaxAge >= 0 && config.generateCacheFile(url).exists();
+    }
+}
@@ -1,8 +1,11 @@
 package com.ornoma.httpcache;
 
+import android.content.Context;
+
 import com.ornoma.httpcache.file.DiskUsage;
 import com.ornoma.httpcache.file.FileNameGenerator;
 import com.ornoma.httpcache.headers.HeaderInjector;
+import com.ornoma.httpcache.sourcestorage.OriginScoreStorage;
 import com.ornoma.httpcache.sourcestorage.SourceInfoStorage;
 
 import java.io.File;
@@ -14,23 +17,95 @@ import java.io.File;
  */
 class Config {
 
-    public final File cacheRoot;
     public final FileNameGenerator fileNameGenerator;
     public final DiskUsage diskUsage;
     public final SourceInfoStorage sourceInfoStorage;
+    public final OriginScoreStorage originScoreStorage;
     public final HeaderInjector headerInjector;
+    public final HttpProxyCacheServer.Engine engine;
+    public final int ioThreads;
+    public final int keepAliveTimeout;
+    public final int headerTimeout;
+    public final int writeStallTimeout;
+    public final int minWorkers;
+    public final int maxWorkers;
+    public final int maxQueuedConnections;
+    public final MirrorSourceFactory mirrors;
+    public final PrewarmingSourceFactory prewarmer;
+    public final SourceFactory sourceFactory;
+    public final int maxSourceConnections;
+    public final RetryPolicy retryPolicy;
+    public final int minBufferSize;
+    public final int maxBufferSize;
+    public final long bufferFillInterval;
+    public final BandwidthGovernor bandwidthGovernor;
+    public final long revalidationMaxAge;
+    public final long staleWhileRevalidate;
+    public final long healthCheckInterval;
+    public final boolean startInBackground;
+    public final long startupWait;
+    public final boolean passValidators;
+    public final ProxyCacheMetrics metrics;
+    private final Context context;
+    private File cacheRoot;
 
-    Config(File cacheRoot, FileNameGenerator fileNameGenerator, DiskUsage diskUsage, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector) {
+    Config(Context context, File cacheRoot, FileNameGenerator fileNameGenerator, DiskUsage diskUsage, SourceInfoStorage sourceInfoStorage,
+           OriginScoreStorage originScoreStorage, HeaderInjector headerInjector, SourceFactory sourceFactory, HttpProxyCacheServer.Engine engine, int ioThreads, int keepAliveTimeout, int headerTimeout,
+           int writeStallTimeout, int minWorkers, int maxWorkers, int maxQueuedConnections, int maxIdleUpstreamConnections,
+           long upstreamIdleTimeout, StallDetector stallDetector, HedgingPolicy hedgingPolicy, long prewarmTtl, long redirectCacheTtl, int maxSourceConnections, RetryPolicy retryPolicy, int minBufferSize, int maxBufferSize,
+           long bufferFillInterval, BandwidthGovernor bandwidthGovernor, long revalidationMaxAge, long staleWhileRevalidate, long healthCheckInterval, boolean startInBackground, long startupWait, boolean passValidators) {
+        this.context = context;
         this.cacheRoot = cacheRoot;
         this.fileNameGenerator = fileNameGenerator;
         this.diskUsage = diskUsage;
         this.sourceInfoStorage = sourceInfoStorage;
+        this.originScoreStorage = originScoreStorage;
         this.headerInjector = headerInjector;
+        this.engine = engine;
+        this.ioThreads = ioThreads;
+        this.keepAliveTimeout = keepAliveTimeout;
+        this.headerTimeout = headerTimeout;
+        this.writeStallTimeout = writeStallTimeout;
+        this.minWorkers = minWorkers;
+        this.maxWorkers = maxWorkers;
+        this.maxQueuedConnections = maxQueuedConnections;
+        this.maxSourceConnections = maxSourceConnections;
+        this.retryPolicy = retryPolicy;
+        this.minBufferSize = minBufferSize;
+        this.maxBufferSize = maxBufferSize;
+        this.bufferFillInterval = bufferFillInterval;
+        this.bandwidthGovernor = bandwidthGovernor;
+        this.revalidationMaxAge = revalidationMaxAge;
+        this.staleWhileRevalidate = staleWhileRevalidate;
+        this.healthCheckInterval = healthCheckInterval;
+        this.startInBackground = startInBackground;
+        this.startupWait = startupWait;
+        this.passValidators = passValidators;
+        this.metrics = new ProxyCacheMetrics();
+        // custom transport manages its connections itself
+        SourceFactory originSourceFactory = sourceFactory != null ? sourceFactory :
+                new HttpUrlSourceFactory(new UpstreamConnections(maxIdleUpstreamConnections, upstreamIdleTimeout, stallDetector, metrics), redirectCacheTtl);
+        this.mirrors = new MirrorSourceFactory(originSourceFactory, new OriginSelector(originScoreStorage), metrics);
+        SourceFactory hedgedSourceFactory = hedgingPolicy.isEnabled() ? new HedgedSourceFactory(mirrors, hedgingPolicy, metrics) : mirrors;
+        this.prewarmer = new PrewarmingSourceFactory(hedgedSourceFactory, prewarmTtl, metrics);
+        this.sourceFactory = prewarmer;
+    }
+
+    /**
+     * Returns cache directory. Default directory is resolved on first call because it may require disk access.
+     *
+     * @return a cache directory.
+     */
+    synchronized File getCacheRoot() {
+        if (cacheRoot == null) {
+            cacheRoot = StorageUtils.getIndividualCacheDirectory(context);
+        }
+        return cacheRoot;
     }
 
     File generateCacheFile(String url) {
         String name = fileNameGenerator.generate(url);
-        return new File(cacheRoot, name);
+        return new File(getCacheRoot(), name);
     }
 
 }
@@ -0,0 +1,214 @@
+package com.ornoma.httpcache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static com.ornoma.httpcache.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Closes blocking sockets of clients that miss their deadlines, so thread serving such client is released.
+ * <p>
+ * Blocking read has only per call timeout and blocking write to socket's channel has no timeout at all,
+ * so a client that sends request byte by byte or stops reading response may hold a thread forever.
+ * Every connection reports what it waits for and watchdog periodically checks how long it waits:
+ * next request of kept alive connection ({@link Config#keepAliveTimeout}), rest of request's headers
+ * ({@link Config#headerTimeout}) or progress of writing response ({@link Config#writeStallTimeout}).
+ */
+final class ConnectionWatchdog {
+
+    private static final Logger LOG = LoggerFactory.getLogger("ConnectionWatchdog");
+    private static final long MIN_CHECK_INTERVAL_MS = 50;
+    private static final long MAX_CHECK_INTERVAL_MS = 1000;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Set<Watch> watches = Collections.newSetFromMap(new ConcurrentHashMap<Watch, Boolean>());
+    private final Config config;
+
+    ConnectionWatchdog(Config config) {
+        this.config = checkNotNull(config);
+        long checkInterval = getCheckInterval(config);
+        executor.scheduleWithFixedDelay(new CheckRunnable(), checkInterval, checkInterval, MILLISECONDS);
+    }
+
+    /**
+     * Starts watching connection. Returned watch must be released when connection is closed.
+     *
+     * @param socket a client's socket to be closed if client misses deadline.
+     * @return a watch to report connection's state to.
+     */
+    Watch watch(Socket socket) {
+        Watch watch = new Watch(socket);
+        watches.add(watch);
+        return watch;
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+        watches.clear();
+    }
+
+    private void check() {
+        long now = System.currentTimeMillis();
+        for (Watch watch : watches) {
+            watch.check(now);
+        }
+    }
+
+    private static long getCheckInterval(Config config) {
+        long minTimeout = Long.MAX_VALUE;
+        for (long timeout : new long[]{config.keepAliveTimeout, config.headerTimeout, config.writeStallTimeout}) {
+            minTimeout = timeout > 0 ? Math.min(minTimeout, timeout) : minTimeout;
+        }
+        // check few times per shortest timeout, so connection doesn't live much longer than its deadline
+        return Math.max(MIN_CHECK_INTERVAL_MS, Math.min(MAX_CHECK_INTERVAL_MS, minTimeout / 4));
+    }
+
+    private enum Phase {
+        /**
+         * Connection waits for something that doesn't depend on client, e.g. source's data. There is no deadline.
+         */
+        NONE,
+        /**
+         * Kept alive connection waits for next request.
+         */
+        IDLE,
+        /**
+         * Request is being read.
+         */
+        READING_REQUEST,
+        /**
+         * Response is being written.
+         */
+        WRITING
+    }
+
+    /**
+     * Deadlines of single connection. State is reported by thread serving connection and checked by watchdog's thread.
+     */
+    final class Watch {
+
+        private final Socket socket;
+        private volatile Phase phase = Phase.NONE;
+        private volatile long since;
+        private volatile ProxyResponse response;
+        private long lastWritten;
+
+        private Watch(Socket socket) {
+            this.socket = socket;
+        }
+
+        /**
+         * Connection is kept alive and waits for next request, it is closed after {@link Config#keepAliveTimeout}.
+         */
+        void idle() {
+            start(Phase.IDLE);
+        }
+
+        /**
+         * Request is being read, it must be read completely during {@link Config#headerTimeout}.
+         */
+        void readingRequest() {
+            start(Phase.READING_REQUEST);
+        }
+
+        /**
+         * Response is being written, client must read some data at least once per {@link Config#writeStallTimeout}.
+         *
+         * @param response a response being written.
+         */
+        void writing(ProxyResponse response) {
+            this.response = response;
+            this.lastWritten = -1;
+            start(Phase.WRITING);
+        }
+
+        /**
+         * Connection waits for something that doesn't depend on client, e.g. response is being prepared.
+         */
+        void suspend() {
+            start(Phase.NONE);
+        }
+
+        /**
+         * Stops watching connection.
+         */
+        void release() {
+            phase = Phase.NONE;
+            response = null;
+            watches.remove(this);
+        }
+
+        private void start(Phase phase) {
+            this.since = System.currentTimeMillis();
+            this.phase = phase;
+        }
+
+        private void check(long now) {
+            switch (phase) {
+                case IDLE:
+                    if (isExpired(now, config.keepAliveTimeout)) {
+                        LOG.debug("Closing socket… Kept alive connection is idle for " + config.keepAliveTimeout + " ms.");
+                        config.metrics.onIdleTimeout();
+                        close();
+                    }
+                    break;
+                case READING_REQUEST:
+                    if (isExpired(now, config.headerTimeout)) {
+                        LOG.warn("Closing socket… Request is not read during " + config.headerTimeout + " ms.");
+                        config.metrics.onHeaderTimeout();
+                        close();
+                    }
+                    break;
+                case WRITING:
+                    ProxyResponse response = this.response;
+                    long written = response == null ? 0 : response.getWrittenBytes();
+                    if (written != lastWritten) {
+                        lastWritten = written;
+                        since = now;
+                    } else if (isExpired(now, config.writeStallTimeout)) {
+                        LOG.warn("Closing socket… Client doesn't read response for " + config.writeStallTimeout + " ms.");
+                        config.metrics.onWriteStall();
+                        close();
+                    }
+                    break;
+                case NONE:
+                    break;
+            }
+        }
+
+        private boolean isExpired(long now, long timeout) {
+            return timeout > 0 && now - since > timeout;
+        }
+
+        private void close() {
+            release();
+            try {
+                socket.close(); // blocked read or write of thread serving connection fails immediately
+            } catch (IOException e) {
+                LOG.debug("Error closing socket missed deadline: " + e.getMessage());
+            }
+        }
+    }
+
+    private final class CheckRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                check();
+            } catch (RuntimeException e) {
+                // exception thrown from periodic task cancels all next checks
+                LOG.error("Error checking connections' deadlines", e);
+            }
+        }
+    }
+}
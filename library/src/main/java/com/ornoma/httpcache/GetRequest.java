@@ -1,70 +1,389 @@
 package com.ornoma.httpcache;
 
-import android.text.TextUtils;
-
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import static com.ornoma.httpcache.Preconditions.checkNotNull;
 
 /**
- * Model for Http GET request.
+ * Model for Http GET or HEAD request.
+ * <p>
+ * Request is parsed by single pass over its bytes: request line, then headers line by line. Only {@code Range} and
+ * {@code Connection} headers are inspected, so there are no intermediate strings and regexes,
+ * only requested uri and decoded url are created.
  *
  * @author Alexey Danilov (danikula@gmail.com).
  */
 class GetRequest {
 
-    private static final Pattern RANGE_HEADER_PATTERN = Pattern.compile("[R,r]ange:[ ]?bytes=(\\d*)-");
-    private static final Pattern URL_PATTERN = Pattern.compile("GET /(.*) HTTP");
+    /**
+     * Maximum size of request's headers accepted by proxy.
+     */
+    static final int MAX_REQUEST_SIZE = 16 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] GET = "GET /".getBytes(ASCII);
+    private static final byte[] HEAD = "HEAD /".getBytes(ASCII);
+    private static final byte[] HTTP_1_0 = "HTTP/1.0".getBytes(ASCII);
+    private static final byte[] RANGE = "range".getBytes(ASCII);
+    private static final byte[] CONNECTION = "connection".getBytes(ASCII);
+    private static final byte[] BYTES_UNIT = "bytes=".getBytes(ASCII);
+    private static final byte[] CLOSE = "close".getBytes(ASCII);
+    private static final byte[] KEEP_ALIVE = "keep-alive".getBytes(ASCII);
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final int MAX_RANGES = 16;
+    private static final int MAX_NUMBER_DIGITS = 18;
+    private static final ThreadLocal<byte[][]> BUFFERS = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[][]{new byte[INITIAL_BUFFER_SIZE]};
+        }
+    };
 
+    /**
+     * Is it HEAD request, i.e. client needs only response's headers.
+     */
+    public final boolean head;
     public final String uri;
+    /**
+     * Decoded {@link #uri}, i.e. url of original source or ping url.
+     */
+    public final String url;
+    /**
+     * Offset of first requested range, {@code 0} if request is not partial or first range is suffix range.
+     */
     public final long rangeOffset;
     public final boolean partial;
+    /**
+     * Ranges requested by {@code Range} header, empty list if request is not partial.
+     */
+    public final List<ByteRange> ranges;
+    /**
+     * Does client allow to keep connection open after response. It is default behaviour for HTTP/1.1
+     * unless client sends {@code Connection: close}, HTTP/1.0 client has to ask it with {@code Connection: keep-alive}.
+     */
+    public final boolean keepAlive;
+    /**
+     * Can response's body be sent with {@code Transfer-Encoding: chunked}. Every HTTP/1.1 client supports it, HTTP/1.0 one doesn't.
+     */
+    public final boolean chunkedAccepted;
 
     public GetRequest(String request) {
-        checkNotNull(request);
-        long offset = findRangeOffset(request);
-        this.rangeOffset = Math.max(0, offset);
-        this.partial = offset >= 0;
-        this.uri = findUri(request);
+        this(checkNotNull(request).getBytes(UTF_8));
+    }
+
+    private GetRequest(byte[] request) {
+        this(request, 0, request.length);
     }
 
+    private GetRequest(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int lineEnd = findLineEnd(data, offset, end);
+        this.head = startsWith(data, offset, lineEnd, HEAD);
+        boolean get = startsWith(data, offset, lineEnd, GET);
+        int uriStart = offset + (head ? HEAD.length : GET.length);
+        int uriEnd = indexOf(data, (byte) ' ', uriStart, lineEnd);
+        if (!get && !head || uriEnd < 0) {
+            String request = new String(data, offset, length, UTF_8);
+            throw new IllegalArgumentException("Invalid request `" + request + "`: url not found!");
+        }
+        this.uri = new String(data, uriStart, uriEnd - uriStart, ASCII);
+        this.url = decode(data, uriStart, uriEnd);
+        boolean http10 = startsWith(data, uriEnd + 1, lineEnd, HTTP_1_0);
+
+        List<ByteRange> ranges = null;
+        Boolean connectionKeepAlive = null;
+        for (int lineStart = nextLine(data, lineEnd, end); lineStart < end; lineStart = nextLine(data, lineEnd, end)) {
+            lineEnd = findLineEnd(data, lineStart, end);
+            int colon = indexOf(data, (byte) ':', lineStart, lineEnd);
+            if (colon < 0) {
+                continue;
+            }
+            int valueStart = skipSpaces(data, colon + 1, lineEnd);
+            if (equalsIgnoreCase(data, lineStart, colon, RANGE)) {
+                ranges = parseRanges(data, valueStart, lineEnd);
+            } else if (equalsIgnoreCase(data, lineStart, colon, CONNECTION)) {
+                connectionKeepAlive = parseConnection(data, valueStart, lineEnd);
+            }
+        }
+        this.ranges = ranges == null ? Collections.<ByteRange>emptyList() : Collections.unmodifiableList(ranges);
+        this.partial = !this.ranges.isEmpty();
+        this.rangeOffset = partial && !this.ranges.get(0).isSuffix() ? this.ranges.get(0).first : 0;
+        this.keepAlive = connectionKeepAlive != null ? connectionKeepAlive : !http10;
+        this.chunkedAccepted = !http10;
+    }
+
+    /**
+     * Reads request from stream. Stream is read exactly up to the end of request's headers,
+     * so next (pipelined) request can be read from the same stream.
+     *
+     * @param inputStream a stream to read request from. If stream supports {@link InputStream#mark(int)} it is read
+     *                    by chunks, otherwise byte by byte, so it is better to pass buffered stream.
+     * @return read request or {@code null} if stream is ended before any request's data (client closed connection).
+     * @throws IOException if stream can't be read or request is longer than {@link #MAX_REQUEST_SIZE}.
+     */
     public static GetRequest read(InputStream inputStream) throws IOException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
-        StringBuilder stringRequest = new StringBuilder();
-        String line;
-        while (!TextUtils.isEmpty(line = reader.readLine())) { // until new line (headers ending)
-            stringRequest.append(line).append('\n');
+        byte[][] bufferHolder = BUFFERS.get();
+        byte[] buffer = bufferHolder[0];
+        boolean readByChunks = inputStream.markSupported();
+        if (readByChunks) {
+            inputStream.mark(MAX_REQUEST_SIZE);
+        }
+        int length = 0;
+        int end = -1;
+        while (end < 0) {
+            if (length == buffer.length) {
+                buffer = grow(buffer);
+                bufferHolder[0] = buffer;
+            }
+            int read = inputStream.read(buffer, length, readByChunks ? buffer.length - length : 1);
+            if (read == -1) {
+                break;
+            }
+            int checkFrom = Math.max(0, length - 2);
+            length += read;
+            end = findEnd(buffer, checkFrom, length);
+        }
+        if (end > 0 && end < length) {
+            // return data of next request to stream
+            inputStream.reset();
+            skip(inputStream, end);
+        }
+        return length == 0 ? null : new GetRequest(buffer, 0, end > 0 ? end : length);
+    }
+
+    /**
+     * Parses request from bytes.
+     *
+     * @param data   a buffer with request.
+     * @param offset an offset of request in buffer.
+     * @param length a length of request's data, see {@link #findEnd(byte[], int, int)}.
+     * @return parsed request.
+     * @throws IllegalArgumentException if data is not valid GET request.
+     */
+    static GetRequest parse(byte[] data, int offset, int length) {
+        return new GetRequest(data, offset, length);
+    }
+
+    /**
+     * Looks for empty line that ends request's headers.
+     *
+     * @param data a buffer with request's data.
+     * @param from an offset to start looking from, it is safe to pass offset of last checked byte.
+     * @param to   an end of data in buffer.
+     * @return an offset right after empty line or {@code -1} if request is not fully read yet.
+     */
+    static int findEnd(byte[] data, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            if (i + 1 < to && data[i + 1] == '\n') {
+                return i + 2;
+            }
+            if (i + 2 < to && data[i + 1] == '\r' && data[i + 2] == '\n') {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] grow(byte[] buffer) throws IOException {
+        if (buffer.length >= MAX_REQUEST_SIZE) {
+            throw new IOException("Request is too long, more than " + MAX_REQUEST_SIZE + " bytes");
+        }
+        byte[] newBuffer = new byte[buffer.length * 2];
+        System.arraycopy(buffer, 0, newBuffer, 0, buffer.length);
+        return newBuffer;
+    }
+
+    private static void skip(InputStream inputStream, int count) throws IOException {
+        long skipped = 0;
+        while (skipped < count) {
+            long skippedNow = inputStream.skip(count - skipped);
+            if (skippedNow <= 0) {
+                throw new IOException("Error skipping read request");
+            }
+            skipped += skippedNow;
+        }
+    }
+
+    /**
+     * Parses value of {@code Range} header.
+     *
+     * @return requested ranges or {@code null} if header is not valid and should be ignored.
+     */
+    private static List<ByteRange> parseRanges(byte[] data, int from, int to) {
+        if (!startsWithIgnoreCase(data, from, to, BYTES_UNIT)) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>(1);
+        int i = from + BYTES_UNIT.length;
+        while (true) {
+            int firstStart = skipSpaces(data, i, to);
+            int firstEnd = skipDigits(data, firstStart, to);
+            if (firstEnd == to || data[firstEnd] != '-') {
+                return null;
+            }
+            int lastEnd = skipDigits(data, firstEnd + 1, to);
+            long first = parseNumber(data, firstStart, firstEnd);
+            long last = parseNumber(data, firstEnd + 1, lastEnd);
+            boolean valid = (first >= 0 || last >= 0) && (first < 0 || last < 0 || first <= last);
+            if (!valid || ranges.size() == MAX_RANGES) {
+                return null;
+            }
+            ranges.add(first < 0 ? ByteRange.suffix(last) : last < 0 ? ByteRange.from(first) : ByteRange.closed(first, last));
+            i = skipSpaces(data, lastEnd, to);
+            if (i == to || data[i] != ',') {
+                return ranges; // ignore anything after ranges like old versions of proxy did
+            }
+            i++;
+        }
+    }
+
+    private static int skipDigits(byte[] data, int from, int to) {
+        int i = from;
+        while (i < to && data[i] >= '0' && data[i] <= '9') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return parsed number or {@code -1} if there are no digits or number is too big.
+     */
+    private static long parseNumber(byte[] data, int from, int to) {
+        if (from == to || to - from > MAX_NUMBER_DIGITS) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            value = value * 10 + data[i] - '0';
         }
-        return new GetRequest(stringRequest.toString());
+        return value;
     }
 
-    private long findRangeOffset(String request) {
-        Matcher matcher = RANGE_HEADER_PATTERN.matcher(request);
-        if (matcher.find()) {
-            String rangeValue = matcher.group(1);
-            return Long.parseLong(rangeValue);
+    private static Boolean parseConnection(byte[] data, int from, int to) {
+        Boolean keepAlive = null;
+        int tokenStart = from;
+        while (tokenStart < to) {
+            int tokenEnd = indexOf(data, (byte) ',', tokenStart, to);
+            tokenEnd = tokenEnd < 0 ? to : tokenEnd;
+            int trimmedEnd = tokenEnd;
+            while (trimmedEnd > tokenStart && isSpace(data[trimmedEnd - 1])) {
+                trimmedEnd--;
+            }
+            if (equalsIgnoreCase(data, tokenStart, trimmedEnd, CLOSE)) {
+                return false;
+            }
+            if (equalsIgnoreCase(data, tokenStart, trimmedEnd, KEEP_ALIVE)) {
+                keepAlive = true;
+            }
+            tokenStart = skipSpaces(data, tokenEnd + 1, to);
+        }
+        return keepAlive;
+    }
+
+    /**
+     * Decodes url encoded by {@link ProxyCacheUtils#encode(String)}, the same way as {@link java.net.URLDecoder} does.
+     */
+    private static String decode(byte[] data, int from, int to) {
+        int index = indexOf(data, (byte) '%', from, to);
+        if (index < 0 && indexOf(data, (byte) '+', from, to) < 0) {
+            return new String(data, from, to - from, UTF_8);
+        }
+        byte[] decoded = new byte[to - from];
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            byte b = data[i];
+            if (b == '%') {
+                int high = i + 1 < to ? Character.digit(data[i + 1], 16) : -1;
+                int low = i + 2 < to ? Character.digit(data[i + 2], 16) : -1;
+                if (high < 0 || low < 0) {
+                    throw new IllegalArgumentException("Invalid escape sequence in url `" + new String(data, from, to - from, ASCII) + "`");
+                }
+                decoded[length++] = (byte) ((high << 4) + low);
+                i += 2;
+            } else {
+                decoded[length++] = b == '+' ? (byte) ' ' : b;
+            }
+        }
+        return new String(decoded, 0, length, UTF_8);
+    }
+
+    private static int findLineEnd(byte[] data, int from, int to) {
+        int lineEnd = indexOf(data, (byte) '\n', from, to);
+        lineEnd = lineEnd < 0 ? to : lineEnd;
+        return lineEnd > from && data[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+    }
+
+    private static int nextLine(byte[] data, int lineEnd, int to) {
+        int lineBreak = indexOf(data, (byte) '\n', lineEnd, to);
+        return lineBreak < 0 ? to : lineBreak + 1;
+    }
+
+    private static int indexOf(byte[] data, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == value) {
+                return i;
+            }
         }
         return -1;
     }
 
-    private String findUri(String request) {
-        Matcher matcher = URL_PATTERN.matcher(request);
-        if (matcher.find()) {
-            return matcher.group(1);
+    private static int skipSpaces(byte[] data, int from, int to) {
+        int i = from;
+        while (i < to && isSpace(data[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static boolean startsWith(byte[] data, int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[from + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWithIgnoreCase(byte[] data, int from, int to, byte[] lowerCasePrefix) {
+        return to - from >= lowerCasePrefix.length && equalsIgnoreCase(data, from, from + lowerCasePrefix.length, lowerCasePrefix);
+    }
+
+    private static boolean equalsIgnoreCase(byte[] data, int from, int to, byte[] lowerCaseValue) {
+        if (to - from != lowerCaseValue.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCaseValue.length; i++) {
+            byte b = data[from + i];
+            byte lowerCase = b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+            if (lowerCase != lowerCaseValue[i]) {
+                return false;
+            }
         }
-        throw new IllegalArgumentException("Invalid request `" + request + "`: url not found!");
+        return true;
     }
 
     @Override
     public String toString() {
         return "GetRequest{" +
-                "rangeOffset=" + rangeOffset +
-                ", partial=" + partial +
+                "head=" + head +
+                ", ranges=" + ranges +
+                ", keepAlive=" + keepAlive +
                 ", uri='" + uri + '\'' +
                 '}';
     }
@@ -0,0 +1,111 @@
+package com.ornoma.httpcache;
+
+import static com.ornoma.httpcache.Preconditions.checkNotNull;
+
+/**
+ * {@link UrlSource} which reads are limited by {@link BandwidthGovernor}.
+ * <p>
+ * Data is charged to source's traffic class. Request for source's info is charged to {@link BandwidthGovernor.TrafficClass#METADATA}
+ * with fixed cost: only headers of such response are read.
+ */
+final class GovernedSource implements UrlSource {
+
+    private static final int METADATA_REQUEST_COST = 1024;
+
+    private final UrlSource source;
+    private final BandwidthGovernor governor;
+    private final BandwidthGovernor.TrafficClass trafficClass;
+
+    GovernedSource(UrlSource source, BandwidthGovernor governor, BandwidthGovernor.TrafficClass trafficClass) {
+        this.source = checkNotNull(source);
+        this.governor = checkNotNull(governor);
+        this.trafficClass = checkNotNull(trafficClass);
+    }
+
+    @Override
+    public void open(long offset) throws ProxyCacheException {
+        source.open(offset);
+    }
+
+    @Override
+    public void open(long offset, long length) throws ProxyCacheException {
+        source.open(offset, length);
+    }
+
+    @Override
+    public int read(byte[] buffer) throws ProxyCacheException {
+        governor.acquire(trafficClass);
+        int read = source.read(buffer);
+        if (read > 0) {
+            governor.charge(trafficClass, read);
+        }
+        return read;
+    }
+
+    @Override
+    public long length() throws ProxyCacheException {
+        acquireMetadata();
+        return source.length();
+    }
+
+    @Override
+    public void close() throws ProxyCacheException {
+        source.close();
+    }
+
+    @Override
+    public boolean isPartial() {
+        return source.isPartial();
+    }
+
+    @Override
+    public String getUrl() {
+        return source.getUrl();
+    }
+
+    @Override
+    public String getMime() throws ProxyCacheException {
+        acquireMetadata();
+        return source.getMime();
+    }
+
+    @Override
+    public SourceInfo getSourceInfo() throws ProxyCacheException {
+        acquireMetadata();
+        return source.getSourceInfo();
+    }
+
+    @Override
+    public boolean revalidate() throws ProxyCacheException {
+        governor.acquire(BandwidthGovernor.TrafficClass.METADATA);
+        governor.charge(BandwidthGovernor.TrafficClass.METADATA, METADATA_REQUEST_COST);
+        return source.revalidate();
+    }
+
+    @Override
+    public boolean isContentInfoKnown() {
+        return source.isContentInfoKnown();
+    }
+
+    @Override
+    public String getResponseHeader(String name) {
+        return source.getResponseHeader(name);
+    }
+
+    @Override
+    public UrlSource copy() {
+        return new GovernedSource(source.copy(), governor, trafficClass);
+    }
+
+    private void acquireMetadata() throws ProxyCacheException {
+        if (!source.isContentInfoKnown()) {
+            governor.acquire(BandwidthGovernor.TrafficClass.METADATA);
+            governor.charge(BandwidthGovernor.TrafficClass.METADATA, METADATA_REQUEST_COST);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "GovernedSource{" + trafficClass + ", " + source + "}";
+    }
+}
@@ -0,0 +1,151 @@
+package com.ornoma.httpcache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.ornoma.httpcache.Preconditions.checkArgument;
+import static com.ornoma.httpcache.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Keeps track of {@link HttpProxyCacheServer}'s liveness in background.
+ * <p>
+ * Server is pinged periodically and every time it reports an error, result is cached,
+ * so checking whether server is alive never blocks. If server doesn't respond because its accept loop is dead,
+ * monitor restarts accept loop.
+ */
+class HealthMonitor {
+
+    private static final Logger LOG = LoggerFactory.getLogger("HealthMonitor");
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicBoolean checkRequested = new AtomicBoolean();
+    private final Target target;
+    private final ProxyCacheMetrics metrics;
+    private final long checkInterval;
+    private volatile boolean alive;
+
+    /**
+     * Creates monitor.
+     *
+     * @param target        a server to be monitored.
+     * @param metrics       metrics to store health state and ping latency to.
+     * @param checkInterval an interval between periodic checks in milliseconds, {@code 0} disables periodic checks.
+     */
+    HealthMonitor(Target target, ProxyCacheMetrics metrics, long checkInterval) {
+        checkArgument(checkInterval >= 0, "Check interval can't be negative");
+        this.target = checkNotNull(target);
+        this.metrics = checkNotNull(metrics);
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * Checks server's health on caller thread and starts periodic checks.
+     *
+     * @return {@code true} if server is alive.
+     */
+    boolean start() {
+        check();
+        if (checkInterval > 0) {
+            executor.scheduleWithFixedDelay(new CheckRunnable(), checkInterval, checkInterval, MILLISECONDS);
+        }
+        return alive;
+    }
+
+    /**
+     * Returns result of last check. Never blocks.
+     *
+     * @return {@code true} if server responded to last ping.
+     */
+    boolean isAlive() {
+        return alive;
+    }
+
+    /**
+     * Schedules immediate check in background, e.g. after server's socket error.
+     * Does nothing if check is already scheduled.
+     */
+    void requestCheck() {
+        if (checkRequested.compareAndSet(false, true)) {
+            try {
+                executor.execute(new CheckRunnable());
+            } catch (RejectedExecutionException e) {
+                LOG.debug("Check is not scheduled, monitor is shut down");
+            }
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void check() {
+        checkRequested.set(false);
+        boolean pinged = ping();
+        if (!pinged && !target.isAccepting()) {
+            LOG.warn("Proxy server's accept loop is dead. Restarting it…");
+            if (target.restartAccepting()) {
+                metrics.onAcceptLoopRestarted();
+                pinged = ping();
+            }
+        }
+        if (alive != pinged) {
+            LOG.info("Proxy server's health changed. Is it alive? " + pinged);
+        }
+        alive = pinged;
+        metrics.onHealthChecked(pinged);
+    }
+
+    private boolean ping() {
+        long startTime = System.nanoTime();
+        boolean pinged = target.ping();
+        metrics.onPing(pinged, NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        return pinged;
+    }
+
+    /**
+     * Server monitored by {@link HealthMonitor}.
+     */
+    interface Target {
+
+        /**
+         * Pings server, may block for a while.
+         *
+         * @return {@code true} if server responded to ping.
+         */
+        boolean ping();
+
+        /**
+         * Checks whether server still accepts connections.
+         *
+         * @return {@code false} if server's accept loop is dead.
+         */
+        boolean isAccepting();
+
+        /**
+         * Restarts server's accept loop.
+         *
+         * @return {@code true} if accept loop is restarted successfully.
+         */
+        boolean restartAccepting();
+    }
+
+    private final class CheckRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                check();
+            } catch (RuntimeException e) {
+                // exception thrown from periodic task cancels all next checks
+                LOG.error("Error checking proxy server's health", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.ornoma.httpcache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.ornoma.httpcache.Preconditions.checkNotNull;
+
+/**
+ * {@link UrlSource} which opening is duplicated (hedged) if origin doesn't answer in time, see {@link HedgingPolicy}.
+ * <p>
+ * Source is opened by background thread while caller waits. If response doesn't come within hedging delay, the same
+ * request is made by copy of source, so it goes to another mirror if content has them (see {@link MirroredSource}).
+ * Source that answers first is used, the other one is cancelled: it is closed as soon as its blocking opening is over,
+ * so its response's body isn't read. Request isn't hedged if it fails fast, retries are up to {@link ProxyCache}.
+ */
+final class HedgedSource implements UrlSource {
+
+    private static final Logger LOG = LoggerFactory.getLogger("HedgedSource");
+
+    private final Object lock = new Object();
+    private final HedgingPolicy hedgingPolicy;
+    private final ProxyCacheMetrics metrics;
+    private volatile UrlSource source;
+    private volatile UrlSource current;
+
+    HedgedSource(UrlSource source, HedgingPolicy hedgingPolicy, ProxyCacheMetrics metrics) {
+        this.source = checkNotNull(source);
+        this.hedgingPolicy = checkNotNull(hedgingPolicy);
+        this.metrics = checkNotNull(metrics);
+    }
+
+    @Override
+    public void open(long offset) throws ProxyCacheException {
+        open(offset, -1);
+    }
+
+    @Override
+    public void open(long offset, long length) throws ProxyCacheException {
+        UrlSource source = this.source;
+        hedgingPolicy.onRequest();
+        long startTime = System.currentTimeMillis();
+        Opening opening = new Opening(source, offset, length);
+        Opening hedge = null;
+        try {
+            opening.start();
+            boolean answered = await(opening, null, startTime + hedgingPolicy.getDelay());
+            if (!answered && hedgingPolicy.tryHedge()) {
+                LOG.debug("Source " + source.getUrl() + " isn't answered within " + hedgingPolicy.getDelay() + " ms, hedge request");
+                metrics.onHedgedRequest();
+                hedge = new Opening(source.copy(), offset, length);
+                hedge.start();
+            }
+            await(opening, hedge, Long.MAX_VALUE);
+        } catch (InterruptedException e) {
+            cancel(opening);
+            cancel(hedge);
+            this.source = source.copy(); // cancelled source may be still opening
+            throw new InterruptedProxyCacheException("Opening source " + source.getUrl() + " is interrupted", e);
+        }
+        Opening winner;
+        synchronized (lock) {
+            winner = opening.isSucceeded() || hedge == null || !hedge.isSucceeded() ? opening : hedge;
+        }
+        cancel(winner == opening ? hedge : opening);
+        winner.throwError();
+        hedgingPolicy.onResponse(System.currentTimeMillis() - startTime);
+        if (winner == hedge) {
+            metrics.onHedgeWon();
+            this.source = hedge.source; // cancelled source may be still opening, so it isn't used anymore
+        }
+        current = winner.source;
+    }
+
+    /**
+     * Waits until any opening succeeds or all of them fail.
+     *
+     * @param deadline time in milliseconds since epoch to wait until.
+     * @return {@code true} if openings are over, {@code false} if deadline has come.
+     */
+    private boolean await(Opening opening, Opening hedge, long deadline) throws InterruptedException {
+        synchronized (lock) {
+            while (!isAnswered(opening, hedge)) {
+                long timeout = deadline - System.currentTimeMillis();
+                if (timeout <= 0) {
+                    return false;
+                }
+                lock.wait(timeout);
+            }
+            return true;
+        }
+    }
+
+    private boolean isAnswered(Opening opening, Opening hedge) {
+        if (hedge == null) {
+            return opening.done;
+        }
+        return opening.isSucceeded() || hedge.isSucceeded() || (opening.done && hedge.done);
+    }
+
+    private void cancel(Opening opening) {
+        if (opening == null) {
+            return;
+        }
+        boolean done;
+        synchronized (lock) {
+            opening.cancelled = true;
+            done = opening.done;
+        }
+        if (done) {
+            closeQuietly(opening.source);
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer) throws ProxyCacheException {
+        UrlSource source = current;
+        if (source == null) {
+            throw new ProxyCacheException("Error reading data from " + this.source.getUrl() + ": source isn't opened");
+        }
+        return source.read(buffer);
+    }
+
+    @Override
+    public long length() throws ProxyCacheException {
+        return infoSource().length();
+    }
+
+    @Override
+    public void close() throws ProxyCacheException {
+        UrlSource source = current;
+        if (source != null) {
+            current = null;
+            source.close();
+        }
+    }
+
+    @Override
+    public boolean isPartial() {
+        return infoSource().isPartial();
+    }
+
+    @Override
+    public String getUrl() {
+        return source.getUrl();
+    }
+
+    @Override
+    public String getMime() throws ProxyCacheException {
+        return infoSource().getMime();
+    }
+
+    @Override
+    public SourceInfo getSourceInfo() throws ProxyCacheException {
+        return infoSource().getSourceInfo();
+    }
+
+    @Override
+    public boolean revalidate() throws ProxyCacheException {
+        return source.revalidate();
+    }
+
+    @Override
+    public boolean isContentInfoKnown() {
+        return infoSource().isContentInfoKnown();
+    }
+
+    @Override
+    public String getResponseHeader(String name) {
+        return infoSource().getResponseHeader(name);
+    }
+
+    @Override
+    public UrlSource copy() {
+        return new HedgedSource(infoSource().copy(), hedgingPolicy, metrics);
+    }
+
+    /**
+     * Returns source that has answered, original one if source isn't opened.
+     */
+    private UrlSource infoSource() {
+        UrlSource source = current;
+        return source != null ? source : this.source;
+    }
+
+    private void closeQuietly(UrlSource source) {
+        try {
+            source.close();
+        } catch (ProxyCacheException e) {
+            LOG.debug("Error closing cancelled source " + source.getUrl() + ": " + e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HedgedSource{" + infoSource() + "}";
+    }
+
+    /**
+     * Opens source by own thread. Fields are guarded by {@link #lock}.
+     */
+    private final class Opening implements Runnable {
+
+        private final UrlSource source;
+        private final long offset;
+        private final long length;
+        private boolean done;
+        private boolean cancelled;
+        private Throwable error;
+
+        Opening(UrlSource source, long offset, long length) {
+            this.source = source;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        void start() {
+            new Thread(this, "Source opener for " + source.getUrl()).start();
+        }
+
+        @Override
+        public void run() {
+            Throwable error = null;
+            try {
+                source.open(offset, length);
+            } catch (Throwable e) {
+                error = e;
+            }
+            boolean cancelled;
+            synchronized (lock) {
+                this.error = error;
+                this.done = true;
+                cancelled = this.cancelled;
+                lock.notifyAll();
+            }
+            if (cancelled) {
+                closeQuietly(source); // loser of race, its response isn't needed
+            }
+        }
+
+        boolean isSucceeded() {
+            return done && error == null;
+        }
+
+        void throwError() throws ProxyCacheException {
+            Throwable error;
+            synchronized (lock) {
+                error = this.error;
+            }
+            if (error instanceof ProxyCacheException) {
+                throw (ProxyCacheException) error;
+            }
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            if (error != null) {
+                throw new ProxyCacheException("Error opening source " + source.getUrl(), error);
+            }
+        }
+    }
+}
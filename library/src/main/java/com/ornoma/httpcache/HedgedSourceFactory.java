@@ -0,0 +1,28 @@
+package com.ornoma.httpcache;
+
+import com.ornoma.httpcache.headers.HeaderInjector;
+import com.ornoma.httpcache.sourcestorage.SourceInfoStorage;
+
+import static com.ornoma.httpcache.Preconditions.checkNotNull;
+
+/**
+ * {@link SourceFactory} wrapping sources of another factory with {@link HedgedSource}.
+ */
+final class HedgedSourceFactory implements SourceFactory {
+
+    private final SourceFactory sourceFactory;
+    private final HedgingPolicy hedgingPolicy;
+    private final ProxyCacheMetrics metrics;
+
+    HedgedSourceFactory(SourceFactory sourceFactory, HedgingPolicy hedgingPolicy, ProxyCacheMetrics metrics) {
+        this.sourceFactory = checkNotNull(sourceFactory);
+        this.hedgingPolicy = checkNotNull(hedgingPolicy);
+        this.metrics = checkNotNull(metrics);
+    }
+
+    @Override
+    public UrlSource newSource(String url, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector) {
+        UrlSource source = sourceFactory.newSource(url, sourceInfoStorage, headerInjector);
+        return new HedgedSource(source, hedgingPolicy, metrics);
+    }
+}
@@ -0,0 +1,101 @@
+package com.ornoma.httpcache;
+
+import java.util.Arrays;
+
+import static com.ornoma.httpcache.Preconditions.checkArgument;
+
+/**
+ * Decides when request to origin server should be duplicated (hedged), see {@link HedgedSource}.
+ * <p>
+ * Request is hedged if it isn't answered within delay equal to chosen percentile of time to first byte of recent requests,
+ * so only slowest requests (e.g. stuck in connecting or TLS handshake) are duplicated. Max delay is used until enough
+ * requests are measured. Extra traffic is capped by budget: every request earns a share of hedge, so ratio of hedged requests
+ * never exceeds budget except for small burst.
+ */
+final class HedgingPolicy {
+
+    private static final int SAMPLES_COUNT = 128;
+    private static final int MIN_SAMPLES_COUNT = 16;
+    private static final double MAX_TOKENS = 5;
+
+    private final long[] samples = new long[SAMPLES_COUNT];
+    private final int percentile;
+    private final long minDelay;
+    private final long maxDelay;
+    private final double budget;
+    private int samplesCount;
+    private int nextSample;
+    private double tokens;
+    private long delay;
+
+    /**
+     * @param percentile percentile of time to first byte used as delay of hedge, from 1 to 99.
+     * @param minDelay   min delay of hedge in milliseconds, can't be negative.
+     * @param maxDelay   max delay of hedge in milliseconds, can't be less than min delay.
+     * @param budget     max ratio of hedged requests to all requests, from 0 to 1, {@code 0} disables hedging.
+     */
+    HedgingPolicy(int percentile, long minDelay, long maxDelay, double budget) {
+        checkArgument(percentile > 0 && percentile < 100, "Percentile must be from 1 to 99");
+        checkArgument(minDelay >= 0 && maxDelay >= minDelay, "Delay can't be negative, max delay can't be less than min");
+        checkArgument(budget >= 0 && budget <= 1, "Budget must be from 0 to 1");
+        this.percentile = percentile;
+        this.minDelay = minDelay;
+        this.maxDelay = maxDelay;
+        this.budget = budget;
+        this.delay = maxDelay;
+    }
+
+    static HedgingPolicy newDisabled() {
+        return new HedgingPolicy(95, 0, 0, 0);
+    }
+
+    boolean isEnabled() {
+        return budget > 0;
+    }
+
+    /**
+     * Returns how long request should be waited for before it is hedged.
+     *
+     * @return delay in milliseconds.
+     */
+    synchronized long getDelay() {
+        return delay;
+    }
+
+    /**
+     * Reports new request, so it earns its share of budget.
+     */
+    synchronized void onRequest() {
+        tokens = Math.min(MAX_TOKENS, tokens + budget);
+    }
+
+    /**
+     * Takes budget for hedge of request.
+     *
+     * @return {@code true} if request can be hedged.
+     */
+    synchronized boolean tryHedge() {
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    /**
+     * Reports time to first byte of request.
+     *
+     * @param timeToFirstByte time in milliseconds, it is lower bound of request's time if hedge has answered first.
+     */
+    synchronized void onResponse(long timeToFirstByte) {
+        samples[nextSample] = timeToFirstByte;
+        nextSample = (nextSample + 1) % SAMPLES_COUNT;
+        samplesCount = Math.min(samplesCount + 1, SAMPLES_COUNT);
+        if (samplesCount >= MIN_SAMPLES_COUNT) {
+            long[] sorted = Arrays.copyOf(samples, samplesCount);
+            Arrays.sort(sorted);
+            long value = sorted[(int) Math.ceil(percentile / 100d * samplesCount) - 1];
+            delay = Math.max(minDelay, Math.min(value, maxDelay));
+        }
+    }
+}
@@ -8,10 +8,17 @@ import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Executor;
 
 /**
- * {@link ProxyCache} that read http url and writes data to {@link Socket}
+ * {@link ProxyCache} that read {@link UrlSource} and writes data to {@link Socket}
  *
  * @author Alexey Danilov (danikula@gmail.com).
  */
@@ -19,88 +26,280 @@ class HttpProxyCache extends ProxyCache {
 
     private static final float NO_CACHE_BARRIER = .2f;
 
-    private final HttpUrlSource source;
+    private final UrlSource source;
     private final FileCache cache;
     private CacheListener listener;
+    private boolean keepAliveAllowed = true;
+    private boolean validatorsPassed;
 
-    public HttpProxyCache(HttpUrlSource source, FileCache cache) {
+    public HttpProxyCache(UrlSource source, FileCache cache) {
         super(source, cache);
         this.cache = cache;
         this.source = source;
     }
 
+    @Override
+    protected Source openSourceRange(long offset, long length) throws ProxyCacheException {
+        UrlSource rangeSource = source.copy();
+        rangeSource.open(offset, length);
+        if (!rangeSource.isPartial()) {
+            rangeSource.close();
+            return null;
+        }
+        return rangeSource;
+    }
+
+    @Override
+    protected boolean isSourcePartial() {
+        return source.isPartial();
+    }
+
+    @Override
+    protected boolean discardCache() throws ProxyCacheException {
+        cache.discard();
+        return true;
+    }
+
     public void registerCacheListener(CacheListener cacheListener) {
         this.listener = cacheListener;
     }
 
-    public void processRequest(GetRequest request, Socket socket) throws IOException, ProxyCacheException {
-        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
-        String responseHeaders = newResponseHeaders(request);
-        out.write(responseHeaders.getBytes("UTF-8"));
+    /**
+     * Allows or forbids to keep client's connection open after response. Allowed by default.
+     *
+     * @param keepAliveAllowed {@code false} if connection must be closed after every response.
+     */
+    void setKeepAliveAllowed(boolean keepAliveAllowed) {
+        this.keepAliveAllowed = keepAliveAllowed;
+    }
+
+    /**
+     * Allows to pass {@code ETag} and {@code Last-Modified} headers received from server to client. Forbidden by default.
+     *
+     * @param validatorsPassed {@code true} if validators known for source should be sent to client.
+     */
+    void setValidatorsPassed(boolean validatorsPassed) {
+        this.validatorsPassed = validatorsPassed;
+    }
+
+    /**
+     * Writes response for request to socket.
+     *
+     * @param request a request to be responded.
+     * @param socket  a client's socket.
+     * @return {@code true} if connection can be used for next client's request.
+     */
+    public boolean processRequest(GetRequest request, Socket socket) throws IOException, ProxyCacheException {
+        return processRequest(request, socket, null);
+    }
 
-        long offset = request.rangeOffset;
-        if (isUseCache(request)) {
-            responseWithCache(out, offset);
-        } else {
-            responseWithoutCache(out, offset);
+    /**
+     * Writes response for request to socket and reports writing's progress to connection's watch.
+     *
+     * @param request a request to be responded.
+     * @param socket  a client's socket.
+     * @param watch   a watch of client's connection or {@code null} if connection has no deadlines.
+     * @return {@code true} if connection can be used for next client's request.
+     */
+    boolean processRequest(GetRequest request, Socket socket, ConnectionWatchdog.Watch watch) throws IOException, ProxyCacheException {
+        SocketChannel socketChannel = socket.getChannel();
+        OutputStream out = socketChannel == null ? new BufferedOutputStream(socket.getOutputStream()) : null;
+        // cached data is sent by FileChannel.transferTo, it doesn't copy data at all if socket has channel
+        WritableByteChannel channel = socketChannel == null ? Channels.newChannel(out) : socketChannel;
+        ProxyResponse response = newResponse(request, null);
+        try {
+            startWriting(watch, response);
+            ProxyResponse.Progress progress;
+            while ((progress = response.write(channel)) != ProxyResponse.Progress.COMPLETED) {
+                if (progress == ProxyResponse.Progress.WAITING_FOR_SOURCE) {
+                    flush(out); // let client play already read data while waiting for new one
+                    if (watch != null) {
+                        watch.suspend(); // slow source is not client's fault
+                    }
+                    waitForSourceData();
+                    startWriting(watch, response);
+                }
+            }
+            flush(out);
+            return response.isConnectionReusable();
+        } finally {
+            response.close();
         }
     }
 
-    private boolean isUseCache(GetRequest request) throws ProxyCacheException {
-        long sourceLength = source.length();
-        boolean sourceLengthKnown = sourceLength > 0;
+    /**
+     * Prepares response for request. Method may block while fetching source info, but returned response doesn't.
+     *
+     * @param request        a request to be responded.
+     * @param sourceExecutor an executor to read source on if request can't be served with cache,
+     *                       {@code null} means source will be read by thread that writes response.
+     * @return a response to be written to client.
+     */
+    ProxyResponse newResponse(GetRequest request, Executor sourceExecutor) throws IOException, ProxyCacheException {
+        openSourceIfInfoUnknown(request);
+        long length = cache.isCompleted() ? cache.available() : source.length();
+        boolean keepAlive = keepAliveAllowed && request.keepAlive;
+        List<ByteRange> ranges = resolveRanges(request, length);
+        if (ranges == null) {
+            return ProxyResponse.of(ResponseHeaders.notSatisfiable(length).keepAlive(keepAlive));
+        }
+        if (ranges.size() > 1) {
+            return newMultipartResponse(ranges, length, keepAlive, sourceExecutor);
+        }
+        ByteRange range = ranges.isEmpty() ? null : ranges.get(0);
+        long offset = range == null ? 0 : range.first;
+        ResponseHeaders headers = range == null ? ResponseHeaders.ok(length) : ResponseHeaders.partial(range, length);
+        headers.contentType(source.getMime()).keepAlive(keepAlive).chunked(request.chunkedAccepted);
+        addValidators(headers);
+        UrlSource newSourceNoCache = isUseCache(offset) ? null : openSourceNoCache(offset, headers.contentLength());
+        if (newSourceNoCache == null) {
+            return ProxyResponse.fromCache(headers, this, cache, offset);
+        }
+        return ProxyResponse.fromSource(headers, newSourceNoCache, sourceExecutor);
+    }
+
+    /**
+     * Opens separate source for range too far from cache's end, so range is sent to client without caching.
+     *
+     * @param offset an offset of range.
+     * @param length a length of range, source isn't downloaded beyond it.
+     * @return opened source or {@code null} if server ignores range, so range should be read from cache.
+     * @throws ProxyCacheException if source can't be opened.
+     */
+    private UrlSource openSourceNoCache(long offset, long length) throws ProxyCacheException {
+        UrlSource newSourceNoCache = source.copy();
+        try {
+            newSourceNoCache.open(offset, length); // don't download more than client needs
+        } catch (ProxyCacheException e) {
+            newSourceNoCache.close();
+            throw e;
+        }
+        if (offset > 0 && !newSourceNoCache.isPartial()) {
+            newSourceNoCache.close(); // server ignores range, so content is downloaded to cache from the beginning
+            return null;
+        }
+        return newSourceNoCache;
+    }
+
+    /**
+     * Opens source for data that will be cached if source's info isn't known yet (usually it is first request to url),
+     * so info is taken from data's response instead of separate request to server.
+     */
+    private void openSourceIfInfoUnknown(GetRequest request) throws ProxyCacheException {
+        if (cache.isCompleted() || source.isContentInfoKnown()) {
+            return;
+        }
+        boolean suffixRange = request.partial && request.ranges.get(0).isSuffix();
         long cacheAvailable = cache.available();
-        // do not use cache for partial requests which too far from available cache. It seems user seek video.
-        return !sourceLengthKnown || !request.partial || request.rangeOffset <= cacheAvailable + sourceLength * NO_CACHE_BARRIER;
+        // request near cache's end is served by cache, far one is served by separate source that needs length to be opened
+        if (!suffixRange && request.rangeOffset <= cacheAvailable) {
+            openSource(cacheAvailable);
+        }
+    }
+
+    /**
+     * Converts requested ranges to ranges with exact bounds.
+     *
+     * @return ranges to be sent, empty list if full content should be sent or {@code null} if ranges can't be satisfied.
+     */
+    private List<ByteRange> resolveRanges(GetRequest request, long length) {
+        if (!request.partial) {
+            return Collections.emptyList();
+        }
+        ByteRange first = request.ranges.get(0);
+        if (length < 0) {
+            // without length only first range that doesn't depend on length can be served
+            return first.isSuffix() ? Collections.<ByteRange>emptyList() : Collections.singletonList(first);
+        }
+        List<ByteRange> ranges = new ArrayList<>(request.ranges.size());
+        for (ByteRange range : request.ranges) {
+            ByteRange resolved = range.resolve(length);
+            if (resolved != null) {
+                ranges.add(resolved);
+            }
+        }
+        return ranges.isEmpty() ? null : ranges;
     }
 
-    private String newResponseHeaders(GetRequest request) throws IOException, ProxyCacheException {
+    private ProxyResponse newMultipartResponse(List<ByteRange> ranges, long length, boolean keepAlive, Executor sourceExecutor)
+            throws IOException, ProxyCacheException {
         String mime = source.getMime();
-        boolean mimeKnown = !TextUtils.isEmpty(mime);
-        long length = cache.isCompleted() ? cache.available() : source.length();
-        boolean lengthKnown = length >= 0;
-        long contentLength = request.partial ? length - request.rangeOffset : length;
-        boolean addRange = lengthKnown && request.partial;
-        return new StringBuilder()
-                .append(request.partial ? "HTTP/1.1 206 PARTIAL CONTENT\n" : "HTTP/1.1 200 OK\n")
-                .append("Accept-Ranges: bytes\n")
-                .append(lengthKnown ? format("Content-Length: %d\n", contentLength) : "")
-                .append(addRange ? format("Content-Range: bytes %d-%d/%d\n", request.rangeOffset, length - 1, length) : "")
-                .append(mimeKnown ? format("Content-Type: %s\n", mime) : "")
-                .append("\n") // headers end
-                .toString();
-    }
-
-    private void responseWithCache(OutputStream out, long offset) throws ProxyCacheException, IOException {
-        byte[] buffer = new byte[ProxyCacheUtils.DEFAULT_BUFFER_SIZE];
-        int readBytes;
-        while ((readBytes = read(buffer, offset, buffer.length)) != -1) {
-            out.write(buffer, 0, readBytes);
-            offset += readBytes;
-        }
-        out.flush();
-    }
-
-    private void responseWithoutCache(OutputStream out, long offset) throws ProxyCacheException, IOException {
-        HttpUrlSource newSourceNoCache = new HttpUrlSource(this.source);
+        String boundary = "BYTERANGES_" + Long.toHexString(System.nanoTime()) + Integer.toHexString(System.identityHashCode(ranges));
+        byte[][] partHeaders = new byte[ranges.size()][];
+        long contentLength = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            ByteRange range = ranges.get(i);
+            partHeaders[i] = new StringBuilder()
+                    .append("\r\n--").append(boundary).append("\r\n")
+                    .append(TextUtils.isEmpty(mime) ? "" : format("Content-Type: %s\r\n", mime))
+                    .append(format("Content-Range: bytes %d-%d/%d\r\n", range.first, range.last, length))
+                    .append("\r\n")
+                    .toString().getBytes("UTF-8");
+            contentLength += partHeaders[i].length + range.length();
+        }
+        byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes("UTF-8");
+        contentLength += trailer.length;
+        ResponseHeaders headers = ResponseHeaders.multipart(contentLength)
+                .contentType("multipart/byteranges; boundary=" + boundary)
+                .keepAlive(keepAlive);
+        addValidators(headers);
+        Source[] partSources = openPartSourcesNoCache(ranges);
+        return ProxyResponse.multipart(headers, ranges, partHeaders, trailer, this, cache, partSources, sourceExecutor);
+    }
+
+    /**
+     * Opens separate sources for parts too far from cache's end, the same way as for single range.
+     *
+     * @return opened sources, {@code null} element means part is read from cache.
+     */
+    private Source[] openPartSourcesNoCache(List<ByteRange> ranges) throws ProxyCacheException {
+        Source[] sources = new Source[ranges.size()];
         try {
-            newSourceNoCache.open((int) offset);
-            byte[] buffer = new byte[ProxyCacheUtils.DEFAULT_BUFFER_SIZE];
-            int readBytes;
-            while ((readBytes = newSourceNoCache.read(buffer)) != -1) {
-                out.write(buffer, 0, readBytes);
-                offset += readBytes;
+            for (int i = 0; i < ranges.size(); i++) {
+                ByteRange range = ranges.get(i);
+                sources[i] = isUseCache(range.first) ? null : openSourceNoCache(range.first, range.length());
             }
-            out.flush();
-        } finally {
-            newSourceNoCache.close();
+        } catch (ProxyCacheException e) {
+            for (Source source : sources) {
+                if (source != null) {
+                    closeSource(source);
+                }
+            }
+            throw e;
         }
+        return sources;
+    }
+
+    private void addValidators(ResponseHeaders headers) {
+        if (validatorsPassed) {
+            headers.validators(source.getResponseHeader("ETag"), source.getResponseHeader("Last-Modified"));
+        }
+    }
+
+    private boolean isUseCache(long offset) throws ProxyCacheException {
+        long sourceLength = source.length();
+        boolean sourceLengthKnown = sourceLength > 0;
+        long cacheAvailable = cache.available();
+        // do not use cache for partial requests which too far from available cache. It seems user seek video.
+        return !sourceLengthKnown || offset <= cacheAvailable + sourceLength * NO_CACHE_BARRIER;
     }
 
     private String format(String pattern, Object... args) {
         return String.format(Locale.US, pattern, args);
     }
 
+    private void startWriting(ConnectionWatchdog.Watch watch, ProxyResponse response) {
+        if (watch != null) {
+            watch.writing(response);
+        }
+    }
+
+    private void flush(OutputStream out) throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
     @Override
     protected void onCachePercentsAvailableChanged(double percents) {
         if (listener != null) {
@@ -10,27 +10,34 @@ import com.ornoma.httpcache.file.TotalCountLruDiskUsage;
 import com.ornoma.httpcache.file.TotalSizeLruDiskUsage;
 import com.ornoma.httpcache.headers.EmptyHeadersInjector;
 import com.ornoma.httpcache.headers.HeaderInjector;
+import com.ornoma.httpcache.sourcestorage.OriginScoreStorage;
 import com.ornoma.httpcache.sourcestorage.SourceInfoStorage;
 import com.ornoma.httpcache.sourcestorage.SourceInfoStorageFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import static com.ornoma.httpcache.Preconditions.checkAllNotNull;
+import static com.ornoma.httpcache.Preconditions.checkArgument;
 import static com.ornoma.httpcache.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 /**
  * Simple lightweight proxy server with file caching support that handles HTTP requests.
@@ -57,13 +64,20 @@ public class HttpProxyCacheServer {
     private static final String PROXY_HOST = "127.0.0.1";
 
     private final Object clientsLock = new Object();
-    private final ExecutorService socketProcessor = Executors.newFixedThreadPool(8);
+    private final Object serverLock = new Object();
     private final Map<String, HttpProxyCacheServerClients> clientsMap = new ConcurrentHashMap<>();
-    private final ServerSocket serverSocket;
-    private final int port;
-    private final Thread waitConnectionThread;
+    private final CountDownLatch startSignal = new CountDownLatch(1);
     private final Config config;
-    private final Pinger pinger;
+    private final HealthMonitor healthMonitor;
+    private final CacheRevalidator revalidator;
+    private final ConnectionWatchdog watchdog;
+    private final WorkerPool socketProcessor;
+    private volatile ServerSocket serverSocket;
+    private volatile NioConnectionEngine nioEngine;
+    private volatile int port;
+    private volatile Thread waitConnectionThread;
+    private volatile Pinger pinger;
+    private volatile boolean stopped;
 
     public HttpProxyCacheServer(Context context) {
         this(new Builder(context).buildConfig());
@@ -71,19 +85,21 @@ public class HttpProxyCacheServer {
 
     private HttpProxyCacheServer(Config config) {
         this.config = checkNotNull(config);
+        this.healthMonitor = new HealthMonitor(new HealthMonitorTarget(), config.metrics, config.healthCheckInterval);
+        this.revalidator = new CacheRevalidator(config, new CacheChangeListener());
+        // nio engine checks deadlines of its connections itself and doesn't use thread per connection
+        boolean blocking = config.engine == Engine.BLOCKING;
+        this.watchdog = blocking ? new ConnectionWatchdog(config) : null;
+        this.socketProcessor = blocking ? new WorkerPool(config.minWorkers, config.maxWorkers, config.maxQueuedConnections, config.metrics) : null;
+        if (config.startInBackground) {
+            new Thread(new StartServerRunnable(), "Proxy cache server startup").start();
+            return;
+        }
         try {
-            InetAddress inetAddress = InetAddress.getByName(PROXY_HOST);
-            this.serverSocket = new ServerSocket(0, 8, inetAddress);
-            this.port = serverSocket.getLocalPort();
-            IgnoreHostProxySelector.install(PROXY_HOST, port);
-            CountDownLatch startSignal = new CountDownLatch(1);
-            this.waitConnectionThread = new Thread(new WaitRequestsRunnable(startSignal));
-            this.waitConnectionThread.start();
-            startSignal.await(); // freeze thread, wait for server starts
-            this.pinger = new Pinger(PROXY_HOST, port);
-            LOG.info("Proxy cache server started. Is it alive? " + isAlive());
+            start();
         } catch (IOException | InterruptedException e) {
-            socketProcessor.shutdown();
+            healthMonitor.shutdown();
+            shutdownWorkers();
             throw new IllegalStateException("Error starting local proxy server", e);
         }
     }
@@ -91,8 +107,8 @@ public class HttpProxyCacheServer {
     /**
      * Returns url that wrap original url and should be used for client (MediaPlayer, ExoPlayer, etc).
      * <p>
-     * If file for this url is fully cached (it means method {@link #isCached(String)} returns {@code true})
-     * then file:// uri to cached file will be returned.
+     * If file for this url is fully cached and fresh (see {@link #getProxyUrl(String, boolean)}) then file:// uri to cached file
+     * will be returned.
      * <p>
      * Calling this method has same effect as calling {@link #getProxyUrl(String, boolean)} with 2nd parameter set to {@code true}.
      *
@@ -108,18 +124,57 @@ public class HttpProxyCacheServer {
      * <p>
      * If parameter {@code allowCachedFileUri} is {@code true} and file for this url is fully cached
      * (it means method {@link #isCached(String)} returns {@code true}) then file:// uri to cached file will be returned.
+     * If revalidation is enabled (see {@link Builder#revalidation(long, long)}) file must also be fresh: stale file may be
+     * deleted by revalidation before player opens it, so it is served by proxy which doesn't delete cache under its clients.
      *
      * @param url                a url to file that should be cached.
      * @param allowCachedFileUri {@code true} if allow to return file:// uri if url is fully cached
      * @return a wrapped by proxy url if file is not fully cached or url pointed to cache file otherwise (if {@code allowCachedFileUri} is {@code true}).
      */
     public String getProxyUrl(String url, boolean allowCachedFileUri) {
-        if (allowCachedFileUri && isCached(url)) {
+        if (allowCachedFileUri && isCachedFresh(url)) {
             File cacheFile = getCacheFile(url);
             touchFileSafely(cacheFile);
             return Uri.fromFile(cacheFile).toString();
         }
-        return isAlive() ? appendToProxyUrl(url) : url;
+        if (!waitForStart() || !isAlive()) {
+            return url;
+        }
+        if (!getCacheFile(url).exists()) {
+            config.prewarmer.prewarm(url, config.sourceInfoStorage, config.headerInjector); // player will request it soon
+        }
+        return appendToProxyUrl(url);
+    }
+
+    private boolean isCachedFresh(String url) {
+        return getCacheFile(url).exists() && revalidator.getKnownFreshness(url) == CacheRevalidator.Freshness.FRESH;
+    }
+
+    /**
+     * Waits for server started in background, see {@link Builder#startInBackground(long)}.
+     *
+     * @return {@code true} if server's startup is finished.
+     */
+    private boolean waitForStart() {
+        try {
+            return startSignal.await(config.startupWait, MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Checks whether proxy server responded to last health check. Never blocks, server is checked in background.
+     *
+     * @return {@code true} if server is alive and urls can be proxied.
+     */
+    private boolean isAlive() {
+        boolean alive = healthMonitor.isAlive();
+        if (!alive) {
+            healthMonitor.requestCheck(); // let server be used as soon as it recovers
+        }
+        return alive;
     }
 
     public void registerCacheListener(CacheListener cacheListener, String url) {
@@ -153,24 +208,158 @@ public class HttpProxyCacheServer {
         }
     }
 
+    /**
+     * Registers mirrors of content: other urls the same content is published at, e.g. on other CDNs.
+     * <p>
+     * Content is still requested from proxy and cached by original url, but it is downloaded from origin that is the fastest
+     * by measured time to first byte and throughput. If origin fails while content is downloaded, downloading is continued
+     * from another one at the same offset, so all mirrors must serve byte-to-byte identical content. Measurements are stored,
+     * so they are used in next sessions too. Content being downloaded already isn't affected.
+     *
+     * @param url     an original url of content.
+     * @param mirrors urls of the same content on other origins, empty list unregisters mirrors.
+     */
+    public void registerMirrors(String url, List<String> mirrors) {
+        checkAllNotNull(url, mirrors);
+        config.mirrors.registerMirrors(url, mirrors);
+    }
+
+    public void unregisterMirrors(String url) {
+        checkNotNull(url);
+        config.mirrors.unregisterMirrors(url);
+    }
+
     /**
      * Checks is cache contains fully cached file for particular url.
+     * <p>
+     * If revalidation is enabled (see {@link Builder#revalidation(long, long)}) file must also be fresh or stale enough
+     * to be used while it is revalidated: expired cache is checked by proxy before it is used. Method never reads storage,
+     * so file which freshness isn't loaded in background yet is reported as cached, it is checked by proxy if it is expired.
      *
      * @param url an url cache file will be checked for.
      * @return {@code true} if cache contains fully cached file for passed in parameters url.
      */
     public boolean isCached(String url) {
         checkNotNull(url, "Url can't be null!");
-        return getCacheFile(url).exists();
+        if (!getCacheFile(url).exists()) {
+            return false;
+        }
+        return revalidator.getKnownFreshness(url) != CacheRevalidator.Freshness.EXPIRED;
+    }
+
+    /**
+     * Returns runtime statistics of this proxy server.
+     *
+     * @return server's metrics, never {@code null}.
+     */
+    public ProxyCacheMetrics getMetrics() {
+        return config.metrics;
+    }
+
+    /**
+     * Returns limiter of bandwidth used to download content from origin servers. Limits can be changed at any time.
+     *
+     * @return bandwidth governor, never {@code null}.
+     */
+    public BandwidthGovernor getBandwidthGovernor() {
+        return config.bandwidthGovernor;
     }
 
     public void shutdown() {
         LOG.info("Shutdown proxy server");
 
+        synchronized (serverLock) {
+            stopped = true;
+        }
+        healthMonitor.shutdown();
+        revalidator.shutdown();
+        config.prewarmer.shutdown();
+        if (pinger != null) {
+            pinger.shutdown();
+        }
+
         shutdownClients();
 
         config.sourceInfoStorage.release();
+        config.mirrors.shutdown();
+        config.originScoreStorage.release();
+
+        stopAccepting();
+        shutdownWorkers();
+    }
+
+    private void shutdownWorkers() {
+        if (watchdog != null) {
+            watchdog.shutdown();
+        }
+        if (socketProcessor != null) {
+            socketProcessor.shutdown();
+        }
+    }
+
+    private void start() throws IOException, InterruptedException {
+        try {
+            synchronized (serverLock) {
+                if (stopped) {
+                    return;
+                }
+                config.getCacheRoot(); // default cache directory is resolved lazily, do it before first request
+                this.port = startAccepting(0);
+                installPinger();
+                LOG.info("Proxy cache server started. Is it alive? " + healthMonitor.start());
+            }
+        } finally {
+            startSignal.countDown();
+        }
+    }
+
+    private void installPinger() {
+        IgnoreHostProxySelector.install(PROXY_HOST, port);
+        if (pinger != null) {
+            pinger.shutdown();
+        }
+        this.pinger = new Pinger(PROXY_HOST, port);
+    }
+
+    /**
+     * Binds server socket and starts accepting connections using configured engine.
+     *
+     * @param preferredPort a port to bind or {@code 0} for any free port.
+     * @return a port server is bound to.
+     */
+    private int startAccepting(int preferredPort) throws IOException, InterruptedException {
+        InetAddress inetAddress = InetAddress.getByName(PROXY_HOST);
+        if (config.engine == Engine.NIO) {
+            NioConnectionEngine engine = new NioConnectionEngine(this, config);
+            int boundPort = engine.start(inetAddress, preferredPort);
+            this.nioEngine = engine;
+            return boundPort;
+        }
+        // socket with channel lets cached data be sent by FileChannel.transferTo without copying
+        ServerSocket socket = ServerSocketChannel.open().socket();
+        try {
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(inetAddress, preferredPort), 8);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        this.serverSocket = socket;
+        CountDownLatch startSignal = new CountDownLatch(1);
+        this.waitConnectionThread = new Thread(new WaitRequestsRunnable(socket, startSignal));
+        this.waitConnectionThread.start();
+        startSignal.await(); // freeze thread, wait for server starts
+        return socket.getLocalPort();
+    }
 
+    private void stopAccepting() {
+        if (nioEngine != null) {
+            nioEngine.shutdown();
+            return;
+        }
+        if (serverSocket == null) {
+            return; // server is not started yet
+        }
         waitConnectionThread.interrupt();
         try {
             if (!serverSocket.isClosed()) {
@@ -181,8 +370,50 @@ public class HttpProxyCacheServer {
         }
     }
 
-    private boolean isAlive() {
-        return pinger.ping(3, 70);   // 70+140+280=max~500ms
+    private boolean isAccepting() {
+        if (nioEngine != null) {
+            return nioEngine.isAccepting();
+        }
+        return serverSocket != null && waitConnectionThread.isAlive() && !serverSocket.isClosed();
+    }
+
+    private boolean restartAccepting() {
+        synchronized (serverLock) {
+            if (stopped) {
+                return false;
+            }
+            if (isAccepting()) {
+                return true; // started concurrently, e.g. by background startup
+            }
+            stopAccepting();
+            int oldPort = port;
+            try {
+                try {
+                    port = startAccepting(oldPort); // try to keep port to let already proxied urls work
+                } catch (IOException e) {
+                    if (oldPort == 0) {
+                        throw e;
+                    }
+                    LOG.warn("Port " + oldPort + " can't be bound again, using new one. " + e.getMessage());
+                    port = startAccepting(0);
+                }
+            } catch (IOException | InterruptedException e) {
+                onError(new ProxyCacheException("Error restarting proxy server", e));
+                return false;
+            }
+            if (port != oldPort) {
+                installPinger();
+            }
+            LOG.info("Proxy server is restarted on port " + port);
+            return true;
+        }
+    }
+
+    /**
+     * Called by engine when its accept loop fails, lets server be checked and restarted if needed.
+     */
+    void onAcceptError() {
+        healthMonitor.requestCheck();
     }
 
     private String appendToProxyUrl(String url) {
@@ -190,9 +421,7 @@ public class HttpProxyCacheServer {
     }
 
     private File getCacheFile(String url) {
-        File cacheDir = config.cacheRoot;
-        String fileName = config.fileNameGenerator.generate(url);
-        return new File(cacheDir, fileName);
+        return config.generateCacheFile(url);
     }
 
     private void touchFileSafely(File cacheFile) {
@@ -212,46 +441,75 @@ public class HttpProxyCacheServer {
         }
     }
 
-    private void waitForRequest() {
+    private void waitForRequest(ServerSocket serverSocket) {
         try {
             while (!Thread.currentThread().isInterrupted()) {
                 Socket socket = serverSocket.accept();
                 LOG.debug("Accept new socket " + socket);
-                socketProcessor.submit(new SocketProcessorRunnable(socket));
+                config.metrics.onConnectionAccepted();
+                if (!socketProcessor.execute(new SocketProcessorRunnable(socket), WorkerPool.Priority.NEW_CONNECTION)) {
+                    rejectSocket(socket);
+                }
             }
         } catch (IOException e) {
-            onError(new ProxyCacheException("Error during waiting connection", e));
+            if (!serverSocket.isClosed()) {
+                onError(new ProxyCacheException("Error during waiting connection", e));
+            }
+        }
+        if (!Thread.currentThread().isInterrupted()) {
+            onAcceptError();
         }
     }
 
-    private void processSocket(Socket socket) {
+    /**
+     * Answers connection that can't be served because proxy is overloaded, so client may retry it at once.
+     */
+    private void rejectSocket(Socket socket) {
+        LOG.warn("Rejecting connection… All workers are busy, queued connections: " + config.maxQueuedConnections);
         try {
-            GetRequest request = GetRequest.read(socket.getInputStream());
-            LOG.debug("Request to cache proxy:" + request);
-            String url = ProxyCacheUtils.decode(request.uri);
-            if (pinger.isPingRequest(url)) {
-                pinger.responseToPing(socket);
-            } else {
-                HttpProxyCacheServerClients clients = getClients(url);
-                clients.processRequest(request, socket);
-            }
-        } catch (SocketException e) {
-            // There is no way to determine that client closed connection http://stackoverflow.com/a/10241044/999458
-            // So just to prevent log flooding don't log stacktrace
-            LOG.debug("Closing socket… Socket is closed by client.");
-        } catch (ProxyCacheException | IOException e) {
-            onError(new ProxyCacheException("Error processing request", e));
+            socket.getOutputStream().write(ResponseHeaders.serviceUnavailable().toByteArray());
+        } catch (IOException e) {
+            LOG.debug("Error sending rejection: " + e.getMessage());
         } finally {
             releaseSocket(socket);
-            LOG.debug("Opened connections: " + getClientsCount());
         }
     }
 
-    private HttpProxyCacheServerClients getClients(String url) throws ProxyCacheException {
+    /**
+     * Waits for first byte of kept alive connection's next request without consuming it, so request's deadline
+     * starts when client starts sending request rather than when previous response is sent.
+     *
+     * @return {@code false} if connection is closed by client.
+     */
+    private boolean waitForNextRequest(InputStream in) throws IOException {
+        in.mark(1);
+        if (in.read() < 0) {
+            return false;
+        }
+        in.reset();
+        return true;
+    }
+
+    private WorkerPool.Priority getPriority(GetRequest request) {
+        if (isPingRequest(request.url)) {
+            return WorkerPool.Priority.PING;
+        }
+        return getCacheFile(request.url).exists() ? WorkerPool.Priority.CACHED : WorkerPool.Priority.NOT_CACHED;
+    }
+
+    boolean isPingRequest(String url) {
+        return pinger.isPingRequest(url);
+    }
+
+    byte[] newPingResponse() {
+        return pinger.newPingResponse();
+    }
+
+    HttpProxyCacheServerClients getClients(String url) throws ProxyCacheException {
         synchronized (clientsLock) {
             HttpProxyCacheServerClients clients = clientsMap.get(url);
             if (clients == null) {
-                clients = new HttpProxyCacheServerClients(url, config);
+                clients = new HttpProxyCacheServerClients(url, config, revalidator);
                 clientsMap.put(url, clients);
             }
             return clients;
@@ -312,24 +570,84 @@ public class HttpProxyCacheServer {
         LOG.error("HttpProxyCacheServer error", e);
     }
 
+    private final class StartServerRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                start();
+            } catch (IOException | InterruptedException e) {
+                onError(new ProxyCacheException("Error starting local proxy server", e));
+                // health monitor retries to start server and keeps checking it
+                healthMonitor.start();
+            }
+        }
+    }
+
     private final class WaitRequestsRunnable implements Runnable {
 
+        private final ServerSocket serverSocket;
         private final CountDownLatch startSignal;
 
-        public WaitRequestsRunnable(CountDownLatch startSignal) {
+        public WaitRequestsRunnable(ServerSocket serverSocket, CountDownLatch startSignal) {
+            this.serverSocket = serverSocket;
             this.startSignal = startSignal;
         }
 
         @Override
         public void run() {
             startSignal.countDown();
-            waitForRequest();
+            waitForRequest(serverSocket);
+        }
+    }
+
+    private final class HealthMonitorTarget implements HealthMonitor.Target {
+
+        @Override
+        public boolean ping() {
+            Pinger currentPinger = pinger;
+            return currentPinger != null && currentPinger.ping(3, 70);   // 70+140+280=max~500ms
+        }
+
+        @Override
+        public boolean isAccepting() {
+            return HttpProxyCacheServer.this.isAccepting();
+        }
+
+        @Override
+        public boolean restartAccepting() {
+            return HttpProxyCacheServer.this.restartAccepting();
         }
     }
 
+    /**
+     * Deletes changed cache by its clients, so it isn't deleted while it is read, see {@link HttpProxyCacheServerClients#deleteChangedCache()}.
+     */
+    private final class CacheChangeListener implements CacheRevalidator.ChangeListener {
+
+        @Override
+        public void onContentChanged(String url) {
+            try {
+                getClients(url).deleteChangedCache();
+            } catch (ProxyCacheException e) {
+                LOG.warn("Error deleting changed cache of " + url, e);
+            }
+        }
+    }
+
+    /**
+     * Serves requests of single connection. When all workers are busy connection whose request is less important
+     * than waiting ones returns its thread to pool and is continued later, see {@link WorkerPool.Priority}.
+     */
     private final class SocketProcessorRunnable implements Runnable {
 
         private final Socket socket;
+        private ConnectionWatchdog.Watch watch;
+        private InputStream in;
+        private GetRequest pendingRequest;
+        private String clientsUrl;
+        private HttpProxyCacheServerClients clients;
+        private int servedRequests;
 
         public SocketProcessorRunnable(Socket socket) {
             this.socket = socket;
@@ -337,29 +655,194 @@ public class HttpProxyCacheServer {
 
         @Override
         public void run() {
-            processSocket(socket);
+            boolean rescheduled = false;
+            try {
+                if (watch == null) {
+                    // don't start request's deadline while connection waits for worker
+                    watch = watchdog.watch(socket);
+                    in = new BufferedInputStream(socket.getInputStream());
+                }
+                boolean keepAlive = true;
+                while (keepAlive) {
+                    GetRequest request = pendingRequest;
+                    pendingRequest = null;
+                    if (request == null) {
+                        request = readRequest();
+                        if (request == null) {
+                            LOG.debug("Connection is closed by client after " + servedRequests + " request(s)");
+                            break;
+                        }
+                        WorkerPool.Priority priority = getPriority(request);
+                        if (socketProcessor.hasTasksAhead(priority)) {
+                            pendingRequest = request;
+                            rescheduled = socketProcessor.reschedule(this, priority);
+                            return;
+                        }
+                    }
+                    keepAlive = processRequest(request);
+                }
+            } catch (SocketException e) {
+                // There is no way to determine that client closed connection http://stackoverflow.com/a/10241044/999458
+                // So just to prevent log flooding don't log stacktrace
+                LOG.debug("Closing socket… Socket is closed by client.");
+            } catch (IOException e) {
+                // socket's channel reports closed by client connection as plain i/o error, so don't flood log
+                LOG.debug("Closing socket… " + e.getMessage());
+            } catch (ProxyCacheException e) {
+                onError(new ProxyCacheException("Error processing request", e));
+            } finally {
+                if (!rescheduled) {
+                    if (watch != null) {
+                        watch.release();
+                    }
+                    releaseSocket(socket);
+                    LOG.debug("Opened connections: " + getClientsCount());
+                }
+            }
+        }
+
+        private GetRequest readRequest() throws IOException {
+            if (servedRequests > 0) {
+                watch.idle();
+                if (!waitForNextRequest(in)) {
+                    return null;
+                }
+            }
+            watch.readingRequest();
+            GetRequest request = GetRequest.read(in);
+            watch.suspend();
+            return request;
+        }
+
+        private boolean processRequest(GetRequest request) throws IOException, ProxyCacheException {
+            LOG.debug("Request to cache proxy:" + request);
+            config.metrics.onRequest(servedRequests > 0);
+            servedRequests++;
+            String url = request.url;
+            if (isPingRequest(url)) {
+                pinger.responseToPing(socket);
+                return false;
+            }
+            // client usually requests the same url over kept alive connection, so don't look for clients every time
+            clients = url.equals(clientsUrl) ? clients : getClients(url);
+            clientsUrl = url;
+            return clients.processRequest(request, socket, watch);
         }
     }
 
+    /**
+     * Strategy of serving client's connections.
+     */
+    public enum Engine {
+        /**
+         * Every connection is served by its own thread from elastic pool using blocking sockets. Used by default.
+         */
+        BLOCKING,
+        /**
+         * All connections are served by few I/O threads using non-blocking channels and {@link java.nio.channels.Selector}.
+         * Preferable when many clients (e.g. few video previews playing at once) use proxy concurrently.
+         */
+        NIO
+    }
+
     /**
      * Builder for {@link HttpProxyCacheServer}.
      */
     public static final class Builder {
 
         private static final long DEFAULT_MAX_SIZE = 512 * 1024 * 1024;
+        private static final int DEFAULT_IO_THREADS = 2;
+        private static final int DEFAULT_KEEP_ALIVE_TIMEOUT_MS = 5 * 1000;
+        private static final int DEFAULT_HEADER_TIMEOUT_MS = 10 * 1000;
+        private static final int DEFAULT_WRITE_STALL_TIMEOUT_MS = 60 * 1000;
+        private static final long DEFAULT_HEALTH_CHECK_INTERVAL_MS = 30 * 1000;
+        private static final int DEFAULT_MIN_WORKERS = 2;
+        private static final int DEFAULT_MAX_WORKERS = 16;
+        private static final int DEFAULT_MAX_QUEUED_CONNECTIONS = 32;
+        private static final int DEFAULT_MAX_IDLE_UPSTREAM_CONNECTIONS = 4;
+        private static final long DEFAULT_UPSTREAM_IDLE_TIMEOUT_MS = 30 * 1000;
+        private static final long DEFAULT_REDIRECT_CACHE_TTL_MS = 10 * 60 * 1000;
+        private static final long DEFAULT_MIN_UPSTREAM_TIMEOUT_MS = 5 * 1000;
+        private static final long DEFAULT_MAX_UPSTREAM_TIMEOUT_MS = 30 * 1000;
+        private static final long DEFAULT_MIN_UPSTREAM_THROUGHPUT = 1024;
+        private static final int DEFAULT_HEDGING_PERCENTILE = 95;
+        private static final int DEFAULT_MAX_SOURCE_RETRIES = 4;
+        private static final long DEFAULT_INITIAL_RETRY_DELAY_MS = 500;
+        private static final long DEFAULT_MAX_RETRY_DELAY_MS = 8 * 1000;
+        private static final int DEFAULT_MIN_BUFFER_SIZE = 8 * 1024;
+        private static final int DEFAULT_MAX_BUFFER_SIZE = 256 * 1024;
+        private static final long DEFAULT_BUFFER_FILL_INTERVAL_MS = 50;
 
+        private final Context context;
         private File cacheRoot;
         private FileNameGenerator fileNameGenerator;
         private DiskUsage diskUsage;
-        private SourceInfoStorage sourceInfoStorage;
         private HeaderInjector headerInjector;
+        private SourceFactory sourceFactory;
+        private Engine engine;
+        private int ioThreads;
+        private int keepAliveTimeout;
+        private int headerTimeout;
+        private int writeStallTimeout;
+        private int minWorkers;
+        private int maxWorkers;
+        private int maxQueuedConnections;
+        private int maxIdleUpstreamConnections;
+        private long upstreamIdleTimeout;
+        private long minUpstreamTimeout;
+        private long maxUpstreamTimeout;
+        private long minUpstreamThroughput;
+        private int hedgingPercentile;
+        private long minHedgingDelay;
+        private long maxHedgingDelay;
+        private double hedgingBudget;
+        private long prewarmTtl;
+        private long redirectCacheTtl;
+        private int maxSourceConnections;
+        private int maxSourceRetries;
+        private long initialRetryDelay;
+        private long maxRetryDelay;
+        private int minBufferSize;
+        private int maxBufferSize;
+        private long bufferFillInterval;
+        private long totalBandwidthLimit;
+        private final Map<BandwidthGovernor.TrafficClass, Long> bandwidthBudgets = new EnumMap<>(BandwidthGovernor.TrafficClass.class);
+        private long revalidationMaxAge;
+        private long staleWhileRevalidate;
+        private long healthCheckInterval;
+        private boolean startInBackground;
+        private long startupWait;
+        private boolean passValidators;
 
         public Builder(Context context) {
-            this.sourceInfoStorage = SourceInfoStorageFactory.newSourceInfoStorage(context);
-            this.cacheRoot = StorageUtils.getIndividualCacheDirectory(context);
+            this.context = checkNotNull(context);
             this.diskUsage = new TotalSizeLruDiskUsage(DEFAULT_MAX_SIZE);
             this.fileNameGenerator = new Md5FileNameGenerator();
             this.headerInjector = new EmptyHeadersInjector();
+            this.engine = Engine.BLOCKING;
+            this.ioThreads = DEFAULT_IO_THREADS;
+            this.keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT_MS;
+            this.headerTimeout = DEFAULT_HEADER_TIMEOUT_MS;
+            this.writeStallTimeout = DEFAULT_WRITE_STALL_TIMEOUT_MS;
+            this.minWorkers = DEFAULT_MIN_WORKERS;
+            this.maxWorkers = DEFAULT_MAX_WORKERS;
+            this.maxQueuedConnections = DEFAULT_MAX_QUEUED_CONNECTIONS;
+            this.maxIdleUpstreamConnections = DEFAULT_MAX_IDLE_UPSTREAM_CONNECTIONS;
+            this.upstreamIdleTimeout = DEFAULT_UPSTREAM_IDLE_TIMEOUT_MS;
+            this.minUpstreamTimeout = DEFAULT_MIN_UPSTREAM_TIMEOUT_MS;
+            this.maxUpstreamTimeout = DEFAULT_MAX_UPSTREAM_TIMEOUT_MS;
+            this.minUpstreamThroughput = DEFAULT_MIN_UPSTREAM_THROUGHPUT;
+            this.hedgingPercentile = DEFAULT_HEDGING_PERCENTILE;
+            this.redirectCacheTtl = DEFAULT_REDIRECT_CACHE_TTL_MS;
+            this.maxSourceConnections = 1;
+            this.maxSourceRetries = DEFAULT_MAX_SOURCE_RETRIES;
+            this.initialRetryDelay = DEFAULT_INITIAL_RETRY_DELAY_MS;
+            this.maxRetryDelay = DEFAULT_MAX_RETRY_DELAY_MS;
+            this.minBufferSize = DEFAULT_MIN_BUFFER_SIZE;
+            this.maxBufferSize = DEFAULT_MAX_BUFFER_SIZE;
+            this.bufferFillInterval = DEFAULT_BUFFER_FILL_INTERVAL_MS;
+            this.revalidationMaxAge = -1;
+            this.healthCheckInterval = DEFAULT_HEALTH_CHECK_INTERVAL_MS;
         }
 
         /**
@@ -441,6 +924,405 @@ public class HttpProxyCacheServer {
             return this;
         }
 
+        /**
+         * Overrides transport used to request origin servers.
+         * <p>
+         * By default {@link java.net.HttpURLConnection} is used with persistent connections configured by
+         * {@link #upstreamConnections(int, long)}, the setting is ignored for custom transport.
+         * Every request to server is made by sources created by factory.
+         *
+         * @param sourceFactory a factory of sources, can't be {@code null}.
+         * @return a builder.
+         */
+        public Builder sourceFactory(SourceFactory sourceFactory) {
+            this.sourceFactory = checkNotNull(sourceFactory);
+            return this;
+        }
+
+        /**
+         * Sets engine to be used for serving client's connections.
+         * <p>
+         * By default {@link Engine#BLOCKING} is used.
+         *
+         * @param engine an engine, can't be {@code null}.
+         * @return a builder.
+         */
+        public Builder engine(Engine engine) {
+            this.engine = checkNotNull(engine);
+            return this;
+        }
+
+        /**
+         * Sets count of I/O threads used by {@link Engine#NIO}. Default value is 2.
+         * Ignored for {@link Engine#BLOCKING}.
+         *
+         * @param count count of I/O threads, must be positive.
+         * @return a builder.
+         */
+        public Builder ioThreads(int count) {
+            checkArgument(count > 0, "I/O threads count must be positive");
+            this.ioThreads = count;
+            return this;
+        }
+
+        /**
+         * Sets size of thread pool serving connections of {@link Engine#BLOCKING} engine. {@link Engine#NIO} engine uses pool
+         * of the same size to prepare responses and to read sources bypassing cache.
+         * <p>
+         * New thread is started for connection if all threads are busy, thread idle for 30 seconds is stopped
+         * unless there are only {@code min} threads. Note kept alive connection holds its thread while it is open.
+         * Default values are 2 and 16.
+         *
+         * @param min count of threads kept while app doesn't use proxy, can't be negative.
+         * @param max max count of threads, must be positive and not less than {@code min}.
+         * @return a builder.
+         */
+        public Builder workerThreads(int min, int max) {
+            checkArgument(min >= 0, "Min workers count can't be negative");
+            checkArgument(max > 0 && max >= min, "Max workers count must be positive and not less than min count");
+            this.minWorkers = min;
+            this.maxWorkers = max;
+            return this;
+        }
+
+        /**
+         * Sets how many connections may wait for free thread of {@link Engine#BLOCKING} engine or requests of {@link Engine#NIO} one.
+         * <p>
+         * Waiting connections are served in order of priority: proxy's pings first, then requests to fully cached content,
+         * then all others. Excess connections are answered with {@code 503 SERVICE UNAVAILABLE} at once.
+         * Default value is 32.
+         *
+         * @param count max count of waiting connections, can't be negative.
+         * @return a builder.
+         */
+        public Builder maxQueuedConnections(int count) {
+            checkArgument(count >= 0, "Max queued connections count can't be negative");
+            this.maxQueuedConnections = count;
+            return this;
+        }
+
+        /**
+         * Sets how many idle connections to each origin server are kept open for next requests.
+         * <p>
+         * Every seek of player makes new request to server, reusing connection saves TCP and TLS handshakes.
+         * Connection is kept only if response is read (almost) completely, servers usually close idle connections
+         * after several seconds, so idle timeout should not exceed server's keep-alive timeout.
+         * Default values are 4 connections and 30 seconds, {@code 0} connections disables reuse.
+         *
+         * @param maxIdlePerHost max count of idle connections per server, can't be negative.
+         * @param idleTimeout    how long idle connection is considered reusable in milliseconds, can't be negative.
+         * @return a builder.
+         */
+        public Builder upstreamConnections(int maxIdlePerHost, long idleTimeout) {
+            checkArgument(maxIdlePerHost >= 0, "Max idle upstream connections count can't be negative");
+            checkArgument(idleTimeout >= 0, "Upstream idle timeout can't be negative");
+            this.maxIdleUpstreamConnections = maxIdlePerHost;
+            this.upstreamIdleTimeout = idleTimeout;
+            return this;
+        }
+
+        /**
+         * Sets how connections to origin servers that hang are detected.
+         * <p>
+         * Connection that sends nothing within timeout is aborted, timeout adapts to round trip time measured per server
+         * and stays within passed bounds. Connection that still sends data but slower than min throughput during
+         * 10 seconds of waiting for data is aborted too. Aborted download is resumed with new connection from the end of cache
+         * (see {@link #sourceRetries(int, long, long)}). Default values are 5 seconds, 30 seconds and 1 KB per second.
+         *
+         * @param minTimeout    min timeout of connecting and reading in milliseconds, must be positive.
+         * @param maxTimeout    max timeout in milliseconds, used for servers without measured round trip time,
+         *                      can't be less than {@code minTimeout}.
+         * @param minThroughput min throughput of connection in bytes per second, {@code 0} means throughput isn't checked.
+         * @return a builder.
+         */
+        public Builder stallDetection(long minTimeout, long maxTimeout, long minThroughput) {
+            checkArgument(minTimeout > 0, "Min upstream timeout must be positive");
+            checkArgument(maxTimeout >= minTimeout && maxTimeout <= Integer.MAX_VALUE, "Max upstream timeout can't be less than min timeout");
+            checkArgument(minThroughput >= 0, "Min upstream throughput can't be negative");
+            this.minUpstreamTimeout = minTimeout;
+            this.maxUpstreamTimeout = maxTimeout;
+            this.minUpstreamThroughput = minThroughput;
+            return this;
+        }
+
+        /**
+         * Enables hedging of requests to origin servers, so rare requests stuck in connecting or TLS handshake don't delay playback.
+         * <p>
+         * If server doesn't send response's headers within delay, the same request is sent again (to another mirror if content
+         * has them, see {@link HttpProxyCacheServer#registerMirrors(String, List)}). Response that comes first is used,
+         * the other request is cancelled. Delay is chosen percentile of time to first byte of recent requests within passed bounds,
+         * max delay is used until enough requests are measured. Budget caps extra traffic: ratio of hedged requests to all
+         * requests doesn't exceed it except for burst of few requests. Hedging is disabled by default.
+         *
+         * @param percentile percentile of time to first byte used as delay, from 1 to 99, e.g. {@code 95}.
+         * @param minDelay   min delay in milliseconds, can't be negative.
+         * @param maxDelay   max delay in milliseconds, can't be less than {@code minDelay}.
+         * @param budget     max ratio of hedged requests, from 0 to 1, e.g. {@code 0.05}, {@code 0} disables hedging.
+         * @return a builder.
+         */
+        public Builder hedging(int percentile, long minDelay, long maxDelay, double budget) {
+            checkArgument(percentile > 0 && percentile < 100, "Hedging percentile must be from 1 to 99");
+            checkArgument(minDelay >= 0 && maxDelay >= minDelay, "Hedging delay can't be negative, max delay can't be less than min delay");
+            checkArgument(budget >= 0 && budget <= 1, "Hedging budget must be from 0 to 1");
+            this.hedgingPercentile = percentile;
+            this.minHedgingDelay = minDelay;
+            this.maxHedgingDelay = maxDelay;
+            this.hedgingBudget = budget;
+            return this;
+        }
+
+        /**
+         * Enables speculative pre-warming of content's source when proxy url is got with {@link #getProxyUrl(String)}.
+         * <p>
+         * If content isn't cached and its info isn't known, info is fetched in background while player is connecting to proxy:
+         * host's address is resolved, connection is established and kept alive, redirect is resolved. Prepared source serves
+         * the first player's request, so playback starts sooner. Source not requested within ttl is dropped. Costs one HEAD
+         * request per url that player doesn't request eventually. Pre-warming is disabled by default.
+         *
+         * @param ttl how long prepared source is kept in milliseconds, e.g. {@code 10000}, should not exceed idle timeout
+         *            of upstream connections (see {@link #upstreamConnections(int, long)}), {@code 0} disables pre-warming.
+         * @return a builder.
+         */
+        public Builder prewarm(long ttl) {
+            checkArgument(ttl >= 0, "Pre-warm ttl can't be negative");
+            this.prewarmTtl = ttl;
+            return this;
+        }
+
+        /**
+         * Sets how long final location of redirected url is used without requesting original url.
+         * <p>
+         * Location is stored with source's info, so it survives restart of app. Caching headers of redirect
+         * ({@code Cache-Control: max-age}, {@code Expires}) take precedence over this value, redirect with
+         * {@code no-store} or {@code no-cache} is never stored. If stored location fails, original url is requested again.
+         * Default value is 10 minutes, {@code 0} means location is stored only if redirect's headers allow it.
+         *
+         * @param ttl time to live of location in milliseconds, can't be negative.
+         * @return a builder.
+         */
+        public Builder redirectCacheTtl(long ttl) {
+            checkArgument(ttl >= 0, "Redirect cache ttl can't be negative");
+            this.redirectCacheTtl = ttl;
+            return this;
+        }
+
+        /**
+         * Sets how many connections may be used to download single url at once.
+         * <p>
+         * Some servers limit throughput of every connection, so single connection may be too slow for first playback.
+         * With several connections content is split into segments fetched concurrently with range requests and appended
+         * to cache in order, so clients get data as soon as it is contiguous. Count of connections and segment's size
+         * adapt to measured throughput, extra connections are not used if server doesn't support ranges.
+         * By default content is downloaded over single connection.
+         *
+         * @param count max count of connections per url, must be positive.
+         * @return a builder.
+         */
+        public Builder sourceConnections(int count) {
+            checkArgument(count > 0, "Source connections count must be positive");
+            this.maxSourceConnections = count;
+            return this;
+        }
+
+        /**
+         * Sets how reading of origin server is retried after transient error.
+         * <p>
+         * Network failures and server's errors {@code 5xx}, {@code 408} and {@code 429} are retried, other errors
+         * (e.g. {@code 404}) are reported to clients at once. Every retry resumes download from the end of cache with range
+         * request, clients waiting for data stay connected meanwhile. Delay before retry doubles from initial up to max value
+         * and is randomly reduced up to a half. Count of retries is limited for failures in a row: retry that reads any data resets it.
+         * Default values are 4 retries, 500 milliseconds and 8 seconds, {@code 0} retries disables retrying.
+         *
+         * @param maxRetries   max count of retries in a row, can't be negative.
+         * @param initialDelay delay before first retry in milliseconds, can't be negative.
+         * @param maxDelay     max delay before retry in milliseconds, can't be less than {@code initialDelay}.
+         * @return a builder.
+         */
+        public Builder sourceRetries(int maxRetries, long initialDelay, long maxDelay) {
+            checkArgument(maxRetries >= 0, "Max source retries count can't be negative");
+            checkArgument(initialDelay >= 0, "Initial retry delay can't be negative");
+            checkArgument(maxDelay >= initialDelay, "Max retry delay can't be less than initial delay");
+            this.maxSourceRetries = maxRetries;
+            this.initialRetryDelay = initialDelay;
+            this.maxRetryDelay = maxDelay;
+            return this;
+        }
+
+        /**
+         * Sets how data read from origin server is buffered before it is written to cache.
+         * <p>
+         * Every write to cache wakes up clients waiting for data and reports progress to cache listeners, so writing every
+         * small read of fast connection wastes CPU and battery. Source is read into buffer until it is full or fill interval is over,
+         * buffer's size follows measured throughput to be filled in about fill interval, so data is written and clients are notified
+         * about once per interval whatever throughput is. Default values are 8 KB, 256 KB and 50 milliseconds,
+         * {@code 0} interval writes every read at once.
+         *
+         * @param minSize      min (and initial) size of buffer in bytes, must be positive.
+         * @param maxSize      max size of buffer in bytes, can't be less than {@code minSize}.
+         * @param fillInterval max time to fill buffer in milliseconds, i.e. max delay of data for clients, can't be negative.
+         * @return a builder.
+         */
+        public Builder sourceBuffer(int minSize, int maxSize, long fillInterval) {
+            checkArgument(minSize > 0, "Min buffer size must be positive");
+            checkArgument(maxSize >= minSize, "Max buffer size can't be less than min size");
+            checkArgument(fillInterval >= 0, "Buffer fill interval can't be negative");
+            this.minBufferSize = minSize;
+            this.maxBufferSize = maxSize;
+            this.bufferFillInterval = fillInterval;
+            return this;
+        }
+
+        /**
+         * Sets total bandwidth proxy may use to download content from origin servers.
+         * <p>
+         * Bandwidth is shared by all traffic classes, class that has spent its budget (see {@link #bandwidthBudget})
+         * borrows capacity unused by others. Limits can be changed later with {@link HttpProxyCacheServer#getBandwidthGovernor()}.
+         * By default bandwidth is not limited.
+         *
+         * @param bytesPerSecond total limit in bytes per second, {@code 0} means no limit.
+         * @return a builder.
+         */
+        public Builder bandwidthLimit(long bytesPerSecond) {
+            checkArgument(bytesPerSecond >= 0, "Bandwidth limit can't be negative");
+            this.totalBandwidthLimit = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Sets bandwidth guaranteed to traffic class, e.g. to playback, so background downloads never slow down video on screen.
+         * By default classes have no budgets.
+         *
+         * @param trafficClass   a traffic class, can't be {@code null}.
+         * @param bytesPerSecond class's budget in bytes per second, {@code 0} means class uses only bandwidth unused by others.
+         * @return a builder.
+         */
+        public Builder bandwidthBudget(BandwidthGovernor.TrafficClass trafficClass, long bytesPerSecond) {
+            checkArgument(bytesPerSecond >= 0, "Bandwidth budget can't be negative");
+            this.bandwidthBudgets.put(checkNotNull(trafficClass), bytesPerSecond);
+            return this;
+        }
+
+        /**
+         * Sets how long proxy keeps idle client's connection open waiting for next request (HTTP keep-alive).
+         * <p>
+         * Reusing connection saves new connection and looking for url's cache for every seek of player.
+         * Note idle connection holds a thread of {@link Engine#BLOCKING} engine, so timeout should be short.
+         * Default value is 5 seconds, {@code 0} disables keep-alive: connection is closed after every response.
+         *
+         * @param timeoutMs idle connection timeout in milliseconds, can't be negative.
+         * @return a builder.
+         */
+        public Builder keepAliveTimeout(int timeoutMs) {
+            checkArgument(timeoutMs >= 0, "Keep-alive timeout can't be negative");
+            this.keepAliveTimeout = timeoutMs;
+            return this;
+        }
+
+        /**
+         * Sets how long client may send request's line and headers.
+         * <p>
+         * Deadline starts when connection is accepted or, for kept alive connection, when first byte of next request is received.
+         * Connection of client that sends request too slowly is closed, so it can't hold proxy's thread or buffer forever.
+         * Time waiting for next request on kept alive connection is limited by {@link #keepAliveTimeout(int)}.
+         * Default value is 10 seconds, {@code 0} disables timeout.
+         *
+         * @param timeoutMs header timeout in milliseconds, can't be negative.
+         * @return a builder.
+         */
+        public Builder headerTimeout(int timeoutMs) {
+            checkArgument(timeoutMs >= 0, "Header timeout can't be negative");
+            this.headerTimeout = timeoutMs;
+            return this;
+        }
+
+        /**
+         * Sets how long client may not read response before its connection is closed.
+         * <p>
+         * Timeout is reset every time any part of response is sent, so it doesn't limit duration of response.
+         * Time spent waiting for data from server isn't counted. Note player that stops reading when its buffer is full
+         * has to reconnect if it doesn't read longer than timeout.
+         * Default value is 60 seconds, {@code 0} disables timeout.
+         *
+         * @param timeoutMs write stall timeout in milliseconds, can't be negative.
+         * @return a builder.
+         */
+        public Builder writeStallTimeout(int timeoutMs) {
+            checkArgument(timeoutMs >= 0, "Write stall timeout can't be negative");
+            this.writeStallTimeout = timeoutMs;
+            return this;
+        }
+
+        /**
+         * Enables revalidation of completely cached content, so changes of content on server are noticed.
+         * <p>
+         * Cache validated within {@code maxAge} is used without requesting server. Older cache is used within
+         * {@code staleWhileRevalidate} window too, but server is asked in background whether content has changed.
+         * Cache older than that is revalidated before it is used, so {@link #isCached(String)} returns {@code false} for it.
+         * Revalidation is conditional request ({@code If-None-Match}, {@code If-Modified-Since}) without content,
+         * content is downloaded again only if it has really changed. Cache is used as is if server can't be requested.
+         * By default cached content is considered up to date forever. Partially cached content is always checked
+         * with {@code If-Range} when download is resumed.
+         *
+         * @param maxAge               how long cache is fresh after validation in milliseconds, can't be negative.
+         * @param staleWhileRevalidate how long stale cache is used while it is revalidated in background in milliseconds, can't be negative.
+         * @return a builder.
+         */
+        public Builder revalidation(long maxAge, long staleWhileRevalidate) {
+            checkArgument(maxAge >= 0, "Revalidation max age can't be negative");
+            checkArgument(staleWhileRevalidate >= 0, "Stale-while-revalidate window can't be negative");
+            this.revalidationMaxAge = maxAge;
+            this.staleWhileRevalidate = staleWhileRevalidate;
+            return this;
+        }
+
+        /**
+         * Sets how often proxy server pings itself in background to know whether urls can be proxied.
+         * <p>
+         * Result of last check is used by {@link #getProxyUrl(String)}, so it never waits for ping.
+         * Server is also checked after every error of its accept loop, dead accept loop is restarted.
+         * Default value is 30 seconds, {@code 0} disables periodic checks.
+         *
+         * @param intervalMs interval between checks in milliseconds, can't be negative.
+         * @return a builder.
+         */
+        public Builder healthCheckInterval(long intervalMs) {
+            checkArgument(intervalMs >= 0, "Health check interval can't be negative");
+            this.healthCheckInterval = intervalMs;
+            return this;
+        }
+
+        /**
+         * Lets {@link #build()} return immediately: server is bound and checked on background thread.
+         * <p>
+         * Useful when proxy is created in {@code Application.onCreate()} and app's startup time matters.
+         * Until server is started {@link HttpProxyCacheServer#getProxyUrl(String)} waits for it at most {@code maxWaitMs}
+         * and returns original url if server is still not ready. By default server is started synchronously.
+         *
+         * @param maxWaitMs how long {@code getProxyUrl} may wait for server's startup in milliseconds,
+         *                  {@code 0} means original url is returned without waiting.
+         * @return a builder.
+         */
+        public Builder startInBackground(long maxWaitMs) {
+            checkArgument(maxWaitMs >= 0, "Startup wait can't be negative");
+            this.startInBackground = true;
+            this.startupWait = maxWaitMs;
+            return this;
+        }
+
+        /**
+         * Allows proxy to pass {@code ETag} and {@code Last-Modified} headers received from server to client.
+         * <p>
+         * Headers are sent only if they are known, e.g. source was requested while serving current client.
+         * Disabled by default.
+         *
+         * @param pass {@code true} if validators should be sent to client.
+         * @return a builder.
+         */
+        public Builder passValidators(boolean pass) {
+            this.passValidators = pass;
+            return this;
+        }
+
         /**
          * Builds new instance of {@link HttpProxyCacheServer}.
          *
@@ -452,7 +1334,22 @@ public class HttpProxyCacheServer {
         }
 
         private Config buildConfig() {
-            return new Config(cacheRoot, fileNameGenerator, diskUsage, sourceInfoStorage, headerInjector);
+            // database is opened on first access, so creating storage is cheap
+            SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newSourceInfoStorage(context);
+            OriginScoreStorage originScoreStorage = SourceInfoStorageFactory.newOriginScoreStorage(context);
+            RetryPolicy retryPolicy = new RetryPolicy(maxSourceRetries, initialRetryDelay, maxRetryDelay);
+            StallDetector stallDetector = new StallDetector(minUpstreamTimeout, maxUpstreamTimeout, minUpstreamThroughput);
+            HedgingPolicy hedgingPolicy = new HedgingPolicy(hedgingPercentile, minHedgingDelay, maxHedgingDelay, hedgingBudget);
+            BandwidthGovernor bandwidthGovernor = new BandwidthGovernor();
+            bandwidthGovernor.setTotalLimit(totalBandwidthLimit);
+            for (Map.Entry<BandwidthGovernor.TrafficClass, Long> budget : bandwidthBudgets.entrySet()) {
+                bandwidthGovernor.setBudget(budget.getKey(), budget.getValue());
+            }
+            return new Config(context, cacheRoot, fileNameGenerator, diskUsage, sourceInfoStorage, originScoreStorage, headerInjector, sourceFactory, engine, ioThreads,
+                    keepAliveTimeout, headerTimeout, writeStallTimeout, minWorkers, maxWorkers, maxQueuedConnections,
+                    maxIdleUpstreamConnections, upstreamIdleTimeout, stallDetector, hedgingPolicy, prewarmTtl, redirectCacheTtl, maxSourceConnections, retryPolicy, minBufferSize, maxBufferSize,
+                    bufferFillInterval, bandwidthGovernor, revalidationMaxAge, staleWhileRevalidate, healthCheckInterval, startInBackground,
+                    startupWait, passValidators);
         }
 
     }
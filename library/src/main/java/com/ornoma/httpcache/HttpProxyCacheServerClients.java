@@ -4,12 +4,17 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.text.TextUtils;
 
 import com.ornoma.httpcache.file.FileCache;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.channels.Channels;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -23,37 +28,135 @@ import static com.ornoma.httpcache.Preconditions.checkNotNull;
  */
 final class HttpProxyCacheServerClients {
 
+    private static final Logger LOG = LoggerFactory.getLogger("HttpProxyCacheServerClients");
+
     private final AtomicInteger clientsCount = new AtomicInteger(0);
     private final String url;
     private volatile HttpProxyCache proxyCache;
     private final List<CacheListener> listeners = new CopyOnWriteArrayList<>();
     private final CacheListener uiCacheListener;
     private final Config config;
+    private final CacheRevalidator revalidator;
+    private boolean cacheChanged;
 
-    public HttpProxyCacheServerClients(String url, Config config) {
+    public HttpProxyCacheServerClients(String url, Config config, CacheRevalidator revalidator) {
         this.url = checkNotNull(url);
         this.config = checkNotNull(config);
+        this.revalidator = checkNotNull(revalidator);
         this.uiCacheListener = new UiListenerHandler(url, listeners);
     }
 
-    public void processRequest(GetRequest request, Socket socket) throws ProxyCacheException, IOException {
-        startProcessRequest();
+    public boolean processRequest(GetRequest request, Socket socket, ConnectionWatchdog.Watch watch) throws ProxyCacheException, IOException {
+        if (request.head) {
+            ProxyResponse response = newHeadResponse(request);
+            try {
+                watch.writing(response);
+                response.write(Channels.newChannel(socket.getOutputStream())); // stream's channel accepts all headers at once
+                return response.isConnectionReusable();
+            } finally {
+                response.close();
+            }
+        }
+        HttpProxyCache proxyCache = startProcessRequest();
         try {
-            clientsCount.incrementAndGet();
-            proxyCache.processRequest(request, socket);
+            return proxyCache.processRequest(request, socket, watch);
         } finally {
             finishProcessRequest();
         }
     }
 
-    private synchronized void startProcessRequest() throws ProxyCacheException {
+    /**
+     * Prepares response for HEAD request without creating {@link HttpProxyCache}, so source is never downloaded.
+     * Info about source is taken from cache or {@link com.ornoma.httpcache.sourcestorage.SourceInfoStorage} if it is known,
+     * otherwise it is fetched with single HEAD request to server.
+     *
+     * @param request a HEAD request.
+     * @return a response with headers only, its status is server's error code or {@code 502} if source's info can't be fetched.
+     */
+    ProxyResponse newHeadResponse(GetRequest request) throws ProxyCacheException, IOException {
+        revalidateUnusedCache();
+        File cacheFile = config.generateCacheFile(url);
+        SourceInfo sourceInfo = config.sourceInfoStorage.get(url);
+        long length;
+        String mime;
+        UrlSource source = null;
+        if (cacheFile.exists()) {
+            length = cacheFile.length();
+            mime = sourceInfo != null ? sourceInfo.mime : ProxyCacheUtils.getSupposablyMime(url);
+        } else {
+            boolean sourceInfoKnown = sourceInfo != null && sourceInfo.length != Integer.MIN_VALUE && !TextUtils.isEmpty(sourceInfo.mime);
+            if (!sourceInfoKnown) {
+                source = newSource(BandwidthGovernor.TrafficClass.METADATA);
+                try {
+                    sourceInfo = source.getSourceInfo();
+                } catch (ProxyCacheException e) {
+                    LOG.warn("Error fetching info for HEAD request of " + url + ": " + e.getMessage());
+                    ResponseHeaders headers = ResponseHeaders.error(getServerResponseCode(e));
+                    return ProxyResponse.of(headers.keepAlive(config.keepAliveTimeout > 0 && request.keepAlive));
+                }
+            }
+            length = sourceInfo.length;
+            mime = sourceInfo.mime;
+        }
+        boolean keepAlive = config.keepAliveTimeout > 0 && request.keepAlive;
+        ResponseHeaders headers = ResponseHeaders.ok(length).contentType(mime).keepAlive(keepAlive).chunked(request.chunkedAccepted);
+        if (config.passValidators && source != null) {
+            headers.validators(source.getResponseHeader("ETag"), source.getResponseHeader("Last-Modified"));
+        }
+        return ProxyResponse.of(headers);
+    }
+
+    private static int getServerResponseCode(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ServerResponseException) {
+                return ((ServerResponseException) cause).getResponseCode();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns shared {@link HttpProxyCache} for new client. Every call must be followed by {@link #finishProcessRequest()}
+     * when client is served.
+     *
+     * @return a proxy cache for client.
+     * @throws ProxyCacheException if proxy cache can't be created.
+     */
+    synchronized HttpProxyCache startProcessRequest() throws ProxyCacheException {
+        revalidateUnusedCache();
         proxyCache = proxyCache == null ? newHttpProxyCache() : proxyCache;
+        clientsCount.incrementAndGet();
+        return proxyCache;
     }
 
-    private synchronized void finishProcessRequest() {
-        if (clientsCount.decrementAndGet() <= 0) {
+    synchronized void finishProcessRequest() {
+        if (clientsCount.decrementAndGet() <= 0 && proxyCache != null) {
             proxyCache.shutdown();
             proxyCache = null;
+            if (cacheChanged) {
+                cacheChanged = false;
+                deleteCache();
+            }
+        }
+    }
+
+    /**
+     * Deletes completed cache which content has changed on server, so it is downloaded again on next request.
+     * Cache read by clients is deleted when the last of them is served.
+     */
+    synchronized void deleteChangedCache() {
+        if (proxyCache != null) {
+            cacheChanged = true;
+            return;
+        }
+        deleteCache();
+    }
+
+    private void deleteCache() {
+        File cacheFile = config.generateCacheFile(url);
+        LOG.info("Cache " + cacheFile + " of changed content is deleted");
+        if (!cacheFile.delete() && cacheFile.exists()) {
+            LOG.error("Error deleting changed cache " + cacheFile);
         }
     }
 
@@ -79,14 +182,34 @@ final class HttpProxyCacheServerClients {
         return clientsCount.get();
     }
 
+    /**
+     * Revalidates completed cache if it is expired, but only if it isn't read by clients: cache is not deleted under them.
+     */
+    private void revalidateUnusedCache() {
+        if (proxyCache == null) {
+            revalidator.revalidateIfNeeded(url);
+        }
+    }
+
     private HttpProxyCache newHttpProxyCache() throws ProxyCacheException {
-        HttpUrlSource source = new HttpUrlSource(url, config.sourceInfoStorage, config.headerInjector);
+        UrlSource source = newSource(BandwidthGovernor.TrafficClass.PLAYBACK);
         FileCache cache = new FileCache(config.generateCacheFile(url), config.diskUsage);
         HttpProxyCache httpProxyCache = new HttpProxyCache(source, cache);
+        httpProxyCache.setKeepAliveAllowed(config.keepAliveTimeout > 0);
+        httpProxyCache.setValidatorsPassed(config.passValidators);
+        httpProxyCache.setMaxSourceConnections(config.maxSourceConnections);
+        httpProxyCache.setRetryPolicy(config.retryPolicy);
+        httpProxyCache.setReadBuffer(config.minBufferSize, config.maxBufferSize, config.bufferFillInterval);
+        httpProxyCache.setMetrics(config.metrics);
         httpProxyCache.registerCacheListener(uiCacheListener);
         return httpProxyCache;
     }
 
+    private UrlSource newSource(BandwidthGovernor.TrafficClass trafficClass) {
+        UrlSource source = config.sourceFactory.newSource(url, config.sourceInfoStorage, config.headerInjector);
+        return new GovernedSource(source, config.bandwidthGovernor, trafficClass);
+    }
+
     private static final class UiListenerHandler extends Handler implements CacheListener {
         private static final String KEY_ACTUAL_PERCENTAGE = "actualPercentage";
         private final String url;
@@ -15,31 +15,62 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static com.ornoma.httpcache.Preconditions.checkNotNull;
+import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
 import static java.net.HttpURLConnection.HTTP_MOVED_PERM;
 import static java.net.HttpURLConnection.HTTP_MOVED_TEMP;
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
 import static java.net.HttpURLConnection.HTTP_OK;
 import static java.net.HttpURLConnection.HTTP_PARTIAL;
 import static java.net.HttpURLConnection.HTTP_SEE_OTHER;
 
 /**
- * {@link Source} that uses http resource as source for {@link ProxyCache}.
+ * {@link UrlSource} that uses http resource as source for {@link ProxyCache}, default upstream transport.
+ * <p>
+ * Final location of redirected url is stored in {@link SourceInfo}, so next requests go there directly until location expires.
+ * Expiration is taken from {@code Cache-Control} or {@code Expires} headers of redirects, configured ttl is used if they are absent.
+ * If stored location fails, source is requested by original url again.
+ * <p>
+ * Validators of content ({@code ETag}, {@code Last-Modified}) are stored in {@link SourceInfo} too. Source opened at non-zero
+ * offset sends {@code If-Range} header, so server sends whole new content instead of range of changed one, and checks
+ * validators of response: {@link SourceChangedException} is thrown if content has changed.
+ * <p>
+ * Connection that hangs (sends nothing within timeout adapted to round trip time or sends data slower than min throughput,
+ * see {@link StallDetector}) fails reading with {@link SocketTimeoutException} as a cause, so reading is retried with new connection.
  *
  * @author Alexey Danilov (danikula@gmail.com).
  */
-public class HttpUrlSource implements Source {
+public class HttpUrlSource implements UrlSource {
 
     private static final Logger LOG = LoggerFactory.getLogger("HttpUrlSource");
 
     private static final int MAX_REDIRECTS = 5;
+    private static final int HTTP_TEMPORARY_REDIRECT = 307;
+    private static final int HTTP_PERMANENT_REDIRECT = 308;
+    private static final long DEFAULT_REDIRECT_CACHE_TTL = 10 * 60 * 1000;
+    private static final Map<String, String> NO_HEADERS = Collections.emptyMap();
+    private static final Pattern MAX_AGE_PATTERN = Pattern.compile("max-age=\"?(\\d+)");
+    private static final UpstreamConnections DEFAULT_UPSTREAM_CONNECTIONS = UpstreamConnections.newDefault();
     private final SourceInfoStorage sourceInfoStorage;
     private final HeaderInjector headerInjector;
+    private final UpstreamConnections upstreamConnections;
+    private final long redirectCacheTtl;
     private SourceInfo sourceInfo;
     private HttpURLConnection connection;
     private InputStream inputStream;
+    private StallDetector.Meter meter;
+    private long remaining;
+    private boolean partial;
+    private volatile Map<String, List<String>> responseHeaders = Collections.emptyMap();
 
     public HttpUrlSource(String url) {
         this(url, SourceInfoStorageFactory.newEmptySourceInfoStorage());
@@ -50,8 +81,19 @@ public class HttpUrlSource implements Source {
     }
 
     public HttpUrlSource(String url, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector) {
+        this(url, sourceInfoStorage, headerInjector, DEFAULT_UPSTREAM_CONNECTIONS);
+    }
+
+    HttpUrlSource(String url, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector, UpstreamConnections upstreamConnections) {
+        this(url, sourceInfoStorage, headerInjector, upstreamConnections, DEFAULT_REDIRECT_CACHE_TTL);
+    }
+
+    HttpUrlSource(String url, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector, UpstreamConnections upstreamConnections,
+                  long redirectCacheTtl) {
         this.sourceInfoStorage = checkNotNull(sourceInfoStorage);
         this.headerInjector = checkNotNull(headerInjector);
+        this.upstreamConnections = checkNotNull(upstreamConnections);
+        this.redirectCacheTtl = redirectCacheTtl;
         SourceInfo sourceInfo = sourceInfoStorage.get(url);
         this.sourceInfo = sourceInfo != null ? sourceInfo :
                 new SourceInfo(url, Integer.MIN_VALUE, ProxyCacheUtils.getSupposablyMime(url));
@@ -61,6 +103,9 @@ public class HttpUrlSource implements Source {
         this.sourceInfo = source.sourceInfo;
         this.sourceInfoStorage = source.sourceInfoStorage;
         this.headerInjector = source.headerInjector;
+        this.upstreamConnections = source.upstreamConnections;
+        this.redirectCacheTtl = source.redirectCacheTtl;
+        this.responseHeaders = source.responseHeaders;
     }
 
     @Override
@@ -71,24 +116,117 @@ public class HttpUrlSource implements Source {
         return sourceInfo.length;
     }
 
+    /**
+     * {@inheritDoc}
+     * Info is known if it is stored in {@link SourceInfoStorage} or source has been opened.
+     */
+    @Override
+    public synchronized boolean isContentInfoKnown() {
+        return sourceInfo.length != Integer.MIN_VALUE && !TextUtils.isEmpty(sourceInfo.mime);
+    }
+
     @Override
     public void open(long offset) throws ProxyCacheException {
+        open(offset, -1);
+    }
+
+    @Override
+    public void open(long offset, long length) throws ProxyCacheException {
         try {
-            connection = openConnection(offset, -1);
+            remaining = -1;
+            String ifRange = offset > 0 ? getIfRangeValidator() : null;
+            Map<String, String> headers = ifRange != null ? Collections.singletonMap("If-Range", ifRange) : NO_HEADERS;
+            connection = openConnection("GET", offset, length, -1, headers);
+            int responseCode = connection.getResponseCode();
+            if (responseCode >= HTTP_BAD_REQUEST) {
+                throw new ServerResponseException("Server responded " + responseCode + " to request of " + sourceInfo.url, responseCode);
+            }
+            partial = responseCode == HTTP_PARTIAL;
+            if (offset > 0 && isModified(connection, partial ? getContentRangeTotal(connection) : -1)) {
+                throw new SourceChangedException("Content of " + sourceInfo.url + " has changed, stored info: " + sourceInfo +
+                        ", new ETag: " + connection.getHeaderField("ETag") + ", new Last-Modified: " + connection.getHeaderField("Last-Modified"));
+            }
             String mime = connection.getContentType();
             inputStream = new BufferedInputStream(connection.getInputStream(), ProxyCacheUtils.DEFAULT_BUFFER_SIZE);
-            long length = readSourceAvailableBytes(connection, offset, connection.getResponseCode());
-            this.sourceInfo = new SourceInfo(sourceInfo.url, length, mime);
+            meter = upstreamConnections.newMeter();
+            remaining = getContentLength(connection);
+            long sourceLength = readSourceAvailableBytes(connection, offset, length, connection.getResponseCode());
+            readResponseHeaders(connection);
+            this.sourceInfo = newSourceInfo(sourceLength, mime, connection);
             this.sourceInfoStorage.put(sourceInfo.url, sourceInfo);
         } catch (IOException e) {
             throw new ProxyCacheException("Error opening connection for " + sourceInfo.url + " with offset " + offset, e);
         }
     }
 
-    private long readSourceAvailableBytes(HttpURLConnection connection, long offset, int responseCode) throws IOException {
+    private long readSourceAvailableBytes(HttpURLConnection connection, long offset, long length, int responseCode) throws IOException {
         long contentLength = getContentLength(connection);
-        return responseCode == HTTP_OK ? contentLength
-                : responseCode == HTTP_PARTIAL ? contentLength + offset : sourceInfo.length;
+        if (responseCode == HTTP_OK) {
+            return contentLength;
+        }
+        if (responseCode == HTTP_PARTIAL) {
+            long totalLength = getContentRangeTotal(connection);
+            return totalLength >= 0 ? totalLength : length < 0 ? contentLength + offset : sourceInfo.length;
+        }
+        return sourceInfo.length;
+    }
+
+    /**
+     * Returns total length of content from {@code Content-Range: bytes first-last/total} header.
+     *
+     * @return total length or {@code -1} if header is absent or total length is unknown.
+     */
+    private long getContentRangeTotal(HttpURLConnection connection) {
+        String contentRange = connection.getHeaderField("Content-Range");
+        int slash = contentRange == null ? -1 : contentRange.lastIndexOf('/');
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1; // total length is unknown: "bytes 0-99/*"
+        }
+    }
+
+    /**
+     * Returns validator for {@code If-Range} header: strong entity tag or date of last modification.
+     *
+     * @return a validator or {@code null} if it is unknown.
+     */
+    private String getIfRangeValidator() {
+        String etag = sourceInfo.etag;
+        boolean strongEtag = etag != null && !etag.startsWith("W/"); // weak tags can't be used for ranges
+        return strongEtag ? etag : sourceInfo.lastModified;
+    }
+
+    /**
+     * Compares validators of response with stored ones. Content's length is compared only if there are no validators.
+     *
+     * @param length total length of content sent by server or {@code -1} if it is unknown.
+     * @return {@code true} if content is proven to be changed.
+     */
+    private boolean isModified(HttpURLConnection connection, long length) {
+        String etag = connection.getHeaderField("ETag");
+        if (sourceInfo.etag != null && etag != null) {
+            return !sourceInfo.etag.equals(etag);
+        }
+        String lastModified = connection.getHeaderField("Last-Modified");
+        if (sourceInfo.lastModified != null && lastModified != null) {
+            return !sourceInfo.lastModified.equals(lastModified);
+        }
+        boolean lengthKnown = length >= 0 && sourceInfo.length >= 0;
+        return lengthKnown && length != sourceInfo.length;
+    }
+
+    private SourceInfo newSourceInfo(long length, String mime, HttpURLConnection connection) {
+        return new SourceInfo(sourceInfo.url, length, mime, sourceInfo.location, sourceInfo.locationExpires,
+                connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"), System.currentTimeMillis());
+    }
+
+    private void readResponseHeaders(HttpURLConnection connection) {
+        Map<String, List<String>> headers = connection.getHeaderFields();
+        this.responseHeaders = headers != null ? headers : Collections.<String, List<String>>emptyMap();
     }
 
     private long getContentLength(HttpURLConnection connection) {
@@ -96,22 +234,20 @@ public class HttpUrlSource implements Source {
         return contentLengthValue == null ? -1 : Long.parseLong(contentLengthValue);
     }
 
+    @Override
+    public boolean isPartial() {
+        return partial;
+    }
+
+    /**
+     * Closes source. Connection is kept open for next requests to the same server if response is read (almost) completely.
+     */
     @Override
     public void close() throws ProxyCacheException {
+        HttpURLConnection connection = this.connection;
         if (connection != null) {
-            try {
-                connection.disconnect();
-            } catch (NullPointerException | IllegalArgumentException e) {
-                String message = "Wait... but why? WTF!? " +
-                        "Really shouldn't happen any more after fixing https://github.com/danikula/AndroidVideoCache/issues/43. " +
-                        "If you read it on your device log, please, notify me danikula@gmail.com or create issue here " +
-                        "https://github.com/danikula/AndroidVideoCache/issues.";
-                throw new RuntimeException(message, e);
-            } catch (ArrayIndexOutOfBoundsException e) {
-                LOG.error("Error closing connection correctly. Should happen only on Android L. " +
-                        "If anybody know how to fix it, please visit https://github.com/danikula/AndroidVideoCache/issues/88. " +
-                        "Until good solution is not know, just ignore this issue :(", e);
-            }
+            this.connection = null;
+            upstreamConnections.release(connection, inputStream, remaining);
         }
     }
 
@@ -120,8 +256,22 @@ public class HttpUrlSource implements Source {
         if (inputStream == null) {
             throw new ProxyCacheException("Error reading data from " + sourceInfo.url + ": connection is absent!");
         }
+        if (meter.isStalled()) {
+            onStalled();
+            throw new ProxyCacheException("Connection to " + sourceInfo.url + " has stalled: " + meter.getThroughput() + " bytes/s",
+                    new SocketTimeoutException("Throughput is too low"));
+        }
         try {
-            return inputStream.read(buffer, 0, buffer.length);
+            long startTime = System.nanoTime();
+            int read = inputStream.read(buffer, 0, buffer.length);
+            meter.onRead(read, System.nanoTime() - startTime);
+            if (remaining >= 0 || read < 0) {
+                remaining = read < 0 ? 0 : remaining - read;
+            }
+            return read;
+        } catch (SocketTimeoutException e) {
+            onStalled();
+            throw new ProxyCacheException("Timeout reading data from " + sourceInfo.url, e);
         } catch (InterruptedIOException e) {
             throw new InterruptedProxyCacheException("Reading source " + sourceInfo.url + " is interrupted", e);
         } catch (IOException e) {
@@ -129,58 +279,225 @@ public class HttpUrlSource implements Source {
         }
     }
 
+    private void onStalled() {
+        remaining = -1; // hung connection can't be drained, so it is disconnected on closing
+        upstreamConnections.onStalled();
+    }
+
+    @Override
+    public synchronized SourceInfo getSourceInfo() throws ProxyCacheException {
+        if (sourceInfo.length == Integer.MIN_VALUE || TextUtils.isEmpty(sourceInfo.mime)) {
+            fetchContentInfo();
+        }
+        return sourceInfo;
+    }
+
+    /**
+     * Fetches source's info with HEAD request, so server doesn't send content. Headers of GET request are used
+     * if server doesn't support HEAD, response's body isn't read then. Info of error response is never stored.
+     */
     private void fetchContentInfo() throws ProxyCacheException {
-        LOG.debug("Read content info from " + sourceInfo.url);
+        if (!fetchContentInfo(true)) {
+            fetchContentInfo(false);
+        }
+    }
+
+    /**
+     * @return {@code false} if server responded to HEAD request with error, so GET request should be tried.
+     */
+    private boolean fetchContentInfo(boolean headOnly) throws ProxyCacheException {
+        LOG.debug("Read content info from " + sourceInfo.url + (headOnly ? " with HEAD request" : ""));
         HttpURLConnection urlConnection = null;
         InputStream inputStream = null;
+        long remaining = -1;
         try {
-            urlConnection = openConnection(0, 10000);
+            urlConnection = openConnection(headOnly ? "HEAD" : "GET", 0, -1, 10000, NO_HEADERS);
+            int responseCode = urlConnection.getResponseCode();
+            if (responseCode >= HTTP_BAD_REQUEST) {
+                remaining = headOnly ? 0 : getContentLength(urlConnection);
+                if (headOnly) {
+                    LOG.debug("Server doesn't support HEAD request for " + sourceInfo.url + ": " + responseCode);
+                    return false;
+                }
+                throw new ServerResponseException("Server responded " + responseCode + " to request of info of " + sourceInfo.url, responseCode);
+            }
             long length = getContentLength(urlConnection);
             String mime = urlConnection.getContentType();
-            inputStream = urlConnection.getInputStream();
-            this.sourceInfo = new SourceInfo(sourceInfo.url, length, mime);
+            readResponseHeaders(urlConnection);
+            if (!headOnly) {
+                inputStream = urlConnection.getInputStream();
+            }
+            remaining = headOnly ? 0 : length;
+            this.sourceInfo = newSourceInfo(length, mime, urlConnection);
             this.sourceInfoStorage.put(sourceInfo.url, sourceInfo);
             LOG.debug("Source info fetched: " + sourceInfo);
+            return true;
         } catch (IOException e) {
-            LOG.error("Error fetching info from " + sourceInfo.url, e);
+            throw new ProxyCacheException("Error fetching info from " + sourceInfo.url, e);
         } finally {
-            ProxyCacheUtils.close(inputStream);
             if (urlConnection != null) {
-                urlConnection.disconnect();
+                upstreamConnections.release(urlConnection, inputStream, remaining);
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean revalidate() throws ProxyCacheException {
+        Map<String, String> conditions = new HashMap<>();
+        if (sourceInfo.etag != null) {
+            conditions.put("If-None-Match", sourceInfo.etag);
+        }
+        if (sourceInfo.lastModified != null) {
+            conditions.put("If-Modified-Since", sourceInfo.lastModified);
+        }
+        Boolean modified = revalidate(true, conditions);
+        return modified != null ? modified : revalidate(false, conditions);
+    }
+
+    /**
+     * Requests server with conditional request. Body of GET response isn't read, so connection is closed if content has changed.
+     *
+     * @return {@code true} if content has changed, {@code null} if HEAD request isn't supported by server.
+     */
+    private Boolean revalidate(boolean headOnly, Map<String, String> conditions) throws ProxyCacheException {
+        LOG.debug("Revalidate " + sourceInfo + (headOnly ? " with HEAD request" : ""));
+        HttpURLConnection connection = null;
+        long remaining = 0;
+        try {
+            connection = openConnection(headOnly ? "HEAD" : "GET", 0, -1, 10000, conditions);
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HTTP_NOT_MODIFIED) {
+                String etag = connection.getHeaderField("ETag");
+                this.sourceInfo = new SourceInfo(sourceInfo.url, sourceInfo.length, sourceInfo.mime, sourceInfo.location, sourceInfo.locationExpires,
+                        etag != null ? etag : sourceInfo.etag, sourceInfo.lastModified, System.currentTimeMillis());
+                this.sourceInfoStorage.put(sourceInfo.url, sourceInfo);
+                return false;
             }
+            if (responseCode >= HTTP_BAD_REQUEST) {
+                if (headOnly) {
+                    return null;
+                }
+                throw new ServerResponseException("Server responded " + responseCode + " to revalidation of " + sourceInfo.url, responseCode);
+            }
+            long length = getContentLength(connection);
+            remaining = headOnly ? 0 : length;
+            boolean modified = isModified(connection, length);
+            readResponseHeaders(connection);
+            this.sourceInfo = newSourceInfo(length, connection.getContentType(), connection);
+            this.sourceInfoStorage.put(sourceInfo.url, sourceInfo);
+            LOG.debug("Source " + sourceInfo.url + (modified ? " has changed" : " is the same"));
+            return modified;
+        } catch (IOException e) {
+            throw new ProxyCacheException("Error revalidating " + sourceInfo.url, e);
+        } finally {
+            if (connection != null) {
+                upstreamConnections.release(connection, null, remaining);
+            }
+        }
+    }
+
+    private HttpURLConnection openConnection(String method, long offset, long length, int timeout, Map<String, String> headers)
+            throws IOException, ProxyCacheException {
+        String location = sourceInfo.getValidLocation(System.currentTimeMillis());
+        if (location != null) {
+            try {
+                HttpURLConnection connection = openConnection(location, method, offset, length, timeout, headers);
+                if (connection.getResponseCode() < HTTP_BAD_REQUEST) {
+                    return connection;
+                }
+                LOG.debug("Stored location " + location + " of " + sourceInfo.url + " responded " + connection.getResponseCode());
+                upstreamConnections.release(connection, null, getContentLength(connection));
+            } catch (IOException | ProxyCacheException e) {
+                LOG.debug("Error opening stored location " + location + " of " + sourceInfo.url + ": " + e);
+            }
+        }
+        // location is expired or has failed (e.g. signed url is expired earlier than told), so resolve it again
+        if (sourceInfo.location != null) {
+            setLocation(null, 0);
         }
+        return openConnection(sourceInfo.url, method, offset, length, timeout, headers);
     }
 
-    private HttpURLConnection openConnection(long offset, int timeout) throws IOException, ProxyCacheException {
+    private HttpURLConnection openConnection(String startUrl, String method, long offset, long length, int timeout, Map<String, String> headers)
+            throws IOException, ProxyCacheException {
         HttpURLConnection connection;
         boolean redirected;
         int redirectCount = 0;
-        String url = this.sourceInfo.url;
+        long locationExpires = Long.MAX_VALUE;
+        String url = startUrl;
         do {
-            LOG.debug("Open connection " + (offset > 0 ? " with offset " + offset : "") + " to " + url);
+            LOG.debug("Open connection " + (offset > 0 ? " with offset " + offset : "") + (length >= 0 ? " and length " + length : "") + " to " + url);
             connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod(method);
+            connection.setInstanceFollowRedirects(false); // redirects are followed here to know final location
             injectCustomHeaders(connection, url);
-            if (offset > 0) {
-                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
             }
-            if (timeout > 0) {
-                connection.setConnectTimeout(timeout);
-                connection.setReadTimeout(timeout);
+            if (offset > 0 || length >= 0) {
+                String last = length >= 0 ? String.valueOf(offset + length - 1) : "";
+                connection.setRequestProperty("Range", "bytes=" + offset + "-" + last);
             }
+            // content may be read for long, so it waits for data as long as round trip time to server requires
+            int connectionTimeout = timeout > 0 ? timeout : upstreamConnections.getTimeout(connection.getURL());
+            connection.setConnectTimeout(connectionTimeout);
+            connection.setReadTimeout(connectionTimeout);
+            upstreamConnections.connect(connection);
             int code = connection.getResponseCode();
-            redirected = code == HTTP_MOVED_PERM || code == HTTP_MOVED_TEMP || code == HTTP_SEE_OTHER;
+            redirected = code == HTTP_MOVED_PERM || code == HTTP_MOVED_TEMP || code == HTTP_SEE_OTHER
+                    || code == HTTP_TEMPORARY_REDIRECT || code == HTTP_PERMANENT_REDIRECT;
             if (redirected) {
-                url = connection.getHeaderField("Location");
+                url = new URL(new URL(url), connection.getHeaderField("Location")).toString();
+                locationExpires = Math.min(locationExpires, getRedirectExpires(connection));
                 redirectCount++;
-                connection.disconnect();
+                upstreamConnections.release(connection, null, getContentLength(connection)); // redirect's body is usually empty
             }
             if (redirectCount > MAX_REDIRECTS) {
                 throw new ProxyCacheException("Too many redirects: " + redirectCount);
             }
         } while (redirected);
+        if (redirectCount > 0) {
+            LOG.debug("Location of " + startUrl + " is " + url + ", expires at " + locationExpires);
+            setLocation(url, locationExpires);
+        }
         return connection;
     }
 
+    /**
+     * Returns time when redirect should be resolved again, using caching headers of redirect's response.
+     *
+     * @return expiration time in milliseconds since epoch, {@code 0} if redirect can't be cached.
+     */
+    private long getRedirectExpires(HttpURLConnection connection) {
+        long now = System.currentTimeMillis();
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            String directives = cacheControl.toLowerCase();
+            if (directives.contains("no-store") || directives.contains("no-cache")) {
+                return 0;
+            }
+            Matcher maxAge = MAX_AGE_PATTERN.matcher(directives);
+            if (maxAge.find()) {
+                try {
+                    return now + Long.parseLong(maxAge.group(1)) * 1000;
+                } catch (NumberFormatException e) {
+                    return 0; // absurdly big value, don't rely on it
+                }
+            }
+        }
+        long expires = connection.getHeaderFieldDate("Expires", -1);
+        if (expires >= 0) {
+            return expires;
+        }
+        return redirectCacheTtl > 0 ? now + redirectCacheTtl : 0;
+    }
+
+    private synchronized void setLocation(String location, long expires) {
+        String validLocation = expires > System.currentTimeMillis() ? location : null;
+        sourceInfo = new SourceInfo(sourceInfo.url, sourceInfo.length, sourceInfo.mime, validLocation, expires,
+                sourceInfo.etag, sourceInfo.lastModified, sourceInfo.validated);
+    }
+
     private void injectCustomHeaders(HttpURLConnection connection, String url) {
         Map<String, String> extraHeaders = headerInjector.addHeaders(url);
         for (Map.Entry<String, String> header : extraHeaders.entrySet()) {
@@ -188,6 +505,7 @@ public class HttpUrlSource implements Source {
         }
     }
 
+    @Override
     public synchronized String getMime() throws ProxyCacheException {
         if (TextUtils.isEmpty(sourceInfo.mime)) {
             fetchContentInfo();
@@ -195,10 +513,46 @@ public class HttpUrlSource implements Source {
         return sourceInfo.mime;
     }
 
+    @Override
     public String getUrl() {
         return sourceInfo.url;
     }
 
+    @Override
+    public String getResponseHeader(String name) {
+        for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+            List<String> values = header.getValue();
+            // status line is stored with null key
+            if (name.equalsIgnoreCase(header.getKey()) && values != null && !values.isEmpty()) {
+                return values.get(values.size() - 1);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public UrlSource copy() {
+        return new HttpUrlSource(this);
+    }
+
+    /**
+     * Returns {@code ETag} header sent by server. Unlike {@link #getMime()} it never requests server.
+     *
+     * @return an entity tag or {@code null} if it is unknown because server wasn't requested yet or didn't send it.
+     */
+    public String getEtag() {
+        return getResponseHeader("ETag");
+    }
+
+    /**
+     * Returns {@code Last-Modified} header sent by server. Unlike {@link #getMime()} it never requests server.
+     *
+     * @return a date of last modification or {@code null} if it is unknown because server wasn't requested yet or didn't send it.
+     */
+    public String getLastModified() {
+        return getResponseHeader("Last-Modified");
+    }
+
     @Override
     public String toString() {
         return "HttpUrlSource{sourceInfo='" + sourceInfo + "}";
@@ -0,0 +1,25 @@
+package com.ornoma.httpcache;
+
+import com.ornoma.httpcache.headers.HeaderInjector;
+import com.ornoma.httpcache.sourcestorage.SourceInfoStorage;
+
+import static com.ornoma.httpcache.Preconditions.checkNotNull;
+
+/**
+ * Default {@link SourceFactory} creating {@link HttpUrlSource}s that share persistent connections to servers.
+ */
+class HttpUrlSourceFactory implements SourceFactory {
+
+    private final UpstreamConnections upstreamConnections;
+    private final long redirectCacheTtl;
+
+    HttpUrlSourceFactory(UpstreamConnections upstreamConnections, long redirectCacheTtl) {
+        this.upstreamConnections = checkNotNull(upstreamConnections);
+        this.redirectCacheTtl = redirectCacheTtl;
+    }
+
+    @Override
+    public UrlSource newSource(String url, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector) {
+        return new HttpUrlSource(url, sourceInfoStorage, headerInjector, upstreamConnections, redirectCacheTtl);
+    }
+}
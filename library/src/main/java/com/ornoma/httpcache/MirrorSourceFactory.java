@@ -0,0 +1,75 @@
+package com.ornoma.httpcache;
+
+import com.ornoma.httpcache.headers.HeaderInjector;
+import com.ornoma.httpcache.sourcestorage.SourceInfoStorage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.ornoma.httpcache.Preconditions.checkNotNull;
+
+/**
+ * {@link SourceFactory} creating {@link MirroredSource} for urls with registered mirrors, sources of other urls
+ * are created by wrapped factory. Every origin's source is created by wrapped factory too.
+ */
+final class MirrorSourceFactory implements SourceFactory {
+
+    private final Map<String, List<String>> mirrors = new ConcurrentHashMap<>();
+    private final SourceFactory sourceFactory;
+    private final OriginSelector originSelector;
+    private final ProxyCacheMetrics metrics;
+
+    MirrorSourceFactory(SourceFactory sourceFactory, OriginSelector originSelector, ProxyCacheMetrics metrics) {
+        this.sourceFactory = checkNotNull(sourceFactory);
+        this.originSelector = checkNotNull(originSelector);
+        this.metrics = checkNotNull(metrics);
+    }
+
+    /**
+     * Registers mirrors of content replacing ones registered earlier.
+     *
+     * @param url         an original url of content.
+     * @param mirrorsUrls urls of the same content on other origins.
+     */
+    void registerMirrors(String url, List<String> mirrorsUrls) {
+        checkNotNull(url);
+        Set<String> urls = new LinkedHashSet<>(checkNotNull(mirrorsUrls));
+        urls.remove(url);
+        if (urls.isEmpty()) {
+            mirrors.remove(url);
+        } else {
+            mirrors.put(url, Collections.unmodifiableList(new ArrayList<>(urls)));
+        }
+    }
+
+    void unregisterMirrors(String url) {
+        mirrors.remove(checkNotNull(url));
+    }
+
+    /**
+     * Writes scores of origins measured by sources of this factory to storage, see {@link OriginSelector#shutdown()}.
+     */
+    void shutdown() {
+        originSelector.shutdown();
+    }
+
+    @Override
+    public UrlSource newSource(String url, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector) {
+        UrlSource source = sourceFactory.newSource(url, sourceInfoStorage, headerInjector);
+        List<String> mirrorsUrls = mirrors.get(url);
+        if (mirrorsUrls == null) {
+            return source;
+        }
+        List<UrlSource> sources = new ArrayList<>();
+        sources.add(source);
+        for (String mirrorUrl : mirrorsUrls) {
+            sources.add(sourceFactory.newSource(mirrorUrl, sourceInfoStorage, headerInjector));
+        }
+        return new MirroredSource(url, sources, originSelector, sourceInfoStorage, metrics);
+    }
+}
@@ -0,0 +1,305 @@
+package com.ornoma.httpcache;
+
+import com.ornoma.httpcache.sourcestorage.SourceInfoStorage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.ornoma.httpcache.Preconditions.checkArgument;
+import static com.ornoma.httpcache.Preconditions.checkNotNull;
+
+/**
+ * {@link UrlSource} of content published on several equivalent origins (mirrors), e.g. on several CDNs.
+ * <p>
+ * Source is opened at the best origin ranked by {@link OriginSelector}, next one is tried if it fails. If origin fails
+ * while source is read, reading is continued from another origin at the same offset with range request, so reader
+ * (and cache) doesn't notice failover. Mirrors must serve byte-to-byte identical content.
+ * <p>
+ * Every origin is read by own source, so info of every origin (location, validators) is stored under its own url.
+ * Info of original url is the key of cache, so it is updated with length, mime and time of validation when content is
+ * got from another origin. Validators of original url are kept: they are compared with original origin's responses only.
+ */
+final class MirroredSource implements UrlSource {
+
+    private static final Logger LOG = LoggerFactory.getLogger("MirroredSource");
+
+    private final String url;
+    private final Map<String, UrlSource> sources = new LinkedHashMap<>();
+    private final OriginSelector originSelector;
+    private final SourceInfoStorage sourceInfoStorage;
+    private final ProxyCacheMetrics metrics;
+    private UrlSource current;
+    private boolean partial;
+    private long position;
+    private long end;
+    private long transferred;
+    private long transferTime;
+
+    /**
+     * @param url               an original url of content.
+     * @param sources           not opened sources of every origin, the first one is source of original url.
+     * @param originSelector    a selector of origins.
+     * @param sourceInfoStorage a storage info of original url is put to.
+     * @param metrics           a metrics failovers are reported to.
+     */
+    MirroredSource(String url, List<UrlSource> sources, OriginSelector originSelector, SourceInfoStorage sourceInfoStorage,
+                   ProxyCacheMetrics metrics) {
+        this.url = checkNotNull(url);
+        checkArgument(!sources.isEmpty() && url.equals(sources.get(0).getUrl()), "The first source must be source of original url");
+        for (UrlSource source : sources) {
+            this.sources.put(source.getUrl(), source);
+        }
+        this.originSelector = checkNotNull(originSelector);
+        this.sourceInfoStorage = checkNotNull(sourceInfoStorage);
+        this.metrics = checkNotNull(metrics);
+    }
+
+    @Override
+    public void open(long offset) throws ProxyCacheException {
+        open(offset, -1);
+    }
+
+    @Override
+    public void open(long offset, long length) throws ProxyCacheException {
+        ProxyCacheException error = null;
+        for (UrlSource source : rank(null)) {
+            try {
+                open(source, offset, length);
+            } catch (SourceChangedException | InterruptedProxyCacheException e) {
+                throw e;
+            } catch (ProxyCacheException e) {
+                error = e;
+                continue;
+            }
+            partial = source.isPartial();
+            position = partial ? offset : 0;
+            end = partial && length >= 0 ? offset + length : -1;
+            return;
+        }
+        throw error;
+    }
+
+    @Override
+    public int read(byte[] buffer) throws ProxyCacheException {
+        if (current == null) {
+            throw new ProxyCacheException("Error reading data from " + url + ": source isn't opened");
+        }
+        while (true) {
+            try {
+                long startTime = System.nanoTime();
+                int read = current.read(buffer);
+                transferTime += System.nanoTime() - startTime;
+                if (read > 0) {
+                    position += read;
+                    transferred += read;
+                }
+                return read;
+            } catch (InterruptedProxyCacheException e) {
+                throw e;
+            } catch (ProxyCacheException e) {
+                failover(e);
+            }
+        }
+    }
+
+    /**
+     * Continues reading from another origin at current position.
+     *
+     * @param error an error of current origin, it is thrown if no other origin can continue reading.
+     */
+    private void failover(ProxyCacheException error) throws ProxyCacheException {
+        UrlSource failed = current;
+        current = null;
+        originSelector.onFailure(failed.getUrl());
+        closeQuietly(failed);
+        long length = end < 0 ? -1 : end - position;
+        for (UrlSource source : rank(failed)) {
+            try {
+                open(source, position, length);
+            } catch (InterruptedProxyCacheException e) {
+                throw e;
+            } catch (ProxyCacheException e) {
+                continue; // content of this origin has changed or origin fails too
+            }
+            if (position > 0 && !source.isPartial()) {
+                current = null;
+                closeQuietly(source); // origin doesn't support ranges, so it can't continue
+                continue;
+            }
+            LOG.warn("Origin " + failed.getUrl() + " failed at " + position + ", reading is continued from " + source.getUrl() + ": " + error);
+            metrics.onOriginFailover();
+            return;
+        }
+        throw error;
+    }
+
+    private void open(UrlSource source, long offset, long length) throws ProxyCacheException {
+        long startTime = System.nanoTime();
+        originSelector.onRequest(source.getUrl());
+        try {
+            source.open(offset, length);
+        } catch (SourceChangedException | InterruptedProxyCacheException e) {
+            closeQuietly(source);
+            throw e;
+        } catch (ProxyCacheException e) {
+            LOG.debug("Error opening origin " + source.getUrl() + " of " + url + ": " + e);
+            originSelector.onFailure(source.getUrl());
+            closeQuietly(source);
+            throw e;
+        } finally {
+            originSelector.onRequestFinished(source.getUrl());
+        }
+        originSelector.onResponse(source.getUrl(), (System.nanoTime() - startTime) / 1000000);
+        current = source;
+        transferred = 0;
+        transferTime = 0;
+        onOriginUsed(source);
+    }
+
+    @Override
+    public long length() throws ProxyCacheException {
+        return infoSource().length();
+    }
+
+    @Override
+    public void close() throws ProxyCacheException {
+        UrlSource source = current;
+        if (source != null) {
+            current = null;
+            originSelector.onTransfer(source.getUrl(), transferred, transferTime);
+            source.close();
+        }
+    }
+
+    @Override
+    public boolean isPartial() {
+        return partial;
+    }
+
+    @Override
+    public String getUrl() {
+        return url;
+    }
+
+    @Override
+    public String getMime() throws ProxyCacheException {
+        return infoSource().getMime();
+    }
+
+    @Override
+    public SourceInfo getSourceInfo() throws ProxyCacheException {
+        if (current != null) {
+            return current.getSourceInfo();
+        }
+        ProxyCacheException error = null;
+        for (UrlSource source : rank(null)) {
+            try {
+                SourceInfo sourceInfo = source.getSourceInfo();
+                onOriginUsed(source);
+                return sourceInfo;
+            } catch (InterruptedProxyCacheException e) {
+                throw e;
+            } catch (ProxyCacheException e) {
+                originSelector.onFailure(source.getUrl());
+                error = e;
+            }
+        }
+        throw error;
+    }
+
+    @Override
+    public boolean revalidate() throws ProxyCacheException {
+        ProxyCacheException error = null;
+        for (UrlSource source : rank(null)) {
+            try {
+                boolean modified = source.revalidate();
+                if (!modified) {
+                    onOriginUsed(source);
+                }
+                return modified;
+            } catch (InterruptedProxyCacheException e) {
+                throw e;
+            } catch (ProxyCacheException e) {
+                originSelector.onFailure(source.getUrl());
+                error = e;
+            }
+        }
+        throw error;
+    }
+
+    @Override
+    public boolean isContentInfoKnown() {
+        return infoSource().isContentInfoKnown();
+    }
+
+    @Override
+    public String getResponseHeader(String name) {
+        return infoSource().getResponseHeader(name);
+    }
+
+    @Override
+    public UrlSource copy() {
+        List<UrlSource> copies = new ArrayList<>();
+        for (UrlSource source : sources.values()) {
+            copies.add(source.copy());
+        }
+        return new MirroredSource(url, copies, originSelector, sourceInfoStorage, metrics);
+    }
+
+    /**
+     * Returns source info is taken from: opened source or source of the best origin.
+     */
+    private UrlSource infoSource() {
+        UrlSource source = current;
+        return source != null ? source : rank(null).get(0);
+    }
+
+    private List<UrlSource> rank(UrlSource excluded) {
+        List<String> urls = new ArrayList<>();
+        for (UrlSource source : sources.values()) {
+            if (source != excluded) {
+                urls.add(source.getUrl());
+            }
+        }
+        List<UrlSource> ranked = new ArrayList<>();
+        for (String url : originSelector.rank(urls)) {
+            ranked.add(sources.get(url));
+        }
+        return ranked;
+    }
+
+    /**
+     * Updates info of original url by info of another origin, so cache's info is known whatever origin is used.
+     */
+    private void onOriginUsed(UrlSource source) throws ProxyCacheException {
+        if (url.equals(source.getUrl()) || !source.isContentInfoKnown()) {
+            return;
+        }
+        SourceInfo originInfo = source.getSourceInfo();
+        SourceInfo stored = sourceInfoStorage.get(url);
+        SourceInfo sourceInfo = stored == null ?
+                new SourceInfo(url, originInfo.length, originInfo.mime, null, 0, null, null, originInfo.validated) :
+                new SourceInfo(url, originInfo.length, originInfo.mime, stored.location, stored.locationExpires,
+                        stored.etag, stored.lastModified, originInfo.validated);
+        sourceInfoStorage.put(url, sourceInfo);
+    }
+
+    private void closeQuietly(UrlSource source) {
+        try {
+            source.close();
+        } catch (ProxyCacheException e) {
+            LOG.debug("Error closing origin " + source.getUrl() + ": " + e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        UrlSource source = current;
+        return "MirroredSource{url='" + url + "', origin=" + (source != null ? source.getUrl() : null) + "}";
+    }
+}
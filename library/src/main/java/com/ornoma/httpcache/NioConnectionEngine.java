@@ -0,0 +1,549 @@
+package com.ornoma.httpcache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.ornoma.httpcache.Preconditions.checkArgument;
+import static com.ornoma.httpcache.Preconditions.checkNotNull;
+
+/**
+ * Connection engine for {@link HttpProxyCacheServer} based on {@link Selector}.
+ * <p>
+ * Few I/O threads serve all connections: every connection is a state machine (read request, prepare response, write response)
+ * driven by readiness events of its channel, so slow client or waiting for source data doesn't hold any thread.
+ * Only potentially blocking work (preparing response requires source info, reading source bypassing cache)
+ * is done by worker threads. Count of workers is limited the same way as for {@link HttpProxyCacheServer.Engine#BLOCKING}
+ * engine, see {@link WorkerPool}: request is answered with {@code 503 SERVICE UNAVAILABLE} if all workers are busy.
+ */
+final class NioConnectionEngine {
+
+    private static final Logger LOG = LoggerFactory.getLogger("NioConnectionEngine");
+    private static final int BACKLOG = 50;
+    private static final long RECHECK_INTERVAL_MS = 1000;
+
+    private final HttpProxyCacheServer server;
+    private final Config config;
+    private final IoThread[] ioThreads;
+    private final WorkerPool workers;
+    private final Executor sourceExecutor = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            if (!workers.execute(task, WorkerPool.Priority.NOT_CACHED)) {
+                throw new RejectedExecutionException("All workers are busy");
+            }
+        }
+    };
+    private ServerSocketChannel serverChannel;
+    private int nextIoThread;
+
+    NioConnectionEngine(HttpProxyCacheServer server, Config config) {
+        checkArgument(config.ioThreads > 0, "I/O threads count must be positive");
+        this.server = checkNotNull(server);
+        this.config = config;
+        this.ioThreads = new IoThread[config.ioThreads];
+        this.workers = new WorkerPool(config.minWorkers, config.maxWorkers, config.maxQueuedConnections, config.metrics);
+    }
+
+    /**
+     * Binds server channel and starts I/O threads.
+     *
+     * @param address an address to bind.
+     * @param port    a port to bind or {@code 0} for any free port.
+     * @return a port server channel is bound to.
+     * @throws IOException if channel can't be bound.
+     */
+    int start(InetAddress address, int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(address, port), BACKLOG);
+        for (int i = 0; i < ioThreads.length; i++) {
+            ioThreads[i] = new IoThread(i);
+        }
+        ioThreads[0].acceptFrom(serverChannel);
+        for (IoThread ioThread : ioThreads) {
+            ioThread.start();
+        }
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Checks whether engine still accepts and serves connections.
+     *
+     * @return {@code false} if server channel is closed or any I/O thread is dead.
+     */
+    boolean isAccepting() {
+        if (serverChannel == null || !serverChannel.isOpen()) {
+            return false;
+        }
+        for (IoThread ioThread : ioThreads) {
+            if (ioThread == null || !ioThread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void shutdown() {
+        ProxyCacheUtils.close(serverChannel);
+        for (IoThread ioThread : ioThreads) {
+            if (ioThread != null) {
+                ioThread.shutdown();
+            }
+        }
+        workers.shutdown();
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                LOG.debug("Accept new channel " + channel);
+                config.metrics.onConnectionAccepted();
+                channel.configureBlocking(false);
+                IoThread ioThread = ioThreads[nextIoThread];
+                nextIoThread = (nextIoThread + 1) % ioThreads.length;
+                ioThread.register(channel);
+            }
+        } catch (IOException e) {
+            onError(new ProxyCacheException("Error during accepting connection", e));
+            server.onAcceptError();
+        }
+    }
+
+    private void onError(Throwable e) {
+        LOG.error("NioConnectionEngine error", e);
+    }
+
+    private final class IoThread extends Thread {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Set<Connection> waitingForSource = new HashSet<>();
+        private volatile boolean stopped;
+        private long lastRecheck;
+
+        IoThread(int index) throws IOException {
+            super("Proxy I/O thread #" + index);
+            this.selector = Selector.open();
+        }
+
+        void acceptFrom(final ServerSocketChannel serverChannel) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+                    } catch (ClosedChannelException e) {
+                        onError(new ProxyCacheException("Error registering server channel", e));
+                    }
+                }
+            });
+        }
+
+        void register(final SocketChannel channel) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Connection connection = new Connection(IoThread.this, channel);
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    } catch (ClosedChannelException e) {
+                        LOG.debug("Channel is closed by client before registering");
+                    }
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            stopped = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped) {
+                    selector.select(RECHECK_INTERVAL_MS);
+                    runTasks();
+                    processSelectedKeys();
+                    recheckConnections();
+                }
+            } catch (IOException e) {
+                onError(new ProxyCacheException("Error selecting channels", e));
+            } finally {
+                closeAll();
+                if (!stopped) {
+                    server.onAcceptError();
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        private void processSelectedKeys() {
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                } catch (CancelledKeyException e) {
+                    connection.close();
+                }
+            }
+        }
+
+        private void recheckConnections() {
+            long now = System.currentTimeMillis();
+            if (now - lastRecheck < RECHECK_INTERVAL_MS) {
+                return;
+            }
+            lastRecheck = now;
+            // the same as ProxyCache does: don't rely on notifications only, check source's data at least every second
+            for (Connection connection : new HashSet<>(waitingForSource)) {
+                connection.resumeWriting();
+            }
+            for (SelectionKey key : new HashSet<>(selector.keys())) {
+                Object attachment = key.attachment();
+                if (attachment instanceof Connection) {
+                    ((Connection) attachment).checkDeadlines(now);
+                }
+            }
+        }
+
+        private void closeAll() {
+            for (SelectionKey key : selector.keys()) {
+                Object attachment = key.attachment();
+                if (attachment instanceof Connection) {
+                    ((Connection) attachment).close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                onError(new ProxyCacheException("Error closing selector", e));
+            }
+        }
+    }
+
+    private enum State {
+        READING_REQUEST, PREPARING_RESPONSE, WRITING_RESPONSE, WAITING_FOR_SOURCE, CLOSED
+    }
+
+    private final class Connection implements Runnable {
+
+        private final IoThread ioThread;
+        private final SocketChannel channel;
+        private final AtomicBoolean resumeScheduled = new AtomicBoolean();
+        private final Runnable resumeWriting = new Runnable() {
+            @Override
+            public void run() {
+                resumeScheduled.set(false);
+                resumeWriting();
+            }
+        };
+        private final Runnable sourceDataListener = new Runnable() {
+            @Override
+            public void run() {
+                if (resumeScheduled.compareAndSet(false, true)) {
+                    ioThread.execute(resumeWriting);
+                }
+            }
+        };
+        private SelectionKey key;
+        private ByteBuffer requestBuffer = ByteBuffer.allocate(1024);
+        private int requestLength;
+        private int servedRequests;
+        private long idleSince;
+        private long readingSince;
+        private long writtenBytes;
+        private long writingSince;
+        private volatile State state = State.READING_REQUEST;
+        private String lastUrl;
+        private HttpProxyCacheServerClients lastUrlClients;
+        private HttpProxyCacheServerClients clients;
+        private ProxyResponse response;
+
+        Connection(IoThread ioThread, SocketChannel channel) {
+            this.ioThread = ioThread;
+            this.channel = channel;
+            this.readingSince = System.currentTimeMillis();
+        }
+
+        void onReadable() {
+            if (state != State.READING_REQUEST) {
+                return;
+            }
+            try {
+                if (!requestBuffer.hasRemaining()) {
+                    growRequestBuffer();
+                }
+                if (servedRequests > 0 && requestBuffer.position() == 0) {
+                    readingSince = System.currentTimeMillis(); // next request's deadline starts with its first byte
+                }
+                if (channel.read(requestBuffer) == -1) {
+                    close();
+                } else {
+                    processRequestIfRead();
+                }
+            } catch (IOException | ProxyCacheException e) {
+                onConnectionError(e);
+            }
+        }
+
+        private void processRequestIfRead() {
+            requestLength = GetRequest.findEnd(requestBuffer.array(), 0, requestBuffer.position());
+            if (requestLength > 0) {
+                config.metrics.onRequest(servedRequests > 0);
+                servedRequests++;
+                state = State.PREPARING_RESPONSE;
+                key.interestOps(0);
+                if (!workers.execute(this, WorkerPool.Priority.NEW_CONNECTION)) {
+                    reject();
+                }
+            }
+        }
+
+        /**
+         * Answers request that can't be served because all workers are busy, so client may retry it at once.
+         */
+        private void reject() {
+            LOG.warn("Rejecting request… All workers are busy, queued requests: " + config.maxQueuedConnections);
+            onResponsePrepared(null, ProxyResponse.of(ResponseHeaders.serviceUnavailable()));
+        }
+
+        /**
+         * Prepares response on worker thread, because it may require fetching source info.
+         */
+        @Override
+        public void run() {
+            HttpProxyCacheServerClients clients = null;
+            try {
+                GetRequest request = GetRequest.parse(requestBuffer.array(), 0, requestLength);
+                LOG.debug("Request to cache proxy:" + request);
+                String url = request.url;
+                ProxyResponse response;
+                if (server.isPingRequest(url)) {
+                    response = ProxyResponse.of(server.newPingResponse());
+                } else {
+                    // client usually requests the same url over kept alive connection, so don't look for clients every time
+                    HttpProxyCacheServerClients urlClients = url.equals(lastUrl) ? lastUrlClients : server.getClients(url);
+                    lastUrl = url;
+                    lastUrlClients = urlClients;
+                    if (request.head) {
+                        response = urlClients.newHeadResponse(request);
+                    } else {
+                        HttpProxyCache proxyCache = urlClients.startProcessRequest();
+                        clients = urlClients;
+                        response = proxyCache.newResponse(request, sourceExecutor);
+                    }
+                }
+                onResponsePrepared(clients, response);
+            } catch (RejectedExecutionException e) {
+                if (clients != null) {
+                    clients.finishProcessRequest();
+                }
+                reject();
+            } catch (IOException | ProxyCacheException | RuntimeException e) {
+                if (clients != null) {
+                    clients.finishProcessRequest();
+                }
+                onConnectionError(e);
+            }
+        }
+
+        private void onResponsePrepared(final HttpProxyCacheServerClients clients, final ProxyResponse response) {
+            ioThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Connection.this.clients = clients;
+                    Connection.this.response = response;
+                    if (state == State.CLOSED) {
+                        close();
+                        return;
+                    }
+                    response.setSourceDataListener(sourceDataListener);
+                    state = State.WRITING_RESPONSE;
+                    writingSince = System.currentTimeMillis();
+                    onWritable();
+                }
+            });
+        }
+
+        void onWritable() {
+            if (state != State.WRITING_RESPONSE) {
+                return;
+            }
+            try {
+                switch (response.write(channel)) {
+                    case COMPLETED:
+                        onResponseCompleted();
+                        break;
+                    case WAITING_FOR_CLIENT:
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        break;
+                    case WAITING_FOR_SOURCE:
+                        state = State.WAITING_FOR_SOURCE;
+                        ioThread.waitingForSource.add(this);
+                        key.interestOps(0);
+                        break;
+                }
+            } catch (IOException | ProxyCacheException e) {
+                onConnectionError(e);
+            }
+        }
+
+        void resumeWriting() {
+            if (state == State.WAITING_FOR_SOURCE) {
+                ioThread.waitingForSource.remove(this);
+                state = State.WRITING_RESPONSE;
+                writingSince = System.currentTimeMillis(); // time spent waiting for source is not client's stall
+                onWritable();
+            }
+        }
+
+        private void onResponseCompleted() {
+            if (!response.isConnectionReusable()) {
+                close();
+                return;
+            }
+            releaseResponse();
+            // client may have sent next request already (pipelining), keep its data
+            requestBuffer.flip();
+            requestBuffer.position(requestLength);
+            requestBuffer.compact();
+            requestLength = 0;
+            idleSince = System.currentTimeMillis();
+            readingSince = idleSince; // pipelined request is already being read
+            state = State.READING_REQUEST;
+            key.interestOps(SelectionKey.OP_READ);
+            processRequestIfRead();
+        }
+
+        /**
+         * Closes connection if client doesn't send next request of kept alive connection, request's headers
+         * or doesn't read response in time.
+         */
+        void checkDeadlines(long now) {
+            if (state == State.READING_REQUEST) {
+                boolean idle = servedRequests > 0 && requestBuffer.position() == 0;
+                if (idle && now - idleSince > config.keepAliveTimeout) {
+                    LOG.debug("Closing channel… Kept alive connection is idle for " + config.keepAliveTimeout + " ms.");
+                    config.metrics.onIdleTimeout();
+                    close();
+                } else if (!idle && config.headerTimeout > 0 && now - readingSince > config.headerTimeout) {
+                    LOG.warn("Closing channel… Request is not read during " + config.headerTimeout + " ms.");
+                    config.metrics.onHeaderTimeout();
+                    close();
+                }
+            } else if (state == State.WRITING_RESPONSE && config.writeStallTimeout > 0) {
+                long written = response.getWrittenBytes();
+                if (written != writtenBytes) {
+                    writtenBytes = written;
+                    writingSince = now;
+                } else if (now - writingSince > config.writeStallTimeout) {
+                    LOG.warn("Closing channel… Client doesn't read response for " + config.writeStallTimeout + " ms.");
+                    config.metrics.onWriteStall();
+                    close();
+                }
+            }
+        }
+
+        private void growRequestBuffer() throws ProxyCacheException {
+            if (requestBuffer.capacity() >= GetRequest.MAX_REQUEST_SIZE) {
+                throw new ProxyCacheException("Request is too long, more than " + GetRequest.MAX_REQUEST_SIZE + " bytes");
+            }
+            ByteBuffer newBuffer = ByteBuffer.allocate(requestBuffer.capacity() * 2);
+            requestBuffer.flip();
+            newBuffer.put(requestBuffer);
+            requestBuffer = newBuffer;
+        }
+
+        private void onConnectionError(final Exception e) {
+            if (e instanceof IOException) {
+                // there is no way to distinguish closed by client channel from real i/o error, so don't flood log
+                LOG.debug("Closing channel… " + e.getMessage());
+            } else {
+                onError(new ProxyCacheException("Error processing request", e));
+            }
+            if (Thread.currentThread() == ioThread) {
+                close();
+            } else {
+                ioThread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        close();
+                    }
+                });
+            }
+        }
+
+        /**
+         * Closes channel and releases all resources. Must be called on I/O thread only.
+         * If response is being prepared at the moment, its resources are released when it is ready.
+         */
+        void close() {
+            state = State.CLOSED;
+            ioThread.waitingForSource.remove(this);
+            if (key != null) {
+                key.cancel();
+            }
+            ProxyCacheUtils.close(channel);
+            releaseResponse();
+        }
+
+        private void releaseResponse() {
+            if (response != null) {
+                response.close();
+                response = null;
+            }
+            if (clients != null) {
+                clients.finishProcessRequest();
+                clients = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.ornoma.httpcache;
+
+/**
+ * Stores measured performance of origin server, used to choose among mirrors of content.
+ */
+public class OriginScore {
+
+    /**
+     * Origin as {@code scheme://host:port}.
+     */
+    public final String origin;
+    /**
+     * Smoothed time to first byte of response in milliseconds, {@code -1} if it is unknown.
+     */
+    public final long timeToFirstByte;
+    /**
+     * Smoothed throughput of responses in bytes per second, {@code -1} if it is unknown.
+     */
+    public final long throughput;
+    /**
+     * Time in milliseconds since epoch when origin failed last time, {@code 0} if it never failed.
+     */
+    public final long failed;
+
+    public OriginScore(String origin, long timeToFirstByte, long throughput, long failed) {
+        this.origin = origin;
+        this.timeToFirstByte = timeToFirstByte;
+        this.throughput = throughput;
+        this.failed = failed;
+    }
+
+    @Override
+    public String toString() {
+        return "OriginScore{" +
+                "origin='" + origin + '\'' +
+                ", timeToFirstByte=" + timeToFirstByte +
+                ", throughput=" + throughput +
+                (failed > 0 ? ", failed=" + failed : "") +
+                '}';
+    }
+}
@@ -0,0 +1,239 @@
+package com.ornoma.httpcache;
+
+import com.ornoma.httpcache.sourcestorage.OriginScoreStorage;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.ornoma.httpcache.Preconditions.checkNotNull;
+
+/**
+ * Ranks equivalent origins of content (mirrors) by their measured performance, see {@link MirroredSource}.
+ * <p>
+ * Origin's cost is expected time to get reference chunk of data: smoothed time to first byte plus time to download chunk
+ * with smoothed throughput. Origins that were never requested go first, so every mirror gets measured, origins that have
+ * failed recently go last. Origins still waiting for response to another request go after idle ones, so concurrent request
+ * (e.g. hedged by {@link HedgedSource}) goes to another mirror. Scores are kept per {@code scheme://host:port}, so all content of the same CDN shares them,
+ * and are stored by {@link OriginScoreStorage} to be used by next sessions. Storage is never accessed under selector's lock:
+ * scores are loaded before it is taken and changed ones are written in batches by background thread and on {@link #shutdown()}.
+ */
+final class OriginSelector {
+
+    private static final double SMOOTHING = .3;
+    private static final long REFERENCE_SIZE = 1024 * 1024;
+    private static final long MIN_TRANSFER_SIZE = 64 * 1024;
+    private static final long FAILURE_BACKOFF_MS = 60 * 1000;
+    private static final long PERSIST_DELAY_MS = 5 * 1000;
+
+    private final Map<String, OriginScore> scores = new HashMap<>();
+    private final Map<String, OriginScore> unsavedScores = new HashMap<>();
+    private final Map<String, Integer> pendingRequests = new HashMap<>();
+    private final ScheduledExecutorService persister = Executors.newSingleThreadScheduledExecutor();
+    private final Object persistLock = new Object();
+    private final OriginScoreStorage storage;
+    private boolean persistScheduled;
+    private boolean stopped;
+
+    OriginSelector(OriginScoreStorage storage) {
+        this.storage = checkNotNull(storage);
+    }
+
+    /**
+     * Sorts urls of the same content from the best origin to the worst one. Order of origins with equal cost is kept.
+     *
+     * @param urls urls of equivalent origins.
+     * @return new sorted list.
+     */
+    List<String> rank(List<String> urls) {
+        for (String url : urls) {
+            getScore(url);
+        }
+        long now = System.currentTimeMillis();
+        final Map<String, Long> costs = new HashMap<>();
+        final Map<String, Integer> tiers = new HashMap<>();
+        synchronized (this) {
+            for (String url : urls) {
+                OriginScore score = scores.get(origin(url));
+                costs.put(url, getCost(score));
+                tiers.put(url, now - score.failed < FAILURE_BACKOFF_MS ? 2 : pendingRequests.containsKey(score.origin) ? 1 : 0);
+            }
+        }
+        List<String> ranked = new ArrayList<>(urls);
+        Collections.sort(ranked, new Comparator<String>() {
+            @Override
+            public int compare(String left, String right) {
+                int tiersComparison = tiers.get(left).compareTo(tiers.get(right));
+                return tiersComparison != 0 ? tiersComparison : costs.get(left).compareTo(costs.get(right));
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * Reports request sent to origin. Every call must be followed by {@link #onRequestFinished(String)}.
+     *
+     * @param url an url that is requested.
+     */
+    synchronized void onRequest(String url) {
+        String origin = origin(url);
+        Integer count = pendingRequests.get(origin);
+        pendingRequests.put(origin, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Reports request which response is received or which has failed.
+     *
+     * @param url an url that was requested.
+     */
+    synchronized void onRequestFinished(String url) {
+        String origin = origin(url);
+        Integer count = pendingRequests.get(origin);
+        if (count == null || count <= 1) {
+            pendingRequests.remove(origin);
+        } else {
+            pendingRequests.put(origin, count - 1);
+        }
+    }
+
+    /**
+     * Reports successful response of origin.
+     *
+     * @param url             an url that was requested.
+     * @param timeToFirstByte time from request to response's headers in milliseconds.
+     */
+    void onResponse(String url, long timeToFirstByte) {
+        String origin = getScore(url).origin;
+        synchronized (this) {
+            OriginScore score = scores.get(origin);
+            long smoothed = smooth(score.timeToFirstByte, timeToFirstByte);
+            put(new OriginScore(origin, smoothed, score.throughput, 0));
+        }
+    }
+
+    /**
+     * Reports data read from origin. Transfer too small to measure throughput is ignored.
+     *
+     * @param url      an url that was read.
+     * @param bytes    count of read bytes.
+     * @param duration time spent waiting for data in nanoseconds.
+     */
+    void onTransfer(String url, long bytes, long duration) {
+        if (bytes < MIN_TRANSFER_SIZE || duration <= 0) {
+            return;
+        }
+        String origin = getScore(url).origin;
+        long throughput = (long) (bytes * 1e9 / duration);
+        synchronized (this) {
+            OriginScore score = scores.get(origin);
+            put(new OriginScore(origin, score.timeToFirstByte, smooth(score.throughput, throughput), score.failed));
+        }
+    }
+
+    /**
+     * Reports failure of origin: error response, network error or stalled connection.
+     *
+     * @param url an url that has failed.
+     */
+    void onFailure(String url) {
+        String origin = getScore(url).origin;
+        synchronized (this) {
+            OriginScore score = scores.get(origin);
+            put(new OriginScore(origin, score.timeToFirstByte, score.throughput, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Returns score of url's origin.
+     *
+     * @param url an url.
+     * @return a score, its values are negative if they are unknown.
+     */
+    OriginScore getScore(String url) {
+        String origin = origin(url);
+        synchronized (this) {
+            OriginScore score = scores.get(origin);
+            if (score != null) {
+                return score;
+            }
+        }
+        OriginScore stored = storage.get(origin);
+        synchronized (this) {
+            OriginScore score = scores.get(origin);
+            if (score == null) {
+                score = stored != null ? stored : new OriginScore(origin, -1, -1, 0);
+                scores.put(origin, score);
+            }
+            return score;
+        }
+    }
+
+    /**
+     * Writes changed scores to storage and stops background writing. Must be called before storage is released.
+     */
+    void shutdown() {
+        synchronized (this) {
+            stopped = true;
+        }
+        persister.shutdownNow();
+        persist();
+    }
+
+    private long getCost(OriginScore score) {
+        if (score.timeToFirstByte < 0) {
+            return -1;
+        }
+        long downloadTime = score.throughput > 0 ? REFERENCE_SIZE * 1000 / score.throughput : 0;
+        return score.timeToFirstByte + downloadTime;
+    }
+
+    private void put(OriginScore score) {
+        scores.put(score.origin, score);
+        unsavedScores.put(score.origin, score);
+        if (!persistScheduled && !stopped) {
+            persistScheduled = true;
+            // scores change on every response and transfer, so they are written in batches
+            persister.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    persist();
+                }
+            }, PERSIST_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void persist() {
+        synchronized (persistLock) {
+            List<OriginScore> batch;
+            synchronized (this) {
+                persistScheduled = false;
+                batch = new ArrayList<>(unsavedScores.values());
+                unsavedScores.clear();
+            }
+            for (OriginScore score : batch) {
+                storage.put(score.origin, score);
+            }
+        }
+    }
+
+    private long smooth(long average, long sample) {
+        return average < 0 ? sample : Math.round(average * (1 - SMOOTHING) + sample * SMOOTHING);
+    }
+
+    private static String origin(String url) {
+        try {
+            URL parsed = new URL(url);
+            return parsed.getProtocol() + "://" + parsed.getHost() + ":" + (parsed.getPort() < 0 ? parsed.getDefaultPort() : parsed.getPort());
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+}
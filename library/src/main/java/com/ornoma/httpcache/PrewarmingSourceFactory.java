@@ -0,0 +1,161 @@
+package com.ornoma.httpcache;
+
+import com.ornoma.httpcache.headers.HeaderInjector;
+import com.ornoma.httpcache.sourcestorage.SourceInfoStorage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.ornoma.httpcache.Preconditions.checkArgument;
+import static com.ornoma.httpcache.Preconditions.checkNotNull;
+
+/**
+ * {@link SourceFactory} that prepares source of content before proxy is requested for it, see
+ * {@link HttpProxyCacheServer.Builder#prewarm(long)}.
+ * <p>
+ * Player usually connects to proxy few hundreds of milliseconds after proxy url is got. Pre-warming spends this time on
+ * fetching content's info in background: host's address is resolved, connection (with TLS handshake) is established and
+ * returned to keep-alive cache by {@link UpstreamConnections}, info is put to storage. Warmed source itself is given to
+ * the first source's request for the url, so it reuses the info, resolved redirect and the connection. Source that isn't
+ * requested within ttl is dropped, its idle connection is evicted by platform's keep-alive cache.
+ */
+final class PrewarmingSourceFactory implements SourceFactory {
+
+    private static final Logger LOG = LoggerFactory.getLogger("PrewarmingSourceFactory");
+    private static final int MAX_WARM_SOURCES = 8;
+
+    private final Map<String, WarmSource> warmSources = new HashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final SourceFactory sourceFactory;
+    private final long ttl;
+    private final ProxyCacheMetrics metrics;
+
+    /**
+     * @param sourceFactory a factory of sources.
+     * @param ttl           how long warmed source is kept for request in milliseconds, {@code 0} disables pre-warming.
+     * @param metrics       a metrics pre-warming is reported to.
+     */
+    PrewarmingSourceFactory(SourceFactory sourceFactory, long ttl, ProxyCacheMetrics metrics) {
+        checkArgument(ttl >= 0, "Pre-warm ttl can't be negative");
+        this.sourceFactory = checkNotNull(sourceFactory);
+        this.ttl = ttl;
+        this.metrics = checkNotNull(metrics);
+    }
+
+    /**
+     * Starts fetching info of content in background if it isn't known yet. Method never blocks, even storage is read
+     * in background.
+     *
+     * @param url               an url of content.
+     * @param sourceInfoStorage a storage source's info is taken from and put to.
+     * @param headerInjector    an injector of extra headers.
+     */
+    void prewarm(final String url, final SourceInfoStorage sourceInfoStorage, final HeaderInjector headerInjector) {
+        if (ttl == 0) {
+            return;
+        }
+        final WarmSource warmSource = new WarmSource();
+        synchronized (warmSources) {
+            evictExpired();
+            if (warmSources.containsKey(url) || warmSources.size() >= MAX_WARM_SOURCES) {
+                return;
+            }
+            warmSources.put(url, warmSource);
+        }
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    warm(url, warmSource, sourceFactory.newSource(url, sourceInfoStorage, headerInjector));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            remove(url, warmSource); // factory is shut down
+        }
+    }
+
+    private void warm(String url, WarmSource warmSource, UrlSource source) {
+        if (source.isContentInfoKnown()) {
+            remove(url, warmSource); // nothing to fetch, source is opened as fast as warmed one
+            return;
+        }
+        try {
+            source.getSourceInfo();
+            metrics.onSourcePrewarmed();
+            synchronized (warmSources) {
+                warmSource.source = source;
+            }
+            LOG.debug("Source " + url + " is pre-warmed");
+        } catch (ProxyCacheException e) {
+            LOG.debug("Error pre-warming source " + url + ": " + e);
+            remove(url, warmSource); // proxy will request server again and report error to player
+        }
+    }
+
+    @Override
+    public UrlSource newSource(String url, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector) {
+        UrlSource source = takeWarmSource(url);
+        return source != null ? source : sourceFactory.newSource(url, sourceInfoStorage, headerInjector);
+    }
+
+    /**
+     * Returns warmed source of url. Source that is still warming is used by warming thread, so it isn't given out:
+     * new source is opened in parallel then.
+     *
+     * @return a warmed source or {@code null} if there is no one.
+     */
+    private UrlSource takeWarmSource(String url) {
+        WarmSource warmSource;
+        synchronized (warmSources) {
+            evictExpired();
+            warmSource = warmSources.get(url);
+            if (warmSource == null || warmSource.source == null) {
+                return null;
+            }
+            warmSources.remove(url);
+        }
+        metrics.onPrewarmedSourceUsed();
+        return warmSource.source;
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+        synchronized (warmSources) {
+            warmSources.clear();
+        }
+    }
+
+    private void remove(String url, WarmSource warmSource) {
+        synchronized (warmSources) {
+            if (warmSources.get(url) == warmSource) {
+                warmSources.remove(url);
+            }
+        }
+    }
+
+    private void evictExpired() {
+        long expired = System.currentTimeMillis() - ttl;
+        Iterator<WarmSource> iterator = warmSources.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().created < expired) {
+                iterator.remove(); // source doesn't hold connection after fetching info, so nothing to close
+            }
+        }
+    }
+
+    /**
+     * Source being warmed, its fields are guarded by {@link #warmSources}.
+     */
+    private static final class WarmSource {
+
+        private final long created = System.currentTimeMillis();
+        private UrlSource source;
+    }
+}
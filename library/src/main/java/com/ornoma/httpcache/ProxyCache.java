@@ -3,8 +3,12 @@ package com.ornoma.httpcache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import static com.ornoma.httpcache.Preconditions.checkArgument;
 import static com.ornoma.httpcache.Preconditions.checkNotNull;
 
 /**
@@ -26,9 +30,19 @@ class ProxyCache {
     private final Object wc = new Object();
     private final Object stopLock = new Object();
     private final AtomicInteger readSourceErrorsCount;
+    private final List<Runnable> sourceDataListeners = new CopyOnWriteArrayList<>();
     private volatile Thread sourceReaderThread;
     private volatile boolean stopped;
     private volatile double percentsAvailable = -1;
+    private volatile int maxSourceConnections = 1;
+    private volatile RetryPolicy retryPolicy = RetryPolicy.NO_RETRIES;
+    private volatile int minBufferSize = ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
+    private volatile int maxBufferSize = ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
+    private volatile long bufferFillInterval;
+    private volatile ProxyCacheMetrics metrics = new ProxyCacheMetrics();
+    private volatile int contentVersion;
+    private long openedSourceOffset = -1;
+    private boolean sourceOpening;
 
     public ProxyCache(Source source, Cache cache) {
         this.source = checkNotNull(source);
@@ -36,6 +50,54 @@ class ProxyCache {
         this.readSourceErrorsCount = new AtomicInteger();
     }
 
+    /**
+     * Sets how many connections to source may be used to download data at once. Source is read sequentially by default.
+     * <p>
+     * Multiple connections are used only if source supports ranges, see {@link #openSourceRange(long, long)}.
+     *
+     * @param maxSourceConnections max count of connections, {@code 1} disables segmented download.
+     */
+    void setMaxSourceConnections(int maxSourceConnections) {
+        checkArgument(maxSourceConnections > 0, "Max source connections count must be positive");
+        this.maxSourceConnections = maxSourceConnections;
+    }
+
+    /**
+     * Sets how failed reading of source is retried. Source isn't retried by default: error is reported to clients at once.
+     * <p>
+     * While reader waits for retry clients waiting for data stay blocked, every retry resumes reading from cache's end.
+     *
+     * @param retryPolicy a retry policy.
+     */
+    void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = checkNotNull(retryPolicy);
+    }
+
+    /**
+     * Sets bounds of buffer source is read with, see {@link AdaptiveBuffer}. Every read of source is appended to cache
+     * (and waiting clients are notified) at once with buffer of {@link ProxyCacheUtils#DEFAULT_BUFFER_SIZE} by default.
+     *
+     * @param minSize      min size of buffer in bytes.
+     * @param maxSize      max size of buffer in bytes.
+     * @param fillInterval max time to fill buffer before data is appended to cache in milliseconds.
+     */
+    void setReadBuffer(int minSize, int maxSize, long fillInterval) {
+        checkArgument(minSize > 0 && maxSize >= minSize, "Buffer size must be positive, max size can't be less than min");
+        checkArgument(fillInterval >= 0, "Fill interval can't be negative");
+        this.minBufferSize = minSize;
+        this.maxBufferSize = maxSize;
+        this.bufferFillInterval = fillInterval;
+    }
+
+    /**
+     * Sets metrics to report source's retries to.
+     *
+     * @param metrics metrics of proxy server.
+     */
+    void setMetrics(ProxyCacheMetrics metrics) {
+        this.metrics = checkNotNull(metrics);
+    }
+
     public int read(byte[] buffer, long offset, int length) throws ProxyCacheException {
         ProxyCacheUtils.assertBuffer(buffer, offset, length);
 
@@ -45,11 +107,77 @@ class ProxyCache {
             checkReadSourceErrorsCount();
         }
         int read = cache.read(buffer, offset, length);
+        notifyIfCacheCompleted();
+        return read;
+    }
+
+    /**
+     * Returns count of bytes that can be read from cache at passed offset right now.
+     * <p>
+     * Unlike {@link #read(byte[], long, int)} this method never blocks: if data is not fetched yet it just starts reading source
+     * and returns {@code 0}, so caller should try again after {@link #waitForSourceData()} or notification of listener
+     * registered with {@link #addSourceDataListener(Runnable)}.
+     *
+     * @param offset an offset in cache.
+     * @return count of available bytes, {@code 0} if data is not fetched yet or {@code -1} if there is no more data.
+     * @throws ProxyCacheException if source can't be read.
+     */
+    long availableAt(long offset) throws ProxyCacheException {
+        boolean completed = cache.isCompleted(); // check completion first: length of completed cache can't change
+        long available = cache.available();
+        if (offset < available) {
+            return available - offset;
+        }
+        if (completed || stopped) {
+            notifyIfCacheCompleted();
+            return -1;
+        }
+        readSourceAsync();
+        checkReadSourceErrorsCount();
+        return 0;
+    }
+
+    /**
+     * Registers listener to be notified every time new portion of source's data is cached (or reading source is finished).
+     * Listener is called on source reader thread, so it should be fast.
+     *
+     * @param listener a listener to be notified.
+     */
+    void addSourceDataListener(Runnable listener) {
+        sourceDataListeners.add(checkNotNull(listener));
+    }
+
+    void removeSourceDataListener(Runnable listener) {
+        sourceDataListeners.remove(listener);
+    }
+
+    /**
+     * Returns version of cached content. Version is changed when content has changed on server and cached data is discarded,
+     * so data read from cache earlier can't be continued.
+     *
+     * @return current version of content.
+     */
+    int getContentVersion() {
+        return contentVersion;
+    }
+
+    /**
+     * Checks that cached content is the same as it was when client started to read it.
+     *
+     * @param contentVersion version of content client reads, see {@link #getContentVersion()}.
+     * @throws SourceChangedException if content has changed since then.
+     */
+    void checkContentVersion(int contentVersion) throws SourceChangedException {
+        if (this.contentVersion != contentVersion) {
+            throw new SourceChangedException("Content of " + source + " has changed while it was read from cache");
+        }
+    }
+
+    private void notifyIfCacheCompleted() {
         if (cache.isCompleted() && percentsAvailable != 100.0f) {
             percentsAvailable = 100.0f;
             onCachePercentsAvailableChanged(100.0f);
         }
-        return read;
     }
 
     private void checkReadSourceErrorsCount() throws ProxyCacheException {
@@ -68,6 +196,7 @@ class ProxyCache {
                 if (sourceReaderThread != null) {
                     sourceReaderThread.interrupt();
                 }
+                closeNotTakenSource();
                 cache.close();
             } catch (ProxyCacheException e) {
                 onError(e);
@@ -75,6 +204,71 @@ class ProxyCache {
         }
     }
 
+    /**
+     * Opens source at offset on caller's thread, so source's info is known from the same request that fetches data.
+     * Source is read from this connection by source reader thread if cache still ends at this offset then.
+     * Does nothing if source is being read or opened already. Error is not thrown but only logged: opening is repeated
+     * by source reader thread that reports errors to clients as usual.
+     * <p>
+     * Connection is established out of proxy cache's monitor, so clients and {@link #shutdown()} aren't blocked by
+     * slow server. Source reader thread waits for opening to be finished before it uses source.
+     *
+     * @param offset an offset to open source at, should be equal to {@code cache.available()}.
+     */
+    void openSource(long offset) {
+        synchronized (this) {
+            boolean readingInProgress = sourceReaderThread != null && sourceReaderThread.getState() != Thread.State.TERMINATED;
+            if (stopped || readingInProgress || sourceOpening || openedSourceOffset >= 0) {
+                return;
+            }
+            sourceOpening = true;
+        }
+        boolean opened = false;
+        try {
+            source.open(offset);
+            opened = true;
+        } catch (Throwable e) {
+            onError(e);
+            closeSource(source);
+        } finally {
+            onSourceOpened(opened ? offset : -1);
+        }
+    }
+
+    private synchronized void onSourceOpened(long offset) {
+        sourceOpening = false;
+        if (offset >= 0 && stopped) {
+            closeSource(source);
+        } else {
+            openedSourceOffset = offset;
+        }
+        notifyAll();
+    }
+
+    private synchronized boolean takeOpenedSource(long offset) throws ProxyCacheException {
+        while (sourceOpening) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedProxyCacheException("Waiting for source opening is interrupted", e);
+            }
+        }
+        boolean opened = openedSourceOffset == offset;
+        if (openedSourceOffset >= 0 && !opened) {
+            closeSource(source); // cache has been changed since opening
+        }
+        openedSourceOffset = -1;
+        return opened;
+    }
+
+    private synchronized void closeNotTakenSource() {
+        boolean readingInProgress = sourceReaderThread != null && sourceReaderThread.getState() != Thread.State.TERMINATED;
+        if (openedSourceOffset >= 0 && !readingInProgress) {
+            closeSource(source);
+            openedSourceOffset = -1;
+        }
+    }
+
     private synchronized void readSourceAsync() throws ProxyCacheException {
         boolean readingInProgress = sourceReaderThread != null && sourceReaderThread.getState() != Thread.State.TERMINATED;
         if (!stopped && !cache.isCompleted() && !readingInProgress) {
@@ -83,7 +277,7 @@ class ProxyCache {
         }
     }
 
-    private void waitForSourceData() throws ProxyCacheException {
+    void waitForSourceData() throws ProxyCacheException {
         synchronized (wc) {
             try {
                 wc.wait(1000);
@@ -95,10 +289,16 @@ class ProxyCache {
 
     private void notifyNewCacheDataAvailable(long cacheAvailable, long sourceAvailable) {
         onCacheAvailable(cacheAvailable, sourceAvailable);
+        notifyWaitingClients();
+    }
 
+    private void notifyWaitingClients() {
         synchronized (wc) {
             wc.notifyAll();
         }
+        for (Runnable listener : sourceDataListeners) {
+            listener.run();
+        }
     }
 
     protected void onCacheAvailable(long cacheAvailable, long sourceLength) {
@@ -116,35 +316,239 @@ class ProxyCache {
     }
 
     private void readSource() {
+        int retries = 0;
+        while (true) {
+            long startOffset = cacheAvailable();
+            Throwable error = readSourceAttempt();
+            long readBytes = Math.max(cacheAvailable() - startOffset, 0);
+            if (retries > 0) {
+                metrics.onSourceRecovered(readBytes);
+            }
+            if (error == null || isStopped()) {
+                return;
+            }
+            if (startOffset > 0 && isSourceChanged(error) && discardChangedCache()) {
+                continue; // content is downloaded again from the beginning
+            }
+            retries = readBytes > 0 ? 0 : retries; // only failures in a row are limited
+            if (startOffset < 0 || !retryPolicy.shouldRetry(error, retries)) {
+                readSourceErrorsCount.incrementAndGet();
+                onError(error);
+                notifyWaitingClients();
+                return;
+            }
+            retries++;
+            long delay = retryPolicy.getDelay(retries);
+            LOG.warn("Error reading source " + source + ", retry #" + retries + " in " + delay + " ms: " + error);
+            metrics.onSourceRetry();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return; // proxy cache is shut down
+            }
+        }
+    }
+
+    private boolean isSourceChanged(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SourceChangedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean discardChangedCache() {
+        synchronized (stopLock) {
+            if (isStopped()) {
+                return false;
+            }
+            try {
+                if (!discardCache()) {
+                    return false;
+                }
+            } catch (ProxyCacheException e) {
+                onError(e);
+                return false;
+            }
+            contentVersion++;
+        }
+        LOG.warn("Content of " + source + " has changed, cached data is discarded");
+        metrics.onSourceChanged();
+        notifyWaitingClients(); // clients reading old content must fail
+        return true;
+    }
+
+    /**
+     * Removes all cached data because content has changed on server. Called by source reader thread.
+     *
+     * @return {@code false} if cache can't be discarded, reading source fails then.
+     * @throws ProxyCacheException if error occur while discarding cache.
+     */
+    protected boolean discardCache() throws ProxyCacheException {
+        return false;
+    }
+
+    private long cacheAvailable() {
+        try {
+            return cache.available();
+        } catch (ProxyCacheException e) {
+            return -1; // cache is broken, reading source will fail without retry
+        }
+    }
+
+    /**
+     * Reads source from cache's end up to source's end.
+     *
+     * @return an error or {@code null} if source is read completely or proxy cache is stopped.
+     */
+    private Throwable readSourceAttempt() {
         long sourceAvailable = -1;
         long offset = 0;
+        SegmentedDownload segmentedDownload = null;
         try {
             offset = cache.available();
-            source.open(offset);
+            long startTime = System.currentTimeMillis();
+            if (!takeOpenedSource(offset)) {
+                source.open(offset);
+            }
+            if (offset > 0 && !isSourcePartial()) {
+                skipSource(offset); // server ignores range and sends content from the beginning
+            }
             sourceAvailable = source.length();
-            byte[] buffer = new byte[ProxyCacheUtils.DEFAULT_BUFFER_SIZE];
-            int readBytes;
-            while ((readBytes = source.read(buffer)) != -1) {
-                synchronized (stopLock) {
-                    if (isStopped()) {
-                        return;
-                    }
-                    cache.append(buffer, readBytes);
+            long firstSegmentEnd = offset + SegmentedDownload.FIRST_SEGMENT_SIZE;
+            if (maxSourceConnections > 1 && sourceAvailable - firstSegmentEnd >= SegmentedDownload.MIN_SEGMENT_SIZE) {
+                segmentedDownload = new SegmentedDownload(this, firstSegmentEnd, sourceAvailable, maxSourceConnections - 1);
+                segmentedDownload.start();
+            }
+            long start = offset;
+            offset = appendSource(source, offset, segmentedDownload != null ? firstSegmentEnd : -1, sourceAvailable);
+            if (segmentedDownload != null && !isStopped()) {
+                segmentedDownload.onFetched(offset - start, System.currentTimeMillis() - startTime);
+                offset = segmentedDownload.download(offset, source);
+                if (offset < sourceAvailable && !isStopped()) {
+                    // server doesn't support ranges, so the rest is read sequentially by still opened source
+                    offset = appendSource(source, offset, -1, sourceAvailable);
                 }
-                offset += readBytes;
-                notifyNewCacheDataAvailable(offset, sourceAvailable);
+            }
+            if (isStopped()) {
+                return null;
+            }
+            if (sourceAvailable >= 0 && offset < sourceAvailable) {
+                return new ProxyCacheException("Error reading source " + source, new EOFException("Source ended at " + offset + " of " + sourceAvailable));
             }
             tryComplete();
             onSourceRead();
+            return null;
         } catch (Throwable e) {
-            readSourceErrorsCount.incrementAndGet();
-            onError(e);
+            return e;
         } finally {
-            closeSource();
+            if (segmentedDownload != null) {
+                segmentedDownload.cancel();
+            }
+            closeSource(source);
             notifyNewCacheDataAvailable(offset, sourceAvailable);
         }
     }
 
+    /**
+     * Reads opened source and appends its data to cache.
+     *
+     * @param source       an opened source.
+     * @param offset       an offset of source's data, i.e. count of bytes in cache.
+     * @param end          an offset data should be read up to, or {@code -1} if source should be read up to the end.
+     * @param sourceLength a length of whole source.
+     * @return offset of first not appended byte, reading is stopped before the end if proxy cache is stopped.
+     * @throws ProxyCacheException if source can't be read.
+     */
+    long appendSource(Source source, long offset, long end, long sourceLength) throws ProxyCacheException {
+        AdaptiveBuffer buffer = newReadBuffer();
+        while (end < 0 || offset < end) {
+            // source is not read beyond the end, so it can be read further later
+            int readBytes = buffer.fill(source, end < 0 ? Long.MAX_VALUE : end - offset);
+            if (readBytes == -1 || !appendToCache(buffer.array(), readBytes, offset + readBytes, sourceLength)) {
+                break;
+            }
+            offset += readBytes;
+        }
+        return offset;
+    }
+
+    AdaptiveBuffer newReadBuffer() {
+        return new AdaptiveBuffer(minBufferSize, maxBufferSize, bufferFillInterval);
+    }
+
+    int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    /**
+     * Appends source's data to cache and notifies waiting clients. Must be called only by source reader thread.
+     *
+     * @param buffer       a buffer with data.
+     * @param length       a count of bytes to be appended.
+     * @param offset       an offset of source's data after appending, i.e. count of bytes in cache.
+     * @param sourceLength a length of whole source.
+     * @return {@code false} if proxy cache is stopped and data isn't appended.
+     * @throws ProxyCacheException if data can't be appended.
+     */
+    boolean appendToCache(byte[] buffer, int length, long offset, long sourceLength) throws ProxyCacheException {
+        synchronized (stopLock) {
+            if (isStopped()) {
+                return false;
+            }
+            cache.append(buffer, length);
+            if (offset == sourceLength) {
+                // complete before clients get last bytes, otherwise proxy may be shut down by last client before completion
+                cache.complete();
+            }
+        }
+        notifyNewCacheDataAvailable(offset, sourceLength);
+        return true;
+    }
+
+    /**
+     * Reads and drops source's data that is cached already, used if source can't be opened at cache's end.
+     *
+     * @param count a count of bytes to be skipped.
+     * @throws ProxyCacheException if source can't be read or it ends before skipped data.
+     */
+    private void skipSource(long count) throws ProxyCacheException {
+        LOG.warn("Source " + source + " doesn't support ranges, " + count + " cached bytes are read again to resume downloading");
+        byte[] buffer = new byte[ProxyCacheUtils.DEFAULT_BUFFER_SIZE];
+        long skipped = 0;
+        while (skipped < count && !isStopped()) {
+            long left = count - skipped;
+            int read = source.read(left >= buffer.length ? buffer : new byte[(int) left]);
+            if (read == -1) {
+                throw new ProxyCacheException("Error reading source " + source, new EOFException("Source ended at " + skipped + " of cached " + count));
+            }
+            skipped += read;
+        }
+    }
+
+    /**
+     * Checks whether opened source sends data from offset it is opened at. Server may ignore range and send whole content.
+     *
+     * @return {@code false} if source's data starts from content's beginning regardless of offset.
+     */
+    protected boolean isSourcePartial() {
+        return true;
+    }
+
+    /**
+     * Opens new connection to read source's range concurrently with source reader thread, used by segmented download.
+     * Returned source must be independent of {@link ProxyCache}'s source and will be closed by caller.
+     *
+     * @param offset an offset of range.
+     * @param length a length of range.
+     * @return opened source or {@code null} if source doesn't support ranges.
+     * @throws ProxyCacheException if source can't be opened.
+     */
+    protected Source openSourceRange(long offset, long length) throws ProxyCacheException {
+        return null;
+    }
+
     private void onSourceRead() {
         // guaranteed notify listeners after source read and cache completed
         percentsAvailable = 100.0f;
@@ -152,18 +556,20 @@ class ProxyCache {
     }
 
     private void tryComplete() throws ProxyCacheException {
+        long sourceLength = source.length();
         synchronized (stopLock) {
-            if (!isStopped() && cache.available() == source.length()) {
+            // source of unknown length is over when it is read up to the end
+            if (!isStopped() && (sourceLength < 0 || cache.available() == sourceLength)) {
                 cache.complete();
             }
         }
     }
 
-    private boolean isStopped() {
+    boolean isStopped() {
         return Thread.currentThread().isInterrupted() || stopped;
     }
 
-    private void closeSource() {
+    void closeSource(Source source) {
         try {
             source.close();
         } catch (ProxyCacheException e) {
@@ -0,0 +1,532 @@
+package com.ornoma.httpcache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runtime statistics of {@link HttpProxyCacheServer}, see {@link HttpProxyCacheServer#getMetrics()}.
+ * <p>
+ * All values are accumulated since server is started and can be read from any thread.
+ */
+public final class ProxyCacheMetrics {
+
+    private final AtomicLong acceptedConnections = new AtomicLong();
+    private final AtomicLong servedRequests = new AtomicLong();
+    private final AtomicLong reusedConnectionRequests = new AtomicLong();
+    private final AtomicLong pings = new AtomicLong();
+    private final AtomicLong failedPings = new AtomicLong();
+    private final AtomicLong totalPingLatency = new AtomicLong();
+    private final AtomicLong acceptLoopRestarts = new AtomicLong();
+    private final AtomicLong headerTimeouts = new AtomicLong();
+    private final AtomicLong idleTimeouts = new AtomicLong();
+    private final AtomicLong writeStalls = new AtomicLong();
+    private final AtomicInteger workers = new AtomicInteger();
+    private final AtomicInteger busyWorkers = new AtomicInteger();
+    private final AtomicInteger peakBusyWorkers = new AtomicInteger();
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private final AtomicLong workerTasks = new AtomicLong();
+    private final AtomicLong totalQueueWait = new AtomicLong();
+    private final AtomicLong maxQueueWait = new AtomicLong();
+    private final AtomicLong upstreamConnections = new AtomicLong();
+    private final AtomicLong reusedUpstreamConnections = new AtomicLong();
+    private final AtomicLong totalHandshakeTime = new AtomicLong();
+    private final AtomicLong stalledUpstreamConnections = new AtomicLong();
+    private final AtomicLong originFailovers = new AtomicLong();
+    private final AtomicLong hedgedRequests = new AtomicLong();
+    private final AtomicLong wonHedges = new AtomicLong();
+    private final AtomicLong prewarmedSources = new AtomicLong();
+    private final AtomicLong usedPrewarmedSources = new AtomicLong();
+    private final AtomicLong sourceRetries = new AtomicLong();
+    private final AtomicLong recoveredBytes = new AtomicLong();
+    private final AtomicLong changedSources = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong notModifiedRevalidations = new AtomicLong();
+    private volatile long lastPingLatency = -1;
+    private volatile boolean alive;
+
+    ProxyCacheMetrics() {
+    }
+
+    /**
+     * Returns count of client's connections accepted by proxy.
+     *
+     * @return count of accepted connections.
+     */
+    public long getAcceptedConnections() {
+        return acceptedConnections.get();
+    }
+
+    /**
+     * Returns count of requests (including pings) proxy started to serve.
+     *
+     * @return count of requests.
+     */
+    public long getServedRequests() {
+        return servedRequests.get();
+    }
+
+    /**
+     * Returns count of requests that were sent by client over already used (kept alive) connection.
+     *
+     * @return count of requests over reused connections.
+     */
+    public long getReusedConnectionRequests() {
+        return reusedConnectionRequests.get();
+    }
+
+    /**
+     * Returns part of requests that didn't require new connection.
+     *
+     * @return connection reuse rate in range [0..1].
+     */
+    public double getConnectionReuseRate() {
+        long requests = servedRequests.get();
+        return requests == 0 ? 0 : (double) reusedConnectionRequests.get() / requests;
+    }
+
+    /**
+     * Returns result of last health check of proxy server.
+     *
+     * @return {@code true} if server responded to last ping.
+     */
+    public boolean isAlive() {
+        return alive;
+    }
+
+    /**
+     * Returns count of pings made by health monitor.
+     *
+     * @return count of pings.
+     */
+    public long getPings() {
+        return pings.get();
+    }
+
+    /**
+     * Returns count of pings server didn't respond to.
+     *
+     * @return count of failed pings.
+     */
+    public long getFailedPings() {
+        return failedPings.get();
+    }
+
+    /**
+     * Returns duration of last ping including retries.
+     *
+     * @return latency in milliseconds or {@code -1} if server is not pinged yet.
+     */
+    public long getLastPingLatency() {
+        return lastPingLatency;
+    }
+
+    /**
+     * Returns average duration of ping including retries.
+     *
+     * @return latency in milliseconds or {@code -1} if server is not pinged yet.
+     */
+    public long getAveragePingLatency() {
+        long count = pings.get();
+        return count == 0 ? -1 : totalPingLatency.get() / count;
+    }
+
+    /**
+     * Returns how many times health monitor restarted dead accept loop of server.
+     *
+     * @return count of restarts.
+     */
+    public long getAcceptLoopRestarts() {
+        return acceptLoopRestarts.get();
+    }
+
+    /**
+     * Returns count of connections closed because client didn't send request's headers in time.
+     *
+     * @return count of connections closed by header timeout.
+     */
+    public long getHeaderTimeouts() {
+        return headerTimeouts.get();
+    }
+
+    /**
+     * Returns count of kept alive connections closed because client didn't send next request in time.
+     *
+     * @return count of connections closed by keep-alive timeout.
+     */
+    public long getIdleTimeouts() {
+        return idleTimeouts.get();
+    }
+
+    /**
+     * Returns count of connections closed because client stopped reading response.
+     *
+     * @return count of connections closed by write stall timeout.
+     */
+    public long getWriteStalls() {
+        return writeStalls.get();
+    }
+
+    /**
+     * Returns count of alive threads serving connections of {@link HttpProxyCacheServer.Engine#BLOCKING} engine.
+     *
+     * @return count of worker threads.
+     */
+    public int getWorkers() {
+        return workers.get();
+    }
+
+    /**
+     * Returns count of worker threads that are serving connections right now.
+     *
+     * @return count of busy worker threads.
+     */
+    public int getBusyWorkers() {
+        return busyWorkers.get();
+    }
+
+    /**
+     * Returns max count of worker threads that were busy at once.
+     *
+     * @return peak count of busy worker threads.
+     */
+    public int getPeakBusyWorkers() {
+        return peakBusyWorkers.get();
+    }
+
+    /**
+     * Returns count of connections answered with {@code 503 SERVICE UNAVAILABLE} because all workers were busy
+     * and too many connections waited for them.
+     *
+     * @return count of rejected connections.
+     */
+    public long getRejectedConnections() {
+        return rejectedConnections.get();
+    }
+
+    /**
+     * Returns average time connection waited for free worker thread.
+     *
+     * @return wait time in milliseconds.
+     */
+    public long getAverageQueueWait() {
+        long count = workerTasks.get();
+        return count == 0 ? 0 : totalQueueWait.get() / count;
+    }
+
+    /**
+     * Returns max time connection waited for free worker thread.
+     *
+     * @return wait time in milliseconds.
+     */
+    public long getMaxQueueWait() {
+        return maxQueueWait.get();
+    }
+
+    /**
+     * Returns count of connections to origin servers made by proxy, including reused ones.
+     *
+     * @return count of upstream connections.
+     */
+    public long getUpstreamConnections() {
+        return upstreamConnections.get();
+    }
+
+    /**
+     * Returns count of connections to origin servers that reused kept alive connection instead of making new handshake.
+     *
+     * @return count of reused upstream connections.
+     */
+    public long getReusedUpstreamConnections() {
+        return reusedUpstreamConnections.get();
+    }
+
+    /**
+     * Returns part of connections to origin servers that didn't require new handshake.
+     *
+     * @return upstream connection reuse rate in range [0..1].
+     */
+    public double getUpstreamReuseRate() {
+        long connections = upstreamConnections.get();
+        return connections == 0 ? 0 : (double) reusedUpstreamConnections.get() / connections;
+    }
+
+    /**
+     * Returns average duration of new (not reused) connection to origin server including TCP and TLS handshakes.
+     *
+     * @return handshake time in microseconds or {@code -1} if there were no new connections.
+     */
+    public long getAverageHandshakeTime() {
+        long count = upstreamConnections.get() - reusedUpstreamConnections.get();
+        return count <= 0 ? -1 : totalHandshakeTime.get() / count;
+    }
+
+    /**
+     * Returns estimated time saved by reusing connections to origin servers, i.e. average handshake time
+     * multiplied by count of reused connections.
+     *
+     * @return saved time in milliseconds.
+     */
+    public long getHandshakeTimeSaved() {
+        long averageHandshakeTime = getAverageHandshakeTime();
+        return averageHandshakeTime < 0 ? 0 : averageHandshakeTime * reusedUpstreamConnections.get() / 1000;
+    }
+
+    /**
+     * Returns count of connections to origin servers aborted because they have hung: sent nothing within timeout
+     * or sent data slower than min throughput.
+     *
+     * @return count of stalled connections.
+     */
+    public long getStalledUpstreamConnections() {
+        return stalledUpstreamConnections.get();
+    }
+
+    /**
+     * Returns how many times reading of content was continued from its mirror after its origin had failed.
+     *
+     * @return count of failovers.
+     */
+    public long getOriginFailovers() {
+        return originFailovers.get();
+    }
+
+    /**
+     * Returns count of requests to origin servers duplicated because server didn't answer within hedging delay.
+     *
+     * @return count of hedged requests.
+     */
+    public long getHedgedRequests() {
+        return hedgedRequests.get();
+    }
+
+    /**
+     * Returns count of hedged requests which duplicate was answered earlier than original request.
+     *
+     * @return count of won hedges.
+     */
+    public long getWonHedges() {
+        return wonHedges.get();
+    }
+
+    /**
+     * Returns count of sources which info was fetched in advance, when proxy url was got.
+     *
+     * @return count of pre-warmed sources.
+     */
+    public long getPrewarmedSources() {
+        return prewarmedSources.get();
+    }
+
+    /**
+     * Returns count of pre-warmed sources used by proxy before they were expired.
+     *
+     * @return count of used pre-warmed sources.
+     */
+    public long getUsedPrewarmedSources() {
+        return usedPrewarmedSources.get();
+    }
+
+    /**
+     * Returns count of retries of reading source after transient errors (network failures, server's errors {@code 5xx}).
+     *
+     * @return count of retries.
+     */
+    public long getSourceRetries() {
+        return sourceRetries.get();
+    }
+
+    /**
+     * Returns count of bytes read from sources by retries, i.e. data that would be lost for clients without retries.
+     *
+     * @return count of recovered bytes.
+     */
+    public long getRecoveredBytes() {
+        return recoveredBytes.get();
+    }
+
+    /**
+     * Returns how many times content was found changed on server, so its cached data was discarded and downloaded again.
+     *
+     * @return count of changed sources.
+     */
+    public long getChangedSources() {
+        return changedSources.get();
+    }
+
+    /**
+     * Returns count of conditional requests checking whether completely cached content is still up to date.
+     *
+     * @return count of revalidations.
+     */
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    /**
+     * Returns count of revalidations that have confirmed cached content, i.e. content wasn't downloaded again.
+     *
+     * @return count of revalidations without changes.
+     */
+    public long getNotModifiedRevalidations() {
+        return notModifiedRevalidations.get();
+    }
+
+    void onConnectionAccepted() {
+        acceptedConnections.incrementAndGet();
+    }
+
+    void onRequest(boolean reusedConnection) {
+        servedRequests.incrementAndGet();
+        if (reusedConnection) {
+            reusedConnectionRequests.incrementAndGet();
+        }
+    }
+
+    void onPing(boolean pinged, long latency) {
+        totalPingLatency.addAndGet(latency);
+        pings.incrementAndGet();
+        if (!pinged) {
+            failedPings.incrementAndGet();
+        }
+        lastPingLatency = latency;
+    }
+
+    void onHealthChecked(boolean alive) {
+        this.alive = alive;
+    }
+
+    void onAcceptLoopRestarted() {
+        acceptLoopRestarts.incrementAndGet();
+    }
+
+    void onHeaderTimeout() {
+        headerTimeouts.incrementAndGet();
+    }
+
+    void onIdleTimeout() {
+        idleTimeouts.incrementAndGet();
+    }
+
+    void onWriteStall() {
+        writeStalls.incrementAndGet();
+    }
+
+    void onWorkerStarted() {
+        workers.incrementAndGet();
+    }
+
+    void onWorkerStopped() {
+        workers.decrementAndGet();
+    }
+
+    void onWorkerTaskStarted(long queueWait) {
+        int busy = busyWorkers.incrementAndGet();
+        int peak;
+        while (busy > (peak = peakBusyWorkers.get()) && !peakBusyWorkers.compareAndSet(peak, busy)) {
+            // retry, peak is changed concurrently
+        }
+        workerTasks.incrementAndGet();
+        totalQueueWait.addAndGet(queueWait);
+        long max;
+        while (queueWait > (max = maxQueueWait.get()) && !maxQueueWait.compareAndSet(max, queueWait)) {
+            // retry, max is changed concurrently
+        }
+    }
+
+    void onWorkerTaskFinished() {
+        busyWorkers.decrementAndGet();
+    }
+
+    void onConnectionRejected() {
+        rejectedConnections.incrementAndGet();
+    }
+
+    void onUpstreamConnected(boolean reused, long connectTime) {
+        if (reused) {
+            reusedUpstreamConnections.incrementAndGet();
+        } else {
+            totalHandshakeTime.addAndGet(connectTime);
+        }
+        upstreamConnections.incrementAndGet();
+    }
+
+    void onUpstreamStalled() {
+        stalledUpstreamConnections.incrementAndGet();
+    }
+
+    void onOriginFailover() {
+        originFailovers.incrementAndGet();
+    }
+
+    void onHedgedRequest() {
+        hedgedRequests.incrementAndGet();
+    }
+
+    void onHedgeWon() {
+        wonHedges.incrementAndGet();
+    }
+
+    void onSourcePrewarmed() {
+        prewarmedSources.incrementAndGet();
+    }
+
+    void onPrewarmedSourceUsed() {
+        usedPrewarmedSources.incrementAndGet();
+    }
+
+    void onSourceRetry() {
+        sourceRetries.incrementAndGet();
+    }
+
+    void onSourceRecovered(long bytes) {
+        recoveredBytes.addAndGet(bytes);
+    }
+
+    void onSourceChanged() {
+        changedSources.incrementAndGet();
+    }
+
+    void onRevalidated(boolean modified) {
+        revalidations.incrementAndGet();
+        if (!modified) {
+            notModifiedRevalidations.incrementAndGet();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ProxyCacheMetrics{" +
+                "acceptedConnections=" + acceptedConnections +
+                ", servedRequests=" + servedRequests +
+                ", reusedConnectionRequests=" + reusedConnectionRequests +
+                ", alive=" + alive +
+                ", pings=" + pings +
+                ", failedPings=" + failedPings +
+                ", lastPingLatency=" + lastPingLatency +
+                ", acceptLoopRestarts=" + acceptLoopRestarts +
+                ", headerTimeouts=" + headerTimeouts +
+                ", idleTimeouts=" + idleTimeouts +
+                ", writeStalls=" + writeStalls +
+                ", workers=" + workers +
+                ", busyWorkers=" + busyWorkers +
+                ", peakBusyWorkers=" + peakBusyWorkers +
+                ", rejectedConnections=" + rejectedConnections +
+                ", averageQueueWait=" + getAverageQueueWait() +
+                ", maxQueueWait=" + maxQueueWait +
+                ", upstreamConnections=" + upstreamConnections +
+                ", reusedUpstreamConnections=" + reusedUpstreamConnections +
+                ", averageHandshakeTime=" + getAverageHandshakeTime() +
+                ", stalledUpstreamConnections=" + stalledUpstreamConnections +
+                ", originFailovers=" + originFailovers +
+                ", hedgedRequests=" + hedgedRequests +
+                ", wonHedges=" + wonHedges +
+                ", prewarmedSources=" + prewarmedSources +
+                ", usedPrewarmedSources=" + usedPrewarmedSources +
+                ", sourceRetries=" + sourceRetries +
+                ", recoveredBytes=" + recoveredBytes +
+                ", changedSources=" + changedSources +
+                ", revalidations=" + revalidations +
+                ", notModifiedRevalidations=" + notModifiedRevalidations +
+                '}';
+    }
+}
@@ -9,7 +9,6 @@ import org.slf4j.LoggerFactory;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -59,14 +58,6 @@ public class ProxyCacheUtils {
         }
     }
 
-    static String decode(String url) {
-        try {
-            return URLDecoder.decode(url, "utf-8");
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException("Error decoding url", e);
-        }
-    }
-
     static void close(Closeable closeable) {
         if (closeable != null) {
             try {
@@ -0,0 +1,697 @@
+package com.ornoma.httpcache;
+
+import com.ornoma.httpcache.file.FileCache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+
+import static com.ornoma.httpcache.Preconditions.checkArgument;
+import static com.ornoma.httpcache.Preconditions.checkNotNull;
+
+/**
+ * Response to single http request written as a state machine: headers, then body, then nothing.
+ * Response to request with few ranges consists of few parts, each one has own headers and body.
+ * <p>
+ * Every call of {@link #write(WritableByteChannel)} writes as much data as channel accepts without waiting for source and
+ * reports what response is waiting for to continue: client's socket to become writable again, new data from source
+ * or nothing if response is completed. So the same response can be written by blocking socket as well as
+ * by {@link NioConnectionEngine} without blocking its I/O thread.
+ * <p>
+ * Headers and first chunk of body are sent by single gathering write, so client gets them in one packet
+ * instead of waiting for tiny headers segment to be acknowledged. Buffers are taken from pool and returned by {@link #close()}.
+ * <p>
+ * Body of unknown length is sent with {@code Transfer-Encoding: chunked} if headers allow it: every portion of data
+ * available in cache or read from source becomes a chunk, so client gets data as soon as it is appended to cache
+ * and connection can be reused after last chunk. Chunk's size line is put to headers buffer and sent before chunk's data.
+ */
+final class ProxyResponse {
+
+    private static final Logger LOG = LoggerFactory.getLogger("ProxyResponse");
+    private static final long MAX_TRANSFER_SIZE = 512 * 1024;
+    private static final byte[] NO_HEADERS = new byte[0];
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    private static final byte[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+    // previous chunk's end, size line with max 16 hex digits and last chunk
+    private static final int MAX_CHUNK_FRAMING_LENGTH = 2 + 16 + 2 + 2 + 5;
+    private static final BufferPool HEADERS_BUFFERS = new BufferPool(2 * 1024, 32);
+    private static final BufferPool BODY_BUFFERS = new BufferPool(ProxyCacheUtils.DEFAULT_BUFFER_SIZE, 32);
+
+    enum Progress {
+        /**
+         * All data is written.
+         */
+        COMPLETED,
+        /**
+         * Channel doesn't accept data anymore, response should be continued when it becomes writable.
+         */
+        WAITING_FOR_CLIENT,
+        /**
+         * There is no data to write yet, response should be continued when source provides new data.
+         */
+        WAITING_FOR_SOURCE
+    }
+
+    private final ByteBuffer headers;
+    private final ByteBuffer buffer;
+    private final ByteBuffer[] buffers;
+    private final Part[] parts;
+    private final boolean keepAlive;
+    private final boolean chunked;
+    private Runnable listener;
+    private int partIndex;
+    private long bodyRead;
+    private boolean bodyFinished;
+    private boolean bodiesDelivered = true;
+    private boolean released;
+    private long chunkRemaining;
+    private boolean chunkOpened;
+    private volatile long written;
+
+    /**
+     * @param responseHeaders headers of response to be sent before first part or {@code null} if first part contains them.
+     */
+    private ProxyResponse(ResponseHeaders responseHeaders, Part[] parts, boolean keepAlive) {
+        int maxHeadersLength = 0;
+        boolean lengthsKnown = true;
+        for (Part part : parts) {
+            maxHeadersLength = Math.max(maxHeadersLength, part.headers.length);
+            lengthsKnown &= part.body == null || part.length >= 0;
+        }
+        this.chunked = responseHeaders != null && responseHeaders.isChunked() && parts.length == 1 && parts[0].body != null;
+        int responseHeadersLength = responseHeaders == null ? 0 : responseHeaders.encodedLength();
+        int framingLength = chunked ? MAX_CHUNK_FRAMING_LENGTH : 0;
+        maxHeadersLength = Math.max(maxHeadersLength, responseHeadersLength + parts[0].headers.length + framingLength);
+        this.parts = parts;
+        this.keepAlive = keepAlive && (lengthsKnown || chunked);
+        this.headers = maxHeadersLength <= HEADERS_BUFFERS.bufferSize() ? HEADERS_BUFFERS.acquire() : ByteBuffer.allocate(maxHeadersLength);
+        if (responseHeaders != null) {
+            responseHeaders.writeTo(headers);
+        }
+        this.headers.put(parts[0].headers);
+        this.headers.flip();
+        this.buffer = BODY_BUFFERS.acquire();
+        this.buffer.flip();
+        this.buffers = new ByteBuffer[]{headers, buffer};
+        this.bodyFinished = parts[0].body == null;
+    }
+
+    /**
+     * Creates response that consists of passed in data only. Connection is closed after such response.
+     *
+     * @param data a full response including headers.
+     * @return a response.
+     */
+    static ProxyResponse of(byte[] data) {
+        return of(data, false);
+    }
+
+    /**
+     * Creates response that consists of passed in data only.
+     *
+     * @param data      a full response including headers.
+     * @param keepAlive should connection be kept open after response.
+     * @return a response.
+     */
+    static ProxyResponse of(byte[] data, boolean keepAlive) {
+        return new ProxyResponse(null, new Part[]{new Part(data, null, 0)}, keepAlive);
+    }
+
+    /**
+     * Creates response without body, e.g. to HEAD request or with error status.
+     *
+     * @param headers response headers.
+     * @return a response.
+     */
+    static ProxyResponse of(ResponseHeaders headers) {
+        return new ProxyResponse(headers, new Part[]{new Part(NO_HEADERS, null, 0)}, headers.isKeepAlive());
+    }
+
+    /**
+     * Creates response which body is read from cache of {@link ProxyCache} starting from passed in offset.
+     * Body is over when count of bytes declared by headers is written.
+     *
+     * @param headers response headers.
+     * @return a response.
+     */
+    static ProxyResponse fromCache(ResponseHeaders headers, ProxyCache proxyCache, Cache cache, long offset) {
+        long contentLength = headers.contentLength();
+        Body body = newCacheBody(proxyCache, cache, offset, contentLength);
+        return new ProxyResponse(headers, new Part[]{new Part(NO_HEADERS, body, contentLength)}, headers.isKeepAlive());
+    }
+
+    /**
+     * Creates {@code multipart/byteranges} response which parts are read from cache of {@link ProxyCache} or from
+     * separate sources bypassing cache.
+     *
+     * @param headers     response headers.
+     * @param ranges      resolved ranges to be sent, one per part.
+     * @param partHeaders headers of every part including delimiter.
+     * @param trailer     final delimiter.
+     * @param sources     opened sources of parts, {@code null} element means part is read from cache. Sources will be closed with response.
+     * @param executor    an executor to read sources on, or {@code null} if sources should be read by the calling thread.
+     * @return a response.
+     */
+    static ProxyResponse multipart(ResponseHeaders headers, List<ByteRange> ranges, byte[][] partHeaders, byte[] trailer,
+                                   ProxyCache proxyCache, Cache cache, Source[] sources, Executor executor) {
+        checkArgument(ranges.size() == partHeaders.length, "Every part must have headers");
+        checkArgument(ranges.size() == sources.length, "Every part must have source or be read from cache");
+        Part[] parts = new Part[ranges.size() + 1];
+        int i = 0;
+        try {
+            for (; i < ranges.size(); i++) {
+                ByteRange range = ranges.get(i);
+                Body body = sources[i] == null ?
+                        newCacheBody(proxyCache, cache, range.first, range.length()) :
+                        newSourceBody(sources[i], range.length(), executor);
+                parts[i] = new Part(partHeaders[i], body, range.length());
+            }
+        } catch (RuntimeException e) {
+            // e.g. executor rejects reading source: release parts created already and sources not used yet
+            for (int created = 0; created < i; created++) {
+                parts[created].body.close();
+            }
+            for (int notUsed = i + 1; notUsed < sources.length; notUsed++) {
+                if (sources[notUsed] != null) {
+                    closeSource(sources[notUsed]);
+                }
+            }
+            throw e;
+        }
+        parts[ranges.size()] = new Part(trailer, null, 0);
+        return new ProxyResponse(headers, parts, headers.isKeepAlive());
+    }
+
+    /**
+     * Creates response which body is read from already opened source bypassing cache.
+     * Body is over when count of bytes declared by headers is written or source is over if length is unknown.
+     *
+     * @param headers  response headers.
+     * @param source   an opened source, it will be closed with response.
+     * @param executor an executor to read source on, or {@code null} if source should be read by the calling thread.
+     * @return a response.
+     */
+    static ProxyResponse fromSource(ResponseHeaders headers, Source source, Executor executor) {
+        long contentLength = headers.contentLength();
+        Body body = newSourceBody(source, contentLength, executor);
+        return new ProxyResponse(headers, new Part[]{new Part(NO_HEADERS, body, contentLength)}, headers.isKeepAlive());
+    }
+
+    private static Body newSourceBody(Source source, long length, Executor executor) {
+        return executor == null ? new SourceBody(source, length) : new PumpedSourceBody(source, length, executor);
+    }
+
+    private static Body newCacheBody(ProxyCache proxyCache, Cache cache, long offset, long length) {
+        return cache instanceof FileCache ?
+                new FileCacheBody(proxyCache, (FileCache) cache, offset, length) :
+                new CacheBody(proxyCache, cache, offset, length);
+    }
+
+    /**
+     * Sets listener to be called (on arbitrary thread) when new data is available after {@link Progress#WAITING_FOR_SOURCE}.
+     *
+     * @param listener a listener, may be called few times in a row.
+     */
+    void setSourceDataListener(Runnable listener) {
+        this.listener = checkNotNull(listener);
+        Body body = parts[partIndex].body;
+        if (body != null) {
+            body.setListener(listener);
+        }
+    }
+
+    Progress write(WritableByteChannel channel) throws IOException, ProxyCacheException {
+        while (true) {
+            if (headers.hasRemaining() && !buffer.hasRemaining() && !bodyFinished && chunkRemaining == 0) {
+                readBody(); // attach first chunk of body to headers if it is available already
+            }
+            if (headers.hasRemaining() || buffer.hasRemaining()) {
+                writeBuffers(channel);
+                if (headers.hasRemaining() || buffer.hasRemaining()) {
+                    return Progress.WAITING_FOR_CLIENT;
+                }
+            }
+            if (bodyFinished) {
+                if (partIndex == parts.length - 1) {
+                    return Progress.COMPLETED;
+                }
+                startNextPart();
+                continue;
+            }
+            Body body = parts[partIndex].body;
+            if (body instanceof TransferableBody) {
+                Progress progress = transfer((TransferableBody) body, channel);
+                if (progress != null) {
+                    return progress;
+                }
+                continue;
+            }
+            if (readBody() == 0) {
+                return Progress.WAITING_FOR_SOURCE;
+            }
+        }
+    }
+
+    private int readBody() throws ProxyCacheException {
+        buffer.clear();
+        int read = parts[partIndex].body.read(buffer);
+        buffer.flip();
+        if (read < 0) {
+            finishBody();
+        } else {
+            bodyRead += read;
+            if (chunked && read > 0) {
+                startChunk(read);
+            }
+        }
+        return read;
+    }
+
+    private void writeBuffers(WritableByteChannel channel) throws IOException {
+        if (channel instanceof GatheringByteChannel) {
+            written += ((GatheringByteChannel) channel).write(buffers);
+        } else {
+            written += channel.write(headers);
+            if (!headers.hasRemaining()) {
+                written += channel.write(buffer);
+            }
+        }
+    }
+
+    private Progress transfer(TransferableBody body, WritableByteChannel channel) throws IOException, ProxyCacheException {
+        long available = body.available();
+        if (available < 0) {
+            finishBody();
+            return null;
+        }
+        if (available == 0) {
+            return Progress.WAITING_FOR_SOURCE;
+        }
+        long count = Math.min(available, MAX_TRANSFER_SIZE);
+        if (chunked) {
+            if (chunkRemaining == 0) {
+                startChunk(count);
+                chunkRemaining = count;
+                return null; // size line is written before chunk's data
+            }
+            count = Math.min(count, chunkRemaining);
+        }
+        long transferred = body.transferTo(channel, count);
+        bodyRead += transferred;
+        chunkRemaining -= chunked ? transferred : 0;
+        written += transferred;
+        return transferred < count ? Progress.WAITING_FOR_CLIENT : null;
+    }
+
+    private void finishBody() {
+        Part part = parts[partIndex];
+        bodyFinished = true;
+        bodiesDelivered &= part.length < 0 || bodyRead == part.length;
+        if (chunked) {
+            if (chunkRemaining > 0) {
+                bodiesDelivered = false; // chunk can't be completed, connection must be closed to let client know body is broken
+                return;
+            }
+            headers.compact();
+            headers.put(chunkOpened ? CRLF : NO_HEADERS).put(LAST_CHUNK);
+            headers.flip();
+        }
+    }
+
+    /**
+     * Appends size line of new chunk to not sent yet headers, previous chunk's data is terminated first.
+     */
+    private void startChunk(long size) {
+        headers.compact();
+        headers.put(chunkOpened ? CRLF : NO_HEADERS);
+        int digits = 1;
+        for (long rest = size >>> 4; rest > 0; rest >>>= 4) {
+            digits++;
+        }
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            headers.put(HEX_DIGITS[(int) (size >>> shift) & 0xf]);
+        }
+        headers.put(CRLF);
+        headers.flip();
+        chunkOpened = true;
+    }
+
+    private void startNextPart() {
+        Part previous = parts[partIndex];
+        if (previous.body != null) {
+            previous.body.close();
+        }
+        partIndex++;
+        Part part = parts[partIndex];
+        bodyRead = 0;
+        bodyFinished = part.body == null;
+        headers.clear();
+        headers.put(part.headers);
+        headers.flip();
+        if (part.body != null && listener != null) {
+            part.body.setListener(listener);
+        }
+    }
+
+    /**
+     * Returns count of bytes written to client so far. May be called from any thread to check whether client reads response.
+     *
+     * @return count of written bytes.
+     */
+    long getWrittenBytes() {
+        return written;
+    }
+
+    /**
+     * Checks can connection be used for next request after this response is completed.
+     * It is possible only if client and proxy agreed to keep connection alive and client got exactly declared count of bytes.
+     *
+     * @return {@code true} if client may send next request over the same connection.
+     */
+    boolean isConnectionReusable() {
+        boolean completed = partIndex == parts.length - 1 && bodyFinished && !headers.hasRemaining() && !buffer.hasRemaining();
+        return keepAlive && completed && bodiesDelivered;
+    }
+
+    /**
+     * Releases response's resources. Response must not be written after closing.
+     */
+    void close() {
+        for (int i = partIndex; i < parts.length; i++) {
+            if (parts[i].body != null) {
+                parts[i].body.close();
+            }
+        }
+        if (!released) {
+            released = true;
+            HEADERS_BUFFERS.release(headers);
+            BODY_BUFFERS.release(buffer);
+        }
+    }
+
+    private static final class Part {
+
+        final byte[] headers;
+        final Body body;
+        final long length;
+
+        Part(byte[] headers, Body body, long length) {
+            this.headers = headers;
+            this.body = body;
+            this.length = length;
+        }
+    }
+
+    private interface Body {
+
+        /**
+         * Reads next portion of body.
+         *
+         * @return count of read bytes, {@code 0} if there is no available data right now or {@code -1} if body is over.
+         */
+        int read(ByteBuffer target) throws ProxyCacheException;
+
+        void setListener(Runnable listener);
+
+        void close();
+    }
+
+    /**
+     * Body that can be written to channel directly, without copying data to response's buffer.
+     */
+    private interface TransferableBody extends Body {
+
+        /**
+         * Returns count of bytes that can be transferred right now.
+         *
+         * @return count of bytes, {@code 0} if there is no available data right now or {@code -1} if body is over.
+         */
+        long available() throws ProxyCacheException;
+
+        /**
+         * Transfers available data to channel.
+         *
+         * @return count of transferred bytes, it is less than requested if channel doesn't accept data anymore.
+         */
+        long transferTo(WritableByteChannel channel, long count) throws IOException;
+    }
+
+    /**
+     * Body that is over when declared count of bytes is read, even if source has more data.
+     */
+    private abstract static class LimitedBody implements Body {
+
+        private long remaining;
+
+        /**
+         * @param length count of bytes in body or {@code -1} if body is over only when its source is over.
+         */
+        LimitedBody(long length) {
+            this.remaining = length;
+        }
+
+        boolean isOver() {
+            return remaining == 0;
+        }
+
+        long limit(long count) {
+            return remaining > 0 && count > remaining ? remaining : count;
+        }
+
+        void onRead(long count) {
+            if (remaining > 0) {
+                remaining -= count;
+            }
+        }
+    }
+
+    private static class CacheBody extends LimitedBody {
+
+        private final ProxyCache proxyCache;
+        private final Cache cache;
+        private final int contentVersion;
+        protected long offset;
+        private Runnable listener;
+
+        CacheBody(ProxyCache proxyCache, Cache cache, long offset, long length) {
+            super(length);
+            this.proxyCache = proxyCache;
+            this.cache = cache;
+            this.offset = offset;
+            this.contentVersion = proxyCache.getContentVersion();
+        }
+
+        @Override
+        public int read(ByteBuffer target) throws ProxyCacheException {
+            long available = available();
+            if (available <= 0) {
+                return (int) available;
+            }
+            int length = (int) Math.min(available, target.remaining());
+            int read = cache.read(target.array(), offset, length);
+            if (read > 0) {
+                target.position(read);
+                offset += read;
+                onRead(read);
+            }
+            return read;
+        }
+
+        public long available() throws ProxyCacheException {
+            proxyCache.checkContentVersion(contentVersion); // data sent already doesn't match discarded cache
+            return isOver() ? -1 : limit(proxyCache.availableAt(offset));
+        }
+
+        @Override
+        public void setListener(Runnable listener) {
+            this.listener = listener;
+            proxyCache.addSourceDataListener(listener);
+        }
+
+        @Override
+        public void close() {
+            if (listener != null) {
+                proxyCache.removeSourceDataListener(listener);
+            }
+        }
+    }
+
+    /**
+     * Body that sends cached bytes from file straight to socket with {@link FileCache#transferTo(long, long, WritableByteChannel)}.
+     */
+    private static final class FileCacheBody extends CacheBody implements TransferableBody {
+
+        private final FileCache cache;
+
+        FileCacheBody(ProxyCache proxyCache, FileCache cache, long offset, long length) {
+            super(proxyCache, cache, offset, length);
+            this.cache = cache;
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel channel, long count) throws IOException {
+            long transferred = cache.transferTo(offset, count, channel);
+            offset += transferred;
+            onRead(transferred);
+            return transferred;
+        }
+    }
+
+    private static final class SourceBody extends LimitedBody {
+
+        private final Source source;
+
+        SourceBody(Source source, long length) {
+            super(length);
+            this.source = source;
+        }
+
+        @Override
+        public int read(ByteBuffer target) throws ProxyCacheException {
+            if (isOver()) {
+                return -1;
+            }
+            int read = (int) limit(source.read(target.array()));
+            if (read > 0) {
+                target.position(read);
+                onRead(read);
+            }
+            return read;
+        }
+
+        @Override
+        public void setListener(Runnable listener) {
+            // data is read synchronously, so there is nothing to wait for
+        }
+
+        @Override
+        public void close() {
+            closeSource(source);
+        }
+    }
+
+    /**
+     * Body that is read from source by separate thread, so I/O thread never waits for network.
+     * Count of read but not written chunks is limited, so slow client slows down reading source too.
+     */
+    private static final class PumpedSourceBody extends LimitedBody implements Runnable {
+
+        private static final int MAX_PENDING_CHUNKS = 4;
+
+        private final Source source;
+        private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(MAX_PENDING_CHUNKS);
+        private volatile Runnable listener;
+        private volatile ProxyCacheException error;
+        private volatile boolean finished;
+        private Thread pumpThread;
+        private boolean closed;
+
+        PumpedSourceBody(Source source, long length, Executor executor) {
+            super(length);
+            this.source = source;
+            try {
+                executor.execute(this);
+            } catch (RuntimeException e) {
+                closeSource(source);
+                throw e;
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!attachPumpThread()) {
+                closeSource(source);
+                return;
+            }
+            try {
+                byte[] buffer = new byte[ProxyCacheUtils.DEFAULT_BUFFER_SIZE];
+                int read;
+                while ((read = source.read(buffer)) != -1) {
+                    byte[] chunk = new byte[read];
+                    System.arraycopy(buffer, 0, chunk, 0, read);
+                    chunks.put(chunk);
+                    notifyListener();
+                }
+            } catch (ProxyCacheException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                LOG.debug("Reading source for response is interrupted");
+            } finally {
+                detachPumpThread();
+                closeSource(source);
+                finished = true;
+                notifyListener();
+            }
+        }
+
+        @Override
+        public int read(ByteBuffer target) throws ProxyCacheException {
+            if (isOver()) {
+                return -1;
+            }
+            boolean finished = this.finished;  // read flag before polling: all chunks are queued before pump is finished
+            byte[] chunk = chunks.poll();
+            if (chunk != null) {
+                int length = (int) limit(chunk.length);
+                target.put(chunk, 0, length);
+                onRead(length);
+                return length;
+            }
+            if (finished && error != null) {
+                throw error;
+            }
+            return finished ? -1 : 0;
+        }
+
+        @Override
+        public void setListener(Runnable listener) {
+            this.listener = listener;
+            if (finished || !chunks.isEmpty()) {
+                notifyListener();
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            if (pumpThread != null) {
+                pumpThread.interrupt();
+            }
+            chunks.clear();
+        }
+
+        private synchronized boolean attachPumpThread() {
+            pumpThread = closed ? null : Thread.currentThread();
+            return !closed;
+        }
+
+        private synchronized void detachPumpThread() {
+            pumpThread = null;
+            Thread.interrupted(); // don't leave interrupted flag for next executor's task
+        }
+
+        private void notifyListener() {
+            Runnable listener = this.listener;
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    }
+
+    private static void closeSource(Source source) {
+        try {
+            source.close();
+        } catch (ProxyCacheException e) {
+            LOG.warn("Error closing source " + source, e);
+        }
+    }
+}
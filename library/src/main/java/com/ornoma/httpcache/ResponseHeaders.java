@@ -0,0 +1,309 @@
+package com.ornoma.httpcache;
+
+import android.text.TextUtils;
+
+import java.nio.ByteBuffer;
+
+import static com.ornoma.httpcache.Preconditions.checkNotNull;
+
+/**
+ * Status line and header fields of proxy's response.
+ * <p>
+ * Headers are encoded straight to {@link ByteBuffer} from precomputed ASCII fragments, numbers are written digit by digit,
+ * so encoding doesn't create strings, formatters or intermediate arrays. Lines are terminated with CRLF as HTTP requires.
+ */
+final class ResponseHeaders {
+
+    private static final byte[] STATUS_OK = ascii("HTTP/1.1 200 OK\r\n");
+    private static final byte[] STATUS_PARTIAL_CONTENT = ascii("HTTP/1.1 206 PARTIAL CONTENT\r\n");
+    private static final byte[] STATUS_NOT_SATISFIABLE = ascii("HTTP/1.1 416 REQUESTED RANGE NOT SATISFIABLE\r\n");
+    private static final byte[] STATUS_SERVICE_UNAVAILABLE = ascii("HTTP/1.1 503 SERVICE UNAVAILABLE\r\n");
+    private static final int STATUS_BAD_GATEWAY = 502;
+    private static final byte[] ACCEPT_RANGES = ascii("Accept-Ranges: bytes\r\n");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] CONTENT_RANGE = ascii("Content-Range: bytes ");
+    private static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+    private static final byte[] ETAG = ascii("ETag: ");
+    private static final byte[] LAST_MODIFIED = ascii("Last-Modified: ");
+    private static final byte[] TRANSFER_ENCODING_CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+    private static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    private static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+    private static final byte[] CRLF = ascii("\r\n");
+    // status line, fixed fields and max 4 numbers with 19 digits each, see encodedLength()
+    private static final int MAX_FIXED_LENGTH = 256;
+
+    private static final long UNKNOWN = -1;
+
+    private final byte[] statusLine;
+    private final long contentLength;
+    private final ByteRange range;
+    private final long totalLength;
+    private String contentType;
+    private String etag;
+    private String lastModified;
+    private boolean keepAlive;
+    private boolean chunkedAllowed;
+
+    private ResponseHeaders(byte[] statusLine, long contentLength, ByteRange range, long totalLength) {
+        this.statusLine = statusLine;
+        this.contentLength = contentLength;
+        this.range = range;
+        this.totalLength = totalLength;
+    }
+
+    /**
+     * Creates headers of {@code 200 OK} response with full content.
+     *
+     * @param contentLength a length of content or {@code -1} if it is unknown.
+     * @return headers.
+     */
+    static ResponseHeaders ok(long contentLength) {
+        return new ResponseHeaders(STATUS_OK, contentLength, null, UNKNOWN);
+    }
+
+    /**
+     * Creates headers of {@code 206 PARTIAL CONTENT} response with single range.
+     * {@code Content-Range} and {@code Content-Length} are sent only if range's bounds are known.
+     *
+     * @param range       a range to be sent.
+     * @param totalLength a length of full content or {@code -1} if it is unknown.
+     * @return headers.
+     */
+    static ResponseHeaders partial(ByteRange range, long totalLength) {
+        checkNotNull(range);
+        return new ResponseHeaders(STATUS_PARTIAL_CONTENT, range.length(), range, totalLength);
+    }
+
+    /**
+     * Creates headers of {@code 206 PARTIAL CONTENT} response with few ranges, its content type should describe parts' boundary.
+     *
+     * @param contentLength a length of multipart body.
+     * @return headers.
+     */
+    static ResponseHeaders multipart(long contentLength) {
+        return new ResponseHeaders(STATUS_PARTIAL_CONTENT, contentLength, null, UNKNOWN);
+    }
+
+    /**
+     * Creates headers of {@code 416 REQUESTED RANGE NOT SATISFIABLE} response without body.
+     *
+     * @param totalLength a length of full content.
+     * @return headers.
+     */
+    static ResponseHeaders notSatisfiable(long totalLength) {
+        return new ResponseHeaders(STATUS_NOT_SATISFIABLE, 0, null, totalLength);
+    }
+
+    /**
+     * Creates headers of {@code 503 SERVICE UNAVAILABLE} response without body, it is sent when proxy is overloaded.
+     *
+     * @return headers.
+     */
+    static ResponseHeaders serviceUnavailable() {
+        return new ResponseHeaders(STATUS_SERVICE_UNAVAILABLE, 0, null, UNKNOWN);
+    }
+
+    /**
+     * Creates headers of error response without body, it is sent when server can't provide content.
+     *
+     * @param statusCode a status code of server's error response, {@code 502 BAD GATEWAY} is used if it isn't client or server error code.
+     * @return headers.
+     */
+    static ResponseHeaders error(int statusCode) {
+        int code = statusCode >= 400 && statusCode < 600 ? statusCode : STATUS_BAD_GATEWAY;
+        return new ResponseHeaders(ascii("HTTP/1.1 " + code + " " + reasonPhrase(code) + "\r\n"), 0, null, UNKNOWN);
+    }
+
+    /**
+     * Sets {@code Content-Type} header.
+     *
+     * @param contentType a mime type, header is omitted if it is {@code null} or empty.
+     * @return these headers.
+     */
+    ResponseHeaders contentType(String contentType) {
+        this.contentType = contentType;
+        return this;
+    }
+
+    /**
+     * Sets validators of content received from server to be passed to client.
+     *
+     * @param etag         a value of {@code ETag} header, header is omitted if it is {@code null} or empty.
+     * @param lastModified a value of {@code Last-Modified} header, header is omitted if it is {@code null} or empty.
+     * @return these headers.
+     */
+    ResponseHeaders validators(String etag, String lastModified) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        return this;
+    }
+
+    /**
+     * Sets {@code Connection} header. Connection is kept alive only if length of content is known or body is chunked.
+     *
+     * @param keepAlive should connection be kept open after response.
+     * @return these headers.
+     */
+    ResponseHeaders keepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+    /**
+     * Allows to send body of unknown length with {@code Transfer-Encoding: chunked}, so end of body is marked by last chunk
+     * instead of closing connection. Headers with known length are not affected.
+     *
+     * @param chunkedAllowed does client accept chunked body.
+     * @return these headers.
+     */
+    ResponseHeaders chunked(boolean chunkedAllowed) {
+        this.chunkedAllowed = chunkedAllowed;
+        return this;
+    }
+
+    /**
+     * Returns count of body's bytes declared by headers.
+     *
+     * @return count of bytes or {@code -1} if it is unknown.
+     */
+    long contentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Checks whether body is sent with {@code Transfer-Encoding: chunked}.
+     *
+     * @return {@code true} if body's length is unknown and client accepts chunked body.
+     */
+    boolean isChunked() {
+        return chunkedAllowed && contentLength < 0;
+    }
+
+    boolean isKeepAlive() {
+        return keepAlive && (contentLength >= 0 || isChunked());
+    }
+
+    /**
+     * Returns max count of bytes {@link #writeTo(ByteBuffer)} may write.
+     *
+     * @return count of bytes.
+     */
+    int encodedLength() {
+        return MAX_FIXED_LENGTH + fieldLength(CONTENT_TYPE, contentType) + fieldLength(ETAG, etag) + fieldLength(LAST_MODIFIED, lastModified);
+    }
+
+    /**
+     * Encodes headers including empty line that terminates them.
+     *
+     * @param target a buffer to write headers to, must have at least {@link #encodedLength()} bytes remaining.
+     */
+    void writeTo(ByteBuffer target) {
+        target.put(statusLine);
+        target.put(ACCEPT_RANGES);
+        if (contentLength >= 0) {
+            target.put(CONTENT_LENGTH);
+            putDecimal(target, contentLength);
+            target.put(CRLF);
+        } else if (isChunked()) {
+            target.put(TRANSFER_ENCODING_CHUNKED);
+        }
+        if (statusLine == STATUS_NOT_SATISFIABLE) {
+            target.put(CONTENT_RANGE).put((byte) '*').put((byte) '/');
+            putDecimal(target, totalLength);
+            target.put(CRLF);
+        } else if (range != null && contentLength >= 0) {
+            target.put(CONTENT_RANGE);
+            putDecimal(target, range.first);
+            target.put((byte) '-');
+            putDecimal(target, range.last);
+            target.put((byte) '/');
+            if (totalLength >= 0) {
+                putDecimal(target, totalLength);
+            } else {
+                target.put((byte) '*');
+            }
+            target.put(CRLF);
+        }
+        putField(target, CONTENT_TYPE, contentType);
+        putField(target, ETAG, etag);
+        putField(target, LAST_MODIFIED, lastModified);
+        target.put(isKeepAlive() ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+        target.put(CRLF); // headers end
+    }
+
+    /**
+     * Encodes headers to new array. Intended for rarely sent responses and tests, {@link ProxyResponse} uses {@link #writeTo(ByteBuffer)}.
+     *
+     * @return encoded headers.
+     */
+    byte[] toByteArray() {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedLength());
+        writeTo(buffer);
+        byte[] result = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, result, 0, result.length);
+        return result;
+    }
+
+    private static int fieldLength(byte[] name, String value) {
+        return value == null ? 0 : name.length + value.length() + CRLF.length;
+    }
+
+    private static void putField(ByteBuffer target, byte[] name, String value) {
+        if (TextUtils.isEmpty(value)) {
+            return;
+        }
+        target.put(name);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            // header values are ISO-8859-1 strings, line breaks would let value inject own headers
+            target.put(c < 256 && c != '\r' && c != '\n' ? (byte) c : (byte) '?');
+        }
+        target.put(CRLF);
+    }
+
+    private static void putDecimal(ByteBuffer target, long value) {
+        if (value < 0) {
+            target.put((byte) '-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        int end = target.position() + digits;
+        for (int i = end - 1; i >= target.position(); i--) {
+            target.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        target.position(end);
+    }
+
+    private static String reasonPhrase(int statusCode) {
+        switch (statusCode) {
+            case 403:
+                return "FORBIDDEN";
+            case 404:
+                return "NOT FOUND";
+            case 410:
+                return "GONE";
+            case 500:
+                return "INTERNAL SERVER ERROR";
+            case STATUS_BAD_GATEWAY:
+                return "BAD GATEWAY";
+            case 503:
+                return "SERVICE UNAVAILABLE";
+            case 504:
+                return "GATEWAY TIMEOUT";
+            default:
+                return statusCode < 500 ? "CLIENT ERROR" : "SERVER ERROR";
+        }
+    }
+
+    private static byte[] ascii(String value) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) value.charAt(i);
+        }
+        return bytes;
+    }
+}
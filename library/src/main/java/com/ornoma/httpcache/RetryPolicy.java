@@ -0,0 +1,96 @@
+package com.ornoma.httpcache;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+import static com.ornoma.httpcache.Preconditions.checkArgument;
+
+/**
+ * Decides whether failed reading of source should be repeated and how long to wait before next attempt.
+ * <p>
+ * Network errors and server's errors {@code 5xx}, {@code 408} and {@code 429} are considered transient, everything else
+ * (e.g. {@code 404}, too many redirects, certificate errors, interruption) is fatal. Delay grows exponentially
+ * from initial up to max value, every delay is randomly reduced up to a half, so clients failed at once
+ * don't retry at once.
+ */
+final class RetryPolicy {
+
+    static final RetryPolicy NO_RETRIES = new RetryPolicy(0, 0, 0);
+
+    private static final int HTTP_REQUEST_TIMEOUT = 408;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_INTERNAL_ERROR = 500;
+
+    private final Random random = new Random();
+    private final int maxRetries;
+    private final long initialDelay;
+    private final long maxDelay;
+
+    /**
+     * @param maxRetries   max count of retries in a row, i.e. without reading any data, {@code 0} disables retries.
+     * @param initialDelay a delay before first retry in milliseconds.
+     * @param maxDelay     max delay before retry in milliseconds.
+     */
+    RetryPolicy(int maxRetries, long initialDelay, long maxDelay) {
+        checkArgument(maxRetries >= 0, "Max retries count can't be negative");
+        checkArgument(initialDelay >= 0 && maxDelay >= initialDelay, "Delays can't be negative, max delay can't be less than initial");
+        this.maxRetries = maxRetries;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Checks should reading be repeated after error.
+     *
+     * @param error   an error of last attempt.
+     * @param retries count of retries already made in a row.
+     * @return {@code true} if source should be read again after {@link #getDelay(int)}.
+     */
+    boolean shouldRetry(Throwable error, int retries) {
+        return retries < maxRetries && isRetryable(error);
+    }
+
+    /**
+     * Returns delay before retry.
+     *
+     * @param retry a number of retry in a row, starting from {@code 1}.
+     * @return delay in milliseconds.
+     */
+    long getDelay(int retry) {
+        long delay = initialDelay << Math.min(retry - 1, 30);
+        delay = delay < 0 || delay > maxDelay ? maxDelay : delay;
+        return delay / 2 + (long) (random.nextDouble() * (delay - delay / 2));
+    }
+
+    static boolean isRetryable(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InterruptedProxyCacheException) {
+                return false;
+            }
+            if (cause instanceof ServerResponseException) {
+                int code = ((ServerResponseException) cause).getResponseCode();
+                return code >= HTTP_INTERNAL_ERROR || code == HTTP_REQUEST_TIMEOUT || code == HTTP_TOO_MANY_REQUESTS;
+            }
+            if (cause instanceof IOException) {
+                return isRetryable((IOException) cause);
+            }
+        }
+        return false;
+    }
+
+    private static boolean isRetryable(IOException error) {
+        boolean interrupted = error instanceof InterruptedIOException && !(error instanceof SocketTimeoutException);
+        boolean permanent = error instanceof FileNotFoundException    // 404 or 410 reported by HttpURLConnection
+                || error instanceof MalformedURLException
+                || error instanceof ProtocolException                 // e.g. too many redirects
+                || error instanceof SSLPeerUnverifiedException;
+        return !interrupted && !permanent;
+    }
+}
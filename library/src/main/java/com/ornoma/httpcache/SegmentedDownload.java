@@ -0,0 +1,352 @@
+package com.ornoma.httpcache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import static com.ornoma.httpcache.Preconditions.checkArgument;
+import static com.ornoma.httpcache.Preconditions.checkNotNull;
+
+/**
+ * Downloads source's range over several connections at once.
+ * <p>
+ * Some servers (CDNs especially) limit throughput of every connection, so single connection can't fetch content as fast
+ * as link allows. Range is split into segments fetched concurrently by helper threads into memory buffers, while source
+ * reader thread appends segments to cache strictly in order of offset, so cache stays contiguous and clients get data as soon
+ * as head segment is fetched. Segment no helper has taken yet is fetched by reader thread itself directly into cache,
+ * as well as the rest of segment which helper failed to fetch.
+ * <p>
+ * Segment's size is chosen to take about {@link #SEGMENT_DURATION_MS} with measured per-connection throughput.
+ * Count of helpers grows while segments are fetched as fast as by single connection (server limits every connection)
+ * and shrinks when they become much slower (link is saturated) or when helper fails (server refuses extra connections).
+ */
+final class SegmentedDownload {
+
+    private static final Logger LOG = LoggerFactory.getLogger("SegmentedDownload");
+    static final long FIRST_SEGMENT_SIZE = 512 * 1024;
+    static final long MIN_SEGMENT_SIZE = 256 * 1024;
+    private static final long MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final long SEGMENT_DURATION_MS = 2000;
+    private static final long MAX_BUFFERED_BYTES = 8 * 1024 * 1024;
+    private static final float GROW_THROUGHPUT_RATIO = .75f;
+    private static final float SHRINK_THROUGHPUT_RATIO = .4f;
+    private static final long WAIT_DATA_MS = 1000;
+
+    private final ProxyCache proxyCache;
+    private final Deque<Segment> segments = new ArrayDeque<>(); // not appended yet, ordered by offset
+    private final long sourceLength;
+    private final int maxHelpers;
+    private long nextOffset;
+    private long bufferedBytes;
+    private int helpers;
+    private int targetHelpers;
+    private double throughput = -1;
+    private double singleConnectionThroughput = -1;
+    private boolean cancelled;
+    private boolean rangesSupported;
+    private Source primary;
+    private long primaryOffset;
+
+    /**
+     * @param proxyCache   a proxy cache to open source's ranges and append data to.
+     * @param offset       an offset of first byte to be downloaded.
+     * @param sourceLength a length of source, data is downloaded up to the end.
+     * @param maxHelpers   max count of helper threads, i.e. extra connections to server.
+     */
+    SegmentedDownload(ProxyCache proxyCache, long offset, long sourceLength, int maxHelpers) {
+        checkArgument(offset >= 0 && offset <= sourceLength, "Offset must be in range [0.." + sourceLength + "]");
+        checkArgument(maxHelpers > 0, "Max helpers count must be positive");
+        this.proxyCache = checkNotNull(proxyCache);
+        this.nextOffset = offset;
+        this.sourceLength = sourceLength;
+        this.maxHelpers = maxHelpers;
+        this.targetHelpers = 1;
+    }
+
+    synchronized void start() {
+        startHelpers();
+    }
+
+    /**
+     * Appends all segments to cache. Must be called by source reader thread after data before download's offset is appended.
+     * <p>
+     * Source that has read data before download's offset is closed as soon as server responds to range request,
+     * until then it is kept opened: if server doesn't support ranges the rest of data is read by this source.
+     *
+     * @param offset  an offset of download, i.e. count of bytes in cache.
+     * @param primary a source read up to download's offset.
+     * @return offset of first not appended byte, less than source's length if proxy cache is stopped
+     * or server doesn't support ranges (primary source is still opened then).
+     * @throws ProxyCacheException if source can't be read.
+     */
+    long download(long offset, Source primary) throws ProxyCacheException {
+        this.primary = checkNotNull(primary);
+        this.primaryOffset = offset;
+        Segment segment;
+        while ((segment = nextSegment()) != null) {
+            closePrimaryIfRangesSupported();
+            if (segment.data != null) {
+                offset = appendFetched(segment, offset);
+                if (proxyCache.isStopped()) {
+                    return offset;
+                }
+            }
+            if (offset < segment.end) {
+                long startTime = System.currentTimeMillis();
+                Source source = proxyCache.openSourceRange(offset, segment.end - offset);
+                if (source == null) {
+                    if (primary == null || offset != primaryOffset) {
+                        throw new ProxyCacheException("Server stopped to support ranges at offset " + offset);
+                    }
+                    LOG.warn("Server doesn't support ranges, segmented download is stopped");
+                    return offset;
+                }
+                onRangeOpened();
+                closePrimaryIfRangesSupported();
+                long start = offset;
+                try {
+                    offset = proxyCache.appendSource(source, offset, segment.end, sourceLength);
+                } finally {
+                    proxyCache.closeSource(source);
+                }
+                if (proxyCache.isStopped()) {
+                    return offset;
+                }
+                if (offset < segment.end) {
+                    throw new ProxyCacheException("Source ended at " + offset + " before end of segment " + segment);
+                }
+                onFetched(offset - start, System.currentTimeMillis() - startTime);
+            }
+            onAppended(segment);
+        }
+        return offset;
+    }
+
+    /**
+     * Stops all helpers. Must be called when download is finished or failed.
+     */
+    synchronized void cancel() {
+        cancelled = true;
+        notifyAll();
+    }
+
+    /**
+     * Reports throughput of connection that read data before download's offset.
+     *
+     * @param bytes    count of bytes read.
+     * @param duration reading duration in milliseconds including opening connection.
+     */
+    void onFetched(long bytes, long duration) {
+        double segmentThroughput = (double) bytes / Math.max(duration, 1);
+        synchronized (this) {
+            throughput = throughput < 0 ? segmentThroughput : throughput * .7 + segmentThroughput * .3;
+            if (singleConnectionThroughput < 0) {
+                singleConnectionThroughput = segmentThroughput;
+            } else if (segmentThroughput >= singleConnectionThroughput * GROW_THROUGHPUT_RATIO && targetHelpers < maxHelpers) {
+                targetHelpers++;
+                startHelpers();
+            } else if (segmentThroughput < singleConnectionThroughput * SHRINK_THROUGHPUT_RATIO && targetHelpers > 1) {
+                targetHelpers--;
+            }
+        }
+    }
+
+    private synchronized void onRangeOpened() {
+        rangesSupported = true;
+    }
+
+    private void closePrimaryIfRangesSupported() {
+        boolean rangesSupported;
+        synchronized (this) {
+            rangesSupported = this.rangesSupported;
+        }
+        if (primary != null && rangesSupported) {
+            proxyCache.closeSource(primary);
+            primary = null;
+        }
+    }
+
+    private synchronized Segment nextSegment() {
+        Segment head = segments.peekFirst();
+        if (head != null || nextOffset >= sourceLength) {
+            return head;
+        }
+        Segment own = new Segment(nextOffset, nextOffset + nextSegmentSize(), false);
+        nextOffset = own.end;
+        segments.addLast(own);
+        return own;
+    }
+
+    private long appendFetched(Segment segment, long offset) throws ProxyCacheException {
+        // segment is fetched in chunks of read buffer, so it is appended with chunks of the same size
+        byte[] buffer = new byte[(int) Math.min(proxyCache.getMaxBufferSize(), segment.end - offset)];
+        while (offset < segment.end) {
+            int length;
+            synchronized (this) {
+                int position = (int) (offset - segment.offset);
+                while (segment.fetched <= position && !segment.failed) {
+                    waitData();
+                }
+                if (segment.fetched <= position) {
+                    return offset; // helper failed, the rest is read by reader itself
+                }
+                length = Math.min(segment.fetched - position, buffer.length);
+                System.arraycopy(segment.data, position, buffer, 0, length);
+            }
+            closePrimaryIfRangesSupported();
+            if (!proxyCache.appendToCache(buffer, length, offset + length, sourceLength)) {
+                return offset;
+            }
+            offset += length;
+        }
+        return offset;
+    }
+
+    private void waitData() throws ProxyCacheException {
+        try {
+            wait(WAIT_DATA_MS);
+        } catch (InterruptedException e) {
+            throw new InterruptedProxyCacheException("Waiting segment's data is interrupted", e);
+        }
+    }
+
+    private synchronized void onAppended(Segment segment) {
+        segments.remove(segment);
+        if (segment.data != null) {
+            bufferedBytes -= segment.data.length;
+            segment.data = null;
+            notifyAll();
+        }
+    }
+
+    private long nextSegmentSize() {
+        long size = throughput < 0 ? MIN_SEGMENT_SIZE : (long) (throughput * SEGMENT_DURATION_MS);
+        size = Math.max(MIN_SEGMENT_SIZE, Math.min(size, MAX_SEGMENT_SIZE));
+        long remaining = sourceLength - nextOffset;
+        return remaining - size < MIN_SEGMENT_SIZE ? remaining : size; // don't leave tiny last segment
+    }
+
+    private void startHelpers() {
+        while (!cancelled && helpers < targetHelpers && nextOffset < sourceLength) {
+            helpers++;
+            new Thread(new HelperRunnable(), "Segment reader " + helpers).start();
+        }
+    }
+
+    private synchronized Segment takeSegment() throws InterruptedException {
+        while (!cancelled && nextOffset < sourceLength && helpers <= targetHelpers) {
+            long size = Math.min(nextSegmentSize(), MAX_BUFFERED_BYTES);
+            if (bufferedBytes == 0 || bufferedBytes + size <= MAX_BUFFERED_BYTES) {
+                Segment segment = new Segment(nextOffset, nextOffset + size, true);
+                nextOffset = segment.end;
+                bufferedBytes += size;
+                segments.addLast(segment);
+                return segment;
+            }
+            wait(); // too much data is fetched ahead, wait for reader
+        }
+        helpers--;
+        return null;
+    }
+
+    private void fetch(Segment segment) {
+        long startTime = System.currentTimeMillis();
+        Source source = null;
+        try {
+            source = proxyCache.openSourceRange(segment.offset, segment.end - segment.offset);
+            if (source == null) {
+                onFailed(segment, "server doesn't support ranges");
+                return;
+            }
+            onRangeOpened();
+            AdaptiveBuffer buffer = proxyCache.newReadBuffer();
+            int readBytes;
+            while (!isFetched(segment) && (readBytes = buffer.fill(source, segment.end - segment.offset)) != -1) {
+                synchronized (this) {
+                    if (cancelled) {
+                        return;
+                    }
+                    int length = Math.min(readBytes, segment.data.length - segment.fetched);
+                    System.arraycopy(buffer.array(), 0, segment.data, segment.fetched, length);
+                    segment.fetched += length;
+                    notifyAll();
+                }
+            }
+            if (!isFetched(segment)) {
+                onFailed(segment, "source ended before end of segment");
+                return;
+            }
+            onFetched(segment.end - segment.offset, System.currentTimeMillis() - startTime);
+        } catch (Throwable e) {
+            onFailed(segment, String.valueOf(e)); // reader must know helper won't fetch segment whatever happened
+        } finally {
+            if (source != null) {
+                proxyCache.closeSource(source);
+            }
+        }
+    }
+
+    private synchronized boolean isFetched(Segment segment) {
+        return segment.data == null || segment.fetched == segment.data.length;
+    }
+
+    private synchronized void onFailed(Segment segment, String reason) {
+        if (!cancelled) {
+            LOG.warn("Error fetching segment " + segment + ": " + reason + ", it is read by reader thread");
+        }
+        segment.failed = true;
+        targetHelpers = Math.max(0, targetHelpers - 1);
+        notifyAll();
+    }
+
+    private synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    private final class HelperRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                Segment segment;
+                while ((segment = takeSegment()) != null) {
+                    fetch(segment);
+                    if (segment.failed || isCancelled()) {
+                        releaseHelper();
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                releaseHelper();
+            }
+        }
+
+        private void releaseHelper() {
+            synchronized (SegmentedDownload.this) {
+                helpers--;
+            }
+        }
+    }
+
+    private static final class Segment {
+
+        private final long offset;
+        private final long end;
+        private byte[] data;
+        private int fetched;
+        private boolean failed;
+
+        Segment(long offset, long end, boolean buffered) {
+            this.offset = offset;
+            this.end = end;
+            this.data = buffered ? new byte[(int) (end - offset)] : null;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + offset + ".." + end + ")";
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.ornoma.httpcache;
+
+/**
+ * Indicates that server responded to source's request with error code, e.g. {@code 404} or {@code 503}.
+ * <p>
+ * Thrown by {@link UrlSource}s, so proxy can tell temporary server's errors worth retrying from permanent ones.
+ */
+public class ServerResponseException extends ProxyCacheException {
+
+    private final int responseCode;
+
+    public ServerResponseException(String message, int responseCode) {
+        super(message);
+        this.responseCode = responseCode;
+    }
+
+    /**
+     * Returns http status code of server's response.
+     *
+     * @return a response code.
+     */
+    public int getResponseCode() {
+        return responseCode;
+    }
+}
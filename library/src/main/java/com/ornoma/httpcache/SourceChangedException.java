@@ -0,0 +1,15 @@
+package com.ornoma.httpcache;
+
+/**
+ * Indicates that content of source has changed on server since its part was downloaded, so downloaded data can't be
+ * continued with new one.
+ * <p>
+ * Thrown by {@link UrlSource} opened at non-zero offset when server's validators ({@code ETag}, {@code Last-Modified})
+ * differ from stored ones. Proxy discards partially cached data and downloads content again from the beginning.
+ */
+public class SourceChangedException extends ProxyCacheException {
+
+    public SourceChangedException(String message) {
+        super(message);
+    }
+}
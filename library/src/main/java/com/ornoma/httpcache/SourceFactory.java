@@ -0,0 +1,24 @@
+package com.ornoma.httpcache;
+
+import com.ornoma.httpcache.headers.HeaderInjector;
+import com.ornoma.httpcache.sourcestorage.SourceInfoStorage;
+
+/**
+ * Creates {@link UrlSource}s used by proxy to request origin servers.
+ * <p>
+ * Allows to replace built-in transport based on {@link java.net.HttpURLConnection} with another http stack
+ * (e.g. with HTTP/2, custom DNS or connection pool). Every source requesting server must be created by factory,
+ * including copies made by {@link UrlSource#copy()}. Implementation must be thread safe.
+ */
+public interface SourceFactory {
+
+    /**
+     * Creates new not opened source.
+     *
+     * @param url               an url of content.
+     * @param sourceInfoStorage a storage source's info should be taken from and put to once it is fetched.
+     * @param headerInjector    an injector of extra headers that must be sent with every request to server.
+     * @return a new source.
+     */
+    UrlSource newSource(String url, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector);
+}
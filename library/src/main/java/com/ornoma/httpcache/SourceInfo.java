@@ -10,11 +10,64 @@ public class SourceInfo {
     public final String url;
     public final long length;
     public final String mime;
+    /**
+     * Final url of source after redirects, {@code null} if source isn't redirected or location is unknown.
+     */
+    public final String location;
+    /**
+     * Time in milliseconds since epoch when {@link #location} should be resolved again.
+     */
+    public final long locationExpires;
+    /**
+     * {@code ETag} of content, {@code null} if server doesn't send it.
+     */
+    public final String etag;
+    /**
+     * {@code Last-Modified} date of content as sent by server, {@code null} if server doesn't send it.
+     */
+    public final String lastModified;
+    /**
+     * Time in milliseconds since epoch when info was received from server last time, {@code 0} if it is unknown.
+     */
+    public final long validated;
 
     public SourceInfo(String url, long length, String mime) {
+        this(url, length, mime, null, 0);
+    }
+
+    public SourceInfo(String url, long length, String mime, String location, long locationExpires) {
+        this(url, length, mime, location, locationExpires, null, null, 0);
+    }
+
+    public SourceInfo(String url, long length, String mime, String location, long locationExpires,
+                      String etag, String lastModified, long validated) {
         this.url = url;
         this.length = length;
         this.mime = mime;
+        this.location = location;
+        this.locationExpires = location == null ? 0 : locationExpires;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.validated = validated;
+    }
+
+    /**
+     * Checks whether source can be validated by server, i.e. server has sent {@code ETag} or {@code Last-Modified}.
+     *
+     * @return {@code true} if validators are known.
+     */
+    public boolean hasValidators() {
+        return etag != null || lastModified != null;
+    }
+
+    /**
+     * Returns final url of source if it is still valid.
+     *
+     * @param now current time in milliseconds since epoch.
+     * @return final url of source or {@code null} if source isn't redirected or stored location is expired.
+     */
+    public String getValidLocation(long now) {
+        return location != null && now < locationExpires ? location : null;
     }
 
     @Override
@@ -23,6 +76,9 @@ public class SourceInfo {
                 "url='" + url + '\'' +
                 ", length=" + length +
                 ", mime='" + mime + '\'' +
+                (location != null ? ", location='" + location + '\'' + ", locationExpires=" + locationExpires : "") +
+                (etag != null ? ", etag=" + etag : "") +
+                (lastModified != null ? ", lastModified='" + lastModified + '\'' : "") +
                 '}';
     }
 }
@@ -0,0 +1,161 @@
+package com.ornoma.httpcache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.ornoma.httpcache.Preconditions.checkArgument;
+
+/**
+ * Detects connections to origin servers that hang: don't respond or send data too slowly to be useful.
+ * <p>
+ * Connection that sends nothing is closed by timeout, which adapts to round trip time measured per host like TCP's
+ * retransmission timeout does (RFC 6298): smoothed RTT plus four its variations, multiplied to tolerate server's pauses
+ * and bounded by min and max value. Handshake time of new connection is used as RTT sample, it is few round trips for TLS,
+ * so timeout is rather generous. Timeout of host without samples is max one.
+ * <p>
+ * Connection that still sends something but slower than min throughput is detected by {@link Meter}. Throughput is
+ * measured by time spent waiting for data in reads only, so connection which reader doesn't read for a while
+ * (e.g. because of bandwidth limit) isn't considered stalled.
+ */
+final class StallDetector {
+
+    private static final int TIMEOUT_RTO_MULTIPLIER = 16;
+    private static final long WINDOW_MS = 10 * 1000;
+    private static final long DEFAULT_MIN_TIMEOUT_MS = 5 * 1000;
+    private static final long DEFAULT_MAX_TIMEOUT_MS = 30 * 1000;
+    private static final long DEFAULT_MIN_THROUGHPUT = 1024;
+
+    private final Map<String, RoundTripTime> roundTripTimes = new HashMap<>();
+    private final long minTimeout;
+    private final long maxTimeout;
+    private final long minThroughput;
+
+    /**
+     * @param minTimeout    min timeout of connecting and reading in milliseconds, must be positive.
+     * @param maxTimeout    max timeout in milliseconds, can't be less than min timeout.
+     * @param minThroughput min throughput of connection in bytes per second, {@code 0} means throughput isn't checked.
+     */
+    StallDetector(long minTimeout, long maxTimeout, long minThroughput) {
+        checkArgument(minTimeout > 0 && maxTimeout >= minTimeout, "Timeout must be positive, max timeout can't be less than min");
+        checkArgument(maxTimeout <= Integer.MAX_VALUE, "Timeout is too big");
+        checkArgument(minThroughput >= 0, "Min throughput can't be negative");
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+        this.minThroughput = minThroughput;
+    }
+
+    static StallDetector newDefault() {
+        return new StallDetector(DEFAULT_MIN_TIMEOUT_MS, DEFAULT_MAX_TIMEOUT_MS, DEFAULT_MIN_THROUGHPUT);
+    }
+
+    /**
+     * Reports measured round trip time to host.
+     *
+     * @param host a host, e.g. {@code https://example.com:443}.
+     * @param rtt  round trip time in milliseconds.
+     */
+    synchronized void onRoundTrip(String host, long rtt) {
+        RoundTripTime roundTripTime = roundTripTimes.get(host);
+        if (roundTripTime == null) {
+            roundTripTime = new RoundTripTime();
+            roundTripTimes.put(host, roundTripTime);
+        }
+        roundTripTime.onSample(Math.max(rtt, 1));
+    }
+
+    /**
+     * Returns timeout of connecting to host and waiting for its data.
+     *
+     * @param host a host, e.g. {@code https://example.com:443}.
+     * @return timeout in milliseconds.
+     */
+    synchronized int getTimeout(String host) {
+        RoundTripTime roundTripTime = roundTripTimes.get(host);
+        if (roundTripTime == null) {
+            return (int) maxTimeout;
+        }
+        long timeout = roundTripTime.getRetransmissionTimeout() * TIMEOUT_RTO_MULTIPLIER;
+        return (int) Math.max(minTimeout, Math.min(timeout, maxTimeout));
+    }
+
+    /**
+     * Creates meter of throughput for new connection.
+     *
+     * @return a meter, it must be used by single thread.
+     */
+    Meter newMeter() {
+        return new Meter(minThroughput, WINDOW_MS);
+    }
+
+    /**
+     * Measures throughput of single connection over windows of time spent waiting for data.
+     */
+    static final class Meter {
+
+        private final long minThroughput;
+        private final long windowNanos;
+        private long windowBytes;
+        private long windowTime;
+        private long throughput = -1;
+
+        Meter(long minThroughput, long window) {
+            this.minThroughput = minThroughput;
+            this.windowNanos = window * 1000000;
+        }
+
+        /**
+         * Reports read of connection.
+         *
+         * @param bytes    count of read bytes, {@code -1} if connection is over.
+         * @param duration duration of read in nanoseconds.
+         */
+        void onRead(int bytes, long duration) {
+            windowBytes += Math.max(bytes, 0);
+            windowTime += duration;
+            if (windowTime >= windowNanos) {
+                throughput = (long) (windowBytes * 1e9 / windowTime);
+                windowBytes = 0;
+                windowTime = 0;
+            }
+        }
+
+        /**
+         * Checks whether connection was slower than min throughput during last completed window.
+         * Connection is never stalled before first window is over.
+         *
+         * @return {@code true} if connection should be aborted.
+         */
+        boolean isStalled() {
+            return minThroughput > 0 && throughput >= 0 && throughput < minThroughput;
+        }
+
+        /**
+         * Returns throughput measured during last completed window.
+         *
+         * @return throughput in bytes per second, {@code -1} if no window is completed yet.
+         */
+        long getThroughput() {
+            return throughput;
+        }
+    }
+
+    private static final class RoundTripTime {
+
+        private long smoothed = -1;
+        private long variation;
+
+        void onSample(long rtt) {
+            if (smoothed < 0) {
+                smoothed = rtt;
+                variation = rtt / 2;
+            } else {
+                variation = (3 * variation + Math.abs(smoothed - rtt)) / 4;
+                smoothed = (7 * smoothed + rtt) / 8;
+            }
+        }
+
+        long getRetransmissionTimeout() {
+            return smoothed + 4 * variation;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.ornoma.httpcache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.ornoma.httpcache.Preconditions.checkArgument;
+import static com.ornoma.httpcache.Preconditions.checkNotNull;
+
+/**
+ * Lets {@link HttpUrlSource}s reuse persistent connections to server instead of making new TCP (and TLS) handshake for every seek.
+ * <p>
+ * Persistent connections are kept by platform's {@link HttpURLConnection} implementation, but only if connection is released
+ * by closing fully read response's stream: {@link HttpURLConnection#disconnect()} closes socket. So finished connection
+ * is returned to platform's keep-alive cache if the rest of its response is short enough to be drained and host doesn't have
+ * enough idle connections already, otherwise it is disconnected.
+ * Returned connections are tracked per host to know whether next connection to host is likely reused and how much
+ * handshake time it saved.
+ * <p>
+ * Handshake time is also used to adapt timeouts of connections to round trip time to host, see {@link StallDetector}.
+ */
+final class UpstreamConnections {
+
+    private static final Logger LOG = LoggerFactory.getLogger("UpstreamConnections");
+    // reading few kilobytes is cheaper than new handshake, reading long tail of content is not
+    private static final long MAX_DRAIN_BYTES = 64 * 1024;
+    private static final int DEFAULT_MAX_IDLE_PER_HOST = 4;
+    private static final long DEFAULT_IDLE_TIMEOUT_MS = 30 * 1000;
+
+    private final Map<String, Deque<Long>> idleConnections = new HashMap<>();
+    private final ProxyCacheMetrics metrics;
+    private final StallDetector stallDetector;
+    private final int maxIdlePerHost;
+    private final long idleTimeout;
+
+    UpstreamConnections(int maxIdlePerHost, long idleTimeout, ProxyCacheMetrics metrics) {
+        this(maxIdlePerHost, idleTimeout, StallDetector.newDefault(), metrics);
+    }
+
+    /**
+     * @param maxIdlePerHost max count of idle connections kept per host, {@code 0} means connections are never reused.
+     * @param idleTimeout    how long idle connection is considered alive, should not exceed platform's keep-alive duration.
+     * @param stallDetector  a detector of hung connections.
+     * @param metrics        metrics to report connections' reuse and stalls to.
+     */
+    UpstreamConnections(int maxIdlePerHost, long idleTimeout, StallDetector stallDetector, ProxyCacheMetrics metrics) {
+        checkArgument(maxIdlePerHost >= 0, "Max idle connections count can't be negative");
+        checkArgument(idleTimeout >= 0, "Idle timeout can't be negative");
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.idleTimeout = idleTimeout;
+        this.stallDetector = checkNotNull(stallDetector);
+        this.metrics = checkNotNull(metrics);
+    }
+
+    /**
+     * Creates instance with default limits that reports to own metrics. Used by sources created outside of proxy server.
+     *
+     * @return upstream connections.
+     */
+    static UpstreamConnections newDefault() {
+        return new UpstreamConnections(DEFAULT_MAX_IDLE_PER_HOST, DEFAULT_IDLE_TIMEOUT_MS, new ProxyCacheMetrics());
+    }
+
+    /**
+     * Connects to server measuring handshake time, connection is taken from platform's keep-alive cache if possible.
+     *
+     * @param connection a not connected yet connection.
+     * @throws IOException if connection can't be established.
+     */
+    void connect(HttpURLConnection connection) throws IOException {
+        String host = hostKey(connection.getURL());
+        boolean reused = takeIdle(host);
+        long startTime = System.nanoTime();
+        connection.connect();
+        long connectTime = (System.nanoTime() - startTime) / 1000;
+        if (!reused) {
+            stallDetector.onRoundTrip(host, connectTime / 1000);
+        }
+        metrics.onUpstreamConnected(reused, connectTime);
+    }
+
+    /**
+     * Returns timeout of connecting to server and waiting for its data adapted to round trip time to server.
+     *
+     * @param url an url to be requested.
+     * @return timeout in milliseconds.
+     */
+    int getTimeout(URL url) {
+        return stallDetector.getTimeout(hostKey(url));
+    }
+
+    /**
+     * Creates meter of throughput for connection's response, see {@link StallDetector.Meter}.
+     *
+     * @return a meter.
+     */
+    StallDetector.Meter newMeter() {
+        return stallDetector.newMeter();
+    }
+
+    /**
+     * Reports connection aborted because it has hung.
+     */
+    void onStalled() {
+        metrics.onUpstreamStalled();
+    }
+
+    /**
+     * Releases connection which response is not needed anymore.
+     *
+     * @param connection a connection to be released.
+     * @param body       a stream of response's body or {@code null} if body is not opened.
+     * @param remaining  count of body's bytes not read yet, {@code -1} if it is unknown.
+     */
+    void release(HttpURLConnection connection, InputStream body, long remaining) {
+        String host = hostKey(connection.getURL());
+        boolean persistent = !"close".equalsIgnoreCase(connection.getHeaderField("Connection"));
+        if (!persistent || remaining < 0 || remaining > MAX_DRAIN_BYTES || !reserveIdle(host)) {
+            disconnect(connection);
+            return;
+        }
+        try {
+            InputStream stream = body != null ? body : openBody(connection);
+            if (stream != null) {
+                drain(stream, remaining);
+                stream.close(); // connection is returned to keep-alive cache
+            }
+        } catch (IOException e) {
+            LOG.debug("Error draining response of " + host + ", disconnect: " + e.getMessage());
+            cancelIdle(host);
+            disconnect(connection);
+        }
+    }
+
+    private InputStream openBody(HttpURLConnection connection) {
+        try {
+            return connection.getInputStream();
+        } catch (IOException e) {
+            return connection.getErrorStream(); // response with error code
+        }
+    }
+
+    private void drain(InputStream stream, long remaining) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(Math.max(remaining, 1), ProxyCacheUtils.DEFAULT_BUFFER_SIZE)];
+        long drained = 0;
+        int read;
+        while (drained <= remaining && (read = stream.read(buffer)) != -1) {
+            drained += read;
+        }
+        if (drained > remaining) {
+            throw new IOException("Response is longer than declared");
+        }
+    }
+
+    private synchronized boolean reserveIdle(String host) {
+        Deque<Long> idle = getIdle(host);
+        if (idle.size() >= maxIdlePerHost) {
+            return false;
+        }
+        idle.addLast(System.currentTimeMillis());
+        return true;
+    }
+
+    private synchronized void cancelIdle(String host) {
+        getIdle(host).pollLast();
+    }
+
+    private synchronized boolean takeIdle(String host) {
+        return getIdle(host).pollLast() != null;
+    }
+
+    private Deque<Long> getIdle(String host) {
+        Deque<Long> idle = idleConnections.get(host);
+        if (idle == null) {
+            idle = new ArrayDeque<>();
+            idleConnections.put(host, idle);
+        }
+        long expired = System.currentTimeMillis() - idleTimeout;
+        while (!idle.isEmpty() && idle.peekFirst() < expired) {
+            idle.pollFirst(); // platform has evicted connection or will do it soon
+        }
+        return idle;
+    }
+
+    private static String hostKey(URL url) {
+        return url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() < 0 ? url.getDefaultPort() : url.getPort());
+    }
+
+    static void disconnect(HttpURLConnection connection) {
+        try {
+            connection.disconnect();
+        } catch (NullPointerException | IllegalArgumentException e) {
+            String message = "Wait... but why? WTF!? " +
+                    "Really shouldn't happen any more after fixing https://github.com/danikula/AndroidVideoCache/issues/43. " +
+                    "If you read it on your device log, please, notify me danikula@gmail.com or create issue here " +
+                    "https://github.com/danikula/AndroidVideoCache/issues.";
+            throw new RuntimeException(message, e);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            LOG.error("Error closing connection correctly. Should happen only on Android L. " +
+                    "If anybody know how to fix it, please visit https://github.com/danikula/AndroidVideoCache/issues/88. " +
+                    "Until good solution is not know, just ignore this issue :(", e);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.ornoma.httpcache;
+
+/**
+ * {@link Source} of remote content identified by url, i.e. upstream transport of proxy.
+ * <p>
+ * Besides data source knows content's info (length and mime) and headers of server's response. Info is taken from
+ * {@link com.ornoma.httpcache.sourcestorage.SourceInfoStorage} if it is known, from response to {@link #open(long, long)}
+ * or fetched from server when it is requested before source is opened.
+ * Instances are created by {@link SourceFactory}.
+ */
+public interface UrlSource extends Source {
+
+    /**
+     * Opens source to read only requested window of data, so server doesn't send bytes that are not needed.
+     * Source may read whole content if server doesn't support ranges, see {@link #isPartial()}.
+     * <p>
+     * Source opened at non-zero offset continues data downloaded earlier, so it must check that content hasn't changed
+     * since its info was stored (e.g. with {@code If-Range} request) and throw {@link SourceChangedException} otherwise.
+     *
+     * @param offset offset in bytes for source.
+     * @param length count of bytes to be read or {@code -1} if source should be read up to the end.
+     * @throws SourceChangedException if content has changed and can't be continued from offset.
+     * @throws ProxyCacheException    if error occur while opening source.
+     */
+    void open(long offset, long length) throws ProxyCacheException;
+
+    /**
+     * Checks does server respond to last {@link #open(long, long)} with requested range of data only.
+     *
+     * @return {@code true} if response is partial, {@code false} if server sends whole content.
+     */
+    boolean isPartial();
+
+    /**
+     * Returns source's url as it was passed to {@link SourceFactory}, i.e. before any redirects.
+     *
+     * @return an url, never {@code null}.
+     */
+    String getUrl();
+
+    /**
+     * Returns mime type of content fetching it from server if it is not known yet.
+     *
+     * @return a mime type or {@code null} if server doesn't send it.
+     * @throws ProxyCacheException if error occur while fetching source info.
+     */
+    String getMime() throws ProxyCacheException;
+
+    /**
+     * Returns source's info fetching it from server if it is not known yet.
+     *
+     * @return source's info, length is negative if it is unknown.
+     * @throws ProxyCacheException if error occur while fetching source info.
+     */
+    SourceInfo getSourceInfo() throws ProxyCacheException;
+
+    /**
+     * Checks whether content has changed on server since source's info was stored. Check should be cheap: conditional
+     * request ({@code If-None-Match}, {@code If-Modified-Since}) without content's body. Source's info is updated with
+     * server's response, including time of validation.
+     *
+     * @return {@code true} if content has changed, {@code false} if it is the same or it can't be known.
+     * @throws ProxyCacheException if server can't be requested.
+     */
+    boolean revalidate() throws ProxyCacheException;
+
+    /**
+     * Checks are source's length and mime known, so {@link #length()} and {@link #getMime()} don't request server.
+     *
+     * @return {@code true} if source's info is known.
+     */
+    boolean isContentInfoKnown();
+
+    /**
+     * Returns header of last server's response received by this source or by source it is copy of.
+     * Unlike {@link #getMime()} it never requests server.
+     *
+     * @param name a header's name, case insensitive.
+     * @return a header's value or {@code null} if it is unknown because server wasn't requested yet or didn't send it.
+     */
+    String getResponseHeader(String name);
+
+    /**
+     * Creates new not opened source for the same url that shares known source's info and response's headers.
+     * Used to read different ranges of content at once.
+     *
+     * @return a new source.
+     */
+    UrlSource copy();
+}
@@ -0,0 +1,214 @@
+package com.ornoma.httpcache;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.ornoma.httpcache.Preconditions.checkArgument;
+import static com.ornoma.httpcache.Preconditions.checkNotNull;
+
+/**
+ * Thread pool serving client's connections of {@link HttpProxyCacheServer.Engine#BLOCKING} engine.
+ * <p>
+ * Pool starts new thread for every task while all threads are busy and there are less than max threads,
+ * idle threads above min count are stopped after {@link #IDLE_THREAD_TIMEOUT_MS}. When all threads are busy tasks wait
+ * in queue ordered by {@link Priority}, so pings and cached content are served before content to be downloaded.
+ * New tasks are rejected when too many tasks wait, so client gets error at once instead of waiting for timeout.
+ */
+final class WorkerPool {
+
+    private static final long IDLE_THREAD_TIMEOUT_MS = 30 * 1000;
+
+    private final AtomicInteger submitted = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+    private final TaskQueue queue = new TaskQueue();
+    private final ThreadPoolExecutor executor;
+    private final ProxyCacheMetrics metrics;
+    private final int maxQueued;
+
+    /**
+     * @param minThreads count of threads kept even if they are idle.
+     * @param maxThreads max count of threads.
+     * @param maxQueued  max count of new tasks that may wait for free thread.
+     * @param metrics    metrics to report pool's occupancy to.
+     */
+    WorkerPool(int minThreads, int maxThreads, int maxQueued, ProxyCacheMetrics metrics) {
+        checkArgument(minThreads >= 0, "Min threads count can't be negative");
+        checkArgument(maxThreads > 0 && maxThreads >= minThreads, "Max threads count must be positive and not less than min count");
+        checkArgument(maxQueued >= 0, "Max queued tasks count can't be negative");
+        this.metrics = checkNotNull(metrics);
+        this.maxQueued = maxQueued;
+        this.executor = new ThreadPoolExecutor(minThreads, maxThreads, IDLE_THREAD_TIMEOUT_MS, TimeUnit.MILLISECONDS, queue,
+                new WorkerThreadFactory(), new EnqueueRejectedHandler());
+    }
+
+    /**
+     * Executes new task if pool isn't overloaded.
+     *
+     * @param task     a task to be executed.
+     * @param priority a priority of task.
+     * @return {@code false} if task is rejected because all threads are busy and too many tasks wait for them.
+     */
+    boolean execute(Runnable task, Priority priority) {
+        if (submitted.incrementAndGet() > executor.getMaximumPoolSize() + maxQueued) {
+            submitted.decrementAndGet();
+            metrics.onConnectionRejected();
+            return false;
+        }
+        return submit(task, priority);
+    }
+
+    /**
+     * Executes task that already was executed by pool, e.g. connection that yielded its thread to more important ones.
+     * Such task is never rejected because of overload.
+     *
+     * @param task     a task to be executed.
+     * @param priority a new priority of task.
+     * @return {@code false} if pool is shut down.
+     */
+    boolean reschedule(Runnable task, Priority priority) {
+        submitted.incrementAndGet();
+        return submit(task, priority);
+    }
+
+    /**
+     * Checks are there waiting tasks more important than task with given priority.
+     *
+     * @param priority a priority of task.
+     * @return {@code true} if task should yield its thread to waiting tasks.
+     */
+    boolean hasTasksAhead(Priority priority) {
+        PrioritizedTask head = (PrioritizedTask) queue.peek();
+        return head != null && head.priority.ordinal() < priority.ordinal();
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    private boolean submit(Runnable task, Priority priority) {
+        try {
+            executor.execute(new PrioritizedTask(task, priority, sequence.incrementAndGet()));
+            return true;
+        } catch (RejectedExecutionException e) {
+            submitted.decrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Priority of task, tasks with smaller ordinal are executed first.
+     */
+    enum Priority {
+        /**
+         * Connection which request is not read yet. Reading request is short and lets know request's priority.
+         */
+        NEW_CONNECTION,
+        /**
+         * Proxy's own ping, server is considered dead if it isn't answered in time.
+         */
+        PING,
+        /**
+         * Request to fully cached content, it is served fast without network.
+         */
+        CACHED,
+        /**
+         * Request to content that may be downloaded while serving.
+         */
+        NOT_CACHED
+    }
+
+    private final class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+
+        private final Runnable task;
+        private final Priority priority;
+        private final long sequence;
+        private final long createdAt;
+
+        PrioritizedTask(Runnable task, Priority priority, long sequence) {
+            this.task = task;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.createdAt = System.currentTimeMillis();
+        }
+
+        @Override
+        public void run() {
+            metrics.onWorkerTaskStarted(System.currentTimeMillis() - createdAt);
+            try {
+                task.run();
+            } finally {
+                submitted.decrementAndGet();
+                metrics.onWorkerTaskFinished();
+            }
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask another) {
+            int byPriority = priority.compareTo(another.priority);
+            if (byPriority != 0) {
+                return byPriority;
+            }
+            // tasks with equal priority are executed in order of submission
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Queue that refuses tasks while pool may start new thread, so {@link ThreadPoolExecutor} grows pool before queueing tasks.
+     */
+    private final class TaskQueue extends PriorityBlockingQueue<Runnable> {
+
+        @Override
+        public boolean offer(Runnable task) {
+            boolean allThreadsBusy = submitted.get() > executor.getPoolSize();
+            if (allThreadsBusy && executor.getPoolSize() < executor.getMaximumPoolSize()) {
+                return false;
+            }
+            return super.offer(task);
+        }
+
+        boolean forceOffer(Runnable task) {
+            return super.offer(task);
+        }
+    }
+
+    /**
+     * Queues task if pool failed to start new thread because other thread was started concurrently.
+     */
+    private final class EnqueueRejectedHandler implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown() || !queue.forceOffer(task)) {
+                throw new RejectedExecutionException("Worker pool is shut down");
+            }
+        }
+    }
+
+    private final class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Runnable countingRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    metrics.onWorkerStarted();
+                    try {
+                        runnable.run();
+                    } finally {
+                        metrics.onWorkerStopped();
+                    }
+                }
+            };
+            return new Thread(countingRunnable, "Proxy cache worker " + threadNumber.incrementAndGet());
+        }
+    }
+}
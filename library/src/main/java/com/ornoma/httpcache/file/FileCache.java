@@ -6,6 +6,9 @@ import com.ornoma.httpcache.ProxyCacheException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * {@link Cache} that uses file for storing data.
@@ -60,6 +63,31 @@ public class FileCache implements Cache {
         }
     }
 
+    /**
+     * Transfers cached data directly to channel without copying it to java heap (see {@link FileChannel#transferTo}).
+     * <p>
+     * Method doesn't hold cache's lock while transferring, so slow channel doesn't block appending new data.
+     *
+     * @param offset an offset in cache to transfer data from.
+     * @param count  maximum count of bytes to transfer, caller is responsible to not exceed {@link #available()}.
+     * @param target a channel to transfer data to.
+     * @return count of transferred bytes, may be less than requested if non-blocking channel is full.
+     * @throws IOException if data can't be transferred, usually because target channel is closed.
+     */
+    public long transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+        while (true) {
+            FileChannel channel = getChannel();
+            try {
+                return channel.transferTo(offset, count, target);
+            } catch (ClosedChannelException e) {
+                if (channel == getChannel()) {
+                    throw e;
+                }
+                // cache is completed and file is reopened, nothing is transferred yet, so just repeat with new channel
+            }
+        }
+    }
+
     @Override
     public synchronized void append(byte[] data, int length) throws ProxyCacheException {
         try {
@@ -106,6 +134,22 @@ public class FileCache implements Cache {
         }
     }
 
+    /**
+     * Removes all data of not completed cache, e.g. because content has changed on server and can't be continued.
+     *
+     * @throws ProxyCacheException if cache is completed or file can't be truncated.
+     */
+    public synchronized void discard() throws ProxyCacheException {
+        if (isCompleted()) {
+            throw new ProxyCacheException("Error discarding cache: cache file " + file + " is completed!");
+        }
+        try {
+            dataFile.setLength(0);
+        } catch (IOException e) {
+            throw new ProxyCacheException("Error truncating file " + file, e);
+        }
+    }
+
     @Override
     public synchronized boolean isCompleted() {
         return !isTempFile(file);
@@ -120,6 +164,10 @@ public class FileCache implements Cache {
         return file;
     }
 
+    private synchronized FileChannel getChannel() {
+        return dataFile.getChannel();
+    }
+
     private boolean isTempFile(File file) {
         return file.getName().endsWith(TEMP_POSTFIX);
     }
@@ -0,0 +1,99 @@
+package com.ornoma.httpcache.sourcestorage;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.ornoma.httpcache.OriginScore;
+
+import static com.ornoma.httpcache.Preconditions.checkAllNotNull;
+import static com.ornoma.httpcache.Preconditions.checkNotNull;
+
+/**
+ * Database based {@link OriginScoreStorage}. Scores are kept in own database, so schema of source's info isn't affected.
+ */
+class DatabaseOriginScoreStorage extends SQLiteOpenHelper implements OriginScoreStorage {
+
+    private static final String TABLE = "OriginScore";
+    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_ORIGIN = "origin";
+    private static final String COLUMN_TIME_TO_FIRST_BYTE = "timeToFirstByte";
+    private static final String COLUMN_THROUGHPUT = "throughput";
+    private static final String COLUMN_FAILED = "failed";
+    private static final String[] ALL_COLUMNS = new String[]{COLUMN_ID, COLUMN_ORIGIN, COLUMN_TIME_TO_FIRST_BYTE, COLUMN_THROUGHPUT, COLUMN_FAILED};
+    private static final String CREATE_SQL =
+            "CREATE TABLE " + TABLE + " (" +
+                    COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL," +
+                    COLUMN_ORIGIN + " TEXT NOT NULL," +
+                    COLUMN_TIME_TO_FIRST_BYTE + " INTEGER," +
+                    COLUMN_THROUGHPUT + " INTEGER," +
+                    COLUMN_FAILED + " INTEGER" +
+                    ");";
+
+    DatabaseOriginScoreStorage(Context context) {
+        super(context, "AndroidVideoCacheOrigins.db", null, 1);
+        checkNotNull(context);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        checkNotNull(db);
+        db.execSQL(CREATE_SQL);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        throw new IllegalStateException("Should not be called. There is no any migration");
+    }
+
+    @Override
+    public OriginScore get(String origin) {
+        checkNotNull(origin);
+        Cursor cursor = null;
+        try {
+            cursor = getReadableDatabase().query(TABLE, ALL_COLUMNS, COLUMN_ORIGIN + "=?", new String[]{origin}, null, null, null);
+            return cursor == null || !cursor.moveToFirst() ? null : convert(cursor);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    @Override
+    public void put(String origin, OriginScore originScore) {
+        checkAllNotNull(origin, originScore);
+        boolean exist = get(origin) != null;
+        ContentValues contentValues = convert(originScore);
+        if (exist) {
+            getWritableDatabase().update(TABLE, contentValues, COLUMN_ORIGIN + "=?", new String[]{origin});
+        } else {
+            getWritableDatabase().insert(TABLE, null, contentValues);
+        }
+    }
+
+    @Override
+    public void release() {
+        close();
+    }
+
+    private OriginScore convert(Cursor cursor) {
+        return new OriginScore(
+                cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_ORIGIN)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_TIME_TO_FIRST_BYTE)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_THROUGHPUT)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_FAILED))
+        );
+    }
+
+    private ContentValues convert(OriginScore originScore) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_ORIGIN, originScore.origin);
+        values.put(COLUMN_TIME_TO_FIRST_BYTE, originScore.timeToFirstByte);
+        values.put(COLUMN_THROUGHPUT, originScore.throughput);
+        values.put(COLUMN_FAILED, originScore.failed);
+        return values;
+    }
+}
@@ -23,17 +23,37 @@ class DatabaseSourceInfoStorage extends SQLiteOpenHelper implements SourceInfoSt
     private static final String COLUMN_URL = "url";
     private static final String COLUMN_LENGTH = "length";
     private static final String COLUMN_MIME = "mime";
-    private static final String[] ALL_COLUMNS = new String[]{COLUMN_ID, COLUMN_URL, COLUMN_LENGTH, COLUMN_MIME};
+    private static final String COLUMN_LOCATION = "location";
+    private static final String COLUMN_LOCATION_EXPIRES = "locationExpires";
+    private static final String COLUMN_ETAG = "etag";
+    private static final String COLUMN_LAST_MODIFIED = "lastModified";
+    private static final String COLUMN_VALIDATED = "validated";
+    private static final String[] ALL_COLUMNS = new String[]{COLUMN_ID, COLUMN_URL, COLUMN_LENGTH, COLUMN_MIME, COLUMN_LOCATION,
+            COLUMN_LOCATION_EXPIRES, COLUMN_ETAG, COLUMN_LAST_MODIFIED, COLUMN_VALIDATED};
     private static final String CREATE_SQL =
             "CREATE TABLE " + TABLE + " (" +
                     COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL," +
                     COLUMN_URL + " TEXT NOT NULL," +
                     COLUMN_MIME + " TEXT," +
-                    COLUMN_LENGTH + " INTEGER" +
+                    COLUMN_LENGTH + " INTEGER," +
+                    COLUMN_LOCATION + " TEXT," +
+                    COLUMN_LOCATION_EXPIRES + " INTEGER," +
+                    COLUMN_ETAG + " TEXT," +
+                    COLUMN_LAST_MODIFIED + " TEXT," +
+                    COLUMN_VALIDATED + " INTEGER" +
                     ");";
+    private static final String[] MIGRATION_V2_SQL = new String[]{
+            "ALTER TABLE " + TABLE + " ADD COLUMN " + COLUMN_LOCATION + " TEXT;",
+            "ALTER TABLE " + TABLE + " ADD COLUMN " + COLUMN_LOCATION_EXPIRES + " INTEGER;"
+    };
+    private static final String[] MIGRATION_V3_SQL = new String[]{
+            "ALTER TABLE " + TABLE + " ADD COLUMN " + COLUMN_ETAG + " TEXT;",
+            "ALTER TABLE " + TABLE + " ADD COLUMN " + COLUMN_LAST_MODIFIED + " TEXT;",
+            "ALTER TABLE " + TABLE + " ADD COLUMN " + COLUMN_VALIDATED + " INTEGER;"
+    };
 
     DatabaseSourceInfoStorage(Context context) {
-        super(context, "AndroidVideoCache.db", null, 1);
+        super(context, "AndroidVideoCache.db", null, 3);
         checkNotNull(context);
     }
 
@@ -45,7 +65,19 @@ class DatabaseSourceInfoStorage extends SQLiteOpenHelper implements SourceInfoSt
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        throw new IllegalStateException("Should not be called. There is no any migration");
+        checkNotNull(db);
+        if (oldVersion < 2) {
+            execSql(db, MIGRATION_V2_SQL);
+        }
+        if (oldVersion < 3) {
+            execSql(db, MIGRATION_V3_SQL);
+        }
+    }
+
+    private void execSql(SQLiteDatabase db, String[] statements) {
+        for (String sql : statements) {
+            db.execSQL(sql);
+        }
     }
 
     @Override
@@ -84,7 +116,12 @@ class DatabaseSourceInfoStorage extends SQLiteOpenHelper implements SourceInfoSt
         return new SourceInfo(
                 cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_URL)),
                 cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_LENGTH)),
-                cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_MIME))
+                cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_MIME)),
+                cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_LOCATION)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_LOCATION_EXPIRES)),
+                cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_ETAG)),
+                cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_LAST_MODIFIED)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_VALIDATED))
         );
     }
 
@@ -93,6 +130,11 @@ class DatabaseSourceInfoStorage extends SQLiteOpenHelper implements SourceInfoSt
         values.put(COLUMN_URL, sourceInfo.url);
         values.put(COLUMN_LENGTH, sourceInfo.length);
         values.put(COLUMN_MIME, sourceInfo.mime);
+        values.put(COLUMN_LOCATION, sourceInfo.location);
+        values.put(COLUMN_LOCATION_EXPIRES, sourceInfo.locationExpires);
+        values.put(COLUMN_ETAG, sourceInfo.etag);
+        values.put(COLUMN_LAST_MODIFIED, sourceInfo.lastModified);
+        values.put(COLUMN_VALIDATED, sourceInfo.validated);
         return values;
     }
 }
@@ -0,0 +1,22 @@
+package com.ornoma.httpcache.sourcestorage;
+
+import com.ornoma.httpcache.OriginScore;
+
+/**
+ * {@link OriginScoreStorage} that does nothing.
+ */
+public class NoOriginScoreStorage implements OriginScoreStorage {
+
+    @Override
+    public OriginScore get(String origin) {
+        return null;
+    }
+
+    @Override
+    public void put(String origin, OriginScore originScore) {
+    }
+
+    @Override
+    public void release() {
+    }
+}
@@ -0,0 +1,15 @@
+package com.ornoma.httpcache.sourcestorage;
+
+import com.ornoma.httpcache.OriginScore;
+
+/**
+ * Storage for {@link OriginScore}, so mirrors are chosen by measurements of previous sessions too.
+ */
+public interface OriginScoreStorage {
+
+    OriginScore get(String origin);
+
+    void put(String origin, OriginScore originScore);
+
+    void release();
+}
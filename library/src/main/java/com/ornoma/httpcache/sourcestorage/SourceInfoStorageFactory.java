@@ -16,4 +16,12 @@ public class SourceInfoStorageFactory {
     public static SourceInfoStorage newEmptySourceInfoStorage() {
         return new NoSourceInfoStorage();
     }
+
+    public static OriginScoreStorage newOriginScoreStorage(Context context) {
+        return new DatabaseOriginScoreStorage(context);
+    }
+
+    public static OriginScoreStorage newEmptyOriginScoreStorage() {
+        return new NoOriginScoreStorage();
+    }
 }
@@ -0,0 +1,140 @@
+package com.ornoma.httpcache;
+
+import com.ornoma.httpcache.support.ProxyCacheTestUtils;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayOutputStream;
+import java.net.SocketException;
+import java.util.Arrays;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doCallRealMethod;
+
+/**
+ * Tests {@link AdaptiveBuffer}.
+ */
+public class AdaptiveBufferTest extends BaseTest {
+
+    @Test
+    public void testBufferGrowsForFastSource() throws Exception {
+        byte[] data = ProxyCacheTestUtils.generate(4 * 1024 * 1024);
+        Source source = new ByteArraySource(data);
+        source.open(0);
+        AdaptiveBuffer buffer = new AdaptiveBuffer(8 * 1024, 256 * 1024, 50);
+
+        byte[] readData = readAll(buffer, source);
+
+        assertThat(readData).isEqualTo(data);
+        assertThat(buffer.size()).isEqualTo(256 * 1024);
+    }
+
+    @Test
+    public void testBufferIsFilledByFewReads() throws Exception {
+        byte[] data = ProxyCacheTestUtils.generate(20000);
+        Source source = new SlowSource(data, 1000, 5);
+        source.open(0);
+        AdaptiveBuffer buffer = new AdaptiveBuffer(4 * 1024, 256 * 1024, 1000);
+
+        int read = buffer.fill(source, Long.MAX_VALUE);
+
+        assertThat(read).isEqualTo(4 * 1024);
+        assertThat(Arrays.copyOf(buffer.array(), read)).isEqualTo(Arrays.copyOf(data, read));
+    }
+
+    @Test
+    public void testSlowSourceIsReturnedAfterFillInterval() throws Exception {
+        byte[] data = ProxyCacheTestUtils.generate(100000);
+        Source source = new SlowSource(data, 1000, 20);
+        source.open(0);
+        AdaptiveBuffer buffer = new AdaptiveBuffer(64 * 1024, 256 * 1024, 100);
+
+        long startTime = System.currentTimeMillis();
+        int read = buffer.fill(source, Long.MAX_VALUE);
+
+        assertThat(System.currentTimeMillis() - startTime).isLessThan(500);
+        assertThat(read).isGreaterThan(0).isLessThan(64 * 1024);
+        assertThat(buffer.size()).isEqualTo(64 * 1024); // never less than min size
+    }
+
+    @Test
+    public void testEveryReadIsReturnedWithoutFillInterval() throws Exception {
+        Source source = new SlowSource(ProxyCacheTestUtils.generate(20000), 1000, 0);
+        source.open(0);
+        AdaptiveBuffer buffer = new AdaptiveBuffer(8 * 1024, 256 * 1024, 0);
+
+        assertThat(buffer.fill(source, Long.MAX_VALUE)).isEqualTo(1000);
+    }
+
+    @Test
+    public void testLimitIsNotExceeded() throws Exception {
+        byte[] data = ProxyCacheTestUtils.generate(100000);
+        Source source = new ByteArraySource(data);
+        source.open(0);
+        AdaptiveBuffer buffer = new AdaptiveBuffer(8 * 1024, 256 * 1024, 50);
+
+        int read = buffer.fill(source, 20000);
+        read += buffer.fill(source, 20000 - read);
+        read += buffer.fill(source, 20000 - read);
+
+        assertThat(read).isEqualTo(20000);
+        assertThat(buffer.fill(source, 1)).isEqualTo(1);
+    }
+
+    @Test
+    public void testErrorAfterDataIsThrownByNextFill() throws Exception {
+        Source source = Mockito.spy(new SlowSource(ProxyCacheTestUtils.generate(20000), 1000, 0));
+        source.open(0);
+        ProxyCacheException networkError = new ProxyCacheException("Error reading source", new SocketException("Connection reset"));
+        doCallRealMethod().doCallRealMethod().doThrow(networkError).when(source).read(any(byte[].class));
+        AdaptiveBuffer buffer = new AdaptiveBuffer(8 * 1024, 256 * 1024, 1000);
+
+        int read = buffer.fill(source, Long.MAX_VALUE);
+        assertThat(read).isEqualTo(2000); // data read before error isn't lost
+        try {
+            buffer.fill(source, Long.MAX_VALUE);
+            fail("Error must be thrown by next fill");
+        } catch (ProxyCacheException e) {
+            assertThat(e).isSameAs(networkError);
+        }
+    }
+
+    private byte[] readAll(AdaptiveBuffer buffer, Source source) throws ProxyCacheException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int read;
+        while ((read = buffer.fill(source, Long.MAX_VALUE)) != -1) {
+            out.write(buffer.array(), 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static class SlowSource extends ByteArraySource {
+
+        private final int maxRead;
+        private final long readTime;
+
+        SlowSource(byte[] data, int maxRead, long readTime) {
+            super(data);
+            this.maxRead = maxRead;
+            this.readTime = readTime;
+        }
+
+        @Override
+        public int read(byte[] buffer) throws ProxyCacheException {
+            try {
+                Thread.sleep(readTime);
+            } catch (InterruptedException e) {
+                throw new InterruptedProxyCacheException("Reading is interrupted", e);
+            }
+            byte[] part = new byte[Math.min(maxRead, buffer.length)];
+            int read = super.read(part);
+            if (read > 0) {
+                System.arraycopy(part, 0, buffer, 0, read);
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.ornoma.httpcache;
+
+import org.junit.Test;
+
+import static com.ornoma.httpcache.BandwidthGovernor.TrafficClass.PLAYBACK;
+import static com.ornoma.httpcache.BandwidthGovernor.TrafficClass.PREFETCH;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests {@link BandwidthGovernor}.
+ */
+public class BandwidthGovernorTest extends BaseTest {
+
+    private static final int CHUNK_SIZE = 4 * 1024;
+
+    @Test
+    public void testNotLimitedByDefault() throws Exception {
+        BandwidthGovernor governor = new BandwidthGovernor();
+        long startTime = System.currentTimeMillis();
+        transfer(governor, PLAYBACK, 100 * 1024 * 1024);
+
+        assertThat(System.currentTimeMillis() - startTime).isLessThan(1000);
+        assertThat(governor.getTransferredBytes(PLAYBACK)).isEqualTo(100 * 1024 * 1024);
+    }
+
+    @Test
+    public void testTotalLimit() throws Exception {
+        BandwidthGovernor governor = new BandwidthGovernor();
+        governor.setTotalLimit(200 * 1024);
+        long startTime = System.currentTimeMillis();
+        transfer(governor, PLAYBACK, 400 * 1024); // half of a second is burst
+
+        assertThat(System.currentTimeMillis() - startTime).isGreaterThan(1200).isLessThan(3000);
+    }
+
+    @Test
+    public void testLimitIsChangedAtRuntime() throws Exception {
+        BandwidthGovernor governor = new BandwidthGovernor();
+        governor.setTotalLimit(10 * 1024);
+        transfer(governor, PLAYBACK, 5 * 1024);
+        governor.setTotalLimit(0);
+        long startTime = System.currentTimeMillis();
+        transfer(governor, PLAYBACK, 10 * 1024 * 1024);
+
+        assertThat(System.currentTimeMillis() - startTime).isLessThan(1000);
+    }
+
+    @Test
+    public void testPrefetchDoesNotStarvePlayback() throws Exception {
+        BandwidthGovernor governor = new BandwidthGovernor();
+        governor.setTotalLimit(200 * 1024);
+        governor.setBudget(PLAYBACK, 150 * 1024);
+        transferConcurrently(governor, 2000);
+
+        // playback takes its budget and borrows the rest while it needs data
+        assertThat(governor.getTransferredBytes(PLAYBACK)).isGreaterThan(governor.getTransferredBytes(PREFETCH) * 4);
+    }
+
+    @Test
+    public void testBudgetIsGuaranteed() throws Exception {
+        BandwidthGovernor governor = new BandwidthGovernor();
+        governor.setTotalLimit(200 * 1024);
+        governor.setBudget(PREFETCH, 50 * 1024);
+        transferConcurrently(governor, 2000);
+
+        assertThat(governor.getTransferredBytes(PREFETCH)).isGreaterThan(80 * 1024);
+        assertThat(governor.getTransferredBytes(PLAYBACK)).isGreaterThan(200 * 1024);
+    }
+
+    @Test
+    public void testUnusedCapacityIsBorrowed() throws Exception {
+        BandwidthGovernor governor = new BandwidthGovernor();
+        governor.setTotalLimit(200 * 1024);
+        governor.setBudget(PLAYBACK, 150 * 1024);
+        long startTime = System.currentTimeMillis();
+        transfer(governor, PREFETCH, 300 * 1024);
+
+        // prefetch has no budget, but playback doesn't use its one
+        assertThat(System.currentTimeMillis() - startTime).isLessThan(2000);
+    }
+
+    private void transfer(BandwidthGovernor governor, BandwidthGovernor.TrafficClass trafficClass, long bytes) throws Exception {
+        for (long transferred = 0; transferred < bytes; transferred += CHUNK_SIZE) {
+            governor.acquire(trafficClass);
+            governor.charge(trafficClass, CHUNK_SIZE);
+        }
+    }
+
+    private void transferConcurrently(final BandwidthGovernor governor, long durationMs) throws Exception {
+        final long endTime = System.currentTimeMillis() + durationMs;
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            final BandwidthGovernor.TrafficClass trafficClass = i == 0 ? PLAYBACK : PREFETCH;
+            threads[i] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        while (System.currentTimeMillis() < endTime) {
+                            governor.acquire(trafficClass);
+                            governor.charge(trafficClass, CHUNK_SIZE);
+                        }
+                    } catch (InterruptedProxyCacheException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+}
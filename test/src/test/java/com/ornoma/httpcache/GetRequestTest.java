@@ -3,6 +3,7 @@ package com.ornoma.httpcache;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 
 import static org.fest.assertions.api.Assertions.assertThat;
@@ -46,6 +47,36 @@ public class GetRequestTest extends BaseTest {
         assertThat(getRequest.partial).isTrue();
     }
 
+    @Test
+    public void testClosedRange() throws Exception {
+        GetRequest getRequest = new GetRequest("GET /uri HTTP/1.1\nRange: bytes=0-1023");
+        assertThat(getRequest.partial).isTrue();
+        assertThat(getRequest.rangeOffset).isEqualTo(0);
+        assertThat(getRequest.ranges).containsExactly(ByteRange.closed(0, 1023));
+    }
+
+    @Test
+    public void testSuffixRange() throws Exception {
+        GetRequest getRequest = new GetRequest("GET /uri HTTP/1.1\nRange: bytes=-500");
+        assertThat(getRequest.partial).isTrue();
+        assertThat(getRequest.ranges).containsExactly(ByteRange.suffix(500));
+        assertThat(getRequest.ranges.get(0).resolve(2000)).isEqualTo(ByteRange.closed(1500, 1999));
+        assertThat(getRequest.ranges.get(0).resolve(100)).isEqualTo(ByteRange.closed(0, 99));
+    }
+
+    @Test
+    public void testMultipleRanges() throws Exception {
+        GetRequest getRequest = new GetRequest("GET /uri HTTP/1.1\nRange: bytes=0-99, 200-, -50");
+        assertThat(getRequest.ranges).containsExactly(ByteRange.closed(0, 99), ByteRange.from(200), ByteRange.suffix(50));
+    }
+
+    @Test
+    public void testInvalidRangeIsIgnored() throws Exception {
+        assertThat(new GetRequest("GET /uri HTTP/1.1\nRange: bytes=100-50").partial).isFalse();
+        assertThat(new GetRequest("GET /uri HTTP/1.1\nRange: bytes=-").partial).isFalse();
+        assertThat(new GetRequest("GET /uri HTTP/1.1\nRange: items=1-2").partial).isFalse();
+    }
+
     @Test
     public void testMinimal() throws Exception {
         GetRequest getRequest = new GetRequest("GET /uri HTTP/1.1");
@@ -54,6 +85,78 @@ public class GetRequestTest extends BaseTest {
         assertThat(getRequest.partial).isFalse();
     }
 
+    @Test
+    public void testHeadRequest() throws Exception {
+        GetRequest headRequest = new GetRequest("HEAD /uri HTTP/1.1\nRange: bytes=100-");
+        assertThat(headRequest.head).isTrue();
+        assertThat(headRequest.uri).isEqualTo("uri");
+        assertThat(new GetRequest("GET /uri HTTP/1.1").head).isFalse();
+    }
+
+    @Test
+    public void testKeepAliveByDefaultForHttp11() throws Exception {
+        GetRequest getRequest = new GetRequest("GET /uri HTTP/1.1\nHost: 127.0.0.1:44684");
+        assertThat(getRequest.keepAlive).isTrue();
+    }
+
+    @Test
+    public void testConnectionClose() throws Exception {
+        GetRequest getRequest = new GetRequest("GET /uri HTTP/1.1\nConnection: Close\nRange: bytes=100-");
+        assertThat(getRequest.keepAlive).isFalse();
+        assertThat(getRequest.rangeOffset).isEqualTo(100);
+    }
+
+    @Test
+    public void testNoKeepAliveByDefaultForHttp10() throws Exception {
+        assertThat(new GetRequest("GET /uri HTTP/1.0").keepAlive).isFalse();
+        assertThat(new GetRequest("GET /uri HTTP/1.0\nConnection: keep-alive").keepAlive).isTrue();
+    }
+
+    @Test
+    public void testChunkedAcceptedByHttp11Only() throws Exception {
+        assertThat(new GetRequest("GET /uri HTTP/1.1").chunkedAccepted).isTrue();
+        assertThat(new GetRequest("GET /uri HTTP/1.0\nConnection: keep-alive").chunkedAccepted).isFalse();
+    }
+
+    @Test
+    public void testReadPipelinedRequests() throws Exception {
+        String requestsString = "GET /first HTTP/1.1\r\nRange: bytes=1-\r\n\r\nGET /second HTTP/1.1\r\n\r\n";
+        InputStream stream = new ByteArrayInputStream(requestsString.getBytes());
+        GetRequest first = GetRequest.read(stream);
+        GetRequest second = GetRequest.read(stream);
+        assertThat(first.uri).isEqualTo("first");
+        assertThat(first.rangeOffset).isEqualTo(1);
+        assertThat(second.uri).isEqualTo("second");
+        assertThat(second.partial).isFalse();
+        assertThat(GetRequest.read(stream)).isNull();
+    }
+
+    @Test
+    public void testDecodeUrl() throws Exception {
+        String url = "http://example.com/\u0432\u0438\u0434\u0435\u043e 1.mp4?a=b&c=%";
+        GetRequest getRequest = new GetRequest("GET /" + ProxyCacheUtils.encode(url) + " HTTP/1.1\r\n\r\n");
+        assertThat(getRequest.url).isEqualTo(url);
+        assertThat(getRequest.uri).isEqualTo(ProxyCacheUtils.encode(url));
+    }
+
+    @Test
+    public void testHeadersAreCaseInsensitive() throws Exception {
+        GetRequest getRequest = new GetRequest("GET /uri HTTP/1.1\r\nRANGE:bytes=42-100\r\nconnection: Upgrade, CLOSE\r\n\r\n");
+        assertThat(getRequest.rangeOffset).isEqualTo(42);
+        assertThat(getRequest.partial).isTrue();
+        assertThat(getRequest.keepAlive).isFalse();
+    }
+
+    @Test(expected = IOException.class)
+    public void testTooLongRequest() throws Exception {
+        StringBuilder request = new StringBuilder("GET /uri HTTP/1.1\n");
+        while (request.length() <= GetRequest.MAX_REQUEST_SIZE) {
+            request.append("Header: value\n");
+        }
+        GetRequest.read(new ByteArrayInputStream(request.toString().getBytes()));
+        fail("Too long request");
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testEmpty() throws Exception {
         GetRequest getRequest = new GetRequest("");
@@ -0,0 +1,77 @@
+package com.ornoma.httpcache;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests {@link HealthMonitor}.
+ */
+public class HealthMonitorTest extends BaseTest {
+
+    @Test
+    public void testAliveServer() throws Exception {
+        HealthMonitor.Target target = mock(HealthMonitor.Target.class);
+        when(target.ping()).thenReturn(true);
+        ProxyCacheMetrics metrics = new ProxyCacheMetrics();
+        HealthMonitor monitor = new HealthMonitor(target, metrics, 0);
+
+        assertThat(monitor.start()).isTrue();
+        assertThat(monitor.isAlive()).isTrue();
+        assertThat(metrics.isAlive()).isTrue();
+        assertThat(metrics.getPings()).isEqualTo(1);
+        assertThat(metrics.getFailedPings()).isEqualTo(0);
+        assertThat(metrics.getLastPingLatency()).isGreaterThanOrEqualTo(0);
+        verify(target, never()).restartAccepting();
+        monitor.shutdown();
+    }
+
+    @Test
+    public void testNotRespondingServerIsNotRestartedIfAccepting() throws Exception {
+        HealthMonitor.Target target = mock(HealthMonitor.Target.class);
+        when(target.ping()).thenReturn(false);
+        when(target.isAccepting()).thenReturn(true);
+        ProxyCacheMetrics metrics = new ProxyCacheMetrics();
+        HealthMonitor monitor = new HealthMonitor(target, metrics, 0);
+
+        assertThat(monitor.start()).isFalse();
+        assertThat(metrics.isAlive()).isFalse();
+        assertThat(metrics.getFailedPings()).isEqualTo(1);
+        verify(target, never()).restartAccepting();
+        monitor.shutdown();
+    }
+
+    @Test
+    public void testDeadAcceptLoopIsRestarted() throws Exception {
+        HealthMonitor.Target target = mock(HealthMonitor.Target.class);
+        when(target.ping()).thenReturn(false, true);
+        when(target.isAccepting()).thenReturn(false);
+        when(target.restartAccepting()).thenReturn(true);
+        ProxyCacheMetrics metrics = new ProxyCacheMetrics();
+        HealthMonitor monitor = new HealthMonitor(target, metrics, 0);
+
+        assertThat(monitor.start()).isTrue();
+        assertThat(metrics.getAcceptLoopRestarts()).isEqualTo(1);
+        assertThat(metrics.getPings()).isEqualTo(2);
+        assertThat(metrics.getFailedPings()).isEqualTo(1);
+        monitor.shutdown();
+    }
+
+    @Test
+    public void testRequestedCheckUpdatesState() throws Exception {
+        HealthMonitor.Target target = mock(HealthMonitor.Target.class);
+        when(target.ping()).thenReturn(false, true);
+        when(target.isAccepting()).thenReturn(true);
+        HealthMonitor monitor = new HealthMonitor(target, new ProxyCacheMetrics(), 0);
+
+        assertThat(monitor.start()).isFalse();
+        monitor.requestCheck();
+        Thread.sleep(200);
+        assertThat(monitor.isAlive()).isTrue();
+        monitor.shutdown();
+    }
+}
@@ -0,0 +1,102 @@
+package com.ornoma.httpcache;
+
+import com.ornoma.httpcache.headers.EmptyHeadersInjector;
+import com.ornoma.httpcache.sourcestorage.SourceInfoStorage;
+import com.ornoma.httpcache.sourcestorage.SourceInfoStorageFactory;
+import com.ornoma.httpcache.support.LocalOrigin;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static com.ornoma.httpcache.support.ProxyCacheTestUtils.readAll;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+/**
+ * Tests {@link HedgedSource}.
+ */
+public class HedgedSourceTest extends LocalOriginTest {
+
+    private final SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newEmptySourceInfoStorage();
+    private final UpstreamConnections upstreamConnections = new UpstreamConnections(4, 30000, new StallDetector(5000, 5000, 0), metrics);
+    private LocalOrigin mirror;
+
+    @Before
+    public void setup() throws Exception {
+        mirror = newMirror();
+    }
+
+    @Test
+    public void testSlowRequestIsHedged() throws Exception {
+        origin.delayNextResponse(2000);
+        HedgedSource source = new HedgedSource(newHttpUrlSource(origin.dataUrl()), new HedgingPolicy(95, 100, 100, 1), metrics);
+
+        long startTime = System.currentTimeMillis();
+        source.open(0);
+        assertThat(System.currentTimeMillis() - startTime).isLessThan(1500);
+        byte[] readData = readAll(source);
+
+        assertThat(readData).isEqualTo(data);
+        assertThat(origin.getRequestsCount()).isEqualTo(2);
+        assertThat(metrics.getHedgedRequests()).isEqualTo(1);
+        assertThat(metrics.getWonHedges()).isEqualTo(1);
+    }
+
+    @Test
+    public void testFastRequestIsNotHedged() throws Exception {
+        HedgedSource source = new HedgedSource(newHttpUrlSource(origin.dataUrl()), new HedgingPolicy(95, 1000, 1000, 1), metrics);
+        source.open(0);
+        byte[] readData = readAll(source);
+
+        assertThat(readData).isEqualTo(data);
+        assertThat(origin.getRequestsCount()).isEqualTo(1);
+        assertThat(metrics.getHedgedRequests()).isEqualTo(0);
+    }
+
+    @Test
+    public void testRequestIsNotHedgedOverBudget() throws Exception {
+        origin.delayNextResponse(500);
+        HedgedSource source = new HedgedSource(newHttpUrlSource(origin.dataUrl()), new HedgingPolicy(95, 100, 100, 0.5), metrics);
+
+        long startTime = System.currentTimeMillis();
+        source.open(0);
+        assertThat(System.currentTimeMillis() - startTime).isGreaterThanOrEqualTo(500);
+        readAll(source);
+
+        assertThat(origin.getRequestsCount()).isEqualTo(1);
+        assertThat(metrics.getHedgedRequests()).isEqualTo(0);
+    }
+
+    @Test
+    public void testHedgeIsSentToMirror() throws Exception {
+        origin.delayNextResponse(2000);
+        OriginSelector originSelector = new OriginSelector(SourceInfoStorageFactory.newEmptyOriginScoreStorage());
+        UrlSource mirroredSource = new MirroredSource(origin.dataUrl(),
+                Arrays.asList(newHttpUrlSource(origin.dataUrl()), newHttpUrlSource(mirror.dataUrl())), originSelector, sourceInfoStorage, metrics);
+        HedgedSource source = new HedgedSource(mirroredSource, new HedgingPolicy(95, 100, 100, 1), metrics);
+        source.open(0);
+        byte[] readData = readAll(source);
+
+        assertThat(readData).isEqualTo(data);
+        assertThat(origin.getRequestsCount()).isEqualTo(1);
+        assertThat(mirror.getRequestsCount()).isEqualTo(1);
+        assertThat(metrics.getWonHedges()).isEqualTo(1);
+    }
+
+    @Test
+    public void testErrorIsThrownIfAllRequestsFail() throws Exception {
+        HedgedSource source = new HedgedSource(newHttpUrlSource(origin.url("/missing")), new HedgingPolicy(95, 100, 100, 1), metrics);
+        try {
+            source.open(0);
+            fail("Error must be thrown");
+        } catch (ProxyCacheException e) {
+            assertThat(metrics.getHedgedRequests()).isEqualTo(0); // fast failure isn't hedged
+        }
+    }
+
+    private UrlSource newHttpUrlSource(String url) {
+        return new HttpUrlSource(url, sourceInfoStorage, new EmptyHeadersInjector(), upstreamConnections);
+    }
+}
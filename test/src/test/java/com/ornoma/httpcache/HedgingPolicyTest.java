@@ -0,0 +1,97 @@
+package com.ornoma.httpcache;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests {@link HedgingPolicy}.
+ */
+public class HedgingPolicyTest extends BaseTest {
+
+    @Test
+    public void testMaxDelayIsUsedUntilEnoughRequestsAreMeasured() throws Exception {
+        HedgingPolicy hedgingPolicy = new HedgingPolicy(95, 10, 1000, 0.1);
+        assertThat(hedgingPolicy.getDelay()).isEqualTo(1000);
+
+        for (int i = 0; i < 10; i++) {
+            hedgingPolicy.onResponse(50);
+        }
+        assertThat(hedgingPolicy.getDelay()).isEqualTo(1000);
+    }
+
+    @Test
+    public void testDelayIsPercentileOfTimeToFirstByte() throws Exception {
+        HedgingPolicy hedgingPolicy = new HedgingPolicy(95, 10, 1000, 0.1);
+        for (int i = 1; i <= 100; i++) {
+            hedgingPolicy.onResponse(i * 2);
+        }
+        assertThat(hedgingPolicy.getDelay()).isEqualTo(190);
+    }
+
+    @Test
+    public void testDelayIsBounded() throws Exception {
+        HedgingPolicy hedgingPolicy = new HedgingPolicy(50, 100, 200, 0.1);
+        for (int i = 0; i < 20; i++) {
+            hedgingPolicy.onResponse(10);
+        }
+        assertThat(hedgingPolicy.getDelay()).isEqualTo(100);
+
+        for (int i = 0; i < 40; i++) {
+            hedgingPolicy.onResponse(5000);
+        }
+        assertThat(hedgingPolicy.getDelay()).isEqualTo(200);
+    }
+
+    @Test
+    public void testOldRequestsAreForgotten() throws Exception {
+        HedgingPolicy hedgingPolicy = new HedgingPolicy(95, 0, 10000, 0.1);
+        for (int i = 0; i < 200; i++) {
+            hedgingPolicy.onResponse(5000);
+        }
+        for (int i = 0; i < 128; i++) {
+            hedgingPolicy.onResponse(100);
+        }
+        assertThat(hedgingPolicy.getDelay()).isEqualTo(100);
+    }
+
+    @Test
+    public void testHedgesAreLimitedByBudget() throws Exception {
+        HedgingPolicy hedgingPolicy = new HedgingPolicy(95, 0, 1000, 0.25);
+        int hedges = 0;
+        for (int i = 0; i < 100; i++) {
+            hedgingPolicy.onRequest();
+            if (hedgingPolicy.tryHedge()) {
+                hedges++;
+            }
+        }
+        assertThat(hedges).isEqualTo(25);
+    }
+
+    @Test
+    public void testBurstOfHedgesIsLimited() throws Exception {
+        HedgingPolicy hedgingPolicy = new HedgingPolicy(95, 0, 1000, 1);
+        for (int i = 0; i < 100; i++) {
+            hedgingPolicy.onRequest();
+        }
+        int hedges = 0;
+        while (hedgingPolicy.tryHedge()) {
+            hedges++;
+        }
+        assertThat(hedges).isEqualTo(5);
+    }
+
+    @Test
+    public void testDisabledPolicyNeverHedges() throws Exception {
+        HedgingPolicy hedgingPolicy = HedgingPolicy.newDisabled();
+        hedgingPolicy.onRequest();
+
+        assertThat(hedgingPolicy.isEnabled()).isFalse();
+        assertThat(hedgingPolicy.tryHedge()).isFalse();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBudgetIsChecked() throws Exception {
+        new HedgingPolicy(95, 0, 1000, 1.5);
+    }
+}
@@ -7,18 +7,31 @@ import com.danikula.android.garden.io.IoUtils;
 import com.ornoma.httpcache.file.FileNameGenerator;
 import com.ornoma.httpcache.file.Md5FileNameGenerator;
 import com.ornoma.httpcache.headers.HeaderInjector;
+import com.ornoma.httpcache.sourcestorage.SourceInfoStorage;
+import com.ornoma.httpcache.support.LocalOrigin;
 import com.ornoma.httpcache.support.ProxyCacheTestUtils;
 import com.ornoma.httpcache.support.Response;
 
 import org.fest.assertions.api.Assertions;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 import org.mockito.Mockito;
 import org.robolectric.RuntimeEnvironment;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.danikula.android.garden.io.Files.cleanDirectory;
 import static com.danikula.android.garden.io.Files.createDirectory;
@@ -139,6 +152,42 @@ public class HttpProxyCacheServerTest extends BaseTest {
         Assertions.assertThat(ProxyCacheTestUtils.getFileContent(response.first)).isEqualTo(ProxyCacheTestUtils.loadAssetFile(ProxyCacheTestUtils.ASSETS_DATA_BIG_NAME));
     }
 
+    @Test
+    public void testProxyFullResponseWithNioEngine() throws Exception {
+        HttpProxyCacheServer proxy = newProxy(cacheFolder, HttpProxyCacheServer.Engine.NIO);
+        Response response = readProxyResponse(proxy, ProxyCacheTestUtils.HTTP_DATA_BIG_URL);
+        proxy.shutdown();
+
+        assertThat(response.code).isEqualTo(200);
+        assertThat(response.contentLength).isEqualTo(ProxyCacheTestUtils.HTTP_DATA_BIG_SIZE);
+        assertThat(response.contentType).isEqualTo("image/jpeg");
+        assertThat(response.data).isEqualTo(ProxyCacheTestUtils.loadAssetFile(ProxyCacheTestUtils.ASSETS_DATA_BIG_NAME));
+        assertThat(ProxyCacheTestUtils.getFileContent(file(cacheFolder, ProxyCacheTestUtils.HTTP_DATA_BIG_URL))).isEqualTo(response.data);
+    }
+
+    @Test
+    public void testProxyPartialResponseWithNioEngine() throws Exception {
+        int offset = 18000;
+        HttpProxyCacheServer proxy = newProxy(cacheFolder, HttpProxyCacheServer.Engine.NIO);
+        Response response = readProxyResponse(proxy, ProxyCacheTestUtils.HTTP_DATA_BIG_URL, offset);
+        proxy.shutdown();
+
+        assertThat(response.code).isEqualTo(206);
+        assertThat(response.contentLength).isEqualTo(ProxyCacheTestUtils.HTTP_DATA_BIG_SIZE - offset);
+        String rangeHeader = String.format("bytes %d-%d/%d", offset, ProxyCacheTestUtils.HTTP_DATA_BIG_SIZE - 1, ProxyCacheTestUtils.HTTP_DATA_BIG_SIZE);
+        assertThat(response.headers.get("Content-Range").get(0)).isEqualTo(rangeHeader);
+        byte[] expectedData = Arrays.copyOfRange(ProxyCacheTestUtils.loadAssetFile(ProxyCacheTestUtils.ASSETS_DATA_BIG_NAME), offset, ProxyCacheTestUtils.HTTP_DATA_BIG_SIZE);
+        assertThat(response.data).isEqualTo(expectedData);
+    }
+
+    @Test
+    public void testPingWithNioEngine() throws Exception {
+        HttpProxyCacheServer proxy = newProxy(cacheFolder, HttpProxyCacheServer.Engine.NIO);
+        Pinger pinger = new Pinger("127.0.0.1", ProxyCacheTestUtils.getPortWithoutPing(proxy));
+        assertThat(pinger.ping(1, 100)).isTrue();
+        proxy.shutdown();
+    }
+
     @Test
     public void testMaxSizeCacheLimit() throws Exception {
         HttpProxyCacheServer proxy = new HttpProxyCacheServer.Builder(RuntimeEnvironment.application)
@@ -361,7 +410,498 @@ public class HttpProxyCacheServerTest extends BaseTest {
         ProxyCacheTestUtils.readProxyResponse(proxy, ProxyCacheTestUtils.HTTP_DATA_URL);
         proxy.shutdown();
 
-        verify(mockedHeaderInjector, times(2)).addHeaders(ProxyCacheTestUtils.HTTP_DATA_URL);   // content info & fetch data requests
+        verify(mockedHeaderInjector, times(1)).addHeaders(ProxyCacheTestUtils.HTTP_DATA_URL);   // content info is taken from data request
+    }
+
+    @Test
+    public void testCustomSourceFactoryIsUsed() throws Exception {
+        SourceFactory sourceFactory = Mockito.spy(new HttpUrlSourceFactory(UpstreamConnections.newDefault(), 60 * 1000));
+        HttpProxyCacheServer proxy = new HttpProxyCacheServer.Builder(RuntimeEnvironment.application)
+                .cacheDirectory(cacheFolder)
+                .sourceFactory(sourceFactory)
+                .build();
+
+        Response response = readProxyResponse(proxy, ProxyCacheTestUtils.HTTP_DATA_URL);
+        proxy.shutdown();
+
+        assertThat(response.data).isEqualTo(ProxyCacheTestUtils.loadAssetFile(ProxyCacheTestUtils.ASSETS_DATA_NAME));
+        verify(sourceFactory).newSource(Mockito.eq(ProxyCacheTestUtils.HTTP_DATA_URL), Mockito.any(SourceInfoStorage.class), Mockito.any(HeaderInjector.class));
+    }
+
+    @Test
+    public void testHeadRequestDoesNotCacheContent() throws Exception {
+        HttpProxyCacheServer proxy = newProxy(cacheFolder);
+        URL proxiedUrl = new URL(proxy.getProxyUrl(ProxyCacheTestUtils.HTTP_DATA_BIG_URL, false));
+        HttpURLConnection connection = (HttpURLConnection) proxiedUrl.openConnection();
+        connection.setRequestMethod("HEAD");
+        Response response;
+        try {
+            response = new Response(connection);
+        } finally {
+            connection.disconnect();
+            proxy.shutdown();
+        }
+
+        assertThat(response.code).isEqualTo(200);
+        assertThat(response.contentLength).isEqualTo(ProxyCacheTestUtils.HTTP_DATA_BIG_SIZE);
+        assertThat(response.contentType).isEqualTo("image/jpeg");
+        assertThat(response.data).isEmpty();
+        assertThat(file(cacheFolder, ProxyCacheTestUtils.HTTP_DATA_BIG_URL).exists()).isFalse();
+        assertThat(ProxyCacheTestUtils.getTempFile(file(cacheFolder, ProxyCacheTestUtils.HTTP_DATA_BIG_URL)).exists()).isFalse();
+    }
+
+    @Test
+    public void testHeadRequestForMissingContentReturnsServerError() throws Exception {
+        LocalOrigin origin = new LocalOrigin(ProxyCacheTestUtils.generate(20000), "video/mp4");
+        HttpProxyCacheServer proxy = newProxy(cacheFolder);
+        String url = origin.url("/missing");
+        int responseCode;
+        try {
+            responseCode = headResponseCode(proxy, url);
+        } finally {
+            proxy.shutdown();
+            origin.shutdown();
+        }
+
+        assertThat(responseCode).isEqualTo(404);
+        assertThat(file(cacheFolder, url).exists()).isFalse();
+    }
+
+    @Test
+    public void testHeadRequestForUnreachableServerReturnsBadGateway() throws Exception {
+        LocalOrigin origin = new LocalOrigin(ProxyCacheTestUtils.generate(20000), "video/mp4");
+        String url = origin.dataUrl();
+        origin.shutdown();
+        HttpProxyCacheServer proxy = newProxy(cacheFolder);
+        int responseCode;
+        try {
+            responseCode = headResponseCode(proxy, url);
+        } finally {
+            proxy.shutdown();
+        }
+
+        assertThat(responseCode).isEqualTo(502);
+    }
+
+    @Test
+    public void testNioEngineRejectsRequestIfAllWorkersAreBusy() throws Exception {
+        byte[] data = ProxyCacheTestUtils.generate(20000);
+        LocalOrigin origin = new LocalOrigin(data, "video/mp4");
+        origin.delayNextResponse(2000);
+        HttpProxyCacheServer proxy = new HttpProxyCacheServer.Builder(RuntimeEnvironment.application)
+                .cacheDirectory(cacheFolder)
+                .engine(HttpProxyCacheServer.Engine.NIO)
+                .workerThreads(0, 1)
+                .maxQueuedConnections(0)
+                .build();
+        final URL proxiedUrl = new URL(proxy.getProxyUrl(origin.dataUrl(), false));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Response response;
+        int rejectedResponseCode;
+        try {
+            Future<Response> slowResponse = executor.submit(new Callable<Response>() {
+                @Override
+                public Response call() throws Exception {
+                    return readResponse(proxiedUrl);
+                }
+            });
+            Thread.sleep(500); // the only worker waits for slow server
+            rejectedResponseCode = readResponseCode(proxiedUrl);
+            response = slowResponse.get();
+        } finally {
+            executor.shutdown();
+            proxy.shutdown();
+            origin.shutdown();
+        }
+
+        assertThat(rejectedResponseCode).isEqualTo(503);
+        assertThat(response.data).isEqualTo(data);
+        assertThat(proxy.getMetrics().getRejectedConnections()).isEqualTo(1);
+    }
+
+    @Test
+    public void testStartInBackground() throws Exception {
+        HttpProxyCacheServer proxy = new HttpProxyCacheServer.Builder(RuntimeEnvironment.application)
+                .cacheDirectory(cacheFolder)
+                .startInBackground(5000)
+                .build();
+        Response response = readProxyResponse(proxy, ProxyCacheTestUtils.HTTP_DATA_URL);
+        proxy.shutdown();
+
+        assertThat(response.code).isEqualTo(200);
+        assertThat(response.data).isEqualTo(ProxyCacheTestUtils.loadTestData());
+        assertThat(proxy.getMetrics().isAlive()).isTrue();
+    }
+
+    @Test
+    public void testOriginalUrlUntilStartedInBackground() throws Exception {
+        HttpProxyCacheServer proxy = new HttpProxyCacheServer.Builder(RuntimeEnvironment.application)
+                .cacheDirectory(cacheFolder)
+                .startInBackground(0)
+                .build();
+        String url = proxy.getProxyUrl(ProxyCacheTestUtils.HTTP_DATA_URL, false);
+        boolean started = proxy.getMetrics().isAlive();
+        proxy.shutdown();
+
+        assertThat(url.startsWith("http://127.0.0.1")).isEqualTo(started);
+    }
+
+    @Test
+    public void testNotCompletedRequestIsClosedByHeaderTimeout() throws Exception {
+        for (HttpProxyCacheServer.Engine engine : HttpProxyCacheServer.Engine.values()) {
+            HttpProxyCacheServer proxy = new HttpProxyCacheServer.Builder(RuntimeEnvironment.application)
+                    .cacheDirectory(cacheFolder)
+                    .engine(engine)
+                    .headerTimeout(300)
+                    .build();
+            URL proxiedUrl = new URL(proxy.getProxyUrl(ProxyCacheTestUtils.HTTP_DATA_URL, false));
+            Socket socket = new Socket(proxiedUrl.getHost(), proxiedUrl.getPort());
+            int read;
+            try {
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write(("GET " + proxiedUrl.getPath() + " HTTP/1.1\r\nRange: bytes=").getBytes("US-ASCII"));
+                read = socket.getInputStream().read();
+            } finally {
+                socket.close();
+                proxy.shutdown();
+            }
+
+            assertThat(read).isEqualTo(-1);
+            assertThat(proxy.getMetrics().getHeaderTimeouts()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testIdleKeptAliveConnectionIsClosed() throws Exception {
+        HttpProxyCacheServer proxy = new HttpProxyCacheServer.Builder(RuntimeEnvironment.application)
+                .cacheDirectory(cacheFolder)
+                .keepAliveTimeout(300)
+                .build();
+        URL proxiedUrl = new URL(proxy.getProxyUrl(ProxyCacheTestUtils.HTTP_DATA_URL, false));
+        Socket socket = new Socket(proxiedUrl.getHost(), proxiedUrl.getPort());
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        try {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(("GET " + proxiedUrl.getPath() + " HTTP/1.1\r\nRange: bytes=0-9\r\n\r\n").getBytes("US-ASCII"));
+            IoUtils.copy(socket.getInputStream(), response); // ends when proxy closes idle connection
+        } finally {
+            socket.close();
+            proxy.shutdown();
+        }
+
+        assertThat(new String(response.toByteArray(), "US-ASCII")).startsWith("HTTP/1.1 206");
+        assertThat(proxy.getMetrics().getIdleTimeouts()).isEqualTo(1);
+    }
+
+    @Test
+    public void testUnchangedExpiredCacheIsUsed() throws Exception {
+        byte[] data = ProxyCacheTestUtils.generate(20000);
+        LocalOrigin origin = new LocalOrigin(data, "video/mp4");
+        HttpProxyCacheServer proxy = newRevalidatingProxy();
+        String url = origin.dataUrl();
+        Response response;
+        int requestsCount;
+        try {
+            readProxyResponse(proxy, url);
+            waitForReleasingCache();
+            requestsCount = origin.getRequestsCount();
+            response = readProxyResponse(proxy, url);
+        } finally {
+            proxy.shutdown();
+            origin.shutdown();
+        }
+
+        assertThat(response.data).isEqualTo(data);
+        assertThat(origin.getRequestsCount()).isEqualTo(requestsCount + 1); // conditional request without content
+        assertThat(proxy.getMetrics().getRevalidations()).isEqualTo(1);
+        assertThat(proxy.getMetrics().getNotModifiedRevalidations()).isEqualTo(1);
+    }
+
+    @Test
+    public void testChangedExpiredCacheIsDownloadedAgain() throws Exception {
+        byte[] newData = ProxyCacheTestUtils.generate(30000);
+        LocalOrigin origin = new LocalOrigin(ProxyCacheTestUtils.generate(20000), "video/mp4");
+        HttpProxyCacheServer proxy = newRevalidatingProxy();
+        String url = origin.dataUrl();
+        Response response;
+        try {
+            readProxyResponse(proxy, url);
+            waitForReleasingCache();
+            origin.setContent(newData, "\"changed\"");
+            response = readProxyResponse(proxy, url);
+        } finally {
+            proxy.shutdown();
+            origin.shutdown();
+        }
+
+        assertThat(response.data).isEqualTo(newData);
+        assertThat(ProxyCacheTestUtils.getFileContent(file(cacheFolder, url))).isEqualTo(newData);
+        assertThat(proxy.getMetrics().getRevalidations()).isEqualTo(1);
+        assertThat(proxy.getMetrics().getNotModifiedRevalidations()).isEqualTo(0);
+    }
+
+    @Test
+    public void testChangedStaleCacheIsNotDeletedWhileItIsRead() throws Exception {
+        byte[] data = ProxyCacheTestUtils.generate(4 * 1024 * 1024);
+        byte[] newData = ProxyCacheTestUtils.generate(30000);
+        LocalOrigin origin = new LocalOrigin(data, "video/mp4");
+        HttpProxyCacheServer proxy = new HttpProxyCacheServer.Builder(RuntimeEnvironment.application)
+                .cacheDirectory(cacheFolder)
+                .revalidation(0, 60000)
+                .build();
+        String url = origin.dataUrl();
+        File cacheFile = file(cacheFolder, url);
+        ByteArrayOutputStream readData = new ByteArrayOutputStream();
+        boolean existsWhileRead;
+        boolean existsAfterRead;
+        Response newResponse;
+        try {
+            readProxyResponse(proxy, url);
+            waitForReleasingCache();
+            origin.setContent(newData, "\"changed\"");
+
+            InputStream in = new URL(proxy.getProxyUrl(url, false)).openStream();
+            try {
+                byte[] buffer = new byte[1024];
+                readData.write(buffer, 0, in.read(buffer)); // stale cache is revalidated in background while it is read
+                long deadline = System.currentTimeMillis() + 5000;
+                while (proxy.getMetrics().getRevalidations() == 0 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                waitForReleasingCache();
+                existsWhileRead = cacheFile.exists();
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    readData.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            waitForReleasingCache();
+            existsAfterRead = cacheFile.exists();
+            newResponse = readProxyResponse(proxy, url);
+        } finally {
+            proxy.shutdown();
+            origin.shutdown();
+        }
+
+        assertThat(proxy.getMetrics().getRevalidations()).isEqualTo(1);
+        assertThat(proxy.getMetrics().getNotModifiedRevalidations()).isEqualTo(0);
+        assertThat(existsWhileRead).isTrue();
+        assertThat(readData.toByteArray()).isEqualTo(data);
+        assertThat(existsAfterRead).isFalse();
+        assertThat(newResponse.data).isEqualTo(newData);
+    }
+
+    @Test
+    public void testFreshnessOfCachedFileIsLoadedInBackground() throws Exception {
+        LocalOrigin origin = new LocalOrigin(ProxyCacheTestUtils.generate(20000), "video/mp4");
+        String url = origin.dataUrl();
+        HttpProxyCacheServer proxy = newProxy(cacheFolder);
+        try {
+            readProxyResponse(proxy, url);
+            waitForReleasingCache();
+        } finally {
+            proxy.shutdown();
+        }
+
+        HttpProxyCacheServer revalidatingProxy = new HttpProxyCacheServer.Builder(RuntimeEnvironment.application)
+                .cacheDirectory(cacheFolder)
+                .revalidation(60000, 0)
+                .build();
+        boolean cachedBeforeLoading;
+        boolean cached;
+        try {
+            cachedBeforeLoading = revalidatingProxy.isCached(url); // storage isn't read on caller's thread
+            waitForKnownFreshness();
+            cached = revalidatingProxy.isCached(url);
+        } finally {
+            revalidatingProxy.shutdown();
+            origin.shutdown();
+        }
+
+        assertThat(cachedBeforeLoading).isTrue(); // file exists, its freshness is checked in background
+        assertThat(cached).isTrue();
+        assertThat(revalidatingProxy.getMetrics().getRevalidations()).isEqualTo(0);
+    }
+
+    @Test
+    public void testStaleCacheIsNotReturnedAsFile() throws Exception {
+        LocalOrigin origin = new LocalOrigin(ProxyCacheTestUtils.generate(20000), "video/mp4");
+        HttpProxyCacheServer proxy = new HttpProxyCacheServer.Builder(RuntimeEnvironment.application)
+                .cacheDirectory(cacheFolder)
+                .revalidation(0, 60000)
+                .build();
+        String url = origin.dataUrl();
+        boolean cached;
+        String proxyUrl;
+        String fileOrProxyUrl;
+        try {
+            readProxyResponse(proxy, url);
+            waitForReleasingCache();
+            proxy.isCached(url); // starts loading validation time in background
+            waitForKnownFreshness();
+            cached = proxy.isCached(url);
+            proxyUrl = proxy.getProxyUrl(url, false);
+            fileOrProxyUrl = proxy.getProxyUrl(url, true);
+        } finally {
+            proxy.shutdown();
+            origin.shutdown();
+        }
+
+        assertThat(cached).isTrue();
+        assertThat(fileOrProxyUrl).isEqualTo(proxyUrl); // revalidation may delete file before player opens it
+    }
+
+    @Test
+    public void testExpiredCacheIsNotCached() throws Exception {
+        LocalOrigin origin = new LocalOrigin(ProxyCacheTestUtils.generate(20000), "video/mp4");
+        HttpProxyCacheServer proxy = newRevalidatingProxy();
+        String url = origin.dataUrl();
+        boolean cached;
+        try {
+            readProxyResponse(proxy, url);
+            waitForReleasingCache();
+            proxy.isCached(url); // starts loading validation time in background
+            waitForKnownFreshness();
+            cached = proxy.isCached(url);
+        } finally {
+            proxy.shutdown();
+            origin.shutdown();
+        }
+
+        assertThat(file(cacheFolder, url).exists()).isTrue();
+        assertThat(cached).isFalse(); // cache is revalidated before use
+    }
+
+    @Test
+    public void testContentIsDownloadedFromMirror() throws Exception {
+        byte[] data = ProxyCacheTestUtils.generate(20000);
+        LocalOrigin origin = new LocalOrigin(data, "video/mp4");
+        LocalOrigin mirror = new LocalOrigin(data, "video/mp4");
+        HttpProxyCacheServer proxy = newProxy(cacheFolder);
+        String url = origin.url("/missing");
+        proxy.registerMirrors(url, Arrays.asList(mirror.dataUrl()));
+        Response response;
+        try {
+            response = readProxyResponse(proxy, url);
+            waitForReleasingCache();
+        } finally {
+            proxy.shutdown();
+            origin.shutdown();
+            mirror.shutdown();
+        }
+
+        assertThat(response.data).isEqualTo(data);
+        assertThat(ProxyCacheTestUtils.getFileContent(file(cacheFolder, url))).isEqualTo(data);
+    }
+
+    @Test
+    public void testSourceIsPrewarmedWhenProxyUrlIsGot() throws Exception {
+        byte[] data = ProxyCacheTestUtils.generate(20000);
+        LocalOrigin origin = new LocalOrigin(data, "video/mp4");
+        HttpProxyCacheServer proxy = new HttpProxyCacheServer.Builder(RuntimeEnvironment.application)
+                .cacheDirectory(cacheFolder)
+                .prewarm(10000)
+                .build();
+        Response response;
+        try {
+            proxy.getProxyUrl(origin.dataUrl(), false);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (proxy.getMetrics().getPrewarmedSources() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            response = readProxyResponse(proxy, origin.dataUrl());
+            waitForReleasingCache();
+        } finally {
+            proxy.shutdown();
+            origin.shutdown();
+        }
+
+        assertThat(response.data).isEqualTo(data);
+        assertThat(proxy.getMetrics().getPrewarmedSources()).isEqualTo(1);
+        assertThat(proxy.getMetrics().getUsedPrewarmedSources()).isEqualTo(1);
+    }
+
+    @Ignore("Benchmark, it takes a while and only prints results")
+    @Test
+    public void testCachedContentServingBenchmark() throws Exception {
+        int dataSize = 40 * 1024 * 1024;
+        int responsesPerRound = 10;
+        LocalOrigin origin = new LocalOrigin(ProxyCacheTestUtils.generate(dataSize), "video/mp4");
+        com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        try {
+            for (HttpProxyCacheServer.Engine engine : HttpProxyCacheServer.Engine.values()) {
+                cleanDirectory(cacheFolder);
+                HttpProxyCacheServer proxy = newProxy(cacheFolder, engine);
+                try {
+                    URL proxiedUrl = new URL(proxy.getProxyUrl(origin.dataUrl(), false));
+                    assertThat(readBytesCount(proxiedUrl)).isEqualTo(dataSize); // fills cache
+                    for (int round = 0; round < 3; round++) {
+                        long startCpuTime = os.getProcessCpuTime();
+                        long startTime = System.nanoTime();
+                        long served = 0;
+                        for (int i = 0; i < responsesPerRound; i++) {
+                            served += readBytesCount(proxiedUrl);
+                        }
+                        double megabytes = served / (1024.0 * 1024);
+                        double cpuMs = (os.getProcessCpuTime() - startCpuTime) / 1e6;
+                        double seconds = (System.nanoTime() - startTime) / 1e9;
+                        System.out.println(String.format("%s: served %.0f MB of cache, %.0f MB/s, %.2f ms of CPU per MB",
+                                engine, megabytes, megabytes / seconds, cpuMs / megabytes));
+                        assertThat(served).isEqualTo((long) dataSize * responsesPerRound);
+                    }
+                } finally {
+                    proxy.shutdown();
+                }
+            }
+        } finally {
+            origin.shutdown();
+        }
+    }
+
+    private long readBytesCount(URL url) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long count = 0;
+        InputStream in = url.openStream();
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                count += read;
+            }
+        } finally {
+            in.close();
+        }
+        return count;
+    }
+
+    private Response readResponse(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            return new Response(connection);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private int readResponseCode(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private int headResponseCode(HttpProxyCacheServer proxy, String url) throws IOException {
+        URL proxiedUrl = new URL(proxy.getProxyUrl(url, false));
+        HttpURLConnection connection = (HttpURLConnection) proxiedUrl.openConnection();
+        connection.setRequestMethod("HEAD");
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
     }
 
     private Pair<File, Response> readProxyData(String url, int offset) throws IOException {
@@ -385,12 +925,32 @@ public class HttpProxyCacheServerTest extends BaseTest {
     }
 
     private HttpProxyCacheServer newProxy(File cacheDir) {
+        return newProxy(cacheDir, HttpProxyCacheServer.Engine.BLOCKING);
+    }
+
+    private HttpProxyCacheServer newProxy(File cacheDir, HttpProxyCacheServer.Engine engine) {
         return new HttpProxyCacheServer.Builder(RuntimeEnvironment.application)
                 .cacheDirectory(cacheDir)
+                .engine(engine)
+                .build();
+    }
+
+    private HttpProxyCacheServer newRevalidatingProxy() {
+        return new HttpProxyCacheServer.Builder(RuntimeEnvironment.application)
+                .cacheDirectory(cacheFolder)
+                .revalidation(0, 0)
                 .build();
     }
 
+    private void waitForKnownFreshness() throws InterruptedException {
+        Thread.sleep(500);
+    }
+
     private void waitForAsyncTrimming() throws InterruptedException {
         Thread.sleep(500);
     }
+
+    private void waitForReleasingCache() throws InterruptedException {
+        Thread.sleep(200); // proxy finishes request a bit after client has read response
+    }
 }
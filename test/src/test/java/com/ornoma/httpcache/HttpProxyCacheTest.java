@@ -2,8 +2,10 @@ package com.ornoma.httpcache;
 
 import com.danikula.android.garden.io.IoUtils;
 import com.ornoma.httpcache.file.FileCache;
+import com.ornoma.httpcache.headers.EmptyHeadersInjector;
 import com.ornoma.httpcache.sourcestorage.SourceInfoStorage;
 import com.ornoma.httpcache.sourcestorage.SourceInfoStorageFactory;
+import com.ornoma.httpcache.support.LocalOrigin;
 import com.ornoma.httpcache.support.ProxyCacheTestUtils;
 import com.ornoma.httpcache.support.Response;
 
@@ -15,6 +17,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
@@ -65,6 +68,37 @@ public class HttpProxyCacheTest extends BaseTest {
         assertThat(response.code).isEqualTo(206);
     }
 
+    @Test
+    public void testProcessClosedRangeRequest() throws Exception {
+        String httpRequest = "GET /" + ProxyCacheTestUtils.HTTP_DATA_URL + " HTTP/1.1\nRange: bytes=100-1123";
+        Response response = processRequest(ProxyCacheTestUtils.HTTP_DATA_URL, httpRequest);
+
+        byte[] fullData = ProxyCacheTestUtils.loadTestData();
+        assertThat(response.code).isEqualTo(206);
+        assertThat(response.contentLength).isEqualTo(1024);
+        assertThat(response.data).isEqualTo(Arrays.copyOfRange(fullData, 100, 1124));
+        assertThat(response.headers.get("Content-Range").get(0)).isEqualTo("bytes 100-1123/" + fullData.length);
+    }
+
+    @Test
+    public void testProcessSuffixRangeRequest() throws Exception {
+        String httpRequest = "GET /" + ProxyCacheTestUtils.HTTP_DATA_URL + " HTTP/1.1\nRange: bytes=-500";
+        Response response = processRequest(ProxyCacheTestUtils.HTTP_DATA_URL, httpRequest);
+
+        byte[] fullData = ProxyCacheTestUtils.loadTestData();
+        assertThat(response.code).isEqualTo(206);
+        assertThat(response.data).isEqualTo(Arrays.copyOfRange(fullData, fullData.length - 500, fullData.length));
+    }
+
+    @Test
+    public void testProcessNotSatisfiableRangeRequest() throws Exception {
+        String httpRequest = "GET /" + ProxyCacheTestUtils.HTTP_DATA_URL + " HTTP/1.1\nRange: bytes=" + ProxyCacheTestUtils.HTTP_DATA_SIZE + "-";
+        Response response = processRequest(ProxyCacheTestUtils.HTTP_DATA_URL, httpRequest);
+
+        assertThat(response.code).isEqualTo(416);
+        assertThat(response.data).isEmpty();
+    }
+
     @Test   // https://github.com/danikula/AndroidVideoCache/issues/43
     public void testPreventClosingOriginalSourceForNewPartialRequestWithoutCache() throws Exception {
         HttpUrlSource source = new HttpUrlSource(ProxyCacheTestUtils.HTTP_DATA_BIG_URL);
@@ -219,6 +253,134 @@ public class HttpProxyCacheTest extends BaseTest {
         assertThat(response.contentType).isEqualTo("image/jpeg");
     }
 
+    @Test
+    public void testChangedPartialCacheIsDownloadedAgain() throws Exception {
+        byte[] oldData = ProxyCacheTestUtils.generate(20000);
+        byte[] newData = ProxyCacheTestUtils.generate(30000);
+        LocalOrigin origin = new LocalOrigin(newData, "video/mp4");
+        origin.setContent(newData, "\"new\"");
+        String url = origin.dataUrl();
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newSourceInfoStorage(RuntimeEnvironment.application);
+        sourceInfoStorage.put(url, new SourceInfo(url, oldData.length, "video/mp4", null, 0, "\"old\"", null, 1));
+        File file = ProxyCacheTestUtils.newCacheFile();
+        IoUtils.saveToFile(Arrays.copyOf(oldData, 5000), ProxyCacheTestUtils.getTempFile(file));
+
+        ProxyCacheMetrics metrics = new ProxyCacheMetrics();
+        HttpProxyCache proxyCache = new HttpProxyCache(new HttpUrlSource(url, sourceInfoStorage), new FileCache(file));
+        proxyCache.setMetrics(metrics);
+        proxyCache.read(new byte[1], newData.length - 1, 1); // waits for whole new content
+        proxyCache.shutdown();
+        origin.shutdown();
+
+        assertThat(ProxyCacheTestUtils.getFileContent(file)).isEqualTo(newData);
+        assertThat(origin.getRequestsCount()).isEqualTo(2); // If-Range request at cache's end and request of whole new content
+        assertThat(metrics.getChangedSources()).isEqualTo(1);
+        assertThat(sourceInfoStorage.get(url).etag).isEqualTo("\"new\"");
+    }
+
+    @Test
+    public void testSingleUpstreamRequestForNewUrl() throws Exception {
+        ProxyCacheMetrics metrics = new ProxyCacheMetrics();
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newEmptySourceInfoStorage();
+        UpstreamConnections upstreamConnections = new UpstreamConnections(4, 30000, metrics);
+        HttpUrlSource source = new HttpUrlSource(ProxyCacheTestUtils.HTTP_DATA_URL, sourceInfoStorage, new EmptyHeadersInjector(), upstreamConnections);
+        HttpProxyCache proxyCache = new HttpProxyCache(source, new FileCache(ProxyCacheTestUtils.newCacheFile()));
+        Response response = processRequest(proxyCache, "GET /" + ProxyCacheTestUtils.HTTP_DATA_URL + " HTTP/1.1");
+        proxyCache.shutdown();
+
+        assertThat(response.data).isEqualTo(ProxyCacheTestUtils.loadAssetFile(ProxyCacheTestUtils.ASSETS_DATA_NAME));
+        assertThat(response.contentLength).isEqualTo(ProxyCacheTestUtils.HTTP_DATA_SIZE);
+        assertThat(response.contentType).isEqualTo("image/jpeg");
+        assertThat(metrics.getUpstreamConnections()).isEqualTo(1); // info is taken from data response
+    }
+
+    @Test
+    public void testStalledConnectionIsReconnected() throws Exception {
+        byte[] data = ProxyCacheTestUtils.generate(50000);
+        LocalOrigin origin = new LocalOrigin(data, "video/mp4");
+        origin.stallNextResponseAfter(20000);
+        ProxyCacheMetrics metrics = new ProxyCacheMetrics();
+        UpstreamConnections upstreamConnections = new UpstreamConnections(4, 30000, new StallDetector(500, 500, 0), metrics);
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newEmptySourceInfoStorage();
+        HttpUrlSource source = new HttpUrlSource(origin.dataUrl(), sourceInfoStorage, new EmptyHeadersInjector(), upstreamConnections);
+        File file = ProxyCacheTestUtils.newCacheFile();
+        HttpProxyCache proxyCache = new HttpProxyCache(source, new FileCache(file));
+        proxyCache.setRetryPolicy(new RetryPolicy(3, 10, 10));
+        proxyCache.setMetrics(metrics);
+        proxyCache.read(new byte[1], data.length - 1, 1);
+        proxyCache.shutdown();
+        origin.shutdown();
+
+        assertThat(ProxyCacheTestUtils.getFileContent(file)).isEqualTo(data);
+        assertThat(metrics.getStalledUpstreamConnections()).isEqualTo(1);
+        assertThat(origin.getLastRequestHeaders().get("range")).isEqualTo("bytes=20000-"); // download is resumed
+    }
+
+    @Test
+    public void testPartialCacheIsResumedFromServerIgnoringRange() throws Exception {
+        byte[] data = ProxyCacheTestUtils.generate(30000);
+        LocalOrigin origin = new LocalOrigin(data, "video/mp4");
+        origin.setRangesSupported(false);
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newEmptySourceInfoStorage();
+        File file = ProxyCacheTestUtils.newCacheFile();
+        IoUtils.saveToFile(Arrays.copyOf(data, 5000), ProxyCacheTestUtils.getTempFile(file));
+
+        HttpProxyCache proxyCache = new HttpProxyCache(new HttpUrlSource(origin.dataUrl(), sourceInfoStorage), new FileCache(file));
+        proxyCache.read(new byte[1], data.length - 1, 1);
+        proxyCache.shutdown();
+        origin.shutdown();
+
+        assertThat(ProxyCacheTestUtils.getFileContent(file)).isEqualTo(data);
+        assertThat(origin.getLastRequestHeaders().get("range")).isEqualTo("bytes=5000-");
+    }
+
+    @Test
+    public void testStalledConnectionIsReconnectedToServerIgnoringRange() throws Exception {
+        byte[] data = ProxyCacheTestUtils.generate(50000);
+        LocalOrigin origin = new LocalOrigin(data, "video/mp4");
+        origin.setRangesSupported(false);
+        origin.stallNextResponseAfter(20000);
+        ProxyCacheMetrics metrics = new ProxyCacheMetrics();
+        UpstreamConnections upstreamConnections = new UpstreamConnections(4, 30000, new StallDetector(500, 500, 0), metrics);
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newEmptySourceInfoStorage();
+        HttpUrlSource source = new HttpUrlSource(origin.dataUrl(), sourceInfoStorage, new EmptyHeadersInjector(), upstreamConnections);
+        File file = ProxyCacheTestUtils.newCacheFile();
+        HttpProxyCache proxyCache = new HttpProxyCache(source, new FileCache(file));
+        proxyCache.setRetryPolicy(new RetryPolicy(3, 10, 10));
+        proxyCache.setMetrics(metrics);
+        proxyCache.read(new byte[1], data.length - 1, 1);
+        proxyCache.shutdown();
+        origin.shutdown();
+
+        assertThat(ProxyCacheTestUtils.getFileContent(file)).isEqualTo(data);
+        assertThat(metrics.getStalledUpstreamConnections()).isEqualTo(1);
+    }
+
+    @Test
+    public void testFarPartOfMultipartResponseIsNotCached() throws Exception {
+        byte[] data = ProxyCacheTestUtils.generate(100000);
+        LocalOrigin origin = new LocalOrigin(data, "video/mp4");
+        String url = origin.dataUrl();
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newEmptySourceInfoStorage();
+        sourceInfoStorage.put(url, new SourceInfo(url, data.length, "video/mp4"));
+        HttpProxyCache proxyCache = new HttpProxyCache(new HttpUrlSource(url, sourceInfoStorage), new FileCache(ProxyCacheTestUtils.newCacheFile()));
+        Response response = processRequest(proxyCache, "GET /" + url + " HTTP/1.1\nRange: bytes=0-99,90000-90099");
+        proxyCache.shutdown();
+        origin.shutdown();
+
+        String contentType = response.headers.get("Content-Type").get(0);
+        String boundary = contentType.substring(contentType.indexOf("boundary=") + "boundary=".length());
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(("\r\n--" + boundary + "\r\nContent-Type: video/mp4\r\nContent-Range: bytes 0-99/100000\r\n\r\n").getBytes("UTF-8"));
+        expected.write(data, 0, 100);
+        expected.write(("\r\n--" + boundary + "\r\nContent-Type: video/mp4\r\nContent-Range: bytes 90000-90099/100000\r\n\r\n").getBytes("UTF-8"));
+        expected.write(data, 90000, 100);
+        expected.write(("\r\n--" + boundary + "--\r\n").getBytes("UTF-8"));
+        assertThat(response.code).isEqualTo(206);
+        assertThat(response.data).isEqualTo(expected.toByteArray());
+        assertThat(origin.getRequestsCount()).isEqualTo(2); // cache's download and separate request of far part
+    }
+
     private Response processRequest(String sourceUrl, String httpRequest) throws ProxyCacheException, IOException {
         FileCache fileCache = new FileCache(ProxyCacheTestUtils.newCacheFile());
         return processRequest(sourceUrl, httpRequest, fileCache);
@@ -0,0 +1,12 @@
+package com.ornoma.httpcache;
+
+/**
+ * Runs {@link SourceConformanceTest} against default transport.
+ */
+public class HttpUrlSourceConformanceTest extends SourceConformanceTest {
+
+    @Override
+    protected SourceFactory newSourceFactory() {
+        return new HttpUrlSourceFactory(UpstreamConnections.newDefault(), 60 * 1000);
+    }
+}
@@ -0,0 +1,137 @@
+package com.ornoma.httpcache;
+
+import com.ornoma.httpcache.headers.EmptyHeadersInjector;
+import com.ornoma.httpcache.sourcestorage.SourceInfoStorage;
+import com.ornoma.httpcache.sourcestorage.SourceInfoStorageFactory;
+import com.ornoma.httpcache.support.LocalOrigin;
+import com.ornoma.httpcache.support.ProxyCacheTestUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+/**
+ * Tests caching of redirect's location by {@link HttpUrlSource}.
+ */
+public class HttpUrlSourceRedirectTest extends BaseTest {
+
+    private static final int DATA_SIZE = 10 * 1024;
+    private static final long TTL = 60 * 1000;
+
+    private final byte[] data = ProxyCacheTestUtils.generate(DATA_SIZE);
+    private LocalOrigin origin;
+    private SourceInfoStorage sourceInfoStorage;
+    private String url;
+
+    @Before
+    public void setup() throws Exception {
+        origin = new LocalOrigin(data, "video/mp4");
+        sourceInfoStorage = SourceInfoStorageFactory.newSourceInfoStorage(RuntimeEnvironment.application);
+        url = origin.url(LocalOrigin.REDIRECT_PATH);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sourceInfoStorage.release();
+        origin.shutdown();
+    }
+
+    @Test
+    public void testLocationIsStored() throws Exception {
+        long now = System.currentTimeMillis();
+        readAll(newSource());
+
+        SourceInfo sourceInfo = sourceInfoStorage.get(url);
+        assertThat(sourceInfo.location).isEqualTo(origin.dataUrl());
+        assertThat(sourceInfo.locationExpires).isGreaterThanOrEqualTo(now + TTL);
+    }
+
+    @Test
+    public void testStoredLocationIsRequestedDirectly() throws Exception {
+        readAll(newSource());
+        int requests = origin.getRequestsCount();
+        byte[] readData = readAll(newSource());
+
+        assertThat(Arrays.equals(readData, data)).isTrue();
+        assertThat(origin.getRequestsCount()).isEqualTo(requests + 1);
+        assertThat(origin.getRequestedPaths().get(requests)).isEqualTo(LocalOrigin.DATA_PATH);
+    }
+
+    @Test
+    public void testMaxAgeOfRedirectIsUsed() throws Exception {
+        origin.setRedirectHeaders("Cache-Control: private, max-age=5\r\n");
+        long now = System.currentTimeMillis();
+        readAll(newSource());
+
+        long expires = sourceInfoStorage.get(url).locationExpires;
+        assertThat(expires).isGreaterThanOrEqualTo(now + 5000).isLessThan(now + TTL);
+    }
+
+    @Test
+    public void testNotCacheableRedirectIsNotStored() throws Exception {
+        origin.setRedirectHeaders("Cache-Control: no-store\r\n");
+        readAll(newSource());
+
+        assertThat(sourceInfoStorage.get(url).location).isNull();
+    }
+
+    @Test
+    public void testFailedLocationFallsBackToOriginalUrl() throws Exception {
+        String gone = origin.url("/gone");
+        sourceInfoStorage.put(url, new SourceInfo(url, DATA_SIZE, "video/mp4", gone, System.currentTimeMillis() + TTL));
+        byte[] readData = readAll(newSource());
+
+        assertThat(Arrays.equals(readData, data)).isTrue();
+        assertThat(origin.getRequestedPaths()).containsExactly("/gone", LocalOrigin.REDIRECT_PATH, LocalOrigin.DATA_PATH);
+        assertThat(sourceInfoStorage.get(url).location).isEqualTo(origin.dataUrl());
+    }
+
+    @Test
+    public void testExpiredLocationIsNotUsed() throws Exception {
+        String gone = origin.url("/gone");
+        sourceInfoStorage.put(url, new SourceInfo(url, DATA_SIZE, "video/mp4", gone, System.currentTimeMillis() - 1));
+        readAll(newSource());
+
+        assertThat(origin.getRequestedPaths()).containsExactly(LocalOrigin.REDIRECT_PATH, LocalOrigin.DATA_PATH);
+    }
+
+    @Test
+    public void testValidatorsAreKeptWhenLocationIsResolved() throws Exception {
+        sourceInfoStorage.put(url, new SourceInfo(url, DATA_SIZE, "video/mp4", null, 0, "\"old\"", null, 1));
+        HttpUrlSource source = newSource();
+        try {
+            source.open(5000);
+            fail("Changed content must not be continued");
+        } catch (SourceChangedException e) {
+            // expected
+        } finally {
+            source.close();
+        }
+    }
+
+    private HttpUrlSource newSource() {
+        return new HttpUrlSource(url, sourceInfoStorage, new EmptyHeadersInjector(), UpstreamConnections.newDefault(), TTL);
+    }
+
+    private byte[] readAll(UrlSource source) throws ProxyCacheException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[ProxyCacheUtils.DEFAULT_BUFFER_SIZE];
+        int read;
+        source.open(0);
+        try {
+            while ((read = source.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            source.close();
+        }
+        return out.toByteArray();
+    }
+}
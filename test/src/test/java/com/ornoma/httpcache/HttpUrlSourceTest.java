@@ -1,5 +1,6 @@
 package com.ornoma.httpcache;
 
+import com.ornoma.httpcache.headers.EmptyHeadersInjector;
 import com.ornoma.httpcache.headers.HeaderInjector;
 import com.ornoma.httpcache.sourcestorage.SourceInfoStorage;
 import com.ornoma.httpcache.sourcestorage.SourceInfoStorageFactory;
@@ -158,6 +159,44 @@ public class HttpUrlSourceTest extends BaseTest {
         fail("source.open should throw NPE!");
     }
 
+    @Test
+    public void testConnectionIsReusedAfterResponseIsRead() throws Exception {
+        ProxyCacheMetrics metrics = new ProxyCacheMetrics();
+        UpstreamConnections upstreamConnections = new UpstreamConnections(4, 30000, metrics);
+        byte[] expectedData = ProxyCacheTestUtils.loadAssetFile(ProxyCacheTestUtils.ASSETS_DATA_NAME);
+        for (int i = 0; i < 2; i++) {
+            HttpUrlSource source = newHttpUrlSource(upstreamConnections);
+            source.open(0);
+            byte[] readData = new byte[expectedData.length];
+            readSource(source, readData);
+            source.close();
+            assertThat(readData).isEqualTo(expectedData);
+        }
+
+        assertThat(metrics.getUpstreamConnections()).isEqualTo(2);
+        assertThat(metrics.getReusedUpstreamConnections()).isEqualTo(1);
+    }
+
+    @Test
+    public void testConnectionIsNotReusedIfDisabled() throws Exception {
+        ProxyCacheMetrics metrics = new ProxyCacheMetrics();
+        UpstreamConnections upstreamConnections = new UpstreamConnections(0, 30000, metrics);
+        for (int i = 0; i < 2; i++) {
+            HttpUrlSource source = newHttpUrlSource(upstreamConnections);
+            source.open(0);
+            readSource(source, new byte[ProxyCacheTestUtils.loadAssetFile(ProxyCacheTestUtils.ASSETS_DATA_NAME).length]);
+            source.close();
+        }
+
+        assertThat(metrics.getUpstreamConnections()).isEqualTo(2);
+        assertThat(metrics.getReusedUpstreamConnections()).isEqualTo(0);
+    }
+
+    private HttpUrlSource newHttpUrlSource(UpstreamConnections upstreamConnections) {
+        SourceInfoStorage sourceInfoStorage = SourceInfoStorageFactory.newEmptySourceInfoStorage();
+        return new HttpUrlSource(ProxyCacheTestUtils.HTTP_DATA_URL, sourceInfoStorage, new EmptyHeadersInjector(), upstreamConnections);
+    }
+
     private void readSource(Source source, byte[] target) throws ProxyCacheException {
         byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
         int totalRead = 0;
@@ -0,0 +1,44 @@
+package com.ornoma.httpcache;
+
+import com.ornoma.httpcache.support.LocalOrigin;
+import com.ornoma.httpcache.support.ProxyCacheTestUtils;
+
+import org.junit.After;
+import org.junit.Before;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base class for tests of sources reading {@link #data} from {@link LocalOrigin} started for every test.
+ */
+public abstract class LocalOriginTest extends BaseTest {
+
+    protected final byte[] data = ProxyCacheTestUtils.generate(50000);
+    protected final ProxyCacheMetrics metrics = new ProxyCacheMetrics();
+    protected LocalOrigin origin;
+    private final List<LocalOrigin> origins = new ArrayList<>();
+
+    @Before
+    public void startOrigin() throws Exception {
+        origin = newMirror();
+    }
+
+    @After
+    public void shutdownOrigins() throws Exception {
+        for (LocalOrigin startedOrigin : origins) {
+            startedOrigin.shutdown();
+        }
+    }
+
+    /**
+     * Starts one more origin serving the same {@link #data}, it is shut down after test.
+     *
+     * @return started origin.
+     */
+    protected LocalOrigin newMirror() throws Exception {
+        LocalOrigin mirror = new LocalOrigin(data, "video/mp4");
+        origins.add(mirror);
+        return mirror;
+    }
+}
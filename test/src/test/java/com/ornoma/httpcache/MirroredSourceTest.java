@@ -0,0 +1,112 @@
+package com.ornoma.httpcache;
+
+import com.ornoma.httpcache.headers.EmptyHeadersInjector;
+import com.ornoma.httpcache.sourcestorage.SourceInfoStorage;
+import com.ornoma.httpcache.sourcestorage.SourceInfoStorageFactory;
+import com.ornoma.httpcache.support.LocalOrigin;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Arrays;
+
+import static com.ornoma.httpcache.support.ProxyCacheTestUtils.readAll;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests {@link MirroredSource}.
+ */
+public class MirroredSourceTest extends LocalOriginTest {
+
+    private final OriginSelector originSelector = new OriginSelector(SourceInfoStorageFactory.newEmptyOriginScoreStorage());
+    private SourceInfoStorage sourceInfoStorage;
+    private LocalOrigin mirror;
+
+    @Before
+    public void setup() throws Exception {
+        sourceInfoStorage = SourceInfoStorageFactory.newSourceInfoStorage(RuntimeEnvironment.application);
+        mirror = newMirror();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sourceInfoStorage.release();
+    }
+
+    @Test
+    public void testReadingIsContinuedFromMirror() throws Exception {
+        origin.stallNextResponseAfter(20000);
+        MirroredSource source = newMirroredSource(origin.dataUrl(), mirror.dataUrl());
+        source.open(0);
+        byte[] readData = readAll(source);
+
+        assertThat(readData).isEqualTo(data);
+        assertThat(metrics.getOriginFailovers()).isEqualTo(1);
+        assertThat(mirror.getLastRequestHeaders().get("range")).isEqualTo("bytes=20000-");
+        assertThat(originSelector.getScore(origin.dataUrl()).failed).isGreaterThan(0);
+    }
+
+    @Test
+    public void testRangeIsContinuedFromMirror() throws Exception {
+        origin.stallNextResponseAfter(5000);
+        MirroredSource source = newMirroredSource(origin.dataUrl(), mirror.dataUrl());
+        source.open(10000, 20000);
+        byte[] readData = readAll(source);
+
+        assertThat(source.isPartial()).isTrue();
+        assertThat(readData).isEqualTo(Arrays.copyOfRange(data, 10000, 30000));
+        assertThat(mirror.getLastRequestHeaders().get("range")).isEqualTo("bytes=15000-29999");
+    }
+
+    @Test
+    public void testFailedOriginIsSkipped() throws Exception {
+        MirroredSource source = newMirroredSource(origin.url("/missing"), mirror.dataUrl());
+        source.open(0);
+        byte[] readData = readAll(source);
+
+        assertThat(readData).isEqualTo(data);
+        assertThat(metrics.getOriginFailovers()).isEqualTo(0); // nothing is read from failed origin
+        assertThat(originSelector.rank(Arrays.asList(origin.url("/missing"), mirror.dataUrl()))).containsExactly(mirror.dataUrl(), origin.url("/missing"));
+    }
+
+    @Test
+    public void testBestOriginIsUsed() throws Exception {
+        originSelector.onResponse(origin.dataUrl(), 1000);
+        originSelector.onResponse(mirror.dataUrl(), 10);
+        MirroredSource source = newMirroredSource(origin.dataUrl(), mirror.dataUrl());
+        source.open(0);
+        readAll(source);
+
+        assertThat(origin.getRequestsCount()).isEqualTo(0);
+        assertThat(mirror.getRequestsCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testInfoOfOriginalUrlIsUpdated() throws Exception {
+        String url = origin.url("/missing");
+        MirroredSource source = newMirroredSource(url, mirror.dataUrl());
+        source.open(0);
+        readAll(source);
+
+        SourceInfo sourceInfo = sourceInfoStorage.get(url);
+        assertThat(sourceInfo.length).isEqualTo(data.length);
+        assertThat(sourceInfo.mime).isEqualTo("video/mp4");
+        assertThat(sourceInfo.etag).isNull(); // validators of mirror are not valid for original url
+        assertThat(sourceInfo.validated).isGreaterThan(0);
+    }
+
+    @Test(expected = ProxyCacheException.class)
+    public void testErrorIsThrownIfAllOriginsFail() throws Exception {
+        MirroredSource source = newMirroredSource(origin.url("/missing"), mirror.url("/missing"));
+        source.open(0);
+    }
+
+    private MirroredSource newMirroredSource(String url, String mirrorUrl) {
+        UpstreamConnections upstreamConnections = new UpstreamConnections(4, 30000, new StallDetector(500, 500, 0), metrics);
+        UrlSource source = new HttpUrlSource(url, sourceInfoStorage, new EmptyHeadersInjector(), upstreamConnections);
+        UrlSource mirrorSource = new HttpUrlSource(mirrorUrl, sourceInfoStorage, new EmptyHeadersInjector(), upstreamConnections);
+        return new MirroredSource(url, Arrays.asList(source, mirrorSource), originSelector, sourceInfoStorage, metrics);
+    }
+}
@@ -0,0 +1,148 @@
+package com.ornoma.httpcache;
+
+import com.ornoma.httpcache.sourcestorage.OriginScoreStorage;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests {@link OriginSelector}.
+ */
+public class OriginSelectorTest extends BaseTest {
+
+    private static final String FIRST_URL = "http://first.cdn.com/video.mp4";
+    private static final String SECOND_URL = "https://second.cdn.com/path/video.mp4";
+    private static final String THIRD_URL = "http://third.cdn.com:8080/video.mp4";
+    private static final List<String> URLS = Arrays.asList(FIRST_URL, SECOND_URL, THIRD_URL);
+
+    @Test
+    public void testOrderIsKeptWithoutScores() throws Exception {
+        OriginSelector originSelector = new OriginSelector(new MemoryOriginScoreStorage());
+
+        assertThat(originSelector.rank(URLS)).isEqualTo(URLS);
+    }
+
+    @Test
+    public void testUnknownOriginGoesFirst() throws Exception {
+        OriginSelector originSelector = new OriginSelector(new MemoryOriginScoreStorage());
+        originSelector.onResponse(FIRST_URL, 10);
+        originSelector.onResponse(SECOND_URL, 10);
+
+        assertThat(originSelector.rank(URLS)).containsExactly(THIRD_URL, FIRST_URL, SECOND_URL);
+    }
+
+    @Test
+    public void testFasterOriginGoesFirst() throws Exception {
+        OriginSelector originSelector = new OriginSelector(new MemoryOriginScoreStorage());
+        originSelector.onResponse(FIRST_URL, 200);
+        originSelector.onResponse(SECOND_URL, 50);
+        originSelector.onResponse(THIRD_URL, 50);
+        originSelector.onTransfer(FIRST_URL, 1024 * 1024, 250000000L); // 4 MB/s
+        originSelector.onTransfer(THIRD_URL, 1024 * 1024, 2000000000L); // 512 KB/s
+        originSelector.onTransfer(SECOND_URL, 1024 * 1024, 500000000L); // 2 MB/s
+
+        assertThat(originSelector.rank(URLS)).containsExactly(FIRST_URL, SECOND_URL, THIRD_URL);
+        assertThat(originSelector.getScore(SECOND_URL).throughput).isEqualTo(2 * 1024 * 1024);
+    }
+
+    @Test
+    public void testSmallTransferIsIgnored() throws Exception {
+        OriginSelector originSelector = new OriginSelector(new MemoryOriginScoreStorage());
+        originSelector.onTransfer(FIRST_URL, 1024, 1000000000L);
+
+        assertThat(originSelector.getScore(FIRST_URL).throughput).isEqualTo(-1);
+    }
+
+    @Test
+    public void testFailedOriginGoesLast() throws Exception {
+        OriginSelector originSelector = new OriginSelector(new MemoryOriginScoreStorage());
+        originSelector.onResponse(FIRST_URL, 10);
+        originSelector.onResponse(SECOND_URL, 100);
+        originSelector.onResponse(THIRD_URL, 100);
+        originSelector.onFailure(FIRST_URL);
+
+        assertThat(originSelector.rank(URLS)).containsExactly(SECOND_URL, THIRD_URL, FIRST_URL);
+    }
+
+    @Test
+    public void testBusyOriginGoesAfterIdleOnes() throws Exception {
+        OriginSelector originSelector = new OriginSelector(new MemoryOriginScoreStorage());
+        originSelector.onRequest(FIRST_URL);
+
+        assertThat(originSelector.rank(URLS)).containsExactly(SECOND_URL, THIRD_URL, FIRST_URL);
+
+        originSelector.onRequestFinished(FIRST_URL);
+        assertThat(originSelector.rank(URLS)).isEqualTo(URLS);
+    }
+
+    @Test
+    public void testRecoveredOriginIsRanked() throws Exception {
+        OriginSelector originSelector = new OriginSelector(new MemoryOriginScoreStorage());
+        originSelector.onFailure(FIRST_URL);
+        originSelector.onResponse(FIRST_URL, 10);
+        originSelector.onResponse(SECOND_URL, 100);
+
+        assertThat(originSelector.rank(Arrays.asList(FIRST_URL, SECOND_URL))).containsExactly(FIRST_URL, SECOND_URL);
+    }
+
+    @Test
+    public void testScoresAreSharedByOrigin() throws Exception {
+        OriginSelector originSelector = new OriginSelector(new MemoryOriginScoreStorage());
+        originSelector.onResponse("https://second.cdn.com:443/another.mp4", 10);
+
+        OriginScore score = originSelector.getScore(SECOND_URL);
+        assertThat(score.origin).isEqualTo("https://second.cdn.com:443");
+        assertThat(score.timeToFirstByte).isEqualTo(10);
+    }
+
+    @Test
+    public void testScoresAreStored() throws Exception {
+        OriginScoreStorage storage = new MemoryOriginScoreStorage();
+        OriginSelector originSelector = new OriginSelector(storage);
+        originSelector.onResponse(FIRST_URL, 300);
+        originSelector.onResponse(SECOND_URL, 100);
+        originSelector.onResponse(THIRD_URL, 200);
+        originSelector.shutdown();
+
+        OriginSelector newSessionSelector = new OriginSelector(storage);
+        assertThat(newSessionSelector.rank(URLS)).containsExactly(SECOND_URL, THIRD_URL, FIRST_URL);
+    }
+
+    @Test
+    public void testScoresAreStoredInBatches() throws Exception {
+        OriginScoreStorage storage = new MemoryOriginScoreStorage();
+        OriginSelector originSelector = new OriginSelector(storage);
+        originSelector.onResponse(FIRST_URL, 300);
+        originSelector.onFailure(SECOND_URL);
+        assertThat(storage.get("http://first.cdn.com:80")).isNull();
+
+        originSelector.shutdown();
+        assertThat(storage.get("http://first.cdn.com:80").timeToFirstByte).isEqualTo(300);
+        assertThat(storage.get("https://second.cdn.com:443").failed).isGreaterThan(0);
+    }
+
+    private static final class MemoryOriginScoreStorage implements OriginScoreStorage {
+
+        private final Map<String, OriginScore> scores = new HashMap<>();
+
+        @Override
+        public OriginScore get(String origin) {
+            return scores.get(origin);
+        }
+
+        @Override
+        public void put(String origin, OriginScore originScore) {
+            scores.put(origin, originScore);
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
@@ -56,7 +56,7 @@ public class PingerTest extends BaseTest {
         Socket socket = mock(Socket.class);
         when(socket.getOutputStream()).thenReturn(out);
         pinger.responseToPing(socket);
-        assertThat(out.toString()).isEqualTo("HTTP/1.1 200 OK\n\nping ok");
+        assertThat(out.toString()).isEqualTo("HTTP/1.1 200 OK\r\n\r\nping ok");
     }
 
     @Test // https://github.com/danikula/AndroidVideoCache/issues/28
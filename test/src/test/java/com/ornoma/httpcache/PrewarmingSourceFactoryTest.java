@@ -0,0 +1,101 @@
+package com.ornoma.httpcache;
+
+import com.ornoma.httpcache.headers.EmptyHeadersInjector;
+import com.ornoma.httpcache.headers.HeaderInjector;
+import com.ornoma.httpcache.sourcestorage.SourceInfoStorage;
+import com.ornoma.httpcache.sourcestorage.SourceInfoStorageFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.robolectric.RuntimeEnvironment;
+
+import static com.ornoma.httpcache.support.ProxyCacheTestUtils.readAll;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests {@link PrewarmingSourceFactory}.
+ */
+public class PrewarmingSourceFactoryTest extends LocalOriginTest {
+
+    private final HeaderInjector headerInjector = new EmptyHeadersInjector();
+    private SourceInfoStorage sourceInfoStorage;
+
+    @Before
+    public void setup() throws Exception {
+        sourceInfoStorage = SourceInfoStorageFactory.newSourceInfoStorage(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sourceInfoStorage.release();
+    }
+
+    @Test
+    public void testWarmSourceIsUsedByFirstRequest() throws Exception {
+        PrewarmingSourceFactory sourceFactory = newSourceFactory(10000);
+        sourceFactory.prewarm(origin.dataUrl(), sourceInfoStorage, headerInjector);
+        waitForPrewarm();
+
+        UrlSource source = sourceFactory.newSource(origin.dataUrl(), sourceInfoStorage, headerInjector);
+        assertThat(source.isContentInfoKnown()).isTrue();
+        assertThat(metrics.getUsedPrewarmedSources()).isEqualTo(1);
+        assertThat(sourceInfoStorage.get(origin.dataUrl()).length).isEqualTo(data.length);
+
+        source.open(0);
+        assertThat(readAll(source)).isEqualTo(data);
+        assertThat(origin.getRequestsCount()).isEqualTo(2); // HEAD while warming, GET when requested
+        assertThat(metrics.getReusedUpstreamConnections()).isEqualTo(1);
+
+        sourceFactory.newSource(origin.dataUrl(), sourceInfoStorage, headerInjector);
+        assertThat(metrics.getUsedPrewarmedSources()).isEqualTo(1); // warm source is given once
+        sourceFactory.shutdown();
+    }
+
+    @Test
+    public void testWarmSourceIsDroppedAfterTtl() throws Exception {
+        PrewarmingSourceFactory sourceFactory = newSourceFactory(200);
+        sourceFactory.prewarm(origin.dataUrl(), sourceInfoStorage, headerInjector);
+        waitForPrewarm();
+        Thread.sleep(300);
+
+        sourceFactory.newSource(origin.dataUrl(), sourceInfoStorage, headerInjector);
+        assertThat(metrics.getUsedPrewarmedSources()).isEqualTo(0);
+        sourceFactory.shutdown();
+    }
+
+    @Test
+    public void testKnownSourceIsNotWarmed() throws Exception {
+        sourceInfoStorage.put(origin.dataUrl(), new SourceInfo(origin.dataUrl(), data.length, "video/mp4"));
+        PrewarmingSourceFactory sourceFactory = newSourceFactory(10000);
+        sourceFactory.prewarm(origin.dataUrl(), sourceInfoStorage, headerInjector);
+        Thread.sleep(200);
+
+        assertThat(origin.getRequestsCount()).isEqualTo(0);
+        assertThat(metrics.getPrewarmedSources()).isEqualTo(0);
+        sourceFactory.shutdown();
+    }
+
+    @Test
+    public void testPrewarmingIsDisabledByZeroTtl() throws Exception {
+        PrewarmingSourceFactory sourceFactory = newSourceFactory(0);
+        sourceFactory.prewarm(origin.dataUrl(), sourceInfoStorage, headerInjector);
+        Thread.sleep(200);
+
+        assertThat(origin.getRequestsCount()).isEqualTo(0);
+        sourceFactory.shutdown();
+    }
+
+    private PrewarmingSourceFactory newSourceFactory(long ttl) {
+        UpstreamConnections upstreamConnections = new UpstreamConnections(4, 30000, metrics);
+        return new PrewarmingSourceFactory(new HttpUrlSourceFactory(upstreamConnections, 0), ttl, metrics);
+    }
+
+    private void waitForPrewarm() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (metrics.getPrewarmedSources() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(metrics.getPrewarmedSources()).isEqualTo(1);
+    }
+}
@@ -4,14 +4,30 @@ import com.danikula.android.garden.io.IoUtils;
 import com.ornoma.httpcache.file.FileCache;
 import com.ornoma.httpcache.support.ProxyCacheTestUtils;
 
+import org.junit.Ignore;
 import org.junit.Test;
+import org.mockito.Mockito;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.SocketException;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verify;
 
 /**
  * @author Alexey Danilov (danikula@gmail.com).
@@ -155,6 +171,103 @@ public class ProxyCacheTest extends BaseTest  {
         assertThat(cache.isCompleted()).isTrue();
     }
 
+    @Test
+    public void testSegmentedDownload() throws Exception {
+        int dataSize = 3 * 1024 * 1024 + 123;
+        byte[] data = ProxyCacheTestUtils.generate(dataSize);
+        File file = ProxyCacheTestUtils.newCacheFile();
+        Cache cache = new FileCache(file);
+        ProxyCache proxyCache = new RangeProxyCache(data, cache, true);
+        proxyCache.setMaxSourceConnections(4);
+
+        byte[] readData = new byte[dataSize];
+        proxyCache.read(readData, 0, dataSize);
+
+        assertThat(readData).isEqualTo(data);
+        assertThat(cache.isCompleted()).isTrue();
+        assertThat(ProxyCacheTestUtils.getFileContent(file)).isEqualTo(data);
+    }
+
+    @Test
+    public void testSegmentedDownloadWithoutRanges() throws Exception {
+        int dataSize = 3 * 1024 * 1024 + 123;
+        byte[] data = ProxyCacheTestUtils.generate(dataSize);
+        Cache cache = new FileCache(ProxyCacheTestUtils.newCacheFile());
+        ProxyCache proxyCache = new RangeProxyCache(data, cache, false);
+        proxyCache.setMaxSourceConnections(4);
+
+        byte[] readData = new byte[dataSize];
+        proxyCache.read(readData, 0, dataSize);
+
+        assertThat(readData).isEqualTo(data);
+        assertThat(cache.isCompleted()).isTrue();
+    }
+
+    @Test
+    public void testRetryResumesFromCacheEnd() throws Exception {
+        int dataSize = 50000;
+        byte[] data = ProxyCacheTestUtils.generate(dataSize);
+        Source source = Mockito.spy(new ByteArraySource(data));
+        ProxyCacheException networkError = new ProxyCacheException("Error reading source", new SocketException("Connection reset"));
+        doCallRealMethod().doThrow(networkError).doCallRealMethod().when(source).read(any(byte[].class));
+        ProxyCacheMetrics metrics = new ProxyCacheMetrics();
+        ProxyCache proxyCache = new ProxyCache(source, new ByteArrayCache());
+        proxyCache.setRetryPolicy(new RetryPolicy(2, 10, 10));
+        proxyCache.setMetrics(metrics);
+
+        byte[] readData = new byte[dataSize];
+        proxyCache.read(readData, 0, dataSize);
+
+        assertThat(readData).isEqualTo(data);
+        verify(source).open(0);
+        verify(source).open(ProxyCacheUtils.DEFAULT_BUFFER_SIZE);
+        assertThat(metrics.getSourceRetries()).isEqualTo(1);
+        assertThat(metrics.getRecoveredBytes()).isEqualTo(dataSize - ProxyCacheUtils.DEFAULT_BUFFER_SIZE);
+    }
+
+    @Test
+    public void testFatalErrorIsNotRetried() throws Exception {
+        Source source = Mockito.spy(new ByteArraySource(ProxyCacheTestUtils.generate(50000)));
+        doThrow(new ServerResponseException("Not found", 404)).when(source).open(anyLong());
+        ProxyCacheMetrics metrics = new ProxyCacheMetrics();
+        ProxyCache proxyCache = new ProxyCache(source, new ByteArrayCache());
+        proxyCache.setRetryPolicy(new RetryPolicy(2, 10, 10));
+        proxyCache.setMetrics(metrics);
+
+        try {
+            proxyCache.read(new byte[1000], 0, 1000);
+            fail("Reading source must fail");
+        } catch (ProxyCacheException e) {
+            // expected
+        }
+        verify(source).open(0);
+        assertThat(metrics.getSourceRetries()).isZero();
+    }
+
+    @Test
+    public void testAppendsOfFastSourceAreCoalesced() throws Exception {
+        int dataSize = 4 * 1024 * 1024;
+        byte[] data = ProxyCacheTestUtils.generate(dataSize);
+        Cache cache = new ByteArrayCache();
+        ProxyCache proxyCache = new ProxyCache(new ByteArraySource(data), cache);
+        proxyCache.setReadBuffer(8 * 1024, 256 * 1024, 50);
+        final AtomicInteger notifications = new AtomicInteger();
+        proxyCache.addSourceDataListener(new Runnable() {
+            @Override
+            public void run() {
+                notifications.incrementAndGet();
+            }
+        });
+
+        byte[] readData = new byte[dataSize];
+        proxyCache.read(readData, 0, dataSize);
+
+        assertThat(readData).isEqualTo(data);
+        assertThat(cache.isCompleted()).isTrue();
+        // 8 KB reads would wake up clients 512 times
+        assertThat(notifications.get()).isLessThan(dataSize / (64 * 1024));
+    }
+
     @Test
     public void testNoTouchSource() throws Exception {
         int dataSize = 2000;
@@ -169,4 +282,201 @@ public class ProxyCacheTest extends BaseTest  {
 
         assertThat(readData).isEqualTo(data);
     }
+
+    @Test
+    public void testSlowSourceOpeningDoesNotBlockShutdown() throws Exception {
+        SlowOpeningSource source = new SlowOpeningSource(ProxyCacheTestUtils.generate(2000));
+        final ProxyCache proxyCache = new ProxyCache(source, new ByteArrayCache());
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    proxyCache.openSource(0);
+                }
+            });
+            assertThat(source.opening.await(1, TimeUnit.SECONDS)).isTrue();
+
+            Future<?> shutdown = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    proxyCache.shutdown();
+                }
+            });
+            shutdown.get(1, TimeUnit.SECONDS);
+        } finally {
+            source.proceed.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSourceReaderWaitsForSlowOpening() throws Exception {
+        final byte[] data = ProxyCacheTestUtils.generate(2000);
+        SlowOpeningSource source = new SlowOpeningSource(data);
+        final ProxyCache proxyCache = new ProxyCache(source, new ByteArrayCache());
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    proxyCache.openSource(0);
+                }
+            });
+            assertThat(source.opening.await(1, TimeUnit.SECONDS)).isTrue();
+
+            Future<byte[]> read = executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    byte[] buffer = new byte[data.length];
+                    proxyCache.read(buffer, 0, data.length);
+                    return buffer;
+                }
+            });
+            Thread.sleep(200);
+            source.proceed.countDown();
+
+            assertThat(read.get(5, TimeUnit.SECONDS)).isEqualTo(data);
+            assertThat(source.opens.get()).isEqualTo(1);
+        } finally {
+            source.proceed.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Ignore("Benchmark, it takes a while and only prints results")
+    @Test
+    public void testSourceBufferBenchmark() throws Exception {
+        int dataSize = 24 * 1024 * 1024;
+        long bytesPerSecond = 50 * 1000 * 1000 / 8;
+        byte[] data = ProxyCacheTestUtils.generate(dataSize);
+        com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        int[][] buffers = {{8 * 1024, 8 * 1024, 0}, {8 * 1024, 256 * 1024, 50}};
+        for (int[] buffer : buffers) {
+            File file = ProxyCacheTestUtils.newCacheFile();
+            file.delete();
+            ProxyCache proxyCache = new ProxyCache(new ThrottledSource(data, bytesPerSecond), new FileCache(file));
+            proxyCache.setReadBuffer(buffer[0], buffer[1], buffer[2]);
+            final AtomicInteger wakeups = new AtomicInteger();
+            proxyCache.addSourceDataListener(new Runnable() {
+                @Override
+                public void run() {
+                    wakeups.incrementAndGet();
+                }
+            });
+            long startCpuTime = os.getProcessCpuTime();
+            long startTime = System.nanoTime();
+            byte[] readData = new byte[dataSize];
+            proxyCache.read(readData, 0, dataSize);
+            long cpuMs = (os.getProcessCpuTime() - startCpuTime) / 1000000;
+            long wallMs = (System.nanoTime() - startTime) / 1000000;
+            proxyCache.shutdown();
+            System.out.println(String.format("buffer %d-%d B, fill interval %d ms: %d wakeups, %d ms of CPU, %d ms of wall time",
+                    buffer[0], buffer[1], buffer[2], wakeups.get(), cpuMs, wallMs));
+            assertThat(readData).isEqualTo(data);
+        }
+    }
+
+    private static final class RangeProxyCache extends ProxyCache {
+
+        private final byte[] data;
+        private final boolean rangesSupported;
+
+        RangeProxyCache(byte[] data, Cache cache, boolean rangesSupported) {
+            super(new ByteArraySource(data), cache);
+            this.data = data;
+            this.rangesSupported = rangesSupported;
+        }
+
+        @Override
+        protected Source openSourceRange(long offset, long length) throws ProxyCacheException {
+            if (!rangesSupported) {
+                return null;
+            }
+            Source source = new ByteArraySource(Arrays.copyOf(data, (int) (offset + length)));
+            source.open(offset);
+            return source;
+        }
+    }
+
+    private static final class SlowOpeningSource extends ByteArraySource {
+
+        private final CountDownLatch opening = new CountDownLatch(1);
+        private final CountDownLatch proceed = new CountDownLatch(1);
+        private final AtomicInteger opens = new AtomicInteger();
+
+        SlowOpeningSource(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public void open(long offset) throws ProxyCacheException {
+            opens.incrementAndGet();
+            opening.countDown();
+            try {
+                proceed.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedProxyCacheException(e);
+            }
+            super.open(offset);
+        }
+    }
+
+    /**
+     * Source emulating network connection with limited bandwidth: read returns only data arrived since previous read,
+     * waiting for at least one packet.
+     */
+    private static final class ThrottledSource implements Source {
+
+        private static final int PACKET_SIZE = 1460;
+
+        private final byte[] data;
+        private final long bytesPerSecond;
+        private long openTime;
+        private long position;
+        private long read;
+
+        ThrottledSource(byte[] data, long bytesPerSecond) {
+            this.data = data;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public void open(long offset) throws ProxyCacheException {
+            openTime = System.nanoTime();
+            position = offset;
+            read = 0;
+        }
+
+        @Override
+        public long length() throws ProxyCacheException {
+            return data.length;
+        }
+
+        @Override
+        public int read(byte[] buffer) throws ProxyCacheException {
+            if (position >= data.length) {
+                return -1;
+            }
+            long arrived = (System.nanoTime() - openTime) * bytesPerSecond / 1000000000L - read;
+            if (arrived < PACKET_SIZE) {
+                long waitNanos = (PACKET_SIZE - arrived) * 1000000000L / bytesPerSecond;
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    throw new InterruptedProxyCacheException(e);
+                }
+                arrived = PACKET_SIZE;
+            }
+            int count = (int) Math.min(Math.min(arrived, buffer.length), data.length - position);
+            System.arraycopy(data, (int) position, buffer, 0, count);
+            position += count;
+            read += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws ProxyCacheException {
+        }
+    }
 }
@@ -0,0 +1,129 @@
+package com.ornoma.httpcache;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests {@link ResponseHeaders}.
+ */
+public class ResponseHeadersTest extends BaseTest {
+
+    @Test
+    public void testFullContent() throws Exception {
+        ResponseHeaders headers = ResponseHeaders.ok(9860723).contentType("video/mp4").keepAlive(true);
+        assertThat(encode(headers)).isEqualTo("" +
+                "HTTP/1.1 200 OK\r\n" +
+                "Accept-Ranges: bytes\r\n" +
+                "Content-Length: 9860723\r\n" +
+                "Content-Type: video/mp4\r\n" +
+                "Connection: keep-alive\r\n" +
+                "\r\n");
+        assertThat(headers.contentLength()).isEqualTo(9860723);
+        assertThat(headers.isKeepAlive()).isTrue();
+    }
+
+    @Test
+    public void testUnknownLength() throws Exception {
+        ResponseHeaders headers = ResponseHeaders.ok(-1).keepAlive(true);
+        assertThat(encode(headers)).isEqualTo("" +
+                "HTTP/1.1 200 OK\r\n" +
+                "Accept-Ranges: bytes\r\n" +
+                "Connection: close\r\n" +
+                "\r\n");
+        assertThat(headers.isKeepAlive()).isFalse();
+    }
+
+    @Test
+    public void testChunkedUnknownLength() throws Exception {
+        ResponseHeaders headers = ResponseHeaders.ok(-1).keepAlive(true).chunked(true);
+        assertThat(encode(headers)).isEqualTo("" +
+                "HTTP/1.1 200 OK\r\n" +
+                "Accept-Ranges: bytes\r\n" +
+                "Transfer-Encoding: chunked\r\n" +
+                "Connection: keep-alive\r\n" +
+                "\r\n");
+        assertThat(headers.isChunked()).isTrue();
+        assertThat(headers.isKeepAlive()).isTrue();
+    }
+
+    @Test
+    public void testKnownLengthIsNotChunked() throws Exception {
+        ResponseHeaders headers = ResponseHeaders.ok(100).chunked(true);
+        assertThat(encode(headers)).doesNotContain("Transfer-Encoding");
+        assertThat(headers.isChunked()).isFalse();
+    }
+
+    @Test
+    public void testPartialContent() throws Exception {
+        ResponseHeaders headers = ResponseHeaders.partial(ByteRange.closed(0, 1023), 4000000000L);
+        assertThat(encode(headers)).isEqualTo("" +
+                "HTTP/1.1 206 PARTIAL CONTENT\r\n" +
+                "Accept-Ranges: bytes\r\n" +
+                "Content-Length: 1024\r\n" +
+                "Content-Range: bytes 0-1023/4000000000\r\n" +
+                "Connection: close\r\n" +
+                "\r\n");
+    }
+
+    @Test
+    public void testPartialContentWithUnknownTotalLength() throws Exception {
+        String headers = encode(ResponseHeaders.partial(ByteRange.closed(100, 199), -1));
+        assertThat(headers).contains("Content-Range: bytes 100-199/*\r\n");
+    }
+
+    @Test
+    public void testNotSatisfiable() throws Exception {
+        assertThat(encode(ResponseHeaders.notSatisfiable(2000))).isEqualTo("" +
+                "HTTP/1.1 416 REQUESTED RANGE NOT SATISFIABLE\r\n" +
+                "Accept-Ranges: bytes\r\n" +
+                "Content-Length: 0\r\n" +
+                "Content-Range: bytes */2000\r\n" +
+                "Connection: close\r\n" +
+                "\r\n");
+    }
+
+    @Test
+    public void testServerError() throws Exception {
+        assertThat(encode(ResponseHeaders.error(404).keepAlive(true))).isEqualTo("" +
+                "HTTP/1.1 404 NOT FOUND\r\n" +
+                "Accept-Ranges: bytes\r\n" +
+                "Content-Length: 0\r\n" +
+                "Connection: keep-alive\r\n" +
+                "\r\n");
+        assertThat(encode(ResponseHeaders.error(-1))).startsWith("HTTP/1.1 502 BAD GATEWAY\r\n");
+        assertThat(encode(ResponseHeaders.error(304))).startsWith("HTTP/1.1 502 BAD GATEWAY\r\n");
+    }
+
+    @Test
+    public void testValidators() throws Exception {
+        ResponseHeaders headers = ResponseHeaders.ok(10).validators("\"abc\"", "Wed, 21 Oct 2015 07:28:00 GMT");
+        String encoded = encode(headers);
+        assertThat(encoded).contains("ETag: \"abc\"\r\n");
+        assertThat(encoded).contains("Last-Modified: Wed, 21 Oct 2015 07:28:00 GMT\r\n");
+        assertThat(encode(ResponseHeaders.ok(10).validators(null, ""))).doesNotContain("ETag").doesNotContain("Last-Modified");
+    }
+
+    @Test
+    public void testLineBreaksInValuesAreNotSent() throws Exception {
+        String encoded = encode(ResponseHeaders.ok(10).contentType("video/mp4\r\nSet-Cookie: a=b"));
+        assertThat(encoded).contains("Content-Type: video/mp4??Set-Cookie: a=b\r\n");
+    }
+
+    @Test
+    public void testEncodedLengthIsEnough() throws Exception {
+        ResponseHeaders headers = ResponseHeaders.partial(ByteRange.closed(Long.MAX_VALUE - 1, Long.MAX_VALUE - 1), Long.MAX_VALUE)
+                .contentType("video/mp4")
+                .validators("\"0123456789\"", "Wed, 21 Oct 2015 07:28:00 GMT")
+                .keepAlive(true);
+        ByteBuffer buffer = ByteBuffer.allocate(headers.encodedLength());
+        headers.writeTo(buffer);
+        assertThat(buffer.position()).isLessThanOrEqualTo(headers.encodedLength());
+    }
+
+    private String encode(ResponseHeaders headers) throws Exception {
+        return new String(headers.toByteArray(), "US-ASCII");
+    }
+}
@@ -0,0 +1,62 @@
+package com.ornoma.httpcache;
+
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests {@link RetryPolicy}.
+ */
+public class RetryPolicyTest extends BaseTest {
+
+    @Test
+    public void testNetworkErrorsAreRetryable() throws Exception {
+        assertThat(RetryPolicy.isRetryable(new ProxyCacheException("Error", new SocketException("Connection reset")))).isTrue();
+        assertThat(RetryPolicy.isRetryable(new ProxyCacheException("Error", new SocketTimeoutException()))).isTrue();
+        assertThat(RetryPolicy.isRetryable(new ProxyCacheException("Error", new UnknownHostException()))).isTrue();
+    }
+
+    @Test
+    public void testServerErrorsAreRetryable() throws Exception {
+        assertThat(RetryPolicy.isRetryable(new ServerResponseException("Error", 503))).isTrue();
+        assertThat(RetryPolicy.isRetryable(new ServerResponseException("Error", 429))).isTrue();
+        assertThat(RetryPolicy.isRetryable(new ServerResponseException("Error", 404))).isFalse();
+        assertThat(RetryPolicy.isRetryable(new ServerResponseException("Error", 403))).isFalse();
+    }
+
+    @Test
+    public void testFatalErrorsAreNotRetryable() throws Exception {
+        assertThat(RetryPolicy.isRetryable(new ProxyCacheException("Too many redirects"))).isFalse();
+        assertThat(RetryPolicy.isRetryable(new ProxyCacheException("Error", new FileNotFoundException()))).isFalse();
+        assertThat(RetryPolicy.isRetryable(new ProxyCacheException("Error", new InterruptedIOException()))).isFalse();
+        assertThat(RetryPolicy.isRetryable(new InterruptedProxyCacheException("Error", new SocketException()))).isFalse();
+        assertThat(RetryPolicy.isRetryable(new IllegalStateException())).isFalse();
+    }
+
+    @Test
+    public void testRetriesAreLimited() throws Exception {
+        RetryPolicy retryPolicy = new RetryPolicy(2, 100, 1000);
+        ProxyCacheException error = new ProxyCacheException("Error", new SocketException());
+
+        assertThat(retryPolicy.shouldRetry(error, 0)).isTrue();
+        assertThat(retryPolicy.shouldRetry(error, 1)).isTrue();
+        assertThat(retryPolicy.shouldRetry(error, 2)).isFalse();
+        assertThat(RetryPolicy.NO_RETRIES.shouldRetry(error, 0)).isFalse();
+    }
+
+    @Test
+    public void testDelayGrowsExponentiallyWithJitter() throws Exception {
+        RetryPolicy retryPolicy = new RetryPolicy(10, 100, 1000);
+        for (int i = 0; i < 100; i++) {
+            assertThat(retryPolicy.getDelay(1)).isGreaterThanOrEqualTo(50).isLessThanOrEqualTo(100);
+            assertThat(retryPolicy.getDelay(3)).isGreaterThanOrEqualTo(200).isLessThanOrEqualTo(400);
+            assertThat(retryPolicy.getDelay(10)).isGreaterThanOrEqualTo(500).isLessThanOrEqualTo(1000);
+        }
+    }
+}
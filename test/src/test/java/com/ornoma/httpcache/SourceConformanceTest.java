@@ -0,0 +1,367 @@
+package com.ornoma.httpcache;
+
+import com.ornoma.httpcache.headers.EmptyHeadersInjector;
+import com.ornoma.httpcache.headers.HeaderInjector;
+import com.ornoma.httpcache.sourcestorage.SourceInfoStorage;
+import com.ornoma.httpcache.sourcestorage.SourceInfoStorageFactory;
+import com.ornoma.httpcache.support.LocalOrigin;
+import com.ornoma.httpcache.support.ProxyCacheTestUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+/**
+ * Conformance tests for {@link UrlSource}s created by {@link SourceFactory}.
+ * <p>
+ * Every transport plugged into proxy should pass these tests: extend class and return transport's factory
+ * from {@link #newSourceFactory()}. Sources request local stand-in origin server, so network is not required.
+ */
+public abstract class SourceConformanceTest extends BaseTest {
+
+    private static final int DATA_SIZE = 100 * 1024;
+    private static final String MIME = "video/mp4";
+
+    private final byte[] data = ProxyCacheTestUtils.generate(DATA_SIZE);
+    private LocalOrigin origin;
+    private SourceFactory sourceFactory;
+
+    protected abstract SourceFactory newSourceFactory();
+
+    @Before
+    public void setup() throws Exception {
+        origin = new LocalOrigin(data, MIME);
+        sourceFactory = newSourceFactory();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        origin.shutdown();
+    }
+
+    @Test
+    public void testReadWholeContent() throws Exception {
+        UrlSource source = newSource(origin.dataUrl());
+        source.open(0);
+        byte[] readData = readAll(source);
+
+        assertThat(readData).isEqualTo(data);
+        assertThat(source.length()).isEqualTo(DATA_SIZE);
+        assertThat(source.getMime()).isEqualTo(MIME);
+        assertThat(source.isContentInfoKnown()).isTrue();
+    }
+
+    @Test
+    public void testReadWithOffset() throws Exception {
+        int offset = 30000;
+        UrlSource source = newSource(origin.dataUrl());
+        source.open(offset);
+        byte[] readData = readAll(source);
+
+        assertThat(readData).isEqualTo(Arrays.copyOfRange(data, offset, DATA_SIZE));
+        assertThat(source.length()).isEqualTo(DATA_SIZE); // total length, not length of response
+    }
+
+    @Test
+    public void testReadRange() throws Exception {
+        int offset = 1000;
+        int length = 5000;
+        UrlSource source = newSource(origin.dataUrl());
+        source.open(offset, length);
+        byte[] readData = readAll(source);
+
+        assertThat(source.isPartial()).isTrue();
+        assertThat(readData).isEqualTo(Arrays.copyOfRange(data, offset, offset + length));
+        assertThat(source.length()).isEqualTo(DATA_SIZE);
+    }
+
+    @Test
+    public void testRangeNotSupportedByServer() throws Exception {
+        origin.setRangesSupported(false);
+        UrlSource source = newSource(origin.dataUrl());
+        source.open(1000, 5000);
+        byte[] readData = readAll(source);
+
+        assertThat(source.isPartial()).isFalse();
+        assertThat(readData).isEqualTo(data);
+    }
+
+    @Test
+    public void testFetchInfoWithoutOpening() throws Exception {
+        SourceInfoStorage sourceInfoStorage = new MemorySourceInfoStorage();
+        UrlSource source = sourceFactory.newSource(origin.dataUrl(), sourceInfoStorage, new EmptyHeadersInjector());
+        assertThat(source.isContentInfoKnown()).isFalse();
+
+        SourceInfo sourceInfo = source.getSourceInfo();
+
+        assertThat(sourceInfo.length).isEqualTo(DATA_SIZE);
+        assertThat(sourceInfo.mime).isEqualTo(MIME);
+        assertThat(source.isContentInfoKnown()).isTrue();
+        assertThat(sourceInfoStorage.get(origin.dataUrl()).length).isEqualTo(DATA_SIZE);
+    }
+
+    @Test
+    public void testFetchInfoIfHeadIsNotSupported() throws Exception {
+        origin.setHeadSupported(false);
+        UrlSource source = newSource(origin.dataUrl());
+
+        assertThat(source.length()).isEqualTo(DATA_SIZE);
+        assertThat(source.getMime()).isEqualTo(MIME);
+    }
+
+    @Test
+    public void testInfoOfErrorResponseIsNotStored() throws Exception {
+        SourceInfoStorage sourceInfoStorage = new MemorySourceInfoStorage();
+        String url = origin.url("/missing");
+        UrlSource source = sourceFactory.newSource(url, sourceInfoStorage, new EmptyHeadersInjector());
+        try {
+            source.getSourceInfo();
+            fail("Fetching info of missing content must fail");
+        } catch (ServerResponseException e) {
+            assertThat(e.getResponseCode()).isEqualTo(404);
+        }
+
+        assertThat(source.isContentInfoKnown()).isFalse();
+        assertThat(sourceInfoStorage.get(url)).isNull();
+    }
+
+    @Test
+    public void testInfoIsTakenFromStorage() throws Exception {
+        SourceInfoStorage sourceInfoStorage = new MemorySourceInfoStorage();
+        sourceInfoStorage.put(origin.dataUrl(), new SourceInfo(origin.dataUrl(), DATA_SIZE, MIME));
+        UrlSource source = sourceFactory.newSource(origin.dataUrl(), sourceInfoStorage, new EmptyHeadersInjector());
+
+        assertThat(source.isContentInfoKnown()).isTrue();
+        assertThat(source.length()).isEqualTo(DATA_SIZE);
+        assertThat(source.getMime()).isEqualTo(MIME);
+        assertThat(origin.getRequestsCount()).isZero();
+    }
+
+    @Test
+    public void testResponseHeaders() throws Exception {
+        UrlSource source = newSource(origin.dataUrl());
+        assertThat(source.getResponseHeader("ETag")).isNull();
+
+        source.open(0);
+        readAll(source);
+
+        assertThat(source.getResponseHeader("ETag")).isEqualTo(LocalOrigin.ETAG);
+        assertThat(source.getResponseHeader("etag")).isEqualTo(LocalOrigin.ETAG);
+        assertThat(source.getResponseHeader("X-Absent")).isNull();
+    }
+
+    @Test
+    public void testCopySharesInfoAndHeaders() throws Exception {
+        UrlSource source = newSource(origin.dataUrl());
+        source.open(0);
+        readAll(source);
+        int requests = origin.getRequestsCount();
+
+        UrlSource copy = source.copy();
+
+        assertThat(copy.getUrl()).isEqualTo(origin.dataUrl());
+        assertThat(copy.isContentInfoKnown()).isTrue();
+        assertThat(copy.length()).isEqualTo(DATA_SIZE);
+        assertThat(copy.getMime()).isEqualTo(MIME);
+        assertThat(copy.getResponseHeader("ETag")).isEqualTo(LocalOrigin.ETAG);
+        assertThat(origin.getRequestsCount()).isEqualTo(requests);
+    }
+
+    @Test
+    public void testCopiesAreReadConcurrently() throws Exception {
+        final UrlSource source = newSource(origin.dataUrl());
+        int parts = 4;
+        final int partSize = DATA_SIZE / parts;
+        ExecutorService executor = Executors.newFixedThreadPool(parts);
+        Future[] results = new Future[parts];
+        for (int i = 0; i < parts; i++) {
+            final int offset = i * partSize;
+            results[i] = executor.submit(new Callable<byte[]>() {
+
+                @Override
+                public byte[] call() throws Exception {
+                    UrlSource copy = source.copy();
+                    copy.open(offset, partSize);
+                    return readAll(copy);
+                }
+            });
+        }
+        for (int i = 0; i < parts; i++) {
+            assertThat((byte[]) results[i].get()).isEqualTo(Arrays.copyOfRange(data, i * partSize, (i + 1) * partSize));
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void testFollowRedirect() throws Exception {
+        String url = origin.url(LocalOrigin.REDIRECT_PATH);
+        UrlSource source = newSource(url);
+        source.open(0);
+        byte[] readData = readAll(source);
+
+        assertThat(readData).isEqualTo(data);
+        assertThat(source.getUrl()).isEqualTo(url);
+    }
+
+    @Test
+    public void testInjectHeaders() throws Exception {
+        HeaderInjector headerInjector = new HeaderInjector() {
+            @Override
+            public Map<String, String> addHeaders(String url) {
+                return Collections.singletonMap("X-Token", "secret");
+            }
+        };
+        UrlSource source = sourceFactory.newSource(origin.dataUrl(), SourceInfoStorageFactory.newEmptySourceInfoStorage(), headerInjector);
+        source.open(0);
+        readAll(source);
+
+        assertThat(origin.getLastRequestHeaders().get("x-token")).isEqualTo("secret");
+    }
+
+    @Test
+    public void testValidatorsAreStored() throws Exception {
+        SourceInfoStorage sourceInfoStorage = new MemorySourceInfoStorage();
+        UrlSource source = sourceFactory.newSource(origin.dataUrl(), sourceInfoStorage, new EmptyHeadersInjector());
+        source.open(0);
+        readAll(source);
+
+        SourceInfo sourceInfo = sourceInfoStorage.get(origin.dataUrl());
+        assertThat(sourceInfo.etag).isEqualTo(LocalOrigin.ETAG);
+        assertThat(sourceInfo.validated).isGreaterThan(0);
+    }
+
+    @Test
+    public void testUnchangedContentIsContinued() throws Exception {
+        SourceInfoStorage sourceInfoStorage = new MemorySourceInfoStorage();
+        UrlSource source = sourceFactory.newSource(origin.dataUrl(), sourceInfoStorage, new EmptyHeadersInjector());
+        source.open(0);
+        readAll(source);
+
+        UrlSource resumed = sourceFactory.newSource(origin.dataUrl(), sourceInfoStorage, new EmptyHeadersInjector());
+        resumed.open(1000);
+        byte[] readData = readAll(resumed);
+
+        assertThat(resumed.isPartial()).isTrue();
+        assertThat(readData).isEqualTo(Arrays.copyOfRange(data, 1000, DATA_SIZE));
+    }
+
+    @Test
+    public void testChangedContentIsNotContinued() throws Exception {
+        SourceInfoStorage sourceInfoStorage = new MemorySourceInfoStorage();
+        UrlSource source = sourceFactory.newSource(origin.dataUrl(), sourceInfoStorage, new EmptyHeadersInjector());
+        source.open(0);
+        readAll(source);
+        origin.setContent(ProxyCacheTestUtils.generate(DATA_SIZE), "\"changed\"");
+
+        UrlSource resumed = sourceFactory.newSource(origin.dataUrl(), sourceInfoStorage, new EmptyHeadersInjector());
+        try {
+            resumed.open(1000);
+            fail("Changed content can't be continued");
+        } catch (SourceChangedException e) {
+            // expected
+        } finally {
+            resumed.close();
+        }
+    }
+
+    @Test
+    public void testRevalidateUnchangedContent() throws Exception {
+        SourceInfoStorage sourceInfoStorage = new MemorySourceInfoStorage();
+        UrlSource source = sourceFactory.newSource(origin.dataUrl(), sourceInfoStorage, new EmptyHeadersInjector());
+        source.open(0);
+        readAll(source);
+        long validated = sourceInfoStorage.get(origin.dataUrl()).validated;
+        Thread.sleep(10);
+
+        UrlSource revalidated = sourceFactory.newSource(origin.dataUrl(), sourceInfoStorage, new EmptyHeadersInjector());
+
+        assertThat(revalidated.revalidate()).isFalse();
+        assertThat(origin.getLastRequestHeaders().get("if-none-match")).isEqualTo(LocalOrigin.ETAG);
+        assertThat(sourceInfoStorage.get(origin.dataUrl()).validated).isGreaterThan(validated);
+        assertThat(sourceInfoStorage.get(origin.dataUrl()).length).isEqualTo(DATA_SIZE);
+    }
+
+    @Test
+    public void testRevalidateChangedContent() throws Exception {
+        SourceInfoStorage sourceInfoStorage = new MemorySourceInfoStorage();
+        UrlSource source = sourceFactory.newSource(origin.dataUrl(), sourceInfoStorage, new EmptyHeadersInjector());
+        source.open(0);
+        readAll(source);
+        origin.setContent(ProxyCacheTestUtils.generate(DATA_SIZE * 2), "\"changed\"");
+
+        UrlSource revalidated = sourceFactory.newSource(origin.dataUrl(), sourceInfoStorage, new EmptyHeadersInjector());
+
+        assertThat(revalidated.revalidate()).isTrue();
+        assertThat(sourceInfoStorage.get(origin.dataUrl()).etag).isEqualTo("\"changed\"");
+        assertThat(sourceInfoStorage.get(origin.dataUrl()).length).isEqualTo(DATA_SIZE * 2);
+    }
+
+    @Test
+    public void testOpenAbsentContent() throws Exception {
+        UrlSource source = newSource(origin.url("/absent"));
+        try {
+            source.open(0);
+            fail("Absent content can't be opened");
+        } catch (ProxyCacheException e) {
+            // expected
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test(expected = ProxyCacheException.class)
+    public void testReadNotOpenedSource() throws Exception {
+        UrlSource source = newSource(origin.dataUrl());
+        source.read(new byte[1024]);
+    }
+
+    private UrlSource newSource(String url) {
+        return sourceFactory.newSource(url, SourceInfoStorageFactory.newEmptySourceInfoStorage(), new EmptyHeadersInjector());
+    }
+
+    private byte[] readAll(UrlSource source) throws ProxyCacheException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[ProxyCacheUtils.DEFAULT_BUFFER_SIZE];
+        int read;
+        try {
+            while ((read = source.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            source.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static final class MemorySourceInfoStorage implements SourceInfoStorage {
+
+        private final Map<String, SourceInfo> sourceInfos = Collections.synchronizedMap(new HashMap<String, SourceInfo>());
+
+        @Override
+        public SourceInfo get(String url) {
+            return sourceInfos.get(url);
+        }
+
+        @Override
+        public void put(String url, SourceInfo sourceInfo) {
+            sourceInfos.put(url, sourceInfo);
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.ornoma.httpcache;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests {@link StallDetector}.
+ */
+public class StallDetectorTest extends BaseTest {
+
+    private static final long MS = 1000000;
+
+    @Test
+    public void testTimeoutOfUnknownHostIsMax() throws Exception {
+        StallDetector stallDetector = new StallDetector(1000, 30000, 0);
+        stallDetector.onRoundTrip("http://known:80", 10);
+
+        assertThat(stallDetector.getTimeout("http://unknown:80")).isEqualTo(30000);
+    }
+
+    @Test
+    public void testTimeoutFollowsRoundTripTime() throws Exception {
+        StallDetector stallDetector = new StallDetector(1000, 30000, 0);
+        stallDetector.onRoundTrip("http://near:80", 100);
+        stallDetector.onRoundTrip("http://far:80", 300);
+
+        int nearTimeout = stallDetector.getTimeout("http://near:80");
+        assertThat(nearTimeout).isEqualTo((100 + 4 * 50) * 16);
+        assertThat(stallDetector.getTimeout("http://far:80")).isGreaterThan(nearTimeout);
+    }
+
+    @Test
+    public void testTimeoutIsBounded() throws Exception {
+        StallDetector stallDetector = new StallDetector(1000, 30000, 0);
+        stallDetector.onRoundTrip("http://near:80", 1);
+        stallDetector.onRoundTrip("http://far:80", 5000);
+
+        assertThat(stallDetector.getTimeout("http://near:80")).isEqualTo(1000);
+        assertThat(stallDetector.getTimeout("http://far:80")).isEqualTo(30000);
+    }
+
+    @Test
+    public void testNotStalledBeforeWindowIsOver() throws Exception {
+        StallDetector.Meter meter = new StallDetector.Meter(1024, 1000);
+        meter.onRead(1, 900 * MS);
+
+        assertThat(meter.isStalled()).isFalse();
+        assertThat(meter.getThroughput()).isEqualTo(-1);
+    }
+
+    @Test
+    public void testSlowConnectionIsStalled() throws Exception {
+        StallDetector.Meter meter = new StallDetector.Meter(1024, 1000);
+        meter.onRead(500, 600 * MS);
+        meter.onRead(500, 600 * MS);
+
+        assertThat(meter.getThroughput()).isEqualTo(833);
+        assertThat(meter.isStalled()).isTrue();
+    }
+
+    @Test
+    public void testStalledConnectionRecovers() throws Exception {
+        StallDetector.Meter meter = new StallDetector.Meter(1024, 1000);
+        meter.onRead(100, 1000 * MS);
+        meter.onRead(-1, 0);
+        meter.onRead(64 * 1024, 1000 * MS);
+
+        assertThat(meter.getThroughput()).isEqualTo(64 * 1024);
+        assertThat(meter.isStalled()).isFalse();
+    }
+
+    @Test
+    public void testThroughputIsNotCheckedWithoutMin() throws Exception {
+        StallDetector.Meter meter = new StallDetector.Meter(0, 1000);
+        meter.onRead(1, 2000 * MS);
+
+        assertThat(meter.isStalled()).isFalse();
+    }
+}
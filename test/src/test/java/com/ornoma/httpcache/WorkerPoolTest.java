@@ -0,0 +1,127 @@
+package com.ornoma.httpcache;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests {@link WorkerPool}.
+ */
+public class WorkerPoolTest extends BaseTest {
+
+    @Test
+    public void testPoolGrowsUntilMaxThreads() throws Exception {
+        ProxyCacheMetrics metrics = new ProxyCacheMetrics();
+        WorkerPool pool = new WorkerPool(0, 3, 0, metrics);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(3);
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(pool.execute(new BlockingTask(started, release), WorkerPool.Priority.NEW_CONNECTION)).isTrue();
+        }
+        assertThat(started.await(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(metrics.getWorkers()).isEqualTo(3);
+        assertThat(metrics.getBusyWorkers()).isEqualTo(3);
+
+        release.countDown();
+        pool.shutdown();
+    }
+
+    @Test
+    public void testRejectWhenQueueIsFull() throws Exception {
+        ProxyCacheMetrics metrics = new ProxyCacheMetrics();
+        WorkerPool pool = new WorkerPool(0, 1, 1, metrics);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(2);
+
+        assertThat(pool.execute(new BlockingTask(started, release), WorkerPool.Priority.NEW_CONNECTION)).isTrue();
+        assertThat(pool.execute(new BlockingTask(started, release), WorkerPool.Priority.NEW_CONNECTION)).isTrue();
+        assertThat(pool.execute(new BlockingTask(started, release), WorkerPool.Priority.NEW_CONNECTION)).isFalse();
+        assertThat(metrics.getRejectedConnections()).isEqualTo(1);
+
+        release.countDown();
+        assertThat(started.await(1, TimeUnit.SECONDS)).isTrue();
+        pool.shutdown();
+    }
+
+    @Test
+    public void testQueuedTasksAreExecutedByPriority() throws Exception {
+        WorkerPool pool = new WorkerPool(0, 1, 10, new ProxyCacheMetrics());
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(3);
+        List<WorkerPool.Priority> executed = new CopyOnWriteArrayList<>();
+
+        pool.execute(new BlockingTask(started, release), WorkerPool.Priority.NEW_CONNECTION);
+        assertThat(started.await(1, TimeUnit.SECONDS)).isTrue();
+        pool.execute(new RecordingTask(WorkerPool.Priority.NOT_CACHED, executed, finished), WorkerPool.Priority.NOT_CACHED);
+        pool.execute(new RecordingTask(WorkerPool.Priority.CACHED, executed, finished), WorkerPool.Priority.CACHED);
+        pool.execute(new RecordingTask(WorkerPool.Priority.PING, executed, finished), WorkerPool.Priority.PING);
+        assertThat(pool.hasTasksAhead(WorkerPool.Priority.NOT_CACHED)).isTrue();
+        assertThat(pool.hasTasksAhead(WorkerPool.Priority.PING)).isFalse();
+
+        release.countDown();
+        assertThat(finished.await(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(executed).containsExactly(WorkerPool.Priority.PING, WorkerPool.Priority.CACHED, WorkerPool.Priority.NOT_CACHED);
+        pool.shutdown();
+    }
+
+    @Test
+    public void testRescheduledTaskIsNotRejected() throws Exception {
+        WorkerPool pool = new WorkerPool(0, 1, 0, new ProxyCacheMetrics());
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(2);
+
+        assertThat(pool.execute(new BlockingTask(started, release), WorkerPool.Priority.NEW_CONNECTION)).isTrue();
+        assertThat(pool.reschedule(new BlockingTask(started, release), WorkerPool.Priority.NOT_CACHED)).isTrue();
+
+        release.countDown();
+        assertThat(started.await(1, TimeUnit.SECONDS)).isTrue();
+        pool.shutdown();
+    }
+
+    private static final class BlockingTask implements Runnable {
+
+        private final CountDownLatch started;
+        private final CountDownLatch release;
+
+        BlockingTask(CountDownLatch started, CountDownLatch release) {
+            this.started = started;
+            this.release = release;
+        }
+
+        @Override
+        public void run() {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class RecordingTask implements Runnable {
+
+        private final WorkerPool.Priority priority;
+        private final List<WorkerPool.Priority> executed;
+        private final CountDownLatch finished;
+
+        RecordingTask(WorkerPool.Priority priority, List<WorkerPool.Priority> executed, CountDownLatch finished) {
+            this.priority = priority;
+            this.executed = executed;
+            this.finished = finished;
+        }
+
+        @Override
+        public void run() {
+            executed.add(priority);
+            finished.countDown();
+        }
+    }
+}
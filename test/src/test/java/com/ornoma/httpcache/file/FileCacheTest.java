@@ -10,8 +10,11 @@ import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 
 import static com.google.common.io.Files.write;
@@ -54,6 +57,34 @@ public class FileCacheTest extends BaseTest {
         assertThat(file.length()).isEqualTo(dataSize);
     }
 
+    @Test
+    public void testTransferTo() throws Exception {
+        byte[] data = ProxyCacheTestUtils.generate(10000);
+        FileCache fileCache = new FileCache(ProxyCacheTestUtils.newCacheFile());
+        fileCache.append(data, data.length);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long transferred = fileCache.transferTo(1000, 5000, Channels.newChannel(out));
+
+        assertThat(transferred).isEqualTo(5000);
+        assertThat(out.toByteArray()).isEqualTo(Arrays.copyOfRange(data, 1000, 6000));
+    }
+
+    @Test
+    public void testTransferToAfterCompletion() throws Exception {
+        byte[] data = ProxyCacheTestUtils.generate(10000);
+        FileCache fileCache = new FileCache(ProxyCacheTestUtils.newCacheFile());
+        fileCache.append(data, data.length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(out);
+
+        fileCache.transferTo(0, 4000, channel);
+        fileCache.complete();
+        fileCache.transferTo(4000, 6000, channel);
+
+        assertThat(out.toByteArray()).isEqualTo(data);
+    }
+
     @Test(expected = ProxyCacheException.class)
     public void testErrorAppendFileCacheAfterCompletion() throws Exception {
         Cache fileCache = new FileCache(ProxyCacheTestUtils.newCacheFile());
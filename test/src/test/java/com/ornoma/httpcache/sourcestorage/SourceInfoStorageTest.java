@@ -64,6 +64,30 @@ public class SourceInfoStorageTest extends BaseTest {
         assertThat(sourceInfo.mime).isEqualTo("video/mp4");
     }
 
+    @Test
+    public void testSavingLocation() throws Exception {
+        String url = ":-)";
+        storage.put(url, new SourceInfo(url, 42, "text/plain", ":-D", 4242));
+
+        SourceInfo sourceInfo = storage.get(url);
+        assertThat(sourceInfo.location).isEqualTo(":-D");
+        assertThat(sourceInfo.locationExpires).isEqualTo(4242);
+
+        storage.put(url, new SourceInfo(url, 42, "text/plain"));
+        assertThat(storage.get(url).location).isNull();
+    }
+
+    @Test
+    public void testSavingValidators() throws Exception {
+        String url = ":-)";
+        storage.put(url, new SourceInfo(url, 42, "text/plain", null, 0, "\"tag\"", "Wed, 21 Oct 2015 07:28:00 GMT", 4242));
+
+        SourceInfo sourceInfo = storage.get(url);
+        assertThat(sourceInfo.etag).isEqualTo("\"tag\"");
+        assertThat(sourceInfo.lastModified).isEqualTo("Wed, 21 Oct 2015 07:28:00 GMT");
+        assertThat(sourceInfo.validated).isEqualTo(4242);
+    }
+
     @Test(expected = NullPointerException.class)
     public void testNpeForGetting() throws Exception {
         storage.get(null);
@@ -0,0 +1,271 @@
+package com.ornoma.httpcache.support;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local http server standing in for origin server, so transports can be tested without network.
+ * <p>
+ * Serves single content at {@link #DATA_PATH} with {@code Range} and {@code HEAD} support, {@link #REDIRECT_PATH}
+ * redirects to content, all other paths are answered with {@code 404}. Connections are kept alive.
+ * Content is validated by entity tag: {@code If-None-Match} and {@code If-Range} requests are supported.
+ */
+public class LocalOrigin {
+
+    public static final String DATA_PATH = "/data";
+    public static final String REDIRECT_PATH = "/redirect";
+    public static final String ETAG = "\"local-origin\"";
+
+    private final String mime;
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final List<Map<String, String>> requestsHeaders = Collections.synchronizedList(new ArrayList<Map<String, String>>());
+    private final List<String> requestedPaths = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicLong stallAfter = new AtomicLong(-1);
+    private final AtomicLong responseDelay = new AtomicLong();
+    private volatile boolean rangesSupported = true;
+    private volatile boolean headSupported = true;
+    private volatile String redirectHeaders = "";
+    private volatile byte[] data;
+    private volatile String etag = ETAG;
+
+    public LocalOrigin(byte[] data, String mime) throws IOException {
+        this.data = data;
+        this.mime = mime;
+        this.serverSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+    }
+
+    public String url(String path) {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+    }
+
+    public String dataUrl() {
+        return url(DATA_PATH);
+    }
+
+    /**
+     * Replaces served content, e.g. to simulate content changed on server.
+     *
+     * @param data new content.
+     * @param etag entity tag of new content.
+     */
+    public void setContent(byte[] data, String etag) {
+        this.data = data;
+        this.etag = etag;
+    }
+
+    public void setRangesSupported(boolean rangesSupported) {
+        this.rangesSupported = rangesSupported;
+    }
+
+    public void setHeadSupported(boolean headSupported) {
+        this.headSupported = headSupported;
+    }
+
+    /**
+     * Sets extra headers of redirect's response, e.g. caching headers.
+     *
+     * @param redirectHeaders headers, every one ends with {@code \r\n}.
+     */
+    public void setRedirectHeaders(String redirectHeaders) {
+        this.redirectHeaders = redirectHeaders;
+    }
+
+    /**
+     * Makes next response of content hang after given count of bytes is sent, e.g. to simulate dead connection.
+     * Hung connection is never closed by server.
+     *
+     * @param bytes count of bytes to send before hanging.
+     */
+    public void stallNextResponseAfter(long bytes) {
+        stallAfter.set(bytes);
+    }
+
+    /**
+     * Makes next response of content wait before its headers are sent, e.g. to simulate slow connecting.
+     *
+     * @param delay delay in milliseconds.
+     */
+    public void delayNextResponse(long delay) {
+        responseDelay.set(delay);
+    }
+
+    public List<String> getRequestedPaths() {
+        synchronized (requestedPaths) {
+            return new ArrayList<>(requestedPaths);
+        }
+    }
+
+    public int getRequestsCount() {
+        return requests.get();
+    }
+
+    /**
+     * Returns headers of last received request, names are in lower case.
+     *
+     * @return request's headers.
+     */
+    public Map<String, String> getLastRequestHeaders() {
+        synchronized (requestsHeaders) {
+            return requestsHeaders.isEmpty() ? Collections.<String, String>emptyMap() : requestsHeaders.get(requestsHeaders.size() - 1);
+        }
+    }
+
+    public void shutdown() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        executor.shutdownNow();
+    }
+
+    private void acceptConnections() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                final Socket socket = serverSocket.accept();
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            // server is shut down
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            OutputStream out = socket.getOutputStream();
+            String requestLine;
+            while ((requestLine = reader.readLine()) != null && !requestLine.isEmpty()) {
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+                }
+                requests.incrementAndGet();
+                requestsHeaders.add(headers);
+                String[] parts = requestLine.split(" ");
+                requestedPaths.add(parts[1]);
+                respond(out, parts[0], parts[1], headers);
+                if ("close".equalsIgnoreCase(headers.get("connection"))) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // client has closed connection
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void respond(OutputStream out, String method, String path, Map<String, String> headers) throws IOException {
+        boolean head = "HEAD".equals(method);
+        if (path.equals(REDIRECT_PATH)) {
+            writeHeaders(out, "302 Found", "Location: " + dataUrl() + "\r\nContent-Length: 0\r\n" + redirectHeaders);
+            return;
+        }
+        if (!path.equals(DATA_PATH)) {
+            writeHeaders(out, "404 Not Found", "Content-Length: 0\r\n");
+            return;
+        }
+        if (head && !headSupported) {
+            writeHeaders(out, "405 Method Not Allowed", "Content-Length: 0\r\n");
+            return;
+        }
+        long delay = responseDelay.getAndSet(0);
+        if (delay > 0) {
+            sleep(delay);
+        }
+        byte[] data = this.data;
+        String etag = this.etag;
+        if (etag.equals(headers.get("if-none-match"))) {
+            writeHeaders(out, "304 Not Modified", "ETag: " + etag + "\r\n");
+            return;
+        }
+        long first = 0;
+        long last = data.length - 1;
+        String ifRange = headers.get("if-range");
+        boolean rangeValid = ifRange == null || ifRange.equals(etag);
+        String range = rangesSupported && rangeValid ? headers.get("range") : null;
+        if (range != null) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            if (bounds[0].isEmpty()) {
+                first = Math.max(0, data.length - Long.parseLong(bounds[1]));
+            } else {
+                first = Long.parseLong(bounds[0]);
+                last = bounds[1].isEmpty() ? last : Math.min(last, Long.parseLong(bounds[1]));
+            }
+            if (first >= data.length) {
+                writeHeaders(out, "416 Range Not Satisfiable", "Content-Range: bytes */" + data.length + "\r\nContent-Length: 0\r\n");
+                return;
+            }
+        }
+        long length = last - first + 1;
+        String status = range != null ? "206 Partial Content" : "200 OK";
+        String contentHeaders = "Content-Type: " + mime + "\r\n" +
+                "Content-Length: " + length + "\r\n" +
+                "ETag: " + etag + "\r\n" +
+                "Accept-Ranges: " + (rangesSupported ? "bytes" : "none") + "\r\n" +
+                (range != null ? "Content-Range: bytes " + first + "-" + last + "/" + data.length + "\r\n" : "");
+        writeHeaders(out, status, contentHeaders);
+        if (!head) {
+            long stallAfter = this.stallAfter.getAndSet(-1);
+            if (stallAfter >= 0 && stallAfter < length) {
+                out.write(data, (int) first, (int) stallAfter);
+                out.flush();
+                hang();
+            }
+            out.write(data, (int) first, (int) length);
+        }
+        out.flush();
+    }
+
+    private void sleep(long delay) throws IOException {
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            throw new IOException("Server is shut down");
+        }
+    }
+
+    private void hang() throws IOException {
+        sleep(Long.MAX_VALUE);
+    }
+
+    private void writeHeaders(OutputStream out, String status, String headers) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\n" + headers + "\r\n").getBytes("ISO-8859-1"));
+        out.flush();
+    }
+}
@@ -60,6 +60,20 @@ public class ProxyCacheTestUtils {
         return Files.asByteSource(file).read();
     }
 
+    public static byte[] readAll(Source source) throws ProxyCacheException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8 * 1024];
+        int read;
+        try {
+            while ((read = source.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            source.close();
+        }
+        return out.toByteArray();
+    }
+
     public static Response readProxyResponse(HttpProxyCacheServer proxy, String url) throws IOException {
         return readProxyResponse(proxy, url, -1);
     }
@@ -37,10 +37,12 @@ public class Response {
     }
 
     public Response(byte[] responseData) throws IOException {
-        int read = 0;
-        BufferedReader reader = new BufferedReader(new StringReader(new String(responseData, "ascii")));
+        String response = new String(responseData, "ascii");
+        int headersEnd = response.indexOf("\r\n\r\n");
+        int read = headersEnd >= 0 ? headersEnd + 4 : response.indexOf("\n\n") + 2;
+        Preconditions.checkArgument(read > 1, "Headers end not found in `" + response + "`");
+        BufferedReader reader = new BufferedReader(new StringReader(response.substring(0, read)));
         String statusLine = reader.readLine();
-        read += statusLine.length() + 1;
         Matcher matcher = STATUS_CODE_PATTERN.matcher(statusLine);
         boolean hasCode = matcher.find();
         Preconditions.checkArgument(hasCode, "Status code not found in `" + statusLine + "`");
@@ -49,13 +51,11 @@ public class Response {
         String header;
         this.headers = new HashMap<>();
         while (!TextUtils.isEmpty(header = reader.readLine())) {
-            read += header.length() + 1;
-            String[] keyValue = header.split(":");
+            String[] keyValue = header.split(":", 2);
             String headerName = keyValue[0].trim();
             String headerValue = keyValue[1].trim();
             headers.put(headerName, Collections.singletonList(headerValue));
         }
-        read++;
 
         this.contentType = headers.containsKey(CONTENT_TYPE_HEADER) ? headers.get(CONTENT_TYPE_HEADER).get(0) : null;
         this.contentLength = headers.containsKey(CONTENT_LENGTH_HEADER) ? Integer.parseInt(headers.get(CONTENT_LENGTH_HEADER).get(0)) : -1;